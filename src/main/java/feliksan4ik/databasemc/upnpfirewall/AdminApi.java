@@ -0,0 +1,684 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+
+// Локальный HTTP API для автоматизации на HttpServer из JDK. По умолчанию выключен, слушает
+// только 127.0.0.1, каждый запрос — с заголовком "Authorization: Bearer <token>":
+//   POST /v1/changes — пакет изменений: NDJSON (объект на строку) или JSON-массив объектов;
+//   GET /v1/export — все правила и порты в NDJSON того же вида, выгрузку можно отправить обратно;
+//   GET /v1/stats — счётчики и состояние.
+// Каждый запрос обслуживает свой виртуальный поток: разбор тела и запросы к шлюзу идут в нём,
+// а изменения применяются одной задачей основного потока — одна пересборка matcher на пакет
+// и одно сохранение конфига.
+final class AdminApi {
+
+    private static final int MAX_REJECTED = 100;
+    private static final int MAX_STRING = 1024;
+    private static final long APPLY_TIMEOUT_SECONDS = 60;
+    private static final String DEFAULT_DESCRIPTION = "Added through admin API";
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+(\\.\\d+)?([eE][-+]?\\d+)?");
+
+    private final Main plugin;
+    private final FirewallManager firewallManager;
+    private final PortManager portManager;
+    private final PortIPManager portIPManager;
+    private final TickWatchdog.Source applySource;
+    private HttpServer server;
+    private ExecutorService executor;
+    private byte[] token;
+    private int maxChanges;
+
+    AdminApi(Main plugin, FirewallManager firewallManager, PortManager portManager, PortIPManager portIPManager) {
+        this.plugin = plugin;
+        this.firewallManager = firewallManager;
+        this.portManager = portManager;
+        this.portIPManager = portIPManager;
+        this.applySource = plugin.getWatchdog().source("task:admin-api");
+    }
+
+    void start() {
+        if (!plugin.config.getBoolean("admin-api.enabled", false)) return;
+
+        String secret = plugin.config.getString("admin-api.token", "");
+        if (secret.isEmpty()) {
+            byte[] random = new byte[24];
+            new SecureRandom().nextBytes(random);
+            secret = HexFormat.of().formatHex(random);
+            plugin.config.set("admin-api.token", secret);
+            plugin.saveConfig();
+            plugin.getLogger().info(plugin.getTranslation("admin_api.token_generated"));
+        }
+        token = secret.getBytes(StandardCharsets.UTF_8);
+        maxChanges = Math.max(1, plugin.config.getInt("admin-api.max-changes", 200000));
+
+        String bind = plugin.config.getString("admin-api.bind", "127.0.0.1");
+        int port = plugin.config.getInt("admin-api.port", 25581);
+        try {
+            InetSocketAddress address = new InetSocketAddress(bind, port);
+            if (address.isUnresolved()) throw new IOException("Unresolved address " + bind);
+
+            server = HttpServer.create(address, 0);
+            executor = Executors.newVirtualThreadPerTaskExecutor();
+            server.setExecutor(executor);
+            server.createContext("/v1/changes", exchange -> handle(exchange, "POST", this::changes));
+            server.createContext("/v1/export", exchange -> handle(exchange, "GET", this::export));
+            server.createContext("/v1/stats", exchange -> handle(exchange, "GET", this::stats));
+            server.start();
+
+            if (!address.getAddress().isLoopbackAddress()) {
+                plugin.getLogger().warning(plugin.getTranslation("admin_api.public_bind", bind));
+            }
+            plugin.getLogger().info(plugin.getTranslation("admin_api.started", bind, port));
+        } catch (IOException | IllegalArgumentException e) {
+            plugin.getLogger().warning(plugin.getTranslation("admin_api.error.start_failed", e.getMessage()));
+            stop();
+        }
+    }
+
+    // Ждущие основного потока запросы прерываются; уже начатое применение доходит до конца
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange, String method, Handler handler) {
+        try (exchange) {
+            if (!authorized(exchange)) {
+                respond(exchange, 401, error("unauthorized"));
+            } else if (!exchange.getRequestURI().getPath().equals(exchange.getHttpContext().getPath())) {
+                respond(exchange, 404, error("not found"));
+            } else if (!exchange.getRequestMethod().equals(method)) {
+                exchange.getResponseHeaders().set("Allow", method);
+                respond(exchange, 405, error("method not allowed"));
+            } else {
+                handler.handle(exchange);
+            }
+        } catch (IOException e) {
+            // Клиент закрыл соединение
+        } catch (RuntimeException e) {
+            plugin.getLogger().log(Level.WARNING,
+                    plugin.getTranslation("admin_api.error.request_failed", exchange.getRequestURI()), e);
+            if (exchange.getResponseCode() == -1) {
+                try {
+                    respond(exchange, 500, error("internal error"));
+                } catch (IOException ignored) {
+                    // Клиент закрыл соединение
+                }
+            }
+        }
+    }
+
+    // Сравнение за постоянное время: по времени ответа токен не подобрать
+    private boolean authorized(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.startsWith("Bearer ")) return false;
+        return MessageDigest.isEqual(token, header.substring(7).trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Пакет проверяется целиком до применения: при любой ошибке разбора не меняется ничего.
+    // Изменение, которое противоречит текущему состоянию (нет такого правила, порт пересекается
+    // с другим диапазоном), отклоняется по отдельности, остальные применяются
+    private void changes(HttpExchange exchange) throws IOException {
+        List<Change> changes = new ArrayList<>();
+        List<Rejected> invalid = new ArrayList<>();
+        int items = 0;
+        try {
+            ObjectReader reader = new ObjectReader(new BufferedReader(
+                    new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)));
+            Map<String, String> fields;
+            while ((fields = reader.next()) != null) {
+                if (++items > maxChanges) {
+                    respond(exchange, 413, error("more than " + maxChanges + " changes in one request"));
+                    return;
+                }
+                try {
+                    changes.add(parse(fields, items));
+                } catch (IllegalArgumentException e) {
+                    invalid.add(new Rejected(items, e.getMessage()));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, error(e.getMessage()));
+            return;
+        }
+        if (!invalid.isEmpty()) {
+            respond(exchange, 400, "{\"error\":\"invalid changes\",\"invalid\":" + rejected(invalid)
+                    + ",\"invalid_total\":" + invalid.size() + "}");
+            return;
+        }
+
+        long started = System.nanoTime();
+        Future<Applied> future = plugin.getServer().getScheduler().callSyncMethod(plugin, () -> apply(changes));
+        Applied applied;
+        try {
+            try {
+                applied = future.get(APPLY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                if (future.cancel(false)) {
+                    respond(exchange, 503, error("server thread did not pick up the changes, nothing applied"));
+                    return;
+                }
+                applied = future.get();
+            }
+        } catch (InterruptedException e) {
+            // Плагин выключается
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+
+        // Закрытия раньше открытий; проброс, который тут же открывается заново, не закрывается
+        int gatewayFailed = 0;
+        for (PortInfo portInfo : applied.portUnmaps) {
+            if (!applied.mapped.contains(PortManager.hold(portInfo))) {
+                portManager.unmap(portInfo);
+            }
+        }
+        for (PortIPManager.PortIPRule rule : applied.portIPUnmaps) {
+            if (!applied.mapped.contains(PortIPManager.hold(rule))) {
+                portIPManager.unmap(rule);
+            }
+        }
+        for (PortInfo portInfo : applied.ports) {
+            if (!portManager.mapPort(portInfo)) gatewayFailed++;
+        }
+        for (PortIPManager.PortIPRule rule : applied.portIPRules) {
+            if (!portIPManager.mapPortIPRule(rule)) gatewayFailed++;
+        }
+
+        respond(exchange, 200, "{\"applied\":" + (changes.size() - applied.rejected.size())
+                + ",\"firewall\":" + applied.firewall
+                + ",\"ports\":" + applied.portCount
+                + ",\"port_ip\":" + applied.portIP
+                + ",\"rejected\":" + rejected(applied.rejected)
+                + ",\"rejected_total\":" + applied.rejected.size()
+                + ",\"gateway_failed\":" + gatewayFailed
+                + ",\"millis\":" + (System.nanoTime() - started) / 1_000_000 + "}");
+    }
+
+    private Applied apply(List<Change> changes) {
+        long started = plugin.getWatchdog().begin();
+        try {
+            Applied applied = new Applied();
+            firewallManager.batch(() -> portIPManager.batch(() -> {
+                for (Change change : changes) {
+                    apply(change, applied);
+                }
+            }));
+            return applied;
+        } finally {
+            plugin.getWatchdog().end(applySource, started);
+        }
+    }
+
+    // Правила портов по IP применяются как при репликации: пересекающиеся правила того же
+    // адреса заменяются. Изменения файрвола и портов по IP уходят в кластер, как из команд
+    private void apply(Change change, Applied applied) {
+        ClusterManager cluster = plugin.getClusterManager();
+        switch (change.kind()) {
+            case FIREWALL -> {
+                String ip = change.host() != null ? change.host() : change.prefix().toString();
+                if (change.add()) {
+                    if (change.host() != null) {
+                        firewallManager.putHostRule(change.host(), change.type(), change.action());
+                    } else {
+                        firewallManager.putRule(change.prefix(), change.type(), change.action());
+                    }
+                    cluster.publishFirewallRule(ip, change.type(), change.action());
+                } else {
+                    boolean removed = change.host() != null ?
+                            firewallManager.deleteHostRule(change.host()) : firewallManager.deleteRule(change.prefix());
+                    if (!removed) {
+                        applied.reject(change, "rule not found");
+                        return;
+                    }
+                    cluster.publishFirewallRemoval(ip);
+                }
+                applied.firewall++;
+            }
+            case PORT -> {
+                if (change.add()) {
+                    PortInfo portInfo = portManager.storePort(change.ports(), change.protocol(), change.description(),
+                            applied.portUnmaps);
+                    if (portInfo == null) {
+                        applied.reject(change, "overlaps another open port range");
+                        return;
+                    }
+                    applied.ports.add(portInfo);
+                    applied.mapped.add(PortManager.hold(portInfo));
+                } else {
+                    PortInfo portInfo = portManager.dropPort(change.ports().from());
+                    if (portInfo == null) {
+                        applied.reject(change, "port is not open");
+                        return;
+                    }
+                    applied.portUnmaps.add(portInfo);
+                }
+                applied.portCount++;
+            }
+            case PORT_IP -> {
+                if (change.add()) {
+                    PortIPManager.PortIPRule rule = portIPManager.storePortIPRule(change.prefix(), change.ports(),
+                            change.protocol(), change.action(), change.description(), applied.portIPUnmaps);
+                    if (rule.action() == RuleAction.OPEN) {
+                        applied.portIPRules.add(rule);
+                        applied.mapped.add(PortIPManager.hold(rule));
+                    }
+                    cluster.publishPortIPRule(rule.ip(), rule.ports(), rule.protocol(), rule.action(), rule.description());
+                } else {
+                    PortIPManager.PortIPRule rule = portIPManager.dropPortIPRule(change.prefix(), change.ports());
+                    if (rule == null) {
+                        applied.reject(change, "rule not found");
+                        return;
+                    }
+                    if (rule.action() == RuleAction.OPEN) {
+                        applied.portIPUnmaps.add(rule);
+                    }
+                    cluster.publishPortIPRemoval(rule.ip(), rule.ports());
+                }
+                applied.portIP++;
+            }
+        }
+    }
+
+    // Проверка одного изменения вне основного потока; IllegalArgumentException — причина отказа
+    private static Change parse(Map<String, String> fields, int item) {
+        String op = fields.getOrDefault("op", "add");
+        boolean add = switch (op) {
+            case "add" -> true;
+            case "remove" -> false;
+            default -> throw new IllegalArgumentException("unknown op " + op);
+        };
+
+        Kind kind = Kind.parse(required(fields, "kind"));
+        if (kind == null) throw new IllegalArgumentException("unknown kind " + fields.get("kind"));
+
+        switch (kind) {
+            case FIREWALL -> {
+                String ip = required(fields, "ip");
+                IpPrefix prefix = IpPrefix.parse(ip);
+                String host = prefix == null && DnsResolver.isHostname(ip) ? DnsResolver.normalize(ip) : null;
+                if (prefix == null && host == null) throw new IllegalArgumentException("invalid ip " + ip);
+                if (!add) return new Change(item, kind, false, prefix, host, null, null, null, null, null);
+
+                ListType type = ListType.parse(required(fields, "type"));
+                if (type == null) throw new IllegalArgumentException("invalid type " + fields.get("type"));
+                RuleAction action = RuleAction.parse(required(fields, "action"));
+                if (action != RuleAction.ALLOW && action != RuleAction.BLOCK) {
+                    throw new IllegalArgumentException("invalid action " + fields.get("action"));
+                }
+                return new Change(item, kind, true, prefix, host, type, action, null, null, null);
+            }
+            case PORT -> {
+                PortRange ports = ports(fields);
+                if (!add) return new Change(item, kind, false, null, null, null, null, ports, null, null);
+
+                Protocol protocol = Protocol.parse(fields.getOrDefault("protocol", "TCP"));
+                if (protocol != Protocol.TCP && protocol != Protocol.UDP) {
+                    throw new IllegalArgumentException("invalid protocol " + fields.get("protocol"));
+                }
+                return new Change(item, kind, true, null, null, null, null, ports, protocol,
+                        fields.getOrDefault("description", DEFAULT_DESCRIPTION));
+            }
+            default -> {
+                String ip = required(fields, "ip");
+                IpPrefix prefix = IpPrefix.parse(ip);
+                if (prefix == null) throw new IllegalArgumentException("invalid ip " + ip);
+                PortRange ports = ports(fields);
+                if (!add) return new Change(item, kind, false, prefix, null, null, null, ports, null, null);
+
+                RuleAction action = RuleAction.parse(required(fields, "action"));
+                if (action != RuleAction.OPEN && action != RuleAction.BLOCK) {
+                    throw new IllegalArgumentException("invalid action " + fields.get("action"));
+                }
+                // Как в командах: открытие — TCP по умолчанию, блокировка — все протоколы
+                Protocol protocol = Protocol.parse(fields.getOrDefault("protocol",
+                        action == RuleAction.OPEN ? "TCP" : "ANY"));
+                if (protocol == null || (action == RuleAction.OPEN && protocol == Protocol.ANY)) {
+                    throw new IllegalArgumentException("invalid protocol " + fields.get("protocol"));
+                }
+                return new Change(item, kind, true, prefix, null, null, action, ports, protocol,
+                        fields.getOrDefault("description", DEFAULT_DESCRIPTION));
+            }
+        }
+    }
+
+    private static String required(Map<String, String> fields, String name) {
+        String value = fields.get(name);
+        if (value == null) throw new IllegalArgumentException("missing " + name);
+        return value;
+    }
+
+    private static PortRange ports(Map<String, String> fields) {
+        PortRange ports = PortRange.parse(required(fields, "port"));
+        if (ports == null) throw new IllegalArgumentException("invalid port " + fields.get("port"));
+        return ports;
+    }
+
+    // Выгрузка из снимков, основной поток не участвует; строки пишутся по мере обхода
+    private void export(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+            for (FirewallManager.FirewallRule rule : firewallManager.snapshotRules()) {
+                out.write("{\"kind\":\"firewall\",\"ip\":" + quote(rule.ip()) + ",\"type\":\"" + rule.type().configName()
+                        + "\",\"action\":\"" + rule.action().configName() + "\"}\n");
+            }
+            for (FirewallManager.HostRule rule : firewallManager.snapshotHostRules()) {
+                out.write("{\"kind\":\"firewall\",\"ip\":" + quote(rule.host()) + ",\"type\":\"" + rule.type().configName()
+                        + "\",\"action\":\"" + rule.action().configName() + "\"}\n");
+            }
+            for (PortInfo portInfo : portManager.getPorts()) {
+                out.write("{\"kind\":\"port\",\"port\":\"" + portInfo.ports() + "\",\"protocol\":\"" + portInfo.protocol()
+                        + "\",\"description\":" + quote(portInfo.description()) + "}\n");
+            }
+            for (PortIPManager.PortIPRule rule : portIPManager.snapshotRules()) {
+                out.write("{\"kind\":\"port-ip\",\"ip\":" + quote(rule.ip()) + ",\"port\":\"" + rule.ports()
+                        + "\",\"protocol\":\"" + rule.protocol() + "\",\"action\":\"" + rule.action().configName()
+                        + "\",\"description\":" + quote(rule.description()) + "}\n");
+            }
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        TickWatchdog watchdog = plugin.getWatchdog();
+        StateJournal journal = plugin.getStateJournal();
+        ClusterManager cluster = plugin.getClusterManager();
+
+        respond(exchange, 200, "{\"firewall_enabled\":" + firewallManager.isEnabled()
+                + ",\"whitelist_mode\":" + firewallManager.isWhitelistMode()
+                + ",\"firewall_rules\":" + firewallManager.getRuleCount()
+                + ",\"ports\":" + portManager.getOpenPortCount()
+                + ",\"port_ip_rules\":" + portIPManager.getPortIPCount()
+                + ",\"port_mapping\":" + quote(plugin.getPortMapping().describe())
+                + ",\"attack_mode\":{\"active\":" + plugin.getAttackGuard().isActive()
+                + ",\"enforcing\":" + plugin.getAttackGuard().isEnforcing()
+                + ",\"login_rate\":" + plugin.getAttackGuard().getRate() + "}"
+                + ",\"runtime_state\":{\"mappings\":" + journal.size() + ",\"bytes\":" + journal.bytes() + "}"
+                + ",\"cluster\":{\"running\":" + cluster.isRunning() + ",\"peers\":" + cluster.getPeerCount()
+                + ",\"digest\":\"" + Long.toHexString(cluster.getDigest()) + "\"}"
+                + ",\"watchdog\":{\"budget_ms\":" + watchdog.getBudgetMillis()
+                + ",\"over_budget_ticks\":" + watchdog.getOverBudgetTicks()
+                + ",\"window\":" + watchdog.getWindow()
+                + ",\"degraded\":" + watchdog.isDegraded() + "}}");
+    }
+
+    private static void respond(HttpExchange exchange, int code, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    private static String rejected(List<Rejected> rejected) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < Math.min(rejected.size(), MAX_REJECTED); i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"item\":").append(rejected.get(i).item())
+                    .append(",\"error\":").append(quote(rejected.get(i).error())).append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    private static String quote(String text) {
+        StringBuilder json = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    private enum Kind {
+        FIREWALL("firewall"), PORT("port"), PORT_IP("port-ip");
+
+        private final String wireName;
+
+        Kind(String wireName) {
+            this.wireName = wireName;
+        }
+
+        static Kind parse(String value) {
+            for (Kind kind : values()) {
+                if (kind.wireName.equals(value)) return kind;
+            }
+            return null;
+        }
+    }
+
+    // item — номер объекта в запросе с единицы; для правила по хосту prefix пустой, host — имя
+    private record Change(int item, Kind kind, boolean add, IpPrefix prefix, String host, ListType type,
+                          RuleAction action, PortRange ports, Protocol protocol, String description) {
+    }
+
+    private record Rejected(int item, String error) {
+    }
+
+    // Итог применения в основном потоке и работа со шлюзом, которая остаётся виртуальному потоку
+    private static final class Applied {
+        final List<Rejected> rejected = new ArrayList<>();
+        final List<PortInfo> portUnmaps = new ArrayList<>();
+        final List<PortIPManager.PortIPRule> portIPUnmaps = new ArrayList<>();
+        final Set<PortMappingManager.Hold> mapped = new HashSet<>();
+        final List<PortInfo> ports = new ArrayList<>();
+        final List<PortIPManager.PortIPRule> portIPRules = new ArrayList<>();
+        int firewall;
+        int portCount;
+        int portIP;
+
+        void reject(Change change, String error) {
+            rejected.add(new Rejected(change.item(), error));
+        }
+    }
+
+    // Поток объектов из NDJSON или JSON-массива. Значения — строки, числа, true/false/null
+    // (null — как отсутствующее поле); вложенные объекты и массивы не принимаются.
+    // Ошибка синтаксиса — IllegalArgumentException с номером строки
+    private static final class ObjectReader {
+        private final Reader in;
+        private int peeked = -2;
+        private int line = 1;
+        private int count;
+        private boolean array;
+        private boolean ended;
+
+        ObjectReader(Reader in) {
+            this.in = in;
+        }
+
+        // Следующий объект или null в конце тела
+        Map<String, String> next() throws IOException {
+            if (ended) return null;
+
+            int c = skip();
+            if (count == 0 && !array && c == '[') {
+                array = true;
+                read();
+                c = skip();
+                if (c == ']') return end();
+            } else if (array && count > 0) {
+                if (c == ']') return end();
+                expect(',');
+                c = skip();
+            }
+            if (c == -1) {
+                if (array) throw error("unterminated array");
+                ended = true;
+                return null;
+            }
+
+            Map<String, String> fields = readObject();
+            count++;
+            return fields;
+        }
+
+        private Map<String, String> end() throws IOException {
+            read();
+            ended = true;
+            if (skip() != -1) throw error("unexpected data after the array");
+            return null;
+        }
+
+        private Map<String, String> readObject() throws IOException {
+            expect('{');
+            Map<String, String> fields = new HashMap<>();
+            if (skip() == '}') {
+                read();
+                return fields;
+            }
+            while (true) {
+                if (skip() != '"') throw error("expected a field name");
+                String name = readString();
+                expect(':');
+                String value = readValue();
+                if (value != null) fields.put(name, value);
+
+                int c = skip();
+                read();
+                if (c == '}') return fields;
+                if (c != ',') throw error("expected ',' or '}'");
+            }
+        }
+
+        private String readValue() throws IOException {
+            int c = skip();
+            if (c == '"') return readString();
+            if (c == '{' || c == '[') throw error("nested values are not supported");
+
+            StringBuilder text = new StringBuilder();
+            while ((c = peek()) != -1 && (Character.isLetterOrDigit(c) || c == '-' || c == '+' || c == '.')) {
+                text.append((char) read());
+                if (text.length() > 64) throw error("value is too long");
+            }
+            String literal = text.toString();
+            return switch (literal) {
+                case "null" -> null;
+                case "true", "false" -> literal;
+                default -> {
+                    if (!NUMBER.matcher(literal).matches()) throw error("invalid value '" + literal + "'");
+                    yield literal;
+                }
+            };
+        }
+
+        private String readString() throws IOException {
+            read();
+            StringBuilder text = new StringBuilder();
+            while (true) {
+                int c = read();
+                if (c == '"') return text.toString();
+                if (c == -1 || c < 0x20) throw error("unterminated string");
+                if (c == '\\') {
+                    int escaped = read();
+                    switch (escaped) {
+                        case '"', '\\', '/' -> text.append((char) escaped);
+                        case 'b' -> text.append('\b');
+                        case 'f' -> text.append('\f');
+                        case 'n' -> text.append('\n');
+                        case 'r' -> text.append('\r');
+                        case 't' -> text.append('\t');
+                        case 'u' -> {
+                            char[] hex = new char[4];
+                            for (int i = 0; i < 4; i++) {
+                                int digit = read();
+                                if (Character.digit(digit, 16) < 0) throw error("invalid escape");
+                                hex[i] = (char) digit;
+                            }
+                            text.append((char) Integer.parseInt(new String(hex), 16));
+                        }
+                        default -> throw error("invalid escape");
+                    }
+                } else {
+                    text.append((char) c);
+                }
+                if (text.length() > MAX_STRING) throw error("string is too long");
+            }
+        }
+
+        private void expect(char expected) throws IOException {
+            if (skip() != expected) throw error("expected '" + expected + "'");
+            read();
+        }
+
+        private int skip() throws IOException {
+            while (Character.isWhitespace(peek())) {
+                read();
+            }
+            return peek();
+        }
+
+        private int peek() throws IOException {
+            if (peeked == -2) peeked = in.read();
+            return peeked;
+        }
+
+        private int read() throws IOException {
+            int c = peek();
+            peeked = -2;
+            if (c == '\n') line++;
+            return c;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at line " + line);
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+// Адаптивный режим атаки. Адреса игроков, которые пробыли на сервере min-session секунд, запоминаются
+// как знакомые: точно — в LRU последних, приблизительно — в фильтре Блума из двух поколений (при
+// заполнении текущего старое отбрасывается). Пока частота входов выше порога, без разрешающего
+// правила пускаются только знакомые адреса; режим снимается, когда частота держится ниже
+// relax-threshold cooldown секунд. Учёт входа и проверка адреса — O(1) и без создания объектов.
+// Без enforce режим только наблюдает: адреса запоминаются, флуд замечается, но входы не отклоняются,
+// чтобы сразу после обновления, пока список знакомых пуст, не отрезать постоянных игроков.
+// Всё состояние меняется в основном потоке; на диск (known-players.dat) пишется снимок в фоне.
+final class AttackGuard implements Listener {
+
+    private static final String FILE = "known-players.dat";
+    private static final int MAGIC = 0x55464B50;
+    private static final int HASHES = 7;
+    // Бит на адрес при 7 хешах: около 1% ложных срабатываний
+    private static final double BITS_PER_ENTRY = 9.6;
+    private static final long SAVE_INTERVAL_SECONDS = 300;
+
+    private final Main plugin;
+    private final Path file;
+    private final boolean enabled;
+    private final int ipv4Prefix;
+    private final int ipv6Prefix;
+    private final int capacity;
+    private long seed;
+
+    private double threshold;
+    private double relaxThreshold;
+    private long cooldown;
+    private long minSession;
+    private boolean enforce;
+
+    // Входы по секундам за последние window секунд и их сумма
+    private int[] buckets;
+    private long bucketSecond;
+    private int windowCount;
+
+    private volatile boolean active;
+    private long calmSince = -1;
+    private long activatedAt;
+    private int rejected;
+
+    private final RecentKeys recent;
+    private Bloom current;
+    private Bloom previous;
+    private boolean dirty;
+    private long lastSave;
+    private BukkitTask task;
+
+    AttackGuard(Main plugin) {
+        this.plugin = plugin;
+        this.file = plugin.getDataFolder().toPath().resolve(FILE);
+        this.enabled = plugin.config.getBoolean("attack-mode.enabled", true);
+        this.ipv4Prefix = Math.clamp(plugin.config.getInt("attack-mode.ipv4-prefix", 24), 0, 32);
+        this.ipv6Prefix = Math.clamp(plugin.config.getInt("attack-mode.ipv6-prefix", 64), 0, 128);
+        this.capacity = Math.max(1000, plugin.config.getInt("attack-mode.bloom-capacity", 100000));
+        this.recent = new RecentKeys(Math.clamp(plugin.config.getInt("attack-mode.recent-size", 20000), 1, 1 << 24));
+        loadSettings();
+    }
+
+    // Пороги перечитываются при /firewall reload; размеры хранилища — только при запуске
+    void loadSettings() {
+        threshold = Math.max(0.1, plugin.config.getDouble("attack-mode.threshold", 10));
+        relaxThreshold = Math.min(threshold, Math.max(0, plugin.config.getDouble("attack-mode.relax-threshold", 3)));
+        cooldown = Math.max(1, plugin.config.getLong("attack-mode.cooldown", 60));
+        minSession = Math.max(0, plugin.config.getLong("attack-mode.min-session", 60));
+        enforce = plugin.config.getBoolean("attack-mode.enforce", false);
+
+        int window = Math.clamp(plugin.config.getInt("attack-mode.window", 10), 1, 300);
+        if (buckets == null || buckets.length != window) {
+            buckets = new int[window];
+            windowCount = 0;
+        }
+    }
+
+    void load() {
+        if (!enabled) return;
+
+        if (Files.isRegularFile(file)) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)))) {
+                if (read(in)) {
+                    plugin.getLogger().info(plugin.getTranslation("attack_mode.loaded", recent.size(),
+                            current.count + previous.count));
+                    return;
+                }
+                plugin.getLogger().info(plugin.getTranslation("attack_mode.reset"));
+            } catch (IOException e) {
+                plugin.getLogger().warning(plugin.getTranslation("attack_mode.io_failed", file, e.getMessage()));
+            }
+        }
+
+        seed = new SecureRandom().nextLong();
+        current = new Bloom(capacity);
+        previous = new Bloom(capacity);
+        recent.clear();
+    }
+
+    void start() {
+        if (!enabled) return;
+        lastSave = now();
+        task = plugin.getServer().getScheduler().runTaskTimer(plugin,
+                plugin.getWatchdog().wrap("task:attack-mode", this::tick), 20L, 20L);
+    }
+
+    void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        if (enabled && dirty) {
+            write(snapshot());
+        }
+    }
+
+    // Каждый вход до решения файрвола, в том числе отклонённый
+    void onLogin() {
+        if (!enabled) return;
+        long second = now();
+        advance(second);
+        buckets[(int) (second % buckets.length)]++;
+        windowCount++;
+        update(second);
+    }
+
+    // false — идёт атака, а адрес не знаком; вызывающий сам решает, действует ли правило.
+    // В режиме наблюдения такой вход только засчитывается
+    boolean admits(long high, long low) {
+        if (!active) return true;
+        long key = key(high, low);
+        if (recent.contains(key) || current.contains(key) || previous.contains(key)) return true;
+        rejected++;
+        return !enforce;
+    }
+
+    boolean isActive() {
+        return active;
+    }
+
+    boolean isEnforcing() {
+        return enforce;
+    }
+
+    // Входов в секунду в среднем за окно
+    double getRate() {
+        return (double) windowCount / buckets.length;
+    }
+
+    int getRecentCount() {
+        return recent.size();
+    }
+
+    int getKnownCount() {
+        return current == null ? 0 : current.count + previous.count;
+    }
+
+    // Запоминается только адрес игрока, который остался на сервере: боты флуда обычно выходят сразу
+    @EventHandler
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        if (!enabled) return;
+        Player player = event.getPlayer();
+        plugin.getServer().getScheduler().runTaskLater(plugin, plugin.getWatchdog().wrap("task:attack-mode", () -> {
+            InetSocketAddress address = player.getAddress();
+            if (player.isOnline() && address != null && address.getAddress() != null) {
+                remember(address.getAddress());
+            }
+        }), minSession * 20L + 1);
+    }
+
+    void remember(InetAddress address) {
+        long key = key(IpAddress.highOf(address), IpAddress.lowOf(address));
+        recent.add(key);
+        if (current.add(key) && current.count >= capacity) {
+            previous = current;
+            current = new Bloom(capacity);
+        }
+        dirty = true;
+    }
+
+    private void tick() {
+        long second = now();
+        advance(second);
+        update(second);
+
+        if (dirty && second - lastSave >= SAVE_INTERVAL_SECONDS) {
+            lastSave = second;
+            Snapshot snapshot = snapshot();
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> write(snapshot));
+        }
+    }
+
+    // Обнуление секунд, прошедших с последнего входа; не больше длины окна
+    private void advance(long second) {
+        long steps = Math.min(second - bucketSecond, buckets.length);
+        for (long i = 1; i <= steps; i++) {
+            int index = (int) ((bucketSecond + i) % buckets.length);
+            windowCount -= buckets[index];
+            buckets[index] = 0;
+        }
+        if (second > bucketSecond) bucketSecond = second;
+    }
+
+    private void update(long second) {
+        double rate = getRate();
+        if (!active) {
+            if (rate >= threshold) {
+                active = true;
+                activatedAt = second;
+                calmSince = -1;
+                rejected = 0;
+                plugin.getLogger().warning(plugin.getTranslation(
+                        enforce ? "attack_mode.activated" : "attack_mode.activated_observe", rate, threshold));
+            }
+        } else if (rate >= relaxThreshold) {
+            calmSince = -1;
+        } else if (calmSince < 0) {
+            calmSince = second;
+        } else if (second - calmSince >= cooldown) {
+            active = false;
+            plugin.getLogger().warning(plugin.getTranslation(
+                    enforce ? "attack_mode.relaxed" : "attack_mode.relaxed_observe", second - activatedAt, rejected));
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000_000L;
+    }
+
+    // Ключ — хеш сети адреса (ipv4-prefix / ipv6-prefix) с солью файла: положение битов
+    // в фильтре не предсказать снаружи
+    private long key(long high, long low) {
+        boolean v4 = high == 0 && (low >>> 32) == 0xFFFFL;
+        int length = v4 ? 96 + ipv4Prefix : ipv6Prefix;
+        long maskedHigh = length >= 64 ? high : length == 0 ? 0 : high & (-1L << (64 - length));
+        long maskedLow = length >= 128 ? low : length <= 64 ? 0 : low & (-1L << (128 - length));
+        return mix(mix(maskedHigh ^ seed) ^ maskedLow);
+    }
+
+    // Финализатор SplitMix64
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    private Snapshot snapshot() {
+        dirty = false;
+        return new Snapshot(seed, current.bits.clone(), current.count, previous.bits.clone(), previous.count,
+                recent.toArray());
+    }
+
+    // Временный файл и атомарная подмена; синхронизация — против фоновой записи при выключении
+    private synchronized void write(Snapshot snapshot) {
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(data);
+            out.writeInt(MAGIC);
+            out.writeByte(ipv4Prefix);
+            out.writeByte(ipv6Prefix);
+            out.writeLong(snapshot.seed());
+            out.writeInt(snapshot.current().length);
+            out.writeInt(snapshot.currentCount());
+            for (long word : snapshot.current()) out.writeLong(word);
+            out.writeInt(snapshot.previousCount());
+            for (long word : snapshot.previous()) out.writeLong(word);
+            out.writeInt(snapshot.recent().length);
+            for (long key : snapshot.recent()) out.writeLong(key);
+
+            Files.createDirectories(file.getParent());
+            Path temp = file.resolveSibling(FILE + ".tmp");
+            Files.write(temp, data.toByteArray());
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            plugin.getLogger().warning(plugin.getTranslation("attack_mode.io_failed", file, e.getMessage()));
+        }
+    }
+
+    // false — файл записан с другими длинами сетей или размером фильтра, знакомые адреса сбрасываются
+    private boolean read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) return false;
+        if (in.readUnsignedByte() != ipv4Prefix || in.readUnsignedByte() != ipv6Prefix) return false;
+        long fileSeed = in.readLong();
+        int words = in.readInt();
+        if (words != Bloom.words(capacity)) return false;
+
+        Bloom loadedCurrent = Bloom.read(in, capacity, words);
+        Bloom loadedPrevious = Bloom.read(in, capacity, words);
+        long[] keys = new long[in.readInt()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = in.readLong();
+        }
+
+        seed = fileSeed;
+        current = loadedCurrent;
+        previous = loadedPrevious;
+        recent.clear();
+        for (long key : keys) {
+            recent.add(key);
+        }
+        return true;
+    }
+
+    private record Snapshot(long seed, long[] current, int currentCount, long[] previous, int previousCount,
+                            long[] recent) {
+    }
+
+    // LRU последних адресов на long-ключах: открытая адресация (заполнение не больше половины,
+    // удаление со сдвигом назад) и двусвязный список слотов от старого к свежему. В отличие от
+    // LinkedHashMap<Long, ...>, проверка ключа не упаковывает его в Long
+    static final class RecentKeys {
+        private final long[] keys;
+        private final int[] older;
+        private final int[] newer;
+        // Номер слота + 1, 0 — пусто
+        private final int[] table;
+        private int oldest = -1;
+        private int newest = -1;
+        private int size;
+
+        RecentKeys(int capacity) {
+            keys = new long[capacity];
+            older = new int[capacity];
+            newer = new int[capacity];
+            table = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean contains(long key) {
+            return slotOf(key) >= 0;
+        }
+
+        // Ключ становится самым свежим; при переполнении вытесняется самый старый
+        void add(long key) {
+            int slot = slotOf(key);
+            if (slot < 0) {
+                if (size < keys.length) {
+                    slot = size++;
+                } else {
+                    slot = oldest;
+                    delete(slot);
+                    unlink(slot);
+                }
+                keys[slot] = key;
+                insert(slot);
+            } else {
+                unlink(slot);
+            }
+            link(slot);
+        }
+
+        void clear() {
+            size = 0;
+            oldest = -1;
+            newest = -1;
+            Arrays.fill(table, 0);
+        }
+
+        // От самого старого к самому свежему: в этом порядке ключи и загружаются обратно
+        long[] toArray() {
+            long[] result = new long[size];
+            int index = 0;
+            for (int slot = oldest; slot >= 0; slot = newer[slot]) {
+                result[index++] = keys[slot];
+            }
+            return result;
+        }
+
+        private int slotOf(long key) {
+            int mask = table.length - 1;
+            for (int i = hash(key) & mask; table[i] != 0; i = (i + 1) & mask) {
+                if (keys[table[i] - 1] == key) return table[i] - 1;
+            }
+            return -1;
+        }
+
+        private void insert(int slot) {
+            int mask = table.length - 1;
+            int i = hash(keys[slot]) & mask;
+            while (table[i] != 0) i = (i + 1) & mask;
+            table[i] = slot + 1;
+        }
+
+        // Удаление со сдвигом следующих элементов цепочки назад, без меток удаления
+        private void delete(int slot) {
+            int mask = table.length - 1;
+            int i = hash(keys[slot]) & mask;
+            while (table[i] != slot + 1) i = (i + 1) & mask;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (table[j] == 0) break;
+                int home = hash(keys[table[j] - 1]) & mask;
+                // Элемент j можно перенести в i, если его место i не дальше по циклу, чем j
+                if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                    table[i] = table[j];
+                    i = j;
+                }
+            }
+            table[i] = 0;
+        }
+
+        private void link(int slot) {
+            older[slot] = newest;
+            newer[slot] = -1;
+            if (newest >= 0) {
+                newer[newest] = slot;
+            } else {
+                oldest = slot;
+            }
+            newest = slot;
+        }
+
+        private void unlink(int slot) {
+            if (older[slot] >= 0) {
+                newer[older[slot]] = newer[slot];
+            } else {
+                oldest = newer[slot];
+            }
+            if (newer[slot] >= 0) {
+                older[newer[slot]] = older[slot];
+            } else {
+                newest = older[slot];
+            }
+        }
+
+        // Ключ уже перемешан солью и SplitMix64, достаточно свернуть его в int
+        private static int hash(long key) {
+            return (int) (key ^ (key >>> 32));
+        }
+    }
+
+    // Фильтр Блума на capacity адресов; позиции битов — двойное хеширование от ключа
+    private static final class Bloom {
+        final long[] bits;
+        final long size;
+        int count;
+
+        Bloom(int capacity) {
+            this(new long[words(capacity)]);
+        }
+
+        private Bloom(long[] bits) {
+            this.bits = bits;
+            this.size = bits.length * 64L;
+        }
+
+        static int words(int capacity) {
+            return (int) Math.ceil(capacity * BITS_PER_ENTRY / 64);
+        }
+
+        // true, если адреса ещё не было (изменился хотя бы один бит)
+        boolean add(long key) {
+            long step = mix(key ^ 0x9E3779B97F4A7C15L) | 1;
+            boolean changed = false;
+            for (int i = 0; i < HASHES; i++) {
+                long bit = Long.remainderUnsigned(key + i * step, size);
+                long mask = 1L << bit;
+                int word = (int) (bit >>> 6);
+                if ((bits[word] & mask) == 0) {
+                    bits[word] |= mask;
+                    changed = true;
+                }
+            }
+            if (changed) count++;
+            return changed;
+        }
+
+        boolean contains(long key) {
+            long step = mix(key ^ 0x9E3779B97F4A7C15L) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                long bit = Long.remainderUnsigned(key + i * step, size);
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        static Bloom read(DataInputStream in, int capacity, int words) throws IOException {
+            int count = in.readInt();
+            long[] bits = new long[words];
+            for (int i = 0; i < words; i++) {
+                bits[i] = in.readLong();
+            }
+            Bloom bloom = new Bloom(bits);
+            bloom.count = Math.min(count, capacity);
+            return bloom;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+// Связка ClusterNode с менеджерами правил: локальные изменения уходят в кластер,
+// изменения с других узлов копятся в очереди и применяются в основном потоке сервера
+// одной пачкой за тик: одна пересборка matcher на снимок любого размера. Пробросы на шлюзе
+// для правил OPEN делаются после пачки вне основного потока, как в admin API.
+class ClusterManager {
+
+    private static final String FIREWALL_PREFIX = "fw|";
+    private static final String PORT_IP_PREFIX = "pip|";
+    // Секрет из старого примера конфига и минимальная длина: с ними узел не запускается
+    private static final String DEFAULT_SECRET = "change-me";
+    private static final int MIN_SECRET_LENGTH = 16;
+
+    private final Main plugin;
+    private final FirewallManager firewallManager;
+    private final PortIPManager portIPManager;
+    private final TickWatchdog.Source applySource;
+    // Записи из сетевых потоков до ближайшего тика
+    private final Queue<ClusterNode.ClusterEntry> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private ClusterNode node;
+
+    public ClusterManager(Main plugin, FirewallManager firewallManager, PortIPManager portIPManager) {
+        this.plugin = plugin;
+        this.firewallManager = firewallManager;
+        this.portIPManager = portIPManager;
+        this.applySource = plugin.getWatchdog().source("task:cluster-apply");
+    }
+
+    public void start() {
+        if (!plugin.config.getBoolean("cluster.enabled", false)) return;
+
+        String nodeId = plugin.config.getString("cluster.node-id", "");
+        if (nodeId.isEmpty()) {
+            nodeId = UUID.randomUUID().toString();
+            plugin.config.set("cluster.node-id", nodeId);
+            plugin.saveConfig();
+        }
+
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : plugin.config.getStringList("cluster.peers")) {
+            int colon = peer.lastIndexOf(':');
+            try {
+                peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+            } catch (RuntimeException e) {
+                plugin.getLogger().warning(plugin.getTranslation("cluster.error.invalid_peer", peer));
+            }
+        }
+
+        String secret = plugin.config.getString("cluster.secret", "");
+        if (secret.isEmpty()) {
+            byte[] random = new byte[24];
+            new SecureRandom().nextBytes(random);
+            secret = HexFormat.of().formatHex(random);
+            plugin.config.set("cluster.secret", secret);
+            plugin.saveConfig();
+            plugin.getLogger().warning(plugin.getTranslation("cluster.secret_generated"));
+        } else if (secret.equals(DEFAULT_SECRET) || secret.length() < MIN_SECRET_LENGTH) {
+            plugin.getLogger().warning(plugin.getTranslation("cluster.error.weak_secret", MIN_SECRET_LENGTH));
+            return;
+        }
+
+        String bind = plugin.config.getString("cluster.bind", "127.0.0.1");
+        InetSocketAddress bindAddress = new InetSocketAddress(bind, plugin.config.getInt("cluster.port", 25580));
+        if (bindAddress.isUnresolved()) {
+            plugin.getLogger().warning(plugin.getTranslation("cluster.error.start_failed", "unresolved address " + bind));
+            return;
+        }
+        if (!isPrivate(bindAddress.getAddress())) {
+            plugin.getLogger().warning(plugin.getTranslation("cluster.public_bind", bind));
+        }
+
+        node = new ClusterNode(nodeId, secret, bindAddress, peers, this::applyRemote, plugin.getLogger());
+
+        for (Map.Entry<String, List<String>> entry : localEntries().entrySet()) {
+            node.seed(entry.getKey(), entry.getValue());
+        }
+
+        try {
+            node.start(plugin.config.getLong("cluster.anti-entropy-interval", 30));
+            plugin.getLogger().info(plugin.getTranslation("cluster.started", nodeId, bind, node.getLocalPort(),
+                    peers.size()));
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, plugin.getTranslation("cluster.error.start_failed", e.getMessage()), e);
+            node.stop();
+            node = null;
+        }
+    }
+
+    // Петля, частные сети IPv4 и IPv6 (fc00::/7), link-local. Адрес "все интерфейсы" публичный
+    private static boolean isPrivate(InetAddress address) {
+        if (address.isLoopbackAddress() || address.isSiteLocalAddress() || address.isLinkLocalAddress()) return true;
+        return address instanceof Inet6Address && (address.getAddress()[0] & 0xFE) == 0xFC;
+    }
+
+    public void stop() {
+        if (node != null) {
+            node.stop();
+            node = null;
+        }
+    }
+
+    // После ручной правки конфига и /firewall reload расхождения рассылаются как обычные изменения
+    public void publishLocalChanges() {
+        if (node == null) return;
+
+        Map<String, List<String>> local = localEntries();
+        for (Map.Entry<String, List<String>> entry : local.entrySet()) {
+            if (!entry.getValue().equals(node.liveFields(entry.getKey()))) {
+                node.publishPut(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String key : node.liveKeys()) {
+            if (!local.containsKey(key)) {
+                node.publishRemove(key);
+            }
+        }
+    }
+
+    public void publishFirewallRule(String ip, ListType type, RuleAction action) {
+        if (node != null) node.publishPut(FIREWALL_PREFIX + ip, List.of(type.configName(), action.configName()));
+    }
+
+    public void publishFirewallRemoval(String ip) {
+        if (node != null) node.publishRemove(FIREWALL_PREFIX + ip);
+    }
+
+    public void publishPortIPRule(String ip, PortRange ports, Protocol protocol, RuleAction action, String description) {
+        if (node != null) {
+            node.publishPut(PORT_IP_PREFIX + ip + "|" + ports, List.of(protocol.name(), action.name(), description));
+        }
+    }
+
+    public void publishPortIPRemoval(String ip, PortRange ports) {
+        if (node != null) node.publishRemove(PORT_IP_PREFIX + ip + "|" + ports);
+    }
+
+    public boolean isRunning() {
+        return node != null;
+    }
+
+    public int getPeerCount() {
+        return node != null ? node.getConnectionCount() : 0;
+    }
+
+    public long getDigest() {
+        return node != null ? node.getDigest() : 0;
+    }
+
+    private Map<String, List<String>> localEntries() {
+        Map<String, List<String>> entries = new HashMap<>();
+        for (FirewallManager.FirewallRule rule : firewallManager.snapshotRules()) {
+            entries.put(FIREWALL_PREFIX + rule.ip(), List.of(rule.type().configName(), rule.action().configName()));
+        }
+        for (FirewallManager.HostRule rule : firewallManager.snapshotHostRules()) {
+            entries.put(FIREWALL_PREFIX + rule.host(), List.of(rule.type().configName(), rule.action().configName()));
+        }
+        for (PortIPManager.PortIPRule rule : portIPManager.snapshotRules()) {
+            entries.put(PORT_IP_PREFIX + rule.ip() + "|" + rule.ports(),
+                    List.of(rule.protocol().name(), rule.action().name(), rule.description()));
+        }
+        return entries;
+    }
+
+    private void applyRemote(ClusterNode.ClusterEntry entry) {
+        // Вызывается из сетевого потока; конфиг и правила меняются только в основном потоке
+        pending.add(entry);
+        if (drainScheduled.compareAndSet(false, true)) {
+            plugin.getServer().getScheduler().runTask(plugin, this::drain);
+        }
+    }
+
+    private void drain() {
+        // Записи, пришедшие после сброса флага, запланируют следующий тик
+        drainScheduled.set(false);
+        if (!plugin.isEnabled()) return;
+
+        // Из нескольких версий одного ключа применяется последняя
+        Map<String, ClusterNode.ClusterEntry> entries = new LinkedHashMap<>();
+        ClusterNode.ClusterEntry entry;
+        while ((entry = pending.poll()) != null) {
+            entries.put(entry.key(), entry);
+        }
+        if (entries.isEmpty()) return;
+
+        Mappings mappings = new Mappings();
+        long started = plugin.getWatchdog().begin();
+        try {
+            firewallManager.batch(() -> portIPManager.batch(() -> {
+                for (ClusterNode.ClusterEntry next : entries.values()) {
+                    try {
+                        apply(next, mappings);
+                    } catch (RuntimeException e) {
+                        plugin.getLogger().log(Level.WARNING,
+                                plugin.getTranslation("cluster.error.apply_failed", next.key()), e);
+                    }
+                }
+            }));
+        } finally {
+            plugin.getWatchdog().end(applySource, started);
+        }
+
+        if (mappings.unmaps.isEmpty() && mappings.rules.isEmpty()) return;
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            // Закрытия раньше открытий; проброс, который тут же открывается заново, не закрывается
+            for (PortIPManager.PortIPRule rule : mappings.unmaps) {
+                if (!mappings.mapped.contains(PortIPManager.hold(rule))) {
+                    portIPManager.unmap(rule);
+                }
+            }
+            for (PortIPManager.PortIPRule rule : mappings.rules) {
+                portIPManager.mapPortIPRule(rule);
+            }
+        });
+    }
+
+    private void apply(ClusterNode.ClusterEntry entry, Mappings mappings) {
+        String key = entry.key();
+        if (key.startsWith(FIREWALL_PREFIX)) {
+            String ip = key.substring(FIREWALL_PREFIX.length());
+            IpPrefix prefix = IpPrefix.parse(ip);
+            // Правило по имени хоста: каждый узел разрешает его своим резолвером
+            String host = prefix == null && DnsResolver.isHostname(ip) ? DnsResolver.normalize(ip) : null;
+            if (prefix == null && host == null) return;
+            if (entry.removed()) {
+                if (host != null) {
+                    firewallManager.deleteHostRule(host);
+                } else {
+                    firewallManager.deleteRule(prefix);
+                }
+            } else {
+                ListType type = ListType.parse(entry.fields().get(0));
+                RuleAction action = RuleAction.parse(entry.fields().get(1));
+                if (type != null && action != null) {
+                    if (host != null) {
+                        firewallManager.putHostRule(host, type, action);
+                    } else {
+                        firewallManager.putRule(prefix, type, action);
+                    }
+                }
+            }
+        } else if (key.startsWith(PORT_IP_PREFIX)) {
+            String[] parts = key.substring(PORT_IP_PREFIX.length()).split("\\|");
+            IpPrefix prefix = IpPrefix.parse(parts[0]);
+            PortRange ports = PortRange.parse(parts[1]);
+            if (prefix == null || ports == null) return;
+            if (entry.removed()) {
+                PortIPManager.PortIPRule rule = portIPManager.dropPortIPRule(prefix, ports);
+                if (rule != null && rule.action() == RuleAction.OPEN) {
+                    mappings.unmaps.add(rule);
+                }
+            } else {
+                List<String> fields = entry.fields();
+                Protocol protocol = Protocol.parse(fields.get(0));
+                RuleAction action = RuleAction.parse(fields.get(1));
+                if (protocol != null && action != null) {
+                    PortIPManager.PortIPRule rule = portIPManager.storePortIPRule(prefix, ports, protocol, action,
+                            fields.get(2), mappings.unmaps);
+                    if (action == RuleAction.OPEN) {
+                        mappings.rules.add(rule);
+                        mappings.mapped.add(PortIPManager.hold(rule));
+                    }
+                }
+            }
+        }
+    }
+
+    // Работа со шлюзом, накопленная за пачку
+    private static final class Mappings {
+        final List<PortIPManager.PortIPRule> unmaps = new ArrayList<>();
+        final List<PortIPManager.PortIPRule> rules = new ArrayList<>();
+        final Set<PortMappingManager.Hold> mapped = new HashSet<>();
+    }
+}
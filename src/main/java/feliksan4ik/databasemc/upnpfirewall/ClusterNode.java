@@ -0,0 +1,476 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Репликация правил между узлами по TCP. Состояние — карта "ключ правила -> последняя запись"
+// (last-writer-wins по часам Лэмпорта), поэтому дельты и снимки можно применять
+// в любом порядке и повторно. Класс не зависит от Bukkit и запускается в одном процессе
+// несколькими экземплярами на localhost.
+// Узлы проверяют друг друга вызовом-ответом: каждая сторона шлёт случайный nonce и отвечает
+// HMAC-SHA256 от общего секрета по обоим nonce, своей роли в соединении и своему id. Сам секрет
+// по сети не передаётся, чужой ответ нельзя повторить или отразить в другое соединение.
+final class ClusterNode {
+
+    private static final byte HELLO = 1;
+    private static final byte DELTA = 2;
+    private static final byte DIGEST = 3;
+    private static final byte SNAPSHOT = 4;
+    private static final byte AUTH = 5;
+
+    private static final int CONNECT_TIMEOUT = 2000;
+    private static final int HANDSHAKE_TIMEOUT = 10_000;
+    private static final int MAX_SNAPSHOT = 10_000_000;
+    private static final int NONCE_LENGTH = 32;
+    private static final int MAC_LENGTH = 32;
+    private static final byte[] MAC_CONTEXT = "upnpfirewall-cluster-v1".getBytes(StandardCharsets.UTF_8);
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String nodeId;
+    private final SecretKeySpec secret;
+    private final InetSocketAddress bindAddress;
+    private final List<InetSocketAddress> peers;
+    private final Consumer<ClusterEntry> applier;
+    private final Logger logger;
+
+    private final Map<String, ClusterEntry> state = new ConcurrentHashMap<>();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final Set<InetSocketAddress> connectedPeers = ConcurrentHashMap.newKeySet();
+
+    private long clock;
+    private long digest;
+
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+    private ExecutorService ioThreads;
+    private ScheduledExecutorService scheduler;
+
+    ClusterNode(String nodeId, String secret, InetSocketAddress bindAddress, List<InetSocketAddress> peers,
+                Consumer<ClusterEntry> applier, Logger logger) {
+        this.nodeId = nodeId;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+        this.bindAddress = bindAddress;
+        this.peers = List.copyOf(peers);
+        this.applier = applier;
+        this.logger = logger;
+    }
+
+    void start(long antiEntropySeconds) throws IOException {
+        running = true;
+        ioThreads = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "UpnpFirewall-Cluster");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "UpnpFirewall-Cluster-Sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(bindAddress);
+        ioThreads.execute(this::acceptLoop);
+
+        scheduler.scheduleWithFixedDelay(this::connectPeers, 0, 5, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(this::sendDigest, antiEntropySeconds, antiEntropySeconds, TimeUnit.SECONDS);
+    }
+
+    void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        if (scheduler != null) scheduler.shutdownNow();
+        if (ioThreads != null) ioThreads.shutdownNow();
+    }
+
+    int getLocalPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : bindAddress.getPort();
+    }
+
+    int getConnectionCount() {
+        return connections.size();
+    }
+
+    int getEntryCount() {
+        return state.size();
+    }
+
+    synchronized long getDigest() {
+        return digest;
+    }
+
+    // Локальное правило из конфига при запуске: версия 0 уступает любому изменению в кластере
+    synchronized void seed(String key, List<String> fields) {
+        if (!state.containsKey(key)) {
+            store(new ClusterEntry(key, 0, nodeId, false, fields));
+        }
+    }
+
+    // Текущее содержимое живого (не удалённого) правила, либо null
+    List<String> liveFields(String key) {
+        ClusterEntry entry = state.get(key);
+        return entry == null || entry.removed() ? null : entry.fields();
+    }
+
+    Set<String> liveKeys() {
+        Set<String> keys = ConcurrentHashMap.newKeySet();
+        for (ClusterEntry entry : state.values()) {
+            if (!entry.removed()) keys.add(entry.key());
+        }
+        return keys;
+    }
+
+    void publishPut(String key, List<String> fields) {
+        publish(key, false, fields);
+    }
+
+    void publishRemove(String key) {
+        publish(key, true, List.of());
+    }
+
+    private void publish(String key, boolean removed, List<String> fields) {
+        ClusterEntry entry;
+        synchronized (this) {
+            entry = new ClusterEntry(key, ++clock, nodeId, removed, List.copyOf(fields));
+            store(entry);
+        }
+        broadcast(entry, null);
+    }
+
+    // Возвращает true, если запись новее известной и была принята
+    private boolean merge(ClusterEntry entry) {
+        synchronized (this) {
+            clock = Math.max(clock, entry.version());
+            ClusterEntry known = state.get(entry.key());
+            if (known != null && !entry.isNewerThan(known)) {
+                return false;
+            }
+            store(entry);
+            // Очередь пополняется под тем же замком: порядок применения совпадает с порядком слияния
+            applier.accept(entry);
+        }
+        return true;
+    }
+
+    private void store(ClusterEntry entry) {
+        ClusterEntry previous = state.put(entry.key(), entry);
+        if (previous != null) digest ^= previous.hash();
+        digest ^= entry.hash();
+    }
+
+    private void broadcast(ClusterEntry entry, Connection except) {
+        for (Connection connection : connections) {
+            if (connection != except) {
+                connection.sendDelta(entry);
+            }
+        }
+    }
+
+    private void sendDigest() {
+        long current = getDigest();
+        for (Connection connection : connections) {
+            connection.sendDigest(current);
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                open(socket, null);
+            } catch (IOException e) {
+                if (running) {
+                    logger.log(Level.FINE, "Cluster accept failed", e);
+                }
+            }
+        }
+    }
+
+    private void connectPeers() {
+        for (InetSocketAddress peer : peers) {
+            if (!running || connectedPeers.contains(peer)) continue;
+            try {
+                Socket socket = new Socket();
+                socket.connect(peer, CONNECT_TIMEOUT);
+                connectedPeers.add(peer);
+                open(socket, peer);
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Cluster peer " + peer + " unreachable", e);
+            }
+        }
+    }
+
+    private void open(Socket socket, InetSocketAddress peer) throws IOException {
+        socket.setTcpNoDelay(true);
+        // Соединение, не прошедшее проверку за это время, закрывается
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        Connection connection = new Connection(socket, peer);
+        connection.sendHello();
+        ioThreads.execute(connection::readLoop);
+    }
+
+    // Ответ стороны prover на nonce стороны verifier. Роль (кто открыл соединение) не даёт
+    // переслать ответ узла в его же второе соединение: там у него та же роль, а нужна обратная
+    private byte[] mac(byte[] verifierNonce, byte[] proverNonce, boolean proverConnected, String proverId) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            mac.update(MAC_CONTEXT);
+            mac.update(verifierNonce);
+            mac.update(proverNonce);
+            mac.update((byte) (proverConnected ? 1 : 0));
+            mac.update(proverId.getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final class Connection {
+
+        private final Socket socket;
+        private final InetSocketAddress peer;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final byte[] nonce = new byte[NONCE_LENGTH];
+
+        Connection(Socket socket, InetSocketAddress peer) throws IOException {
+            this.socket = socket;
+            this.peer = peer;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            RANDOM.nextBytes(nonce);
+        }
+
+        // Соединение открыл этот узел
+        private boolean connected() {
+            return peer != null;
+        }
+
+        void readLoop() {
+            try {
+                if (in.readByte() != HELLO) {
+                    reject();
+                    return;
+                }
+                byte[] remoteNonce = new byte[NONCE_LENGTH];
+                in.readFully(remoteNonce);
+                sendAuth(remoteNonce);
+
+                if (in.readByte() != AUTH) {
+                    reject();
+                    return;
+                }
+                byte[] remoteMac = new byte[MAC_LENGTH];
+                in.readFully(remoteMac);
+                String remoteId = in.readUTF();
+                long remoteDigest = in.readLong();
+                if (remoteId.equals(nodeId)
+                        || !MessageDigest.isEqual(remoteMac, mac(nonce, remoteNonce, !connected(), remoteId))) {
+                    reject();
+                    return;
+                }
+                socket.setSoTimeout(0);
+                connections.add(this);
+                logger.info("Cluster peer connected: " + remoteId + " (" + socket.getRemoteSocketAddress() + ")");
+
+                // Полная передача состояния при подключении, если наборы расходятся
+                if (remoteDigest != getDigest()) {
+                    sendSnapshot();
+                }
+
+                while (running) {
+                    byte type = in.readByte();
+                    switch (type) {
+                        case DELTA -> {
+                            ClusterEntry entry = ClusterEntry.read(in);
+                            if (merge(entry)) {
+                                broadcast(entry, this);
+                            }
+                        }
+                        case DIGEST -> {
+                            if (in.readLong() != getDigest()) {
+                                sendSnapshot();
+                            }
+                        }
+                        case SNAPSHOT -> {
+                            int count = in.readInt();
+                            if (count < 0 || count > MAX_SNAPSHOT) throw new IOException("Bad snapshot size " + count);
+                            for (int i = 0; i < count; i++) {
+                                ClusterEntry entry = ClusterEntry.read(in);
+                                if (merge(entry)) {
+                                    broadcast(entry, this);
+                                }
+                            }
+                        }
+                        default -> throw new IOException("Unknown frame " + type);
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    logger.log(Level.FINE, "Cluster connection closed", e);
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void reject() {
+            logger.warning("Cluster peer " + socket.getRemoteSocketAddress() + " rejected: bad handshake");
+        }
+
+        void sendHello() {
+            send(() -> {
+                out.writeByte(HELLO);
+                out.write(nonce);
+            });
+        }
+
+        void sendAuth(byte[] remoteNonce) {
+            byte[] response = mac(remoteNonce, nonce, connected(), nodeId);
+            send(() -> {
+                out.writeByte(AUTH);
+                out.write(response);
+                out.writeUTF(nodeId);
+                out.writeLong(getDigest());
+            });
+        }
+
+        void sendDelta(ClusterEntry entry) {
+            send(() -> {
+                out.writeByte(DELTA);
+                entry.write(out);
+            });
+        }
+
+        void sendDigest(long value) {
+            send(() -> {
+                out.writeByte(DIGEST);
+                out.writeLong(value);
+            });
+        }
+
+        void sendSnapshot() {
+            List<ClusterEntry> entries = new ArrayList<>(state.values());
+            send(() -> {
+                out.writeByte(SNAPSHOT);
+                out.writeInt(entries.size());
+                for (ClusterEntry entry : entries) {
+                    entry.write(out);
+                }
+            });
+        }
+
+        private void send(FrameWriter writer) {
+            synchronized (out) {
+                try {
+                    writer.write();
+                    out.flush();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        }
+
+        void close() {
+            connections.remove(this);
+            if (peer != null) {
+                connectedPeers.remove(peer);
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface FrameWriter {
+        void write() throws IOException;
+    }
+
+    record ClusterEntry(String key, long version, String origin, boolean removed, List<String> fields) {
+
+        boolean isNewerThan(ClusterEntry other) {
+            if (version != other.version) return version > other.version;
+            return origin.compareTo(other.origin) > 0;
+        }
+
+        // Хэш записи для XOR-дайджеста всего набора: обновляется за O(1) при каждом изменении
+        long hash() {
+            long h = 0xcbf29ce484222325L;
+            h = mix(h, key);
+            h = mix(h, origin);
+            h ^= version * 0x9E3779B97F4A7C15L;
+            h ^= removed ? 0x632BE59BD9B4E019L : 0;
+            for (String field : fields) {
+                h = mix(h, field);
+            }
+            return h ^ (h >>> 31);
+        }
+
+        private static long mix(long h, String value) {
+            for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+                h ^= b;
+                h *= 0x100000001b3L;
+            }
+            return h * 0x100000001b3L;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(key);
+            out.writeLong(version);
+            out.writeUTF(origin);
+            out.writeBoolean(removed);
+            out.writeByte(fields.size());
+            for (String field : fields) {
+                out.writeUTF(field);
+            }
+        }
+
+        static ClusterEntry read(DataInputStream in) throws IOException {
+            String key = in.readUTF();
+            long version = in.readLong();
+            String origin = in.readUTF();
+            boolean removed = in.readBoolean();
+            int count = in.readUnsignedByte();
+            List<String> fields = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                fields.add(in.readUTF());
+            }
+            return new ClusterEntry(key, version, origin, removed, List.copyOf(fields));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabCompleter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+// Дополнение /firewall: адреса, порты и описания берутся из префиксных деревьев менеджеров,
+// которые обновляются вместе с правилами, так что нажатие Tab не перебирает все правила
+final class CommandCompleter implements TabCompleter {
+
+    // Больше строк клиент всё равно не покажет
+    private static final int MAX_SUGGESTIONS = 50;
+
+    private static final List<String> SUBCOMMANDS = List.of("addrule", "blockportip", "clearportsip", "closeport",
+            "closeportip", "help", "listports", "listportsip", "listrules", "openport", "openportip", "optimize",
+            "reload", "removerule", "replay", "setlang", "status", "top", "unblockportip");
+    private static final List<String> LIST_TYPES = List.of("whitelist", "blacklist");
+    private static final List<String> FIREWALL_ACTIONS = List.of("allow", "block");
+    private static final List<String> PROTOCOLS = List.of("tcp", "udp");
+    private static final List<String> LANGUAGES = List.of("en", "ru");
+    private static final List<String> TOP_LEVELS = List.of("ip", "/24", "/64");
+    private static final List<String> TOP_WINDOWS = List.of("30s", "60s", "5m", "10m");
+
+    private final FirewallManager firewallManager;
+    private final PortManager portManager;
+    private final PortIPManager portIPManager;
+
+    CommandCompleter(FirewallManager firewallManager, PortManager portManager, PortIPManager portIPManager) {
+        this.firewallManager = firewallManager;
+        this.portManager = portManager;
+        this.portIPManager = portIPManager;
+    }
+
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
+        if (args.length == 0) return List.of();
+        String token = args[args.length - 1].toLowerCase(Locale.ROOT);
+        if (args.length == 1) return filter(SUBCOMMANDS, token);
+
+        String subcommand = args[0].toLowerCase(Locale.ROOT);
+        int position = args.length - 1;
+        return switch (subcommand) {
+            case "removerule" -> position == 1
+                    ? firewallManager.complete(token, MAX_SUGGESTIONS) : List.of();
+            case "addrule" -> switch (position) {
+                case 2 -> filter(LIST_TYPES, token);
+                case 3 -> filter(FIREWALL_ACTIONS, token);
+                default -> List.of();
+            };
+            case "closeport" -> position == 1
+                    ? portManager.completePorts(token, MAX_SUGGESTIONS) : List.of();
+            case "openport" -> switch (position) {
+                case 2 -> filter(PROTOCOLS, token);
+                case 3 -> portManager.completeDescriptions(args[3], MAX_SUGGESTIONS);
+                default -> List.of();
+            };
+            case "openportip" -> position == 3 ? filter(PROTOCOLS, token) : List.of();
+            case "closeportip" -> completePortIP(RuleAction.OPEN, args, token);
+            case "unblockportip" -> completePortIP(RuleAction.BLOCK, args, token);
+            case "optimize" -> position == 1 ? filter(List.of("--apply"), token) : List.of();
+            case "setlang" -> position == 1 ? filter(LANGUAGES, token) : List.of();
+            case "top" -> switch (position) {
+                case 1 -> filter(TOP_LEVELS, token);
+                case 2 -> filter(TOP_WINDOWS, token);
+                default -> List.of();
+            };
+            default -> List.of();
+        };
+    }
+
+    // Сначала адрес, у которого есть правила с этим действием, затем его диапазоны портов
+    private List<String> completePortIP(RuleAction action, String[] args, String token) {
+        return switch (args.length - 1) {
+            case 1 -> portIPManager.completeAddresses(action, token, MAX_SUGGESTIONS);
+            case 2 -> portIPManager.completePorts(args[1].toLowerCase(Locale.ROOT), action, token, MAX_SUGGESTIONS);
+            default -> List.of();
+        };
+    }
+
+    private static List<String> filter(Collection<String> options, String token) {
+        List<String> result = new ArrayList<>();
+        for (String option : options) {
+            if (option.startsWith(token)) result.add(option);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,184 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Сжатое префиксное дерево строк для дополнения команд. Меняется на месте при добавлении
+// и удалении правил, без пересборки; одна строка может прийти от нескольких правил, поэтому
+// у каждой есть счётчик. Поиск — спуск по префиксу и обход в порядке строк до limit
+// результатов: время зависит от длины префикса и limit, но не от числа строк.
+// Только основной поток: и правила, и дополнение команд меняются и читаются в нём.
+final class CompletionTrie {
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final Node root = new Node("");
+
+    void add(String text) {
+        add(root, text, 0);
+    }
+
+    void remove(String text) {
+        remove(root, text, 0);
+    }
+
+    void clear() {
+        root.children = NO_CHILDREN;
+        root.count = 0;
+        root.strings = 0;
+    }
+
+    int size() {
+        return root.strings;
+    }
+
+    // До limit строк с префиксом prefix по возрастанию
+    List<String> complete(String prefix, int limit) {
+        List<String> result = new ArrayList<>(Math.min(limit, 16));
+        Node node = root;
+        int i = 0;
+        while (i < prefix.length()) {
+            Node child = node.child(prefix.charAt(i));
+            if (child == null) return result;
+            int common = common(child.label, prefix, i);
+            if (i + common == prefix.length()) {
+                collect(child, new StringBuilder().append(prefix, 0, i).append(child.label), result, limit);
+                return result;
+            }
+            if (common < child.label.length()) return result;
+            node = child;
+            i += common;
+        }
+        collect(node, new StringBuilder(prefix), result, limit);
+        return result;
+    }
+
+    // true, если строка появилась впервые
+    private static boolean add(Node node, String text, int i) {
+        boolean added;
+        if (i == text.length()) {
+            added = ++node.count == 1;
+        } else {
+            Node child = node.child(text.charAt(i));
+            if (child == null) {
+                Node leaf = new Node(text.substring(i));
+                leaf.count = 1;
+                leaf.strings = 1;
+                node.insert(leaf);
+                added = true;
+            } else {
+                int common = common(child.label, text, i);
+                if (common < child.label.length()) {
+                    // Разделение ребра: общая часть становится отдельным узлом
+                    Node middle = new Node(child.label.substring(0, common));
+                    node.replace(child, middle);
+                    child.label = child.label.substring(common);
+                    middle.children = new Node[]{child};
+                    middle.strings = child.strings;
+                    child = middle;
+                }
+                added = add(child, text, i + common);
+            }
+        }
+        if (added) node.strings++;
+        return added;
+    }
+
+    // true, если строка исчезла совсем
+    private static boolean remove(Node node, String text, int i) {
+        boolean removed;
+        if (i == text.length()) {
+            if (node.count == 0) return false;
+            removed = --node.count == 0;
+        } else {
+            Node child = node.child(text.charAt(i));
+            if (child == null || !text.startsWith(child.label, i)) return false;
+            removed = remove(child, text, i + child.label.length());
+            if (removed) {
+                if (child.strings == 0) {
+                    node.delete(child);
+                } else if (child.count == 0 && child.children.length == 1) {
+                    // Узел без своей строки с одним потомком сливается с ним
+                    Node only = child.children[0];
+                    only.label = child.label + only.label;
+                    node.replace(child, only);
+                }
+            }
+        }
+        if (removed) node.strings--;
+        return removed;
+    }
+
+    private static void collect(Node node, StringBuilder text, List<String> result, int limit) {
+        if (node.count > 0) result.add(text.toString());
+        for (Node child : node.children) {
+            if (result.size() >= limit) return;
+            int length = text.length();
+            collect(child, text.append(child.label), result, limit);
+            text.setLength(length);
+        }
+    }
+
+    private static int common(String label, String text, int offset) {
+        int max = Math.min(label.length(), text.length() - offset);
+        int i = 0;
+        while (i < max && label.charAt(i) == text.charAt(offset + i)) i++;
+        return i;
+    }
+
+    // Потомки отсортированы по первому символу ребра, у разных потомков он разный
+    private static final class Node {
+        String label;
+        Node[] children = NO_CHILDREN;
+        // Сколько раз добавлена строка, оканчивающаяся здесь, и число разных строк в поддереве
+        int count;
+        int strings;
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        Node child(char first) {
+            int index = search(first);
+            return index >= 0 ? children[index] : null;
+        }
+
+        void insert(Node child) {
+            int index = -search(child.label.charAt(0)) - 1;
+            Node[] grown = new Node[children.length + 1];
+            System.arraycopy(children, 0, grown, 0, index);
+            grown[index] = child;
+            System.arraycopy(children, index, grown, index + 1, children.length - index);
+            children = grown;
+        }
+
+        void replace(Node child, Node with) {
+            children[search(child.label.charAt(0))] = with;
+        }
+
+        void delete(Node child) {
+            int index = search(child.label.charAt(0));
+            Node[] shrunk = Arrays.copyOf(children, children.length - 1);
+            System.arraycopy(children, index + 1, shrunk, index, children.length - index - 1);
+            children = shrunk;
+        }
+
+        private int search(char first) {
+            int low = 0;
+            int high = children.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                char value = children[middle].label.charAt(0);
+                if (value < first) {
+                    low = middle + 1;
+                } else if (value > first) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -low - 1;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Соединения с портами правил ports-ip (голосовой чат, веб-панель и т. п.) по данным ядра.
+// Раз в interval секунд /proc/net/tcp, tcp6, udp и udp6 читаются потоком в один переиспользуемый
+// буфер и разбираются по байтам без создания объектов на строку; соединения считаются по
+// (адрес клиента, локальный порт, протокол) в таблице с открытой адресацией на примитивных
+// массивах. Адрес сверх лимита помечается в логе, при action: block получает правило BLOCK на
+// этот порт; действует оно только через nftables, поэтому без него block заменяется на flag.
+// UDP виден только для подключённых сокетов. Только Linux; чтение в фоне, блокировка — в основном
+final class ConnectionMonitor {
+
+    private static final String[] FILES = {"tcp", "tcp6", "udp", "udp6"};
+    private static final int ESTABLISHED = 0x01;
+    private static final int SYN_RECV = 0x03;
+    // Ключ таблицы: порт и бит UDP
+    private static final int UDP_BIT = 1 << 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Адреса в /proc/net напечатаны как 32-битные слова в порядке байтов хоста
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private final Main plugin;
+    private final PortIPManager portIP;
+    private final boolean enabled;
+    private final Path directory;
+    private final long interval;
+    private final boolean block;
+    private final int defaultLimit;
+    private final List<Limit> limits = new ArrayList<>();
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer view = ByteBuffer.wrap(buffer);
+    // Порты правил по битам, пересобираются при смене снимка правил
+    private final long[] tcpPorts = new long[1024];
+    private final long[] udpPorts = new long[1024];
+    private Object rulesVersion;
+
+    // Таблица счётчиков; counts[slot] == 0 — пусто, used — занятые ячейки для очистки и обхода
+    private long[] highs;
+    private long[] lows;
+    private int[] keys;
+    private int[] counts;
+    private int[] used;
+    private int size;
+
+    // Превысившие лимит в прошлом замере: о них не пишется повторно, пока не опустятся ниже
+    private Set<String> flagged = new HashSet<>();
+    private BukkitTask task;
+    private boolean failed;
+
+    private volatile int connections;
+    private volatile int monitoredPorts;
+    private volatile int overLimit;
+    private volatile long lastSample = -1;
+
+    ConnectionMonitor(Main plugin, PortIPManager portIP, NftablesBackend nftables) {
+        this.plugin = plugin;
+        this.portIP = portIP;
+        this.directory = Path.of(plugin.config.getString("connection-monitor.proc-path", "/proc/net"));
+        this.interval = Math.max(1, plugin.config.getLong("connection-monitor.interval", 5)) * 20;
+        boolean blocking = "block".equalsIgnoreCase(plugin.config.getString("connection-monitor.action", "flag"));
+        if (blocking && !nftables.isEnforcing()) {
+            plugin.getLogger().warning(plugin.getTranslation("connections.block_without_nftables"));
+            blocking = false;
+        }
+        this.block = blocking;
+        this.defaultLimit = Math.max(0, plugin.config.getInt("connection-monitor.max-per-address", 8));
+
+        ConfigurationSection section = plugin.config.getConfigurationSection("connection-monitor.limits");
+        if (section != null) {
+            for (String key : section.getKeys(false)) {
+                PortRange ports = PortRange.parse(key);
+                if (ports == null) {
+                    plugin.getLogger().warning(plugin.getTranslation("connections.invalid_limit", key));
+                } else {
+                    limits.add(new Limit(ports, Math.max(0, section.getInt(key))));
+                }
+            }
+        }
+        allocate(1024);
+
+        boolean wanted = plugin.config.getBoolean("connection-monitor.enabled", false);
+        if (wanted && !System.getProperty("os.name", "").toLowerCase().contains("linux")
+                && !plugin.config.contains("connection-monitor.proc-path")) {
+            plugin.getLogger().warning(plugin.getTranslation("connections.not_linux"));
+            wanted = false;
+        }
+        this.enabled = wanted;
+    }
+
+    void start() {
+        if (!enabled) return;
+
+        task = new BukkitRunnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }.runTaskTimerAsynchronously(plugin, interval, interval);
+    }
+
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    synchronized void sample() {
+        long started = System.nanoTime();
+        refreshPorts();
+        for (int i = 0; i < size; i++) {
+            counts[used[i]] = 0;
+        }
+        size = 0;
+
+        int total = 0;
+        boolean complete = true;
+        for (int i = 0; i < FILES.length; i++) {
+            try {
+                total += read(directory.resolve(FILES[i]), i >= 2);
+            } catch (IOException e) {
+                // Нет IPv6 или /proc недоступен; сообщение — один раз, пока чтение не наладится
+                if (!failed) {
+                    plugin.getLogger().warning(plugin.getTranslation("connections.read_failed",
+                            directory.resolve(FILES[i]), e.getMessage()));
+                }
+                complete = false;
+            }
+        }
+        failed = !complete;
+        connections = total;
+        check();
+        lastSample = System.nanoTime() - started;
+    }
+
+    // Сравнение счётчиков с лимитами; новые нарушители — в лог и, при action: block, в правила
+    private void check() {
+        Set<String> current = new HashSet<>();
+        for (int i = 0; i < size; i++) {
+            int slot = used[i];
+            int port = keys[slot] & 0xFFFF;
+            boolean udp = (keys[slot] & UDP_BIT) != 0;
+            int limit = limitOf(port);
+            if (limit == 0 || counts[slot] <= limit) continue;
+
+            IpAddress address = new IpAddress(highs[slot], lows[slot]);
+            Protocol protocol = udp ? Protocol.UDP : Protocol.TCP;
+            String key = address + ":" + port + "/" + protocol;
+            current.add(key);
+            if (flagged.contains(key)) continue;
+
+            int count = counts[slot];
+            if (!block) {
+                plugin.getLogger().warning(plugin.getTranslation("connections.over_limit",
+                        address, count, port, protocol, limit));
+                continue;
+            }
+            plugin.getServer().getScheduler().runTask(plugin, plugin.getWatchdog().wrap("task:connection-block", () -> {
+                if (portIP.blockExcess(address, PortRange.of(port), protocol)) {
+                    plugin.getLogger().warning(plugin.getTranslation("connections.blocked",
+                            address, port, protocol, count, limit));
+                } else {
+                    plugin.getLogger().warning(plugin.getTranslation("connections.over_limit",
+                            address, count, port, protocol, limit));
+                }
+            }));
+        }
+        flagged = current;
+        overLimit = current.size();
+    }
+
+    private int limitOf(int port) {
+        for (Limit limit : limits) {
+            if (limit.ports().contains(port)) return limit.max();
+        }
+        return defaultLimit;
+    }
+
+    // Порты всех правил ports-ip; PrefixMatcher читается снимком из любого потока
+    private void refreshPorts() {
+        PrefixMatcher<PortRuleSet> rules = portIP.getRules();
+        Object version = rules.version();
+        if (version == rulesVersion) return;
+        rulesVersion = version;
+
+        Arrays.fill(tcpPorts, 0);
+        Arrays.fill(udpPorts, 0);
+        for (PortRuleSet ruleSet : rules.values()) {
+            for (PortIPManager.PortIPRule rule : ruleSet.rules()) {
+                for (int port = rule.ports().from(); port <= rule.ports().to(); port++) {
+                    if (rule.protocol().covers(Protocol.TCP)) tcpPorts[port >>> 6] |= 1L << port;
+                    if (rule.protocol().covers(Protocol.UDP)) udpPorts[port >>> 6] |= 1L << port;
+                }
+            }
+        }
+        int count = 0;
+        for (int i = 0; i < tcpPorts.length; i++) {
+            count += Long.bitCount(tcpPorts[i] | udpPorts[i]);
+        }
+        monitoredPorts = count;
+    }
+
+    // Потоковое чтение одного файла; строка, разорванная концом буфера, переносится в его начало.
+    // Возвращает число учтённых соединений
+    private int read(Path path, boolean udp) throws IOException {
+        int counted = 0;
+        try (FileChannel channel = FileChannel.open(path)) {
+            int length = 0;
+            boolean header = true;
+            while (true) {
+                view.clear().position(length);
+                int read = channel.read(view);
+                if (read < 0) break;
+                length += read;
+
+                int start = 0;
+                for (int i = 0; i < length; i++) {
+                    if (buffer[i] != '\n') continue;
+                    if (!header && line(start, i, udp)) counted++;
+                    header = false;
+                    start = i + 1;
+                }
+                length -= start;
+                System.arraycopy(buffer, start, buffer, 0, length);
+                // Строки /proc/net короче сотни байт; такая длина — не формат /proc, остаток отбрасывается
+                if (length == buffer.length) length = 0;
+            }
+        }
+        return counted;
+    }
+
+    // "  0: 0100007F:0A22 0200A8C0:D431 01 ...": sl, локальный адрес, удалённый адрес, состояние
+    private boolean line(int from, int to, boolean udp) {
+        int local = skipSpaces(skipToken(skipSpaces(from, to), to), to);
+        int remote = skipSpaces(skipToken(local, to), to);
+        int state = skipSpaces(skipToken(remote, to), to);
+        if (state + 2 > to) return false;
+
+        int status = (int) hex(state, 2);
+        if (udp ? status != ESTABLISHED : status != ESTABLISHED && status != SYN_RECV) return false;
+
+        int localColon = indexOf(local, to, ':');
+        int remoteColon = indexOf(remote, to, ':');
+        if (localColon < 0 || remoteColon < 0 || localColon + 5 > to) return false;
+        int port = (int) hex(localColon + 1, 4);
+        if (((udp ? udpPorts : tcpPorts)[port >>> 6] & 1L << port) == 0) return false;
+
+        long high;
+        long low;
+        switch (remoteColon - remote) {
+            case 8 -> {
+                high = 0;
+                low = IpAddress.V4_MAPPED_PREFIX | word(remote) & 0xFFFFFFFFL;
+            }
+            case 32 -> {
+                high = (long) word(remote) << 32 | word(remote + 8) & 0xFFFFFFFFL;
+                low = (long) word(remote + 16) << 32 | word(remote + 24) & 0xFFFFFFFFL;
+            }
+            default -> {
+                return false;
+            }
+        }
+        add(high, low, udp ? port | UDP_BIT : port);
+        return true;
+    }
+
+    // Слово адреса из 8 шестнадцатеричных цифр в порядке байтов сети
+    private int word(int position) {
+        int value = (int) hex(position, 8);
+        return LITTLE_ENDIAN ? Integer.reverseBytes(value) : value;
+    }
+
+    private long hex(int position, int digits) {
+        long value = 0;
+        for (int i = position; i < position + digits; i++) {
+            int c = buffer[i];
+            value = value << 4 | (c <= '9' ? c - '0' : (c | 0x20) - 'a' + 10);
+        }
+        return value;
+    }
+
+    private int skipSpaces(int position, int to) {
+        while (position < to && buffer[position] == ' ') position++;
+        return position;
+    }
+
+    private int skipToken(int position, int to) {
+        while (position < to && buffer[position] != ' ') position++;
+        return position;
+    }
+
+    private int indexOf(int position, int to, char c) {
+        for (int i = position; i < to && buffer[i] != ' '; i++) {
+            if (buffer[i] == c) return i;
+        }
+        return -1;
+    }
+
+    private void add(long high, long low, int key) {
+        int mask = counts.length - 1;
+        int slot = hash(high, low, key) & mask;
+        while (counts[slot] != 0) {
+            if (highs[slot] == high && lows[slot] == low && keys[slot] == key) {
+                counts[slot]++;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        highs[slot] = high;
+        lows[slot] = low;
+        keys[slot] = key;
+        counts[slot] = 1;
+        used[size++] = slot;
+        // Заполнение не больше половины; таблица растёт и остаётся для следующих замеров
+        if (size * 2 > counts.length) grow();
+    }
+
+    private void grow() {
+        long[] oldHighs = highs;
+        long[] oldLows = lows;
+        int[] oldKeys = keys;
+        int[] oldCounts = counts;
+        int[] oldUsed = used;
+        int oldSize = size;
+        allocate(counts.length * 2);
+        for (int i = 0; i < oldSize; i++) {
+            int slot = oldUsed[i];
+            int mask = counts.length - 1;
+            int target = hash(oldHighs[slot], oldLows[slot], oldKeys[slot]) & mask;
+            while (counts[target] != 0) target = (target + 1) & mask;
+            highs[target] = oldHighs[slot];
+            lows[target] = oldLows[slot];
+            keys[target] = oldKeys[slot];
+            counts[target] = oldCounts[slot];
+            used[size++] = target;
+        }
+    }
+
+    private void allocate(int capacity) {
+        highs = new long[capacity];
+        lows = new long[capacity];
+        keys = new int[capacity];
+        counts = new int[capacity];
+        used = new int[capacity / 2 + 1];
+        size = 0;
+    }
+
+    private static int hash(long high, long low, int key) {
+        long value = (high * 0x9E3779B97F4A7C15L ^ low) + key;
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return (int) (value ^ (value >>> 31));
+    }
+
+    String describe() {
+        if (!enabled) return plugin.getTranslation("disabled");
+        long sample = lastSample;
+        if (sample < 0) return plugin.getTranslation("connections.state_pending");
+        return plugin.getTranslation("connections.state", connections, monitoredPorts, overLimit,
+                sample / 1_000_000.0);
+    }
+
+    // Лимит соединений с одного адреса для диапазона портов, 0 — без лимита
+    private record Limit(PortRange ports, int max) {
+    }
+}
@@ -0,0 +1,286 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+// Асинхронное разрешение имён с кэшем по TTL записей. Запросы A и AAAA уходят одним пакетом
+// (PortMapper.exchangeAll) на серверы из конфига или /etc/resolv.conf; если серверов нет,
+// используется системный резолвер с TTL из конфига. Ожидание ответа никогда не идёт в основном потоке.
+final class DnsResolver {
+
+    // Имя с точкой: одиночное слово из команды (опечатка в типе, "localhost") за хост не считается
+    private static final Pattern HOSTNAME = Pattern.compile(
+            "(?=.{1,253}\\.?$)([a-zA-Z0-9_]([a-zA-Z0-9_-]{0,61}[a-zA-Z0-9])?\\.)+[a-zA-Z]([a-zA-Z0-9-]{0,61}[a-zA-Z0-9])?\\.?");
+
+    private static final int PORT = 53;
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    // Идентификатор запроса — защита от подставных ответов, поэтому не предсказуемый генератор
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Main plugin;
+    private final List<InetSocketAddress> servers;
+    private final int timeout;
+    private final int attempts;
+    private final long minTtl;
+    private final long maxTtl;
+    private final long fallbackTtl;
+
+    private final Map<String, Resolution> cache = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Resolution>> inFlight = new ConcurrentHashMap<>();
+
+    DnsResolver(Main plugin) {
+        this.plugin = plugin;
+        this.timeout = Math.max(50, plugin.config.getInt("dns.timeout", 500));
+        this.attempts = Math.max(1, plugin.config.getInt("dns.retries", 2));
+        this.minTtl = Math.max(1, plugin.config.getLong("dns.min-ttl", 30));
+        this.maxTtl = Math.max(minTtl, plugin.config.getLong("dns.max-ttl", 3600));
+        this.fallbackTtl = Math.max(minTtl, plugin.config.getLong("dns.fallback-ttl", 300));
+
+        List<String> configured = plugin.config.getStringList("dns.servers");
+        this.servers = servers(configured.isEmpty() ? systemServers() : configured);
+    }
+
+    static boolean isHostname(String text) {
+        return text != null && HOSTNAME.matcher(text).matches();
+    }
+
+    static String normalize(String host) {
+        String name = host.toLowerCase(Locale.ROOT);
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    // Действующий ответ из кэша сразу, иначе один запрос в фоне на все одновременные обращения
+    CompletableFuture<Resolution> resolve(String host) {
+        String name = normalize(host);
+        Resolution cached = cache.get(name);
+        if (cached != null && !cached.isExpired()) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return inFlight.computeIfAbsent(name, key -> {
+            CompletableFuture<Resolution> future = new CompletableFuture<>();
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+                try {
+                    Resolution resolution = lookup(key);
+                    cache.put(key, resolution);
+                    future.complete(resolution);
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    inFlight.remove(key, future);
+                }
+            });
+            return future;
+        });
+    }
+
+    long getMinTtl() {
+        return minTtl;
+    }
+
+    private Resolution lookup(String name) throws IOException {
+        IOException failure = null;
+        for (InetSocketAddress server : servers) {
+            try {
+                Resolution resolution = query(server, name);
+                // null — усечённый ответ: записи не поместились в UDP, их отдаст системный резолвер
+                return resolution != null ? resolution : system(name);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+        return system(name);
+    }
+
+    private Resolution query(InetSocketAddress server, String name) throws IOException {
+        int[] ids = {RANDOM.nextInt(0x10000), 0};
+        do {
+            ids[1] = RANDOM.nextInt(0x10000);
+        } while (ids[1] == ids[0]);
+        byte[][] requests = {request(ids[0], name, TYPE_A), request(ids[1], name, TYPE_AAAA)};
+        byte[][] responses = PortMapper.exchangeAll(server, requests, response -> {
+            if (response.length < 12 || (response[2] & 0x80) == 0) return -1;
+            int responseId = u16(response, 0);
+            for (int i = 0; i < requests.length; i++) {
+                if (responseId == ids[i] && sameQuestion(requests[i], response)) return i;
+            }
+            return -1;
+        }, timeout, attempts);
+
+        if (responses[0] == null && responses[1] == null) {
+            throw new SocketTimeoutException(server.getAddress().getHostAddress());
+        }
+
+        List<IpAddress> addresses = new ArrayList<>();
+        long ttl = Long.MAX_VALUE;
+        for (byte[] response : responses) {
+            if (response == null) continue;
+            if ((response[2] & 0x02) != 0) return null;
+
+            int rcode = response[3] & 0x0F;
+            if (rcode == RCODE_NXDOMAIN) continue;
+            if (rcode != 0) throw new IOException("DNS rcode " + rcode + " from " + server.getAddress().getHostAddress());
+
+            ttl = Math.min(ttl, parseAnswers(response, addresses));
+        }
+        return new Resolution(addresses, clamp(ttl == Long.MAX_VALUE ? minTtl : ttl));
+    }
+
+    private Resolution system(String name) {
+        List<IpAddress> addresses = new ArrayList<>();
+        try {
+            for (InetAddress address : InetAddress.getAllByName(name)) {
+                addresses.add(IpAddress.of(address));
+            }
+        } catch (UnknownHostException e) {
+            return new Resolution(addresses, minTtl);
+        }
+        return new Resolution(addresses, fallbackTtl);
+    }
+
+    private long clamp(long ttl) {
+        return Math.max(minTtl, Math.min(maxTtl, ttl));
+    }
+
+    // Запрос RFC 1035: заголовок с флагом RD, один вопрос класса IN
+    static byte[] request(int id, String name, int type) {
+        byte[] qname = new byte[name.length() + 2];
+        int pos = 0;
+        for (String label : name.split("\\.")) {
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            qname[pos++] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, qname, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        byte[] request = new byte[12 + pos + 1 + 4];
+        request[0] = (byte) (id >>> 8);
+        request[1] = (byte) id;
+        request[2] = 0x01;
+        request[5] = 1;
+        System.arraycopy(qname, 0, request, 12, pos);
+        int end = 12 + pos + 1;
+        request[end + 1] = (byte) type;
+        request[end + 3] = 1;
+        return request;
+    }
+
+    // Ответ должен повторять вопрос запроса: одно имя (регистр не важен, RFC 4343), тот же тип и класс
+    static boolean sameQuestion(byte[] request, byte[] response) {
+        if (response.length < request.length || u16(response, 4) != 1) return false;
+        for (int i = 12; i < request.length; i++) {
+            if (lower(request[i]) != lower(response[i])) return false;
+        }
+        return true;
+    }
+
+    private static byte lower(byte value) {
+        return value >= 'A' && value <= 'Z' ? (byte) (value + 32) : value;
+    }
+
+    // Адреса из секции ответов; возвращает наименьший TTL среди записей (включая CNAME)
+    private static long parseAnswers(byte[] response, List<IpAddress> addresses) throws IOException {
+        try {
+            int questions = u16(response, 4);
+            int answers = u16(response, 6);
+            int pos = 12;
+            for (int i = 0; i < questions; i++) {
+                pos = skipName(response, pos) + 4;
+            }
+
+            long ttl = Long.MAX_VALUE;
+            for (int i = 0; i < answers; i++) {
+                pos = skipName(response, pos);
+                int type = u16(response, pos);
+                long recordTtl = u16(response, pos + 4) * 65536L + u16(response, pos + 6);
+                int length = u16(response, pos + 8);
+                pos += 10;
+                if (pos + length > response.length) throw new IOException("Truncated DNS record");
+
+                if ((type == TYPE_A && length == 4) || (type == TYPE_AAAA && length == 16)) {
+                    byte[] address = new byte[length];
+                    System.arraycopy(response, pos, address, 0, length);
+                    addresses.add(IpAddress.ofBytes(address));
+                }
+                ttl = Math.min(ttl, recordTtl);
+                pos += length;
+            }
+            return ttl;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed DNS response", e);
+        }
+    }
+
+    private static int skipName(byte[] data, int pos) {
+        while (true) {
+            int length = data[pos] & 0xFF;
+            if (length == 0) return pos + 1;
+            if ((length & 0xC0) == 0xC0) return pos + 2;
+            pos += length + 1;
+        }
+    }
+
+    private static int u16(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    private static List<String> systemServers() {
+        List<String> servers = new ArrayList<>();
+        Path resolvConf = Path.of("/etc/resolv.conf");
+        if (!Files.isReadable(resolvConf)) return servers;
+        try {
+            for (String line : Files.readAllLines(resolvConf)) {
+                String[] columns = line.trim().split("\\s+");
+                if (columns.length >= 2 && columns[0].equals("nameserver")) {
+                    servers.add(columns[1]);
+                }
+            }
+        } catch (IOException e) {
+            return servers;
+        }
+        return servers;
+    }
+
+    // Только литералы адресов: сам резолвер не должен зависеть от DNS
+    private static List<InetSocketAddress> servers(List<String> names) {
+        List<InetSocketAddress> servers = new ArrayList<>();
+        for (String name : names) {
+            if (IpAddress.parse(name) == null) continue;
+            try {
+                servers.add(new InetSocketAddress(InetAddress.getByName(name), PORT));
+            } catch (UnknownHostException e) {
+                // getByName для литерала не обращается к DNS и не бросает
+            }
+        }
+        return servers;
+    }
+
+    record Resolution(List<IpAddress> addresses, long ttlSeconds, long expiresAt) {
+
+        Resolution(List<IpAddress> addresses, long ttlSeconds) {
+            this(List.copyOf(addresses), ttlSeconds, System.nanoTime() + ttlSeconds * 1_000_000_000L);
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - expiresAt >= 0;
+        }
+    }
+}
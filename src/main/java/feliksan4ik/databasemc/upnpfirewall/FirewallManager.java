@@ -2,134 +2,276 @@ package feliksan4ik.databasemc.upnpfirewall;
 
 import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 class FirewallManager implements Listener {
 
     private final Main plugin;
     private final Set<FirewallRule> firewallRules;
-    private boolean enabled;
+    private final PrefixMatcher<FirewallRule> matcher;
+    private final TickWatchdog.Source loginSource;
+    // Ключи записей в firewall.rules: по префиксу для правил по адресу, по имени для правил по хосту
+    private final RuleIndex<IpPrefix> ruleKeys = new RuleIndex<>();
+    private final RuleIndex<String> hostKeys = new RuleIndex<>();
+    // Адреса правил и имена хостов для дополнения /firewall removerule
+    private final CompletionTrie completions = new CompletionTrie();
+    // Правила по имени хоста и их адреса, поставленные в matcher как /32 и /128 (меняются
+    // только в основном потоке, читаются и из фона при разгрузке)
+    private final Map<String, HostRule> hostRules = new ConcurrentSkipListMap<>();
+    private final Map<String, BukkitTask> hostRefreshes = new HashMap<>();
+    // Хосты, для которых DNS сейчас не отвечает
+    private final Set<String> failingHosts = new HashSet<>();
+    private Map<IpPrefix, FirewallRule> hostEntries = new HashMap<>();
+    // Читаются и из фоновой синхронизации nftables
+    private volatile boolean enabled;
+    private volatile boolean whitelistMode;
 
     public FirewallManager(Main plugin) {
         this.plugin = plugin;
-        this.firewallRules = new HashSet<>();
+        // Параллельное множество: при разгрузке основного потока список правил выводится из фона
+        this.firewallRules = ConcurrentHashMap.newKeySet();
+        this.matcher = new PrefixMatcher<>();
+        this.loginSource = plugin.getWatchdog().source("event:login/firewall");
         this.enabled = true;
     }
 
     public void loadFirewallRules() {
+        loadFirewallRules(readRuleEntries(plugin.config));
+    }
+
+    // Записи по ключам конфига; из повторов одного префикса действует первая
+    public void loadFirewallRules(Map<String, FirewallRule> entries) {
         firewallRules.clear();
+        ruleKeys.clear();
+        completions.clear();
 
         enabled = plugin.config.getBoolean("firewall.enabled", true);
+        whitelistMode = plugin.config.getBoolean("firewall.whitelist-mode", false);
+        for (Map.Entry<String, FirewallRule> entry : entries.entrySet()) {
+            if (ruleKeys.put(entry.getValue().prefix(), entry.getKey())) {
+                firewallRules.add(entry.getValue());
+                completions.add(entry.getValue().ip());
+            }
+        }
 
-        if (plugin.config.contains("firewall.rules")) {
-            for (String key : plugin.config.getConfigurationSection("firewall.rules").getKeys(false)) {
-                String ip = plugin.config.getString("firewall.rules." + key + ".ip");
-                String type = plugin.config.getString("firewall.rules." + key + ".type");
-                String action = plugin.config.getString("firewall.rules." + key + ".action");
+        // Последние известные адреса хостов сохраняются до нового ответа DNS
+        Map<String, HostRule> previous = new HashMap<>(hostRules);
+        hostRules.clear();
+        hostKeys.clear();
+        for (Map.Entry<String, HostRule> entry : readHostRules(plugin.config).entrySet()) {
+            HostRule rule = entry.getValue();
+            if (!hostKeys.put(rule.host(), entry.getKey())) continue;
+            HostRule known = previous.get(rule.host());
+            hostRules.put(rule.host(), known != null ? rule.withAddresses(known.addresses()) : rule);
+            completions.add(rule.host());
+        }
+        for (String host : previous.keySet()) {
+            if (!hostRules.containsKey(host)) {
+                cancelRefresh(host);
+                failingHosts.remove(host);
+            }
+        }
 
-                if (ip != null && type != null && action != null) {
-                    firewallRules.add(new FirewallRule(ip, type, action));
-                }
+        // Содержимое matcher заменяется одной пачкой: вход игрока видит либо старые правила, либо новые
+        matcher.batch(() -> {
+            matcher.clear();
+            for (FirewallRule rule : firewallRules) {
+                if (rule.isEffective()) matcher.put(rule.prefix(), rule);
             }
+            hostEntries = new HashMap<>();
+            installHostEntries();
+        });
+        for (String host : hostRules.keySet()) {
+            refresh(host);
         }
 
-        plugin.getLogger().info(plugin.getTranslation("firewall.rules_loaded", firewallRules.size()));
+        plugin.getLogger().info(plugin.getTranslation("firewall.rules_loaded", getRuleCount()));
     }
 
-    @EventHandler
-    public void onPlayerLogin(PlayerLoginEvent event) {
-        if (!enabled) return;
+    static Set<FirewallRule> readRules(ConfigurationSection config) {
+        return new HashSet<>(readRuleEntries(config).values());
+    }
 
-        Player player = event.getPlayer();
-        String ip = event.getAddress().getHostAddress();
+    // Ключ записи -> правило, в порядке конфига
+    static Map<String, FirewallRule> readRuleEntries(ConfigurationSection config) {
+        Map<String, FirewallRule> rules = new LinkedHashMap<>();
 
-        for (FirewallRule rule : firewallRules) {
-            if (rule.matches(ip)) {
-                if ("block".equalsIgnoreCase(rule.action())) {
-                    if ("blacklist".equalsIgnoreCase(rule.type())) {
-                        event.setResult(PlayerLoginEvent.Result.KICK_BANNED);
-                        event.setKickMessage(plugin.getTranslation("firewall.kick_blocked"));
-                        plugin.getLogger().warning(plugin.getTranslation("firewall.login_blocked", ip, player.getName()));
-                        return;
-                    }
-                } else if ("allow".equalsIgnoreCase(rule.action())) {
-                    if ("whitelist".equalsIgnoreCase(rule.type())) {
-                        // Разрешить подключение
-                        return;
-                    }
+        if (config.contains("firewall.rules")) {
+            for (String key : config.getConfigurationSection("firewall.rules").getKeys(false)) {
+                String ip = config.getString("firewall.rules." + key + ".ip");
+                ListType type = ListType.parse(config.getString("firewall.rules." + key + ".type"));
+                RuleAction action = RuleAction.parse(config.getString("firewall.rules." + key + ".action"));
+
+                IpPrefix prefix = IpPrefix.parse(ip);
+                if (prefix != null && type != null && action != null) {
+                    rules.put(key, new FirewallRule(prefix, type, action));
                 }
             }
         }
 
-        // Если включен режим whitelist по умолчанию, блокируем всех не в whitelist
-        if (plugin.config.getBoolean("firewall.whitelist-mode", false)) {
-            boolean allowed = false;
-            for (FirewallRule rule : firewallRules) {
-                if ("whitelist".equalsIgnoreCase(rule.type()) && "allow".equalsIgnoreCase(rule.action()) && rule.matches(ip)) {
-                    allowed = true;
-                    break;
+        return rules;
+    }
+
+    static Map<String, HostRule> readHostRules(ConfigurationSection config) {
+        Map<String, HostRule> rules = new LinkedHashMap<>();
+
+        if (config.contains("firewall.rules")) {
+            for (String key : config.getConfigurationSection("firewall.rules").getKeys(false)) {
+                String host = config.getString("firewall.rules." + key + ".host");
+                ListType type = ListType.parse(config.getString("firewall.rules." + key + ".type"));
+                RuleAction action = RuleAction.parse(config.getString("firewall.rules." + key + ".action"));
+
+                if (DnsResolver.isHostname(host) && type != null && action != null) {
+                    rules.put(key, new HostRule(DnsResolver.normalize(host), type, action, List.of()));
                 }
             }
+        }
+
+        return rules;
+    }
+
+    @EventHandler
+    public void onPlayerLogin(PlayerLoginEvent event) {
+        long started = plugin.getWatchdog().begin();
+        try {
+            plugin.getTopTalkers().record(event.getAddress());
+            checkLogin(event);
+        } finally {
+            plugin.getWatchdog().end(loginSource, started);
+        }
+    }
+
+    private void checkLogin(PlayerLoginEvent event) {
+        if (!enabled) return;
+
+        // Решение принимается по двум long без создания объектов; строки собираются только при отказе
+        InetAddress address = event.getAddress();
+        long high = IpAddress.highOf(address);
+        long low = IpAddress.lowOf(address);
+
+        AttackGuard guard = plugin.getAttackGuard();
+        guard.onLogin();
+        Verdict verdict = evaluate(matcher, whitelistMode, high, low);
+        // Во время флуда входов без разрешающего правила пускаются только знакомые адреса;
+        // отказы не пишутся в лог по одному, итог — при снятии режима
+        if (verdict == Verdict.ALLOWED && !guard.admits(high, low) && matcher.longestMatch(high, low) == null) {
+            event.setResult(PlayerLoginEvent.Result.KICK_OTHER);
+            event.setKickMessage(plugin.getTranslation("firewall.kick_attack"));
+            return;
+        }
+
+        switch (verdict) {
+            case BLOCKED:
+                Player player = event.getPlayer();
+                event.setResult(PlayerLoginEvent.Result.KICK_BANNED);
+                event.setKickMessage(plugin.getTranslation("firewall.kick_blocked"));
+                plugin.getLogger().warning(plugin.getTranslation("firewall.login_blocked",
+                        new IpAddress(high, low), player.getName()));
+                break;
 
-            if (!allowed) {
+            case NOT_WHITELISTED:
                 event.setResult(PlayerLoginEvent.Result.KICK_BANNED);
                 event.setKickMessage(plugin.getTranslation("firewall.kick_whitelist"));
-                plugin.getLogger().warning(plugin.getTranslation("firewall.whitelist_blocked", ip, player.getName()));
-            }
+                plugin.getLogger().warning(plugin.getTranslation("firewall.whitelist_blocked",
+                        new IpAddress(high, low), event.getPlayer().getName()));
+                break;
+
+            default:
+                break;
         }
     }
 
-    public void addRule(CommandSender sender, String ip, String type, String action) {
-        try {
-            InetAddress.getByName(ip);
+    // Общая логика решения для входа игрока и для офлайн-проигрывания логов (ReplayTool).
+    // Срабатывает самое узкое подходящее правило, поэтому порядок правил не важен
+    static Verdict evaluate(PrefixMatcher<FirewallRule> matcher, boolean whitelistMode, IpAddress address) {
+        return evaluate(matcher, whitelistMode, address.high(), address.low());
+    }
 
-            if (!"whitelist".equalsIgnoreCase(type) && !"blacklist".equalsIgnoreCase(type)) {
-                sender.sendMessage(plugin.getTranslation("firewall.error.invalid_type"));
-                return;
-            }
+    static Verdict evaluate(PrefixMatcher<FirewallRule> matcher, boolean whitelistMode, long high, long low) {
+        FirewallRule rule = matcher.longestMatch(high, low);
+        if (rule != null) {
+            return rule.verdict();
+        }
+
+        // Если включен режим whitelist по умолчанию, блокируем всех не в whitelist
+        return whitelistMode ? Verdict.NOT_WHITELISTED : Verdict.ALLOWED;
+    }
 
-            if (!"allow".equalsIgnoreCase(action) && !"block".equalsIgnoreCase(action)) {
-                sender.sendMessage(plugin.getTranslation("firewall.error.invalid_action"));
-                return;
+    static PrefixMatcher<FirewallRule> compile(Collection<FirewallRule> rules) {
+        PrefixMatcher<FirewallRule> compiled = new PrefixMatcher<>();
+        compiled.batch(() -> {
+            for (FirewallRule rule : rules) {
+                if (rule.isEffective()) compiled.put(rule.prefix(), rule);
             }
+        });
+        return compiled;
+    }
 
-            FirewallRule rule = new FirewallRule(ip, type, action);
-            firewallRules.add(rule);
+    // Строка, которая не разбирается как адрес или сеть, но похожа на имя хоста, становится
+    // правилом по хосту; его адреса разрешаются в фоне, команда DNS не ждёт
+    public void addRule(CommandSender sender, String ip, String typeName, String actionName) {
+        IpPrefix prefix = IpPrefix.parse(ip);
+        boolean host = prefix == null && DnsResolver.isHostname(ip);
+        if (prefix == null && !host) {
+            sender.sendMessage(plugin.getTranslation("firewall.error.invalid_ip", ip));
+            return;
+        }
 
-            String ruleKey = "rule_" + System.currentTimeMillis();
-            plugin.config.set("firewall.rules." + ruleKey + ".ip", ip);
-            plugin.config.set("firewall.rules." + ruleKey + ".type", type.toLowerCase());
-            plugin.config.set("firewall.rules." + ruleKey + ".action", action.toLowerCase());
-            plugin.saveConfig();
+        ListType type = ListType.parse(typeName);
+        if (type == null) {
+            sender.sendMessage(plugin.getTranslation("firewall.error.invalid_type"));
+            return;
+        }
+
+        RuleAction action = RuleAction.parse(actionName);
+        if (action != RuleAction.ALLOW && action != RuleAction.BLOCK) {
+            sender.sendMessage(plugin.getTranslation("firewall.error.invalid_action"));
+            return;
+        }
 
-            sender.sendMessage(plugin.getTranslation("firewall.rule_added", ip));
+        if (host) {
+            String name = DnsResolver.normalize(ip);
+            putHostRule(name, type, action);
+            plugin.getClusterManager().publishFirewallRule(name, type, action);
 
-        } catch (UnknownHostException e) {
-            sender.sendMessage(plugin.getTranslation("firewall.error.invalid_ip", ip));
+            sender.sendMessage(plugin.getTranslation("firewall.host_rule_added", name));
+            return;
         }
+
+        putRule(prefix, type, action);
+        plugin.getClusterManager().publishFirewallRule(prefix.toString(), type, action);
+
+        sender.sendMessage(plugin.getTranslation("firewall.rule_added", prefix));
     }
 
     public void removeRule(CommandSender sender, String ip) {
-        boolean removed = firewallRules.removeIf(rule -> rule.ip().equals(ip));
+        if (DnsResolver.isHostname(ip) && deleteHostRule(DnsResolver.normalize(ip))) {
+            plugin.getClusterManager().publishFirewallRemoval(DnsResolver.normalize(ip));
 
-        if (removed) {
-            if (plugin.config.contains("firewall.rules")) {
-                for (String key : plugin.config.getConfigurationSection("firewall.rules").getKeys(false)) {
-                    if (ip.equals(plugin.config.getString("firewall.rules." + key + ".ip"))) {
-                        plugin.config.set("firewall.rules." + key, null);
-                        break;
-                    }
-                }
-            }
-            plugin.saveConfig();
+            sender.sendMessage(plugin.getTranslation("firewall.rule_removed", ip));
+            return;
+        }
+
+        IpPrefix prefix = IpPrefix.parse(ip);
+        if (prefix != null && deleteRule(prefix)) {
+            plugin.getClusterManager().publishFirewallRemoval(prefix.toString());
 
             sender.sendMessage(plugin.getTranslation("firewall.rule_removed", ip));
         } else {
@@ -137,8 +279,183 @@ class FirewallManager implements Listener {
         }
     }
 
+    // Применение уже проверенного правила: и для команд, и для изменений с других узлов кластера
+    void putRule(IpPrefix prefix, ListType type, RuleAction action) {
+        FirewallRule rule = new FirewallRule(prefix, type, action);
+        if (!firewallRules.remove(rule)) completions.add(rule.ip());
+        firewallRules.add(rule);
+        if (rule.isEffective()) {
+            matcher.put(prefix, rule);
+        } else {
+            matcher.remove(prefix);
+        }
+        removeFromConfig(ruleKeys.remove(prefix));
+
+        String ruleKey = newKey();
+        ruleKeys.put(prefix, ruleKey);
+        plugin.config.set("firewall.rules." + ruleKey + ".ip", prefix.toString());
+        plugin.config.set("firewall.rules." + ruleKey + ".type", type.configName());
+        plugin.config.set("firewall.rules." + ruleKey + ".action", action.configName());
+        plugin.saveConfig();
+    }
+
+    // Результат /firewall optimize --apply: одна пересборка matcher и одно сохранение конфига
+    void applyOptimized(List<String> keys, List<FirewallRule> remove, List<FirewallRule> add) {
+        for (String key : keys) {
+            ruleKeys.removeKey(key);
+            removeFromConfig(key);
+        }
+
+        matcher.batch(() -> {
+            for (FirewallRule rule : remove) {
+                if (firewallRules.remove(rule)) completions.remove(rule.ip());
+                matcher.remove(rule.prefix());
+                plugin.getClusterManager().publishFirewallRemoval(rule.ip());
+            }
+            for (FirewallRule rule : add) {
+                String ruleKey = newKey();
+                ruleKeys.put(rule.prefix(), ruleKey);
+                if (firewallRules.add(rule)) completions.add(rule.ip());
+                matcher.put(rule.prefix(), rule);
+                plugin.config.set("firewall.rules." + ruleKey + ".ip", rule.ip());
+                plugin.config.set("firewall.rules." + ruleKey + ".type", rule.type().configName());
+                plugin.config.set("firewall.rules." + ruleKey + ".action", rule.action().configName());
+                plugin.getClusterManager().publishFirewallRule(rule.ip(), rule.type(), rule.action());
+            }
+            installHostEntries();
+        });
+        plugin.saveConfig();
+    }
+
+    // Несколько изменений подряд (пакет из admin API) публикуются одной пересборкой matcher
+    void batch(Runnable changes) {
+        matcher.batch(changes);
+    }
+
+    boolean deleteRule(IpPrefix prefix) {
+        // Равенство правил — по префиксу
+        boolean removed = firewallRules.remove(new FirewallRule(prefix, null, null));
+
+        if (removed) {
+            completions.remove(prefix.toString());
+            matcher.remove(prefix);
+            // Если тот же адрес есть у правила по хосту, его запись возвращается
+            installHostEntries();
+            removeFromConfig(ruleKeys.remove(prefix));
+            plugin.saveConfig();
+        }
+        return removed;
+    }
+
+    void putHostRule(String host, ListType type, RuleAction action) {
+        HostRule known = hostRules.get(host);
+        if (known == null) completions.add(host);
+        hostRules.put(host, new HostRule(host, type, action, known != null ? known.addresses() : List.of()));
+        installHostEntries();
+        removeFromConfig(hostKeys.remove(host));
+
+        String ruleKey = newKey();
+        hostKeys.put(host, ruleKey);
+        plugin.config.set("firewall.rules." + ruleKey + ".host", host);
+        plugin.config.set("firewall.rules." + ruleKey + ".type", type.configName());
+        plugin.config.set("firewall.rules." + ruleKey + ".action", action.configName());
+        plugin.saveConfig();
+
+        refresh(host);
+    }
+
+    boolean deleteHostRule(String host) {
+        if (hostRules.remove(host) == null) return false;
+        completions.remove(host);
+
+        cancelRefresh(host);
+        failingHosts.remove(host);
+        installHostEntries();
+        removeFromConfig(hostKeys.remove(host));
+        plugin.saveConfig();
+        return true;
+    }
+
+    // Разрешение в фоне; новые адреса ставятся в matcher в основном потоке, следующий запрос — по TTL
+    private void refresh(String host) {
+        plugin.getResolver().resolve(host).whenComplete((resolution, error) ->
+                plugin.getServer().getScheduler().runTask(plugin, plugin.getWatchdog().wrap("task:dns-apply",
+                        () -> applyResolution(host, resolution, error))));
+    }
+
+    private void applyResolution(String host, DnsResolver.Resolution resolution, Throwable error) {
+        HostRule rule = hostRules.get(host);
+        if (rule == null || !plugin.isEnabled()) return;
+
+        long delay;
+        if (error != null) {
+            // Старые адреса остаются, пока DNS не ответит; предупреждение — один раз за серию сбоев
+            if (failingHosts.add(host)) {
+                plugin.getLogger().warning(plugin.getTranslation("firewall.error.host_resolve_failed", host, error.getMessage()));
+            }
+            delay = plugin.getResolver().getMinTtl();
+        } else {
+            if (failingHosts.remove(host)) {
+                plugin.getLogger().info(plugin.getTranslation("firewall.host_resolve_recovered", host));
+            }
+            if (!new HashSet<>(resolution.addresses()).equals(new HashSet<>(rule.addresses()))) {
+                hostRules.put(host, rule.withAddresses(resolution.addresses()));
+                installHostEntries();
+                plugin.getLogger().info(plugin.getTranslation("firewall.host_resolved", host, resolution.addresses()));
+            }
+            delay = resolution.ttlSeconds();
+        }
+
+        cancelRefresh(host);
+        hostRefreshes.put(host, plugin.getServer().getScheduler().runTaskLater(plugin,
+                plugin.getWatchdog().wrap("task:dns-refresh", () -> refresh(host)), delay * 20L));
+    }
+
+    private void cancelRefresh(String host) {
+        BukkitTask task = hostRefreshes.remove(host);
+        if (task != null) task.cancel();
+    }
+
+    // Явное правило на тот же адрес важнее правила по хосту; записи, ушедшие из DNS, снимаются
+    private void installHostEntries() {
+        Map<IpPrefix, FirewallRule> wanted = new HashMap<>();
+        for (HostRule rule : hostRules.values()) {
+            for (IpAddress address : rule.addresses()) {
+                IpPrefix prefix = new IpPrefix(address, 128);
+                FirewallRule entry = new FirewallRule(prefix, rule.type(), rule.action());
+                if (entry.isEffective() && !hasExplicitRule(prefix)) {
+                    wanted.putIfAbsent(prefix, entry);
+                }
+            }
+        }
+
+        Map<IpPrefix, FirewallRule> installed = hostEntries;
+        matcher.batch(() -> {
+            for (IpPrefix prefix : installed.keySet()) {
+                if (!wanted.containsKey(prefix) && !hasExplicitRule(prefix)) {
+                    matcher.remove(prefix);
+                }
+            }
+            wanted.forEach(matcher::put);
+        });
+        hostEntries = wanted;
+    }
+
+    // Правила сравниваются только по префиксу
+    private boolean hasExplicitRule(IpPrefix prefix) {
+        return firewallRules.contains(new FirewallRule(prefix, null, null));
+    }
+
+    private void removeFromConfig(String key) {
+        if (key != null) plugin.config.set("firewall.rules." + key, null);
+    }
+
+    private String newKey() {
+        return RuleIndex.newKey("rule", key -> plugin.config.contains("firewall.rules." + key));
+    }
+
     public void listRules(CommandSender sender) {
-        if (firewallRules.isEmpty()) {
+        if (firewallRules.isEmpty() && hostRules.isEmpty()) {
             sender.sendMessage(plugin.getTranslation("firewall.no_rules"));
             return;
         }
@@ -146,12 +463,20 @@ class FirewallManager implements Listener {
         sender.sendMessage(plugin.getTranslation("firewall.rules_header"));
         for (FirewallRule rule : firewallRules) {
             // Красный цвет для блокирующих правил, зеленый для разрешающих
-            ChatColor color = "block".equalsIgnoreCase(rule.action()) ? ChatColor.RED : ChatColor.GREEN;
-            String actionText = "block".equalsIgnoreCase(rule.action()) ?
+            ChatColor color = rule.action() == RuleAction.BLOCK ? ChatColor.RED : ChatColor.GREEN;
+            String actionText = rule.action() == RuleAction.BLOCK ?
                     plugin.getTranslation("firewall.action_block") : plugin.getTranslation("firewall.action_allow");
 
             sender.sendMessage(color + plugin.getTranslation("firewall.rule_format",
-                    rule.ip(), rule.type(), actionText));
+                    rule.ip(), rule.type().configName(), actionText));
+        }
+        for (HostRule rule : hostRules.values()) {
+            ChatColor color = rule.action() == RuleAction.BLOCK ? ChatColor.RED : ChatColor.GREEN;
+            String actionText = rule.action() == RuleAction.BLOCK ?
+                    plugin.getTranslation("firewall.action_block") : plugin.getTranslation("firewall.action_allow");
+
+            sender.sendMessage(color + plugin.getTranslation("firewall.host_format",
+                    rule.host(), rule.addresses(), rule.type().configName(), actionText));
         }
     }
 
@@ -159,14 +484,64 @@ class FirewallManager implements Listener {
         return enabled;
     }
 
+    // Решение по адресу для других обработчиков (пинг списка серверов); из любого потока
+    Verdict verdict(long high, long low) {
+        return enabled ? evaluate(matcher, whitelistMode, high, low) : Verdict.ALLOWED;
+    }
+
+    boolean isWhitelistMode() {
+        return whitelistMode;
+    }
+
     public int getRuleCount() {
-        return firewallRules.size();
+        return firewallRules.size() + hostRules.size();
+    }
+
+    // До limit адресов и имён хостов правил, начинающихся с prefix
+    List<String> complete(String prefix, int limit) {
+        return completions.complete(prefix, limit);
     }
 
-    private record FirewallRule(String ip, String type, String action) {
+    List<FirewallRule> snapshotRules() {
+        return new ArrayList<>(firewallRules);
+    }
+
+    List<HostRule> snapshotHostRules() {
+        return new ArrayList<>(hostRules.values());
+    }
+
+    PrefixMatcher<FirewallRule> getMatcher() {
+        return matcher;
+    }
+
+    enum Verdict {
+        ALLOWED, BLOCKED, NOT_WHITELISTED
+    }
+
+    record HostRule(String host, ListType type, RuleAction action, List<IpAddress> addresses) {
+
+        HostRule withAddresses(List<IpAddress> resolved) {
+            return new HostRule(host, type, action, resolved);
+        }
+    }
+
+    record FirewallRule(IpPrefix prefix, ListType type, RuleAction action) {
+
+        public String ip() {
+            return prefix.toString();
+        }
+
+        // Действуют только пары blacklist/block и whitelist/allow, остальные сочетания игнорируются
+        boolean isEffective() {
+            return isBlocking() || (type == ListType.WHITELIST && action == RuleAction.ALLOW);
+        }
+
+        boolean isBlocking() {
+            return type == ListType.BLACKLIST && action == RuleAction.BLOCK;
+        }
 
-        public boolean matches(String checkIp) {
-            return ip.equals(checkIp) || ip.equals("*") || checkIp.startsWith(ip.replace(".*", ""));
+        Verdict verdict() {
+            return isBlocking() ? Verdict.BLOCKED : Verdict.ALLOWED;
         }
 
         @Override
@@ -174,12 +549,12 @@ class FirewallManager implements Listener {
             if (this == obj) return true;
             if (obj == null || getClass() != obj.getClass()) return false;
             FirewallRule that = (FirewallRule) obj;
-            return ip.equals(that.ip);
+            return prefix.equals(that.prefix);
         }
 
         @Override
         public int hashCode() {
-            return ip.hashCode();
+            return prefix.hashCode();
         }
     }
 }
@@ -0,0 +1,217 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Один шлюз (IGD) в цепочке проброса. Свои способы проброса (PCP, NAT-PMP) опрашиваются
+// параллельно и упорядочиваются по времени ответа; порт открывается самым быстрым, при ошибке —
+// следующим, закрывается тем, кто его открыл (TCP и UDP одного диапазона могут открыть разные
+// способы, и закрываются они по отдельности). Здоровье — время последней операции и число
+// неудач подряд: после FAILING неудач шлюз опрашивается заново при продлении
+final class Gateway implements PortMapper {
+
+    static final int FAILING = 3;
+
+    private final Main plugin;
+    private final InetAddress address;
+    private final List<PortMapper> backends;
+    private final Map<Owned, PortMapper> owners = new ConcurrentHashMap<>();
+    private final Map<String, Long> latencies = new LinkedHashMap<>();
+
+    private volatile List<PortMapper> ranked = List.of();
+    private volatile boolean probed;
+    private volatile long lastLatency = -1;
+    private volatile int failures;
+
+    Gateway(Main plugin, InetAddress address, List<PortMapper> backends) {
+        this.plugin = plugin;
+        this.address = address;
+        this.backends = List.copyOf(backends);
+    }
+
+    InetAddress address() {
+        return address;
+    }
+
+    List<PortMapper> backends() {
+        return backends;
+    }
+
+    String label() {
+        return address.getHostAddress();
+    }
+
+    @Override
+    public String name() {
+        List<PortMapper> current = ranked;
+        return current.isEmpty() ? "-" : current.get(0).name();
+    }
+
+    boolean isProbed() {
+        return probed;
+    }
+
+    // Хоть один способ ответил на опрос
+    boolean isSupported() {
+        return !ranked.isEmpty();
+    }
+
+    // Опрошен, хоть один способ ответил, и последние операции не падают подряд
+    boolean isHealthy() {
+        return !ranked.isEmpty() && failures < FAILING;
+    }
+
+    @Override
+    public long probe() {
+        List<CompletableFuture<Long>> results = new ArrayList<>();
+        for (PortMapper backend : backends) {
+            results.add(CompletableFuture.supplyAsync(backend::probe));
+        }
+
+        Map<PortMapper, Long> measured = new LinkedHashMap<>();
+        for (int i = 0; i < backends.size(); i++) {
+            measured.put(backends.get(i), results.get(i).join());
+        }
+        synchronized (latencies) {
+            latencies.clear();
+            for (Map.Entry<PortMapper, Long> entry : measured.entrySet()) {
+                latencies.put(entry.getKey().name(), entry.getValue());
+                plugin.getStateJournal().probed(journalName(entry.getKey()), entry.getValue());
+            }
+        }
+        rank(measured);
+        failures = 0;
+        return ranked.isEmpty() ? -1 : measured.get(ranked.get(0));
+    }
+
+    // Свежие результаты опроса из журнала: порядок способов до нового опроса. false, если
+    // в журнале есть не все способы этого шлюза
+    boolean restore(List<StateJournal.Probe> probes, long maxAge) {
+        long now = System.currentTimeMillis();
+        Map<PortMapper, Long> measured = new LinkedHashMap<>();
+        for (PortMapper backend : backends) {
+            for (StateJournal.Probe probe : probes) {
+                if (now - probe.at() <= maxAge && probe.backend().equals(journalName(backend))) {
+                    measured.put(backend, probe.latency());
+                }
+            }
+        }
+        if (probed || measured.size() != backends.size() || backends.isEmpty()) return false;
+
+        synchronized (latencies) {
+            for (Map.Entry<PortMapper, Long> entry : measured.entrySet()) {
+                latencies.put(entry.getKey().name(), entry.getValue());
+            }
+        }
+        rank(measured);
+        return true;
+    }
+
+    private void rank(Map<PortMapper, Long> measured) {
+        List<PortMapper> supported = new ArrayList<>();
+        for (Map.Entry<PortMapper, Long> entry : measured.entrySet()) {
+            if (entry.getValue() >= 0) supported.add(entry.getKey());
+        }
+        supported.sort(Comparator.comparingLong(measured::get));
+        ranked = List.copyOf(supported);
+        probed = true;
+    }
+
+    // Результаты опроса в журнале различаются по шлюзу: "PCP@192.168.1.1"
+    private String journalName(PortMapper backend) {
+        return backend.name() + '@' + label();
+    }
+
+    @Override
+    public InetAddress externalAddress() {
+        for (PortMapper backend : ranked) {
+            InetAddress external = backend.externalAddress();
+            if (external != null) return external;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean openPort(PortRange ports, Protocol protocol, String description) {
+        for (PortMapper backend : ranked) {
+            long started = System.nanoTime();
+            if (backend.openPort(ports, protocol, description)) {
+                lastLatency = System.nanoTime() - started;
+                failures = 0;
+                owners.put(new Owned(ports, protocol), backend);
+                plugin.getLogger().info(plugin.getTranslation("portmapping.port_opened", ports, backend.name(), label()));
+                return true;
+            }
+            plugin.getLogger().warning(plugin.getTranslation("portmapping.fallback", backend.name(), label(), ports));
+        }
+        failures++;
+        return false;
+    }
+
+    // Диапазон, который этот шлюз не пробрасывал, закрывать нечего
+    @Override
+    public boolean closePort(PortRange ports, Protocol protocol) {
+        PortMapper owner = owners.remove(new Owned(ports, protocol));
+        return owner == null || owner.closePort(ports, protocol);
+    }
+
+    // Проброс из журнала принят способом backend этого шлюза для диапазона ports
+    void adopted(PortRange ports, PortMapper backend, StateJournal.Mapping mapping) {
+        backend.adopt(mapping);
+        owners.put(new Owned(ports, mapping.protocol()), backend);
+    }
+
+    // Способ этого шлюза, сделавший проброс прошлого запуска, иначе null
+    PortMapper ownerOf(StateJournal.Mapping mapping) {
+        for (PortMapper backend : backends) {
+            if (backend.owns(mapping)) return backend;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean owns(StateJournal.Mapping mapping) {
+        return ownerOf(mapping) != null;
+    }
+
+    @Override
+    public void renew() {
+        if (!isHealthy()) probe();
+        for (PortMapper backend : ranked) {
+            backend.renew();
+        }
+    }
+
+    // "192.168.1.1 (NAT-PMP 1.20 ms, PCP -; last 3.10 ms)" для статуса и лога
+    String describe() {
+        StringBuilder builder = new StringBuilder(label()).append(" (");
+        if (!probed) {
+            builder.append(plugin.getTranslation("portmapping.not_probed"));
+        } else {
+            List<Map.Entry<String, Long>> entries;
+            synchronized (latencies) {
+                entries = new ArrayList<>(latencies.entrySet());
+            }
+            entries.sort(Comparator.comparingLong(entry -> entry.getValue() < 0 ? Long.MAX_VALUE : entry.getValue()));
+            for (int i = 0; i < entries.size(); i++) {
+                if (i > 0) builder.append(", ");
+                Map.Entry<String, Long> entry = entries.get(i);
+                builder.append(entry.getKey()).append(' ');
+                builder.append(entry.getValue() < 0 ? plugin.getTranslation("portmapping.unsupported")
+                        : String.format("%.2f ms", entry.getValue() / 1_000_000.0));
+            }
+        }
+        if (lastLatency >= 0) builder.append("; ").append(plugin.getTranslation("portmapping.last", lastLatency / 1_000_000.0));
+        if (failures > 0) builder.append("; ").append(plugin.getTranslation("portmapping.failures", failures));
+        return builder.append(')').toString();
+    }
+
+    private record Owned(PortRange ports, Protocol protocol) {
+    }
+}
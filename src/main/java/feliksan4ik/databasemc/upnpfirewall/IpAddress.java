@@ -0,0 +1,166 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+// 128-битный адрес в двух long. IPv4 хранится как IPv4-mapped (::ffff:a.b.c.d),
+// поэтому правила для обоих семейств живут в одних структурах.
+record IpAddress(long high, long low) {
+
+    static final long V4_MAPPED_PREFIX = 0x0000FFFF00000000L;
+
+    static IpAddress ofIPv4(int address) {
+        return new IpAddress(0, V4_MAPPED_PREFIX | (address & 0xFFFFFFFFL));
+    }
+
+    static IpAddress of(InetAddress address) {
+        return ofBytes(address.getAddress());
+    }
+
+    // Старшая и младшая половины адреса без объекта IpAddress. Используются на пути решения
+    // при входе игрока. IPv4 читается без копии: hashCode() у Inet4Address — сам адрес
+    // (так с первых версий JDK, проверяется в IpAddressTest). Для IPv6 такого способа нет:
+    // getAddress() отдаёт копию в 16 байт на каждую половину, других объектов здесь нет
+    static long highOf(InetAddress address) {
+        if (address instanceof Inet4Address) return 0;
+        return half(address.getAddress(), 0);
+    }
+
+    static long lowOf(InetAddress address) {
+        if (address instanceof Inet4Address) {
+            return V4_MAPPED_PREFIX | (address.hashCode() & 0xFFFFFFFFL);
+        }
+        return half(address.getAddress(), 8);
+    }
+
+    private static long half(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    static IpAddress ofBytes(byte[] bytes) {
+        if (bytes.length == 4) {
+            return ofIPv4(((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF));
+        }
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (bytes[i] & 0xFF);
+            low = (low << 8) | (bytes[i + 8] & 0xFF);
+        }
+        return new IpAddress(high, low);
+    }
+
+    // Только литералы адресов, без обращения к DNS. null, если строка не адрес
+    static IpAddress parse(String text) {
+        if (text == null || text.isEmpty()) return null;
+
+        if (text.indexOf(':') < 0) {
+            int address = parseIPv4(text);
+            return address == -1 && !"255.255.255.255".equals(text) ? null : ofIPv4(address);
+        }
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.digit(c, 16) < 0 && c != ':' && c != '.') return null;
+        }
+        try {
+            // Для строки из hex-цифр, ':' и '.' getByName разбирает литерал и не делает DNS-запрос
+            return of(InetAddress.getByName(text));
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    // -1 при ошибке (неоднозначно только для 255.255.255.255, это проверяет вызывающий)
+    static int parseIPv4(String text) {
+        String[] parts = text.split("\\.", -1);
+        if (parts.length != 4) return -1;
+
+        int address = 0;
+        for (String part : parts) {
+            if (part.isEmpty() || part.length() > 3) return -1;
+            int value = 0;
+            for (int i = 0; i < part.length(); i++) {
+                char c = part.charAt(i);
+                if (c < '0' || c > '9') return -1;
+                value = value * 10 + (c - '0');
+            }
+            if (value > 255) return -1;
+            address = (address << 8) | value;
+        }
+        return address;
+    }
+
+    boolean isIPv4() {
+        return high == 0 && (low & 0xFFFFFFFF00000000L) == V4_MAPPED_PREFIX;
+    }
+
+    int toIPv4() {
+        return (int) low;
+    }
+
+    // Обнуляет всё после первых length бит (длина в 128-битном пространстве)
+    IpAddress mask(int length) {
+        return new IpAddress(high & highMask(length), low & lowMask(length));
+    }
+
+    static long highMask(int length) {
+        if (length <= 0) return 0;
+        return length >= 64 ? -1L : -1L << (64 - length);
+    }
+
+    static long lowMask(int length) {
+        if (length <= 64) return 0;
+        return length >= 128 ? -1L : -1L << (128 - length);
+    }
+
+    @Override
+    public String toString() {
+        if (isIPv4()) {
+            int address = toIPv4();
+            return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "." +
+                    ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+        }
+
+        int[] groups = new int[8];
+        for (int i = 0; i < 4; i++) {
+            groups[i] = (int) (high >>> (48 - 16 * i)) & 0xFFFF;
+            groups[i + 4] = (int) (low >>> (48 - 16 * i)) & 0xFFFF;
+        }
+
+        // RFC 5952: самая длинная серия нулевых групп (от двух) сжимается в "::"
+        int bestStart = -1;
+        int bestLength = 1;
+        for (int i = 0; i < 8; ) {
+            if (groups[i] != 0) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < 8 && groups[i] == 0) i++;
+            if (i - start > bestLength) {
+                bestStart = start;
+                bestLength = i - start;
+            }
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            if (i == bestStart) {
+                builder.append("::");
+                i += bestLength - 1;
+                continue;
+            }
+            if (builder.length() > 0 && builder.charAt(builder.length() - 1) != ':') {
+                builder.append(':');
+            }
+            builder.append(Integer.toHexString(groups[i]));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+// Сеть: адрес и длина префикса в 128-битном пространстве (для IPv4 это 96 + длина маски)
+record IpPrefix(IpAddress network, int length) {
+
+    static final IpPrefix ANY = new IpPrefix(new IpAddress(0, 0), 0);
+
+    static IpPrefix of(IpAddress address, int length) {
+        return new IpPrefix(address.mask(length), length);
+    }
+
+    // Поддерживает "*", точный адрес, CIDR ("10.0.0.0/8", "2001:db8::/48")
+    // и старый формат со звёздочкой ("10.0.0.*", "192.168."). null, если строка не разбирается
+    static IpPrefix parse(String text) {
+        if (text == null) return null;
+        text = text.trim();
+        if (text.equals("*")) return ANY;
+
+        int slash = text.indexOf('/');
+        if (slash >= 0) {
+            IpAddress address = IpAddress.parse(text.substring(0, slash));
+            if (address == null) return null;
+            int length;
+            try {
+                length = Integer.parseInt(text.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            boolean v4 = text.indexOf(':') < 0;
+            if (length < 0 || length > (v4 ? 32 : 128)) return null;
+            return of(address, v4 ? 96 + length : length);
+        }
+
+        if (text.indexOf(':') >= 0) {
+            IpAddress address = IpAddress.parse(text);
+            return address == null ? null : new IpPrefix(address, 128);
+        }
+
+        String trimmed = text.replace(".*", "");
+        while (trimmed.endsWith(".")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        if (trimmed.isEmpty()) return null;
+
+        String[] parts = trimmed.split("\\.");
+        if (parts.length > 4) return null;
+
+        StringBuilder padded = new StringBuilder(trimmed);
+        for (int i = parts.length; i < 4; i++) {
+            padded.append(".0");
+        }
+        IpAddress address = IpAddress.parse(padded.toString());
+        return address == null ? null : of(address, 96 + 8 * parts.length);
+    }
+
+    boolean contains(IpAddress address) {
+        return (address.high() & IpAddress.highMask(length)) == network.high()
+                && (address.low() & IpAddress.lowMask(length)) == network.low();
+    }
+
+    boolean contains(IpPrefix other) {
+        return other.length >= length && contains(other.network);
+    }
+
+    boolean isIPv4() {
+        return length >= 96 && network.isIPv4();
+    }
+
+    @Override
+    public String toString() {
+        if (length == 0) return "*";
+        if (isIPv4()) {
+            return length == 128 ? network.toString() : network + "/" + (length - 96);
+        }
+        return length == 128 ? network.toString() : network + "/" + length;
+    }
+}
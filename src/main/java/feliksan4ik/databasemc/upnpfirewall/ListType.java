@@ -0,0 +1,20 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.util.Locale;
+
+// Тип списка правила файрвола. В конфиге хранится строчными буквами
+enum ListType {
+    WHITELIST, BLACKLIST;
+
+    // null, если строка не тип списка
+    static ListType parse(String value) {
+        for (ListType type : values()) {
+            if (type.name().equalsIgnoreCase(value)) return type;
+        }
+        return null;
+    }
+
+    String configName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -10,38 +10,124 @@ import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitRunnable;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
 
 public final class Main extends JavaPlugin implements Listener {
 
+    private static final Set<String> COMMANDS = Set.of("status", "addrule", "removerule", "listrules", "openport",
+            "closeport", "listports", "openportip", "closeportip", "blockportip", "unblockportip", "listportsip",
+            "clearportsip", "replay", "optimize", "top", "reload", "setlang");
+    // Только чтение состояния: их можно выполнить вне основного потока
+    private static final Set<String> LISTING_COMMANDS = Set.of("status", "listrules", "listports", "listportsip", "help");
+    private static final int OPTIMIZE_SHOWN = 20;
+
     private FirewallManager firewallManager;
     private PortManager portManager;
     private PortIPManager portIPManager;
+    private ClusterManager clusterManager;
+    private PortMappingManager portMapping;
+    private NftablesBackend nftables;
+    private DnsResolver resolver;
+    private TickWatchdog watchdog;
+    private StateJournal stateJournal;
+    private AdminApi adminApi;
+    private AttackGuard attackGuard;
+    private TopTalkers topTalkers;
+    private PingGuard pingGuard;
+    private ConnectionMonitor connectionMonitor;
+    private CommandCompleter completer;
+    private boolean saveScheduled;
     public FileConfiguration config;
     private FileConfiguration langConfig;
     private String currentLanguage;
+    private StartupTimings startupTimings;
 
     @Override
     public void onEnable() {
+        startupTimings = new StartupTimings();
+        long enableStarted = System.nanoTime();
+
         saveDefaultConfig();
         config = getConfig();
+        startupTimings.phase("config");
 
         setupLanguageFiles();
-
+        startupTimings.phase("language");
+
+        watchdog = new TickWatchdog(this);
+        watchdog.start();
+
+        resolver = new DnsResolver(this);
+        stateJournal = new StateJournal(this);
+        stateJournal.load();
+        portMapping = PortMappingManager.create(this);
+        attackGuard = new AttackGuard(this);
+        attackGuard.load();
+        topTalkers = new TopTalkers(this);
         firewallManager = new FirewallManager(this);
+        pingGuard = new PingGuard(this, firewallManager);
         portManager = new PortManager(this);
         portIPManager = new PortIPManager(this);
-
-        firewallManager.loadFirewallRules();
-        portManager.loadPortSettings();
-        portIPManager.loadPortIPRules();
+        clusterManager = new ClusterManager(this, firewallManager, portIPManager);
+        completer = new CommandCompleter(firewallManager, portManager, portIPManager);
+
+        // Три набора правил разбираются параллельно, затем устанавливаются в основном потоке
+        CompletableFuture<Map<String, FirewallManager.FirewallRule>> firewallRules =
+                CompletableFuture.supplyAsync(() -> FirewallManager.readRuleEntries(config));
+        CompletableFuture<Map<Integer, PortInfo>> portSettings =
+                CompletableFuture.supplyAsync(portManager::readPortSettings);
+        CompletableFuture<PrefixMatcher<PortRuleSet>> portIPRules =
+                CompletableFuture.supplyAsync(portIPManager::readPortIPRules);
+
+        firewallManager.loadFirewallRules(firewallRules.join());
+        portManager.loadPortSettings(portSettings.join());
+        portIPManager.loadPortIPRules(portIPRules.join());
+        startupTimings.phase("rules");
+
+        // Пробрасываемые диапазоны: пробросы прошлого запуска сверяются с ними до опроса шлюза
+        List<PortInfo> wanted = new ArrayList<>(portManager.getPorts());
+        for (PortIPManager.PortIPRule rule : portIPManager.snapshotRules()) {
+            if (rule.action() == RuleAction.OPEN) {
+                wanted.add(new PortInfo(rule.ports(), rule.protocol(), rule.description(), rule.ruleName()));
+            }
+        }
+        portMapping.restore(wanted);
+        startupTimings.phase("runtime state");
 
         getServer().getPluginManager().registerEvents(firewallManager, this);
         getServer().getPluginManager().registerEvents(portIPManager, this);
+        getServer().getPluginManager().registerEvents(attackGuard, this);
+        getServer().getPluginManager().registerEvents(pingGuard, this);
+        attackGuard.start();
+        startupTimings.phase("listeners");
+
+        clusterManager.start();
+        startupTimings.phase("cluster");
+
+        nftables = new NftablesBackend(this, firewallManager, portIPManager);
+        nftables.start();
+
+        connectionMonitor = new ConnectionMonitor(this, portIPManager, nftables);
+        connectionMonitor.start();
+
+        adminApi = new AdminApi(this, firewallManager, portManager, portIPManager);
+        adminApi.start();
 
         if (config.getBoolean("auto-port-management.enabled", true)) {
             startAutoPortManagement();
         }
 
+        startupTimings.record("enable-total", System.nanoTime() - enableStarted);
+
         getLogger().info(getTranslation("plugin.enabled"));
         getLogger().info(getTranslation("auto.management.status") +
                 (config.getBoolean("auto-port-management.enabled") ?
@@ -49,13 +135,23 @@ public final class Main extends JavaPlugin implements Listener {
     }
 
     @Override
+    // Вызывается и после исключения в onEnable: поля, до которых запуск не дошёл, остаются null,
+    // а запись о штатной остановке в журнал всё равно должна попасть
     public void onDisable() {
-        if (config.getBoolean("close-ports-on-disable", true)) {
-            portManager.closeAllPorts();
-            portIPManager.closeAllIPPorts();
+        if (adminApi != null) adminApi.stop();
+        if (clusterManager != null) clusterManager.stop();
+        if (nftables != null) nftables.stop();
+        if (connectionMonitor != null) connectionMonitor.stop();
+
+        if (config != null && config.getBoolean("close-ports-on-disable", true)) {
+            if (portManager != null) portManager.closeAllPorts();
+            if (portIPManager != null) portIPManager.closeAllIPPorts();
         }
+        if (stateJournal != null) stateJournal.close();
+        if (attackGuard != null) attackGuard.stop();
+        flushConfig();
 
-        getLogger().info(getTranslation("plugin.disabled"));
+        if (langConfig != null) getLogger().info(getTranslation("plugin.disabled"));
     }
 
     private void setupLanguageFiles() {
@@ -82,6 +178,88 @@ public final class Main extends JavaPlugin implements Listener {
         }
     }
 
+    ClusterManager getClusterManager() {
+        return clusterManager;
+    }
+
+    PortMappingManager getPortMapping() {
+        return portMapping;
+    }
+
+    DnsResolver getResolver() {
+        return resolver;
+    }
+
+    StateJournal getStateJournal() {
+        return stateJournal;
+    }
+
+    AttackGuard getAttackGuard() {
+        return attackGuard;
+    }
+
+    TopTalkers getTopTalkers() {
+        return topTalkers;
+    }
+
+    TickWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    // Блокирующая часть команды (шлюз, проверка портов) в фоне, её результат — в основном потоке.
+    // Если фоновая часть упала, done всё равно получает failed: иначе диапазон остаётся занятым,
+    // а отправитель не получает ответа
+    <T> void offThread(String task, Supplier<T> work, T failed, Consumer<T> done) {
+        getServer().getScheduler().runTaskAsynchronously(this, () -> {
+            T result;
+            try {
+                result = work.get();
+            } catch (RuntimeException e) {
+                getLogger().log(Level.WARNING, getTranslation("watchdog.task_failed", task), e);
+                result = failed;
+            }
+            T outcome = result;
+            if (isEnabled()) {
+                getServer().getScheduler().runTask(this, getWatchdog().wrap(task, () -> done.accept(outcome)));
+            }
+        });
+    }
+
+    // Запись конфига на диск синхронная, поэтому тоже учитывается в бюджете тика. Сохранения
+    // из основного потока откладываются до следующего тика и выполняются одной записью:
+    // пакет команд (скрипт добавляет сотни правил) не переписывает файл после каждого правила
+    @Override
+    public void saveConfig() {
+        if (watchdog == null || !isEnabled() || !getServer().isPrimaryThread()) {
+            writeConfig();
+            return;
+        }
+        if (!saveScheduled) {
+            saveScheduled = true;
+            getServer().getScheduler().runTask(this, this::flushConfig);
+        }
+    }
+
+    // Отложенное сохранение сразу: перед перечитыванием конфига и при выключении
+    private void flushConfig() {
+        if (!saveScheduled) return;
+        saveScheduled = false;
+        writeConfig();
+    }
+
+    private void writeConfig() {
+        if (watchdog == null) {
+            super.saveConfig();
+            return;
+        }
+        long started = watchdog.begin();
+        try {
+            super.saveConfig();
+        } finally {
+            watchdog.end(watchdog.source("saveConfig"), started);
+        }
+    }
+
     public String getTranslation(String path) {
         String translation = langConfig.getString(path);
         if (translation == null) {
@@ -97,13 +275,31 @@ public final class Main extends JavaPlugin implements Listener {
     }
 
     private void startAutoPortManagement() {
+        long interval = Math.max(1, config.getLong("auto-port-management.check-interval", 300)) * 20L;
+        long delay = Math.max(0, config.getLong("auto-port-management.startup-delay", 100));
+
+        // Проброс и проверки портов блокируют поток, поэтому идут в фоне и после запуска сервера
         new BukkitRunnable() {
+            private boolean firstRun = true;
+
             @Override
             public void run() {
+                long started = System.nanoTime();
+                if (firstRun) {
+                    portMapping.probe();
+                    startupTimings.record("port-mapping probe", System.nanoTime() - started);
+                    portMapping.reconcile();
+                } else {
+                    portMapping.renew();
+                }
                 portManager.manageServerPorts();
                 portIPManager.manageIPPorts();
+                if (firstRun) {
+                    startupTimings.record("network (background)", System.nanoTime() - started);
+                    firstRun = false;
+                }
             }
-        }.runTaskTimer(this, 0L, 6000L); // Запуск каждые 5 минут
+        }.runTaskTimerAsynchronously(this, delay, interval);
     }
 
     @Override
@@ -112,9 +308,35 @@ public final class Main extends JavaPlugin implements Listener {
             return false;
         }
 
+        String name = args.length > 0 && COMMANDS.contains(args[0].toLowerCase()) ? args[0].toLowerCase() : "help";
+
+        // При постоянном превышении бюджета тика списки и статус собираются в фоне
+        if (watchdog.isDegraded() && LISTING_COMMANDS.contains(name)) {
+            getServer().getScheduler().runTaskAsynchronously(this, () -> handleCommand(sender, args));
+            return true;
+        }
+
+        long started = watchdog.begin();
+        try {
+            handleCommand(sender, args);
+        } finally {
+            watchdog.end(watchdog.source("command:" + name), started);
+        }
+        return true;
+    }
+
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
+        if (!command.getName().equalsIgnoreCase("firewall")) {
+            return null;
+        }
+        return completer.onTabComplete(sender, command, alias, args);
+    }
+
+    private void handleCommand(CommandSender sender, String[] args) {
         if (args.length == 0) {
             sendHelp(sender);
-            return true;
+            return;
         }
 
         switch (args[0].toLowerCase()) {
@@ -203,13 +425,33 @@ public final class Main extends JavaPlugin implements Listener {
                 portIPManager.clearAllPortsIP(sender);
                 break;
 
+            case "replay":
+                if (args.length >= 2) {
+                    replay(sender, args[1], args.length >= 3 ? args[2] : "logs/latest.log");
+                } else {
+                    sender.sendMessage(getTranslation("commands.usage.replay"));
+                }
+                break;
+
+            case "optimize":
+                optimize(sender, args.length >= 2 && args[1].equalsIgnoreCase("--apply"));
+                break;
+
+            case "top":
+                topTalkers.show(sender, args.length >= 2 ? args[1] : "ip", args.length >= 3 ? args[2] : null);
+                break;
+
             case "reload":
+                flushConfig();
                 reloadConfig();
                 config = getConfig();
                 setupLanguageFiles();
+                attackGuard.loadSettings();
+                pingGuard.loadSettings();
                 firewallManager.loadFirewallRules();
                 portManager.loadPortSettings();
                 portIPManager.loadPortIPRules();
+                clusterManager.publishLocalChanges();
                 sender.sendMessage(getTranslation("config.reloaded"));
                 break;
 
@@ -225,8 +467,6 @@ public final class Main extends JavaPlugin implements Listener {
                 sendHelp(sender);
                 break;
         }
-
-        return true;
     }
 
     private void setLanguage(CommandSender sender, String language) {
@@ -243,6 +483,86 @@ public final class Main extends JavaPlugin implements Listener {
         sender.sendMessage(getTranslation("language.changed", language));
     }
 
+    private void replay(CommandSender sender, String candidateName, String logName) {
+        File candidateFile = new File(getDataFolder(), candidateName);
+        File logFile = new File(logName);
+        if (!candidateFile.exists() || !logFile.exists()) {
+            sender.sendMessage(getTranslation("replay.error.file_not_found",
+                    candidateFile.exists() ? logFile.getPath() : candidateFile.getPath()));
+            return;
+        }
+
+        ReplayTool.RuleSet current = ReplayTool.RuleSet.of(firewallManager.isEnabled(),
+                firewallManager.isWhitelistMode(), firewallManager.snapshotRules());
+        ReplayTool.RuleSet candidate = ReplayTool.RuleSet.from(YamlConfiguration.loadConfiguration(candidateFile));
+
+        sender.sendMessage(getTranslation("replay.started", logFile.getPath()));
+
+        // Чтение лога может занять несколько секунд, поэтому не в основном потоке
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                try {
+                    ReplayTool.Report report = ReplayTool.replay(Path.of(logName), current, candidate);
+                    sender.sendMessage(getTranslation("replay.summary", report.lines(), report.logins(),
+                            report.distinctAddresses(), report.elapsedMillis()));
+                    sender.sendMessage(getTranslation("replay.newly_blocked",
+                            report.newlyBlocked(), report.newlyBlockedLogins()));
+                    sender.sendMessage(getTranslation("replay.newly_allowed",
+                            report.newlyAllowed(), report.newlyAllowedLogins()));
+                    for (ReplayTool.PrefixCount prefix : report.topPrefixes()) {
+                        sender.sendMessage(getTranslation("replay.prefix", prefix.prefix(), prefix.logins()));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    sender.sendMessage(getTranslation("replay.error.failed", e.getMessage()));
+                }
+            }
+        }.runTaskAsynchronously(this);
+    }
+
+    // Анализ в фоне по снимку; применение в основном потоке, только если правила за это время не менялись
+    private void optimize(CommandSender sender, boolean apply) {
+        RuleOptimizer.Input input = RuleOptimizer.snapshot(this, firewallManager, portIPManager);
+        sender.sendMessage(getTranslation("optimize.started", input.firewall().size(), input.portIP().size()));
+
+        getServer().getScheduler().runTaskAsynchronously(this, () -> {
+            RuleOptimizer.Report report = RuleOptimizer.analyze(input);
+            List<RuleOptimizer.Finding> findings = report.findings();
+            for (int i = 0; i < Math.min(OPTIMIZE_SHOWN, findings.size()); i++) {
+                sender.sendMessage(getTranslation(findings.get(i).message(), findings.get(i).args()));
+            }
+            if (findings.size() > OPTIMIZE_SHOWN) {
+                sender.sendMessage(getTranslation("optimize.more", findings.size() - OPTIMIZE_SHOWN));
+            }
+
+            // Считаются записи конфига, включая повторы и вытесненные при загрузке
+            int before = input.firewall().size() + input.portIPKeys().size();
+            int after = before - report.firewallKeys().size() - report.portIPKeys().size()
+                    + report.firewallAdd().size() + report.portIPAdd().size();
+            sender.sendMessage(getTranslation("optimize.summary", before, after,
+                    report.count(RuleOptimizer.Kind.SHADOWED), report.count(RuleOptimizer.Kind.REDUNDANT),
+                    report.count(RuleOptimizer.Kind.DUPLICATE), report.count(RuleOptimizer.Kind.INERT),
+                    report.count(RuleOptimizer.Kind.MERGED), report.count(RuleOptimizer.Kind.CONFLICT)));
+
+            if (!report.hasChanges()) {
+                sender.sendMessage(getTranslation("optimize.nothing"));
+            } else if (!apply) {
+                sender.sendMessage(getTranslation("optimize.hint"));
+            } else {
+                getServer().getScheduler().runTask(this, watchdog.wrap("task:optimize-apply", () -> {
+                    if (firewallManager.getMatcher().version() != report.firewallVersion()
+                            || portIPManager.getRules().version() != report.portIPVersion()) {
+                        sender.sendMessage(getTranslation("optimize.stale"));
+                        return;
+                    }
+                    firewallManager.applyOptimized(report.firewallKeys(), report.firewallRemove(), report.firewallAdd());
+                    portIPManager.applyOptimized(report.portIPKeys(), report.portIPRemove(), report.portIPAdd());
+                    sender.sendMessage(getTranslation("optimize.applied", before - after));
+                }));
+            }
+        });
+    }
+
     private void sendHelp(CommandSender sender) {
         sender.sendMessage(getTranslation("help.header"));
         for (int i = 1; i <= 18; i++) {
@@ -262,7 +582,35 @@ public final class Main extends JavaPlugin implements Listener {
         sender.sendMessage(getTranslation("status.ports_ip_count", portIPManager.getPortIPCount()));
         sender.sendMessage(getTranslation("status.auto_management",
                 config.getBoolean("auto-port-management.enabled") ? getTranslation("enabled") : getTranslation("disabled")));
+        sender.sendMessage(getTranslation("status.port_mapping", portMapping.describe()));
+        sender.sendMessage(getTranslation("status.nftables", nftables.describe()));
+        sender.sendMessage(getTranslation("status.connection_monitor", connectionMonitor.describe()));
+        sender.sendMessage(getTranslation("status.runtime_state", stateJournal.size(), stateJournal.bytes()));
+        sender.sendMessage(getTranslation("status.attack_mode",
+                !attackGuard.isActive() ? getTranslation("status.attack_idle")
+                        : attackGuard.isEnforcing() ? getTranslation("status.attack_active")
+                        : getTranslation("status.attack_observe"),
+                attackGuard.getRate(), attackGuard.getRecentCount(), attackGuard.getKnownCount()));
+        sender.sendMessage(getTranslation("status.ping_protection",
+                pingGuard.isEnabled() ? getTranslation("enabled") : getTranslation("disabled"), pingGuard.getRejected()));
+        if (clusterManager.isRunning()) {
+            sender.sendMessage(getTranslation("status.cluster", clusterManager.getPeerCount(),
+                    Long.toHexString(clusterManager.getDigest())));
+        }
         sender.sendMessage(getTranslation("status.current_language", currentLanguage));
+
+        sender.sendMessage(getTranslation("status.watchdog", watchdog.getBudgetMillis(),
+                watchdog.getOverBudgetTicks(), watchdog.getWindow(),
+                watchdog.isDegraded() ? getTranslation("status.watchdog_degraded") : ""));
+        for (TickWatchdog.Stats stats : watchdog.worst(5)) {
+            sender.sendMessage(getTranslation("status.watchdog_source", stats.source(), stats.p50() / 1_000_000.0,
+                    stats.p99() / 1_000_000.0, stats.max() / 1_000_000.0, stats.calls()));
+        }
+
+        sender.sendMessage(getTranslation("status.startup_header"));
+        for (Map.Entry<String, Long> phase : startupTimings.snapshot().entrySet()) {
+            sender.sendMessage(getTranslation("status.startup_phase", phase.getKey(), phase.getValue() / 1_000_000.0));
+        }
     }
 
-}
\ No newline at end of file
+}
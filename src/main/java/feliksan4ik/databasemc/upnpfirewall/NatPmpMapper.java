@@ -0,0 +1,201 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+// NAT-PMP (RFC 6886): проброс порта одной UDP-датаграммой на порт 5351 шлюза.
+// Диапазон пробрасывается пакетом запросов по одному на порт и протокол
+final class NatPmpMapper implements PortMapper {
+
+    static final int PORT = 5351;
+
+    private static final int OP_EXTERNAL_ADDRESS = 0;
+    private static final int OP_MAP_UDP = 1;
+    private static final int OP_MAP_TCP = 2;
+    private static final int RESPONSE = 128;
+
+    private final Main plugin;
+    private final InetSocketAddress gateway;
+    private final int lifetime;
+    private final int timeoutMillis;
+    private final int attempts;
+
+    // Действующие пробросы: ключ — порт и протокол, значение — момент продления (System.nanoTime),
+    // половина выданного шлюзом срока жизни
+    private final Map<Long, Long> mappings = new ConcurrentHashMap<>();
+    private volatile InetAddress external;
+
+    NatPmpMapper(Main plugin, InetSocketAddress gateway, int lifetime, int timeoutMillis, int attempts) {
+        this.plugin = plugin;
+        this.gateway = gateway;
+        this.lifetime = lifetime;
+        this.timeoutMillis = timeoutMillis;
+        this.attempts = attempts;
+    }
+
+    @Override
+    public String name() {
+        return "NAT-PMP";
+    }
+
+    @Override
+    public long probe() {
+        try {
+            long started = System.nanoTime();
+            byte[] response = PortMapper.exchange(gateway, new byte[]{0, OP_EXTERNAL_ADDRESS}, 1,
+                    RESPONSE + OP_EXTERNAL_ADDRESS, timeoutMillis, attempts);
+            if (response == null || response.length < 12 || response[0] != 0) return -1;
+            if (resultCode(response) != 0) return -1;
+            external = InetAddress.getByAddress(Arrays.copyOfRange(response, 8, 12));
+            return System.nanoTime() - started;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public boolean openPort(PortRange ports, Protocol protocol, String description) {
+        List<Long> keys = new ArrayList<>(ports.size() * 2);
+        for (int port = ports.from(); port <= ports.to(); port++) {
+            if (protocol != Protocol.UDP) keys.add(key(port, Protocol.TCP));
+            if (protocol != Protocol.TCP) keys.add(key(port, Protocol.UDP));
+        }
+        if (mapAll(keys, lifetime)) return true;
+
+        // Часть диапазона могла пробиться: откатываем, чтобы следующий способ получил его целиком
+        closePort(ports, protocol);
+        return false;
+    }
+
+    @Override
+    public boolean closePort(PortRange ports, Protocol protocol) {
+        List<Long> keys = new ArrayList<>();
+        for (Long key : mappings.keySet()) {
+            if (ports.contains((int) (key >>> 8)) && protocol.covers(protocol(key))) keys.add(key);
+        }
+        return keys.isEmpty() || mapAll(keys, 0);
+    }
+
+    @Override
+    public InetAddress externalAddress() {
+        return external;
+    }
+
+    @Override
+    public void renew() {
+        long now = System.nanoTime();
+        List<Long> due = new ArrayList<>();
+        for (Map.Entry<Long, Long> mapping : mappings.entrySet()) {
+            if (now - mapping.getValue() >= 0) due.add(mapping.getKey());
+        }
+        if (!due.isEmpty() && !mapAll(due, lifetime)) {
+            for (Long key : due) {
+                if (mappings.containsKey(key) && now - mappings.get(key) >= 0) {
+                    plugin.getLogger().warning(plugin.getTranslation("portmapping.renew_failed", name(), key >>> 8));
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean owns(StateJournal.Mapping mapping) {
+        return mapping.backend().equals(name()) && mapping.gateway().equals(gateway);
+    }
+
+    @Override
+    public void adopt(StateJournal.Mapping mapping) {
+        long left = mapping.expiresAt() - System.currentTimeMillis();
+        mappings.put(mapping.key(), System.nanoTime() + Math.max(0, left - lifetime * 500L) * 1_000_000L);
+    }
+
+    @Override
+    public boolean release(List<StateJournal.Mapping> leftovers) {
+        List<Long> keys = new ArrayList<>();
+        for (StateJournal.Mapping mapping : leftovers) {
+            keys.add(mapping.key());
+        }
+        return mapAll(keys, 0);
+    }
+
+    // Пакет запросов MAP; lifetime 0 удаляет пробросы. true, если шлюз подтвердил все
+    private boolean mapAll(List<Long> keys, int seconds) {
+        byte[][] requests = new byte[keys.size()][];
+        Map<Long, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < requests.length; i++) {
+            long key = keys.get(i);
+            int port = (int) (key >>> 8);
+            ByteBuffer request = ByteBuffer.allocate(12);
+            request.put((byte) 0).put((byte) opcode(key)).putShort((short) 0)
+                    .putShort((short) port).putShort((short) (seconds == 0 ? 0 : port)).putInt(seconds);
+            requests[i] = request.array();
+            indexes.put(key, i);
+        }
+
+        byte[][] responses;
+        try {
+            responses = PortMapper.exchangeAll(gateway, requests, response -> {
+                if (response.length < 16 || response[0] != 0) return -1;
+                int opcode = (response[1] & 0xFF) - RESPONSE;
+                if (opcode != OP_MAP_UDP && opcode != OP_MAP_TCP) return -1;
+                int port = ByteBuffer.wrap(response).getShort(8) & 0xFFFF;
+                Integer index = indexes.get(key(port, opcode == OP_MAP_UDP ? Protocol.UDP : Protocol.TCP));
+                return index != null ? index : -1;
+            }, timeoutMillis, attempts);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.FINE, "NAT-PMP request failed", e);
+            return false;
+        }
+
+        boolean success = true;
+        long now = System.nanoTime();
+        for (int i = 0; i < responses.length; i++) {
+            byte[] response = responses[i];
+            if (response == null || resultCode(response) != 0) {
+                success = false;
+                continue;
+            }
+
+            long key = keys.get(i);
+            ByteBuffer body = ByteBuffer.wrap(response);
+            if (seconds == 0) {
+                mappings.remove(key);
+                plugin.getStateJournal().unmapped(name(), gateway, (int) (key >>> 8), protocol(key));
+                continue;
+            }
+            long granted = Math.max(1, body.getInt(12) & 0xFFFFFFFFL);
+            mappings.put(key, now + granted * 500_000_000L);
+            int externalPort = body.getShort(10) & 0xFFFF;
+            plugin.getStateJournal().mapped(new StateJournal.Mapping(name(), gateway, (int) (key >>> 8), protocol(key),
+                    externalPort, System.currentTimeMillis() + granted * 1000, new byte[0]));
+            if (externalPort != (int) (key >>> 8)) {
+                plugin.getLogger().warning(plugin.getTranslation("portmapping.external_port", name(), key >>> 8, externalPort));
+            }
+        }
+        return success;
+    }
+
+    private static int opcode(long key) {
+        return protocol(key) == Protocol.UDP ? OP_MAP_UDP : OP_MAP_TCP;
+    }
+
+    private static Protocol protocol(long key) {
+        return Protocol.values()[(int) (key & 0xFF)];
+    }
+
+    private static int resultCode(byte[] response) {
+        return ((response[2] & 0xFF) << 8) | (response[3] & 0xFF);
+    }
+
+    private static long key(int port, Protocol protocol) {
+        return ((long) port << 8) | protocol.ordinal();
+    }
+}
@@ -0,0 +1,423 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+// Исполнение правил в ядре Linux через nftables. Правила фаервола и BLOCK-правила портов по IP
+// сводятся к непересекающимся интервалам адресов (самое узкое правило побеждает так же, как при
+// входе игрока) и попадают в именованные наборы таблицы inet. Первый раз таблица загружается
+// целиком одной атомарной транзакцией "nft -f", дальше применяются только изменённые элементы.
+// В режиме dry-run nft не вызывается: текст набора правил пишется в файлы в папке плагина.
+final class NftablesBackend {
+
+    private static final String[] SETS = {"fw_v4", "fw_v6", "pip_tcp_v4", "pip_udp_v4", "pip_tcp_v6", "pip_udp_v6"};
+
+    private static final IpAddress MIN = new IpAddress(0, 0);
+    private static final IpAddress MAX = new IpAddress(-1L, -1L);
+
+    // Границы области IPv4-mapped (::ffff:0:0/96): интервалы её не пересекают и делятся на семейства
+    private static final IpAddress V4_START = new IpAddress(0, IpAddress.V4_MAPPED_PREFIX);
+    private static final IpAddress V4_END = new IpAddress(0, IpAddress.V4_MAPPED_PREFIX | 0xFFFFFFFFL);
+
+    private final Main plugin;
+    private final FirewallManager firewall;
+    private final PortIPManager portIP;
+    private final boolean enabled;
+    private final boolean dryRun;
+    private final String table;
+    private final String command;
+    private final long interval;
+
+    private BukkitTask task;
+    private State lastState;
+    private volatile Map<String, Set<String>> applied;
+    private volatile boolean failed;
+
+    NftablesBackend(Main plugin, FirewallManager firewall, PortIPManager portIP) {
+        this.plugin = plugin;
+        this.firewall = firewall;
+        this.portIP = portIP;
+        this.dryRun = plugin.config.getBoolean("nftables.dry-run", true);
+        this.table = plugin.config.getString("nftables.table", "upnpfirewall");
+        this.command = plugin.config.getString("nftables.command", "nft");
+        this.interval = Math.max(1, plugin.config.getLong("nftables.sync-interval", 20));
+
+        boolean wanted = plugin.config.getBoolean("nftables.enabled", false);
+        if (wanted && !dryRun && !System.getProperty("os.name", "").toLowerCase().contains("linux")) {
+            plugin.getLogger().warning(plugin.getTranslation("nftables.not_linux"));
+            wanted = false;
+        }
+        this.enabled = wanted;
+    }
+
+    // Изменения правил замечаются по смене снимков PrefixMatcher, поэтому серии изменений
+    // (команды, кластер, reload) сливаются в одну транзакцию за период
+    void start() {
+        if (!enabled) return;
+
+        task = new BukkitRunnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }.runTaskTimerAsynchronously(plugin, 1, interval);
+    }
+
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        if (enabled && !dryRun && applied != null && plugin.config.getBoolean("nftables.remove-on-disable", true)) {
+            run("table inet " + table + " {}\ndelete table inet " + table + "\n");
+            applied = null;
+        }
+    }
+
+    synchronized void sync() {
+        State state = new State(firewall.getMatcher().version(), portIP.getRules().version(),
+                firewall.isEnabled(), firewall.isWhitelistMode());
+        if (state.equals(lastState)) return;
+        lastState = state;
+
+        Map<String, List<String>> sets = compile(firewall.getMatcher(), state.firewallEnabled(),
+                state.whitelistMode(), portIP.getRules());
+        int elements = sets.values().stream().mapToInt(List::size).sum();
+        String full = fullScript(table, plugin.getServer().getPort(), sets);
+
+        if (applied == null) {
+            if (dryRun) {
+                File file = write("nftables.nft", full);
+                plugin.getLogger().info(plugin.getTranslation("nftables.dry_run", file.getPath(), elements));
+            } else if (!run(full)) {
+                // Повтор на следующем тике таймера, не дожидаясь изменения правил
+                retry();
+                return;
+            } else {
+                plugin.getLogger().info(plugin.getTranslation("nftables.loaded", table, elements));
+            }
+        } else {
+            Delta delta = delta(table, applied, sets);
+            if (delta == null) return;
+
+            if (dryRun) {
+                write("nftables.nft", full);
+                write("nftables-delta.nft", delta.script());
+            } else if (!run(delta.script())) {
+                // Таблицу могли изменить снаружи; на следующем тике она загрузится целиком
+                applied = null;
+                retry();
+                return;
+            }
+            plugin.getLogger().info(plugin.getTranslation("nftables.delta", delta.added(), delta.removed()));
+        }
+
+        Map<String, Set<String>> now = new LinkedHashMap<>();
+        sets.forEach((name, values) -> now.put(name, new HashSet<>(values)));
+        applied = now;
+        failed = false;
+    }
+
+    private void retry() {
+        lastState = null;
+        failed = true;
+    }
+
+    // Правила попадают в ядро: модуль включён и не в dry-run
+    boolean isEnforcing() {
+        return enabled && !dryRun;
+    }
+
+    String describe() {
+        if (!enabled) return plugin.getTranslation("disabled");
+        if (failed) return plugin.getTranslation("nftables.state_failed");
+
+        Map<String, Set<String>> current = applied;
+        if (current == null) return plugin.getTranslation("nftables.state_pending");
+
+        int elements = current.values().stream().mapToInt(Set::size).sum();
+        return dryRun ? plugin.getTranslation("nftables.state_dry_run", elements)
+                : plugin.getTranslation("nftables.state_applied", elements, table);
+    }
+
+    // Ошибка пишется в лог один раз за серию неудачных попыток
+    private boolean run(String script) {
+        try {
+            Process process = new ProcessBuilder(command, "-f", "-").redirectErrorStream(true).start();
+            try (OutputStream input = process.getOutputStream()) {
+                input.write(script.getBytes(StandardCharsets.UTF_8));
+            }
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                if (!failed) plugin.getLogger().warning(plugin.getTranslation("nftables.apply_failed", exitCode, output));
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            if (!failed) plugin.getLogger().warning(plugin.getTranslation("nftables.run_failed", command, e.getMessage()));
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private File write(String name, String text) {
+        File file = new File(plugin.getDataFolder(), name);
+        try {
+            Files.writeString(file.toPath(), text);
+        } catch (IOException e) {
+            plugin.getLogger().warning(plugin.getTranslation("nftables.run_failed", file.getPath(), e.getMessage()));
+        }
+        return file;
+    }
+
+    // Содержимое всех наборов: имя набора -> элементы в синтаксисе nft
+    static Map<String, List<String>> compile(PrefixMatcher<FirewallManager.FirewallRule> firewallRules,
+                                             boolean firewallEnabled, boolean whitelistMode,
+                                             PrefixMatcher<PortRuleSet> portRules) {
+        Map<String, List<String>> sets = new LinkedHashMap<>();
+        for (String name : SETS) {
+            sets.put(name, new ArrayList<>());
+        }
+
+        // Правила фаервола действуют только на порт сервера, поэтому и whitelist-режим
+        // не отрезает от машины остальные сервисы
+        if (firewallEnabled) {
+            List<IpPrefix> prefixes = new ArrayList<>();
+            firewallRules.forEach((prefix, rule) -> prefixes.add(prefix));
+            for (Run<Boolean> run : runs(segments(prefixes), segment ->
+                    FirewallManager.evaluate(firewallRules, whitelistMode, segment.start())
+                            != FirewallManager.Verdict.ALLOWED ? Boolean.TRUE : null)) {
+                sets.get(run.segment().v4() ? "fw_v4" : "fw_v6").add(run.segment().format());
+            }
+        }
+
+        List<IpPrefix> prefixes = new ArrayList<>();
+        portRules.forEach((prefix, rules) -> prefixes.add(prefix));
+        List<Segment> segments = segments(prefixes);
+        for (Protocol protocol : new Protocol[]{Protocol.TCP, Protocol.UDP}) {
+            String name = "pip_" + protocol.name().toLowerCase();
+            for (Run<List<PortRange>> run : runs(segments, segment -> {
+                List<PortRuleSet> matched = portRules.matches(segment.start());
+                List<PortRange> blocked = matched.isEmpty() ? List.of() : blockedPorts(matched, protocol);
+                return blocked.isEmpty() ? null : blocked;
+            })) {
+                String address = run.segment().format();
+                for (PortRange ports : run.key()) {
+                    sets.get(name + (run.segment().v4() ? "_v4" : "_v6")).add(address + " . " + ports);
+                }
+            }
+        }
+
+        return sets;
+    }
+
+    // Полная загрузка: пустая таблица и её удаление в начале делают скрипт повторяемым,
+    // а весь файл nft применяет как одну транзакцию
+    static String fullScript(String table, int serverPort, Map<String, List<String>> sets) {
+        StringBuilder script = new StringBuilder();
+        script.append("table inet ").append(table).append(" {}\n");
+        script.append("delete table inet ").append(table).append('\n');
+        script.append("table inet ").append(table).append(" {\n");
+
+        for (Map.Entry<String, List<String>> set : sets.entrySet()) {
+            String name = set.getKey();
+            String address = name.endsWith("_v4") ? "ipv4_addr" : "ipv6_addr";
+            script.append("    set ").append(name).append(" {\n");
+            script.append("        type ").append(address).append(name.startsWith("pip_") ? " . inet_service\n" : "\n");
+            script.append("        flags interval\n");
+            if (!set.getValue().isEmpty()) {
+                script.append("        elements = {\n            ")
+                        .append(String.join(",\n            ", set.getValue()))
+                        .append("\n        }\n");
+            }
+            script.append("    }\n");
+        }
+
+        script.append("    chain input {\n");
+        script.append("        type filter hook input priority -10; policy accept;\n");
+        script.append("        tcp dport ").append(serverPort).append(" ip saddr @fw_v4 drop\n");
+        script.append("        tcp dport ").append(serverPort).append(" ip6 saddr @fw_v6 drop\n");
+        script.append("        ip saddr . tcp dport @pip_tcp_v4 drop\n");
+        script.append("        ip saddr . udp dport @pip_udp_v4 drop\n");
+        script.append("        ip6 saddr . tcp dport @pip_tcp_v6 drop\n");
+        script.append("        ip6 saddr . udp dport @pip_udp_v6 drop\n");
+        script.append("    }\n");
+        script.append("}\n");
+        return script.toString();
+    }
+
+    // Удаления идут раньше добавлений: новый интервал может занять место удалённого
+    static Delta delta(String table, Map<String, Set<String>> applied, Map<String, List<String>> sets) {
+        StringBuilder removals = new StringBuilder();
+        StringBuilder additions = new StringBuilder();
+        int added = 0;
+        int removed = 0;
+
+        for (Map.Entry<String, List<String>> set : sets.entrySet()) {
+            Set<String> before = applied.getOrDefault(set.getKey(), Set.of());
+            Set<String> after = new HashSet<>(set.getValue());
+
+            List<String> gone = new ArrayList<>();
+            for (String element : before) {
+                if (!after.contains(element)) gone.add(element);
+            }
+            List<String> fresh = new ArrayList<>();
+            for (String element : set.getValue()) {
+                if (!before.contains(element)) fresh.add(element);
+            }
+
+            if (!gone.isEmpty()) {
+                removals.append("delete element inet ").append(table).append(' ').append(set.getKey())
+                        .append(" { ").append(String.join(", ", gone)).append(" }\n");
+                removed += gone.size();
+            }
+            if (!fresh.isEmpty()) {
+                additions.append("add element inet ").append(table).append(' ').append(set.getKey())
+                        .append(" { ").append(String.join(", ", fresh)).append(" }\n");
+                added += fresh.size();
+            }
+        }
+
+        if (added == 0 && removed == 0) return null;
+        return new Delta(removals.append(additions).toString(), added, removed);
+    }
+
+    // Порты, закрытые для адресов сегмента: у каждого порта решает самый узкий префикс с правилом
+    private static List<PortRange> blockedPorts(List<PortRuleSet> matched, Protocol protocol) {
+        TreeSet<Integer> points = new TreeSet<>();
+        points.add(1);
+        for (PortRuleSet rules : matched) {
+            for (PortIPManager.PortIPRule rule : rules.rules()) {
+                points.add(rule.ports().from());
+                if (rule.ports().to() < 65535) points.add(rule.ports().to() + 1);
+            }
+        }
+
+        List<PortRange> blocked = new ArrayList<>();
+        Integer[] starts = points.toArray(new Integer[0]);
+        for (int i = 0; i < starts.length; i++) {
+            int from = starts[i];
+            int to = i + 1 < starts.length ? starts[i + 1] - 1 : 65535;
+
+            RuleAction action = null;
+            for (PortRuleSet rules : matched) {
+                action = rules.verdict(from, protocol);
+                if (action != null) break;
+            }
+            if (action != RuleAction.BLOCK) continue;
+
+            int last = blocked.size() - 1;
+            if (last >= 0 && blocked.get(last).to() + 1 == from) {
+                blocked.set(last, new PortRange(blocked.get(last).from(), to));
+            } else {
+                blocked.add(new PortRange(from, to));
+            }
+        }
+        return blocked;
+    }
+
+    // Элементарные интервалы адресного пространства: внутри каждого решение не меняется
+    private static List<Segment> segments(Collection<IpPrefix> prefixes) {
+        TreeSet<IpAddress> points = new TreeSet<>(NftablesBackend::compare);
+        points.add(MIN);
+        points.add(V4_START);
+        points.add(next(V4_END));
+        for (IpPrefix prefix : prefixes) {
+            IpAddress last = last(prefix);
+            points.add(prefix.network());
+            if (!last.equals(MAX)) points.add(next(last));
+        }
+
+        List<Segment> segments = new ArrayList<>(points.size());
+        IpAddress start = null;
+        for (IpAddress point : points) {
+            if (start != null) segments.add(segment(start, previous(point)));
+            start = point;
+        }
+        segments.add(segment(start, MAX));
+        return segments;
+    }
+
+    // Соседние сегменты одного семейства с одинаковым ключом сливаются; null — сегмент не нужен
+    private static <K> List<Run<K>> runs(List<Segment> segments, Function<Segment, K> keyOf) {
+        List<Run<K>> runs = new ArrayList<>();
+        Run<K> current = null;
+        for (Segment segment : segments) {
+            K key = keyOf.apply(segment);
+            if (current != null && key != null && current.segment().v4() == segment.v4()
+                    && Objects.equals(current.key(), key)) {
+                current = new Run<>(new Segment(current.segment().start(), segment.end(), segment.v4()), key);
+                continue;
+            }
+            if (current != null) runs.add(current);
+            current = key != null ? new Run<>(segment, key) : null;
+        }
+        if (current != null) runs.add(current);
+        return runs;
+    }
+
+    private static Segment segment(IpAddress start, IpAddress end) {
+        return new Segment(start, end, compare(start, V4_START) >= 0 && compare(start, V4_END) <= 0);
+    }
+
+    private static IpAddress last(IpPrefix prefix) {
+        return new IpAddress(prefix.network().high() | ~IpAddress.highMask(prefix.length()),
+                prefix.network().low() | ~IpAddress.lowMask(prefix.length()));
+    }
+
+    private static IpAddress next(IpAddress address) {
+        return address.low() == -1L ? new IpAddress(address.high() + 1, 0) : new IpAddress(address.high(), address.low() + 1);
+    }
+
+    private static IpAddress previous(IpAddress address) {
+        return address.low() == 0 ? new IpAddress(address.high() - 1, -1L) : new IpAddress(address.high(), address.low() - 1);
+    }
+
+    private static int compare(IpAddress a, IpAddress b) {
+        int high = Long.compareUnsigned(a.high(), b.high());
+        return high != 0 ? high : Long.compareUnsigned(a.low(), b.low());
+    }
+
+    private record State(Object firewallVersion, Object portIPVersion, boolean firewallEnabled, boolean whitelistMode) {
+    }
+
+    record Delta(String script, int added, int removed) {
+    }
+
+    private record Run<K>(Segment segment, K key) {
+    }
+
+    private record Segment(IpAddress start, IpAddress end, boolean v4) {
+
+        // CIDR, если интервал совпадает с префиксом, иначе диапазон "начало-конец"
+        String format() {
+            long high = start.high() ^ end.high();
+            long low = start.low() ^ end.low();
+            boolean contiguous = high == 0 ? (low & (low + 1)) == 0 : low == -1L && (high & (high + 1)) == 0;
+            if (contiguous && (start.high() & high) == 0 && (start.low() & low) == 0) {
+                int length = 128 - Long.bitCount(high) - Long.bitCount(low) - (v4 ? 96 : 0);
+                return length == (v4 ? 32 : 128) ? start.toString() : start + "/" + length;
+            }
+            return start + "-" + end;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+// PCP (RFC 6887), преемник NAT-PMP на том же порту 5351. Проброс — опкод MAP,
+// проверка поддержки — ANNOUNCE. Удаление и продление идут с тем же nonce, что и создание.
+// Диапазон пробрасывается пакетом запросов по одному на порт и протокол.
+// За двойным NAT запрос к внешнему шлюзу приходит с внешнего адреса внутреннего (inner):
+// он и указывается адресом клиента, иначе шлюз ответит ADDRESS_MISMATCH
+final class PcpMapper implements PortMapper {
+
+    private static final int VERSION = 2;
+    private static final int OP_ANNOUNCE = 0;
+    private static final int OP_MAP = 1;
+    private static final int RESPONSE = 0x80;
+    private static final int HEADER = 24;
+    private static final int MAP_REQUEST = HEADER + 36;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Main plugin;
+    private final InetSocketAddress gateway;
+    private final int lifetime;
+    private final int timeoutMillis;
+    private final int attempts;
+    private final PortMapper inner;
+
+    private final Map<Long, Mapping> mappings = new ConcurrentHashMap<>();
+    private volatile InetAddress external;
+
+    PcpMapper(Main plugin, InetSocketAddress gateway, int lifetime, int timeoutMillis, int attempts) {
+        this(plugin, gateway, lifetime, timeoutMillis, attempts, null);
+    }
+
+    PcpMapper(Main plugin, InetSocketAddress gateway, int lifetime, int timeoutMillis, int attempts,
+              PortMapper inner) {
+        this.plugin = plugin;
+        this.gateway = gateway;
+        this.lifetime = lifetime;
+        this.timeoutMillis = timeoutMillis;
+        this.attempts = attempts;
+        this.inner = inner;
+    }
+
+    @Override
+    public String name() {
+        return "PCP";
+    }
+
+    @Override
+    public long probe() {
+        try {
+            long started = System.nanoTime();
+            ByteBuffer request = ByteBuffer.allocate(HEADER);
+            header(request, OP_ANNOUNCE, 0, clientAddress());
+            byte[] response = PortMapper.exchange(gateway, request.array(), 1,
+                    RESPONSE | OP_ANNOUNCE, timeoutMillis, attempts);
+            // Шлюз только с NAT-PMP отвечает версией 0 и кодом UNSUPP_VERSION
+            if (response == null || response.length < HEADER || response[0] != VERSION) return -1;
+            return response[3] == 0 ? System.nanoTime() - started : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public boolean openPort(PortRange ports, Protocol protocol, String description) {
+        List<Long> keys = new ArrayList<>(ports.size() * 2);
+        for (int port = ports.from(); port <= ports.to(); port++) {
+            if (protocol != Protocol.UDP) keys.add(key(port, Protocol.TCP));
+            if (protocol != Protocol.TCP) keys.add(key(port, Protocol.UDP));
+        }
+        if (mapAll(keys, lifetime)) return true;
+
+        // Часть диапазона могла пробиться: откатываем, чтобы следующий способ получил его целиком
+        closePort(ports, protocol);
+        return false;
+    }
+
+    @Override
+    public boolean closePort(PortRange ports, Protocol protocol) {
+        List<Long> keys = new ArrayList<>();
+        for (Long key : mappings.keySet()) {
+            if (ports.contains((int) (key >>> 8)) && protocol.covers(protocol(key))) keys.add(key);
+        }
+        return keys.isEmpty() || mapAll(keys, 0);
+    }
+
+    @Override
+    public InetAddress externalAddress() {
+        return external;
+    }
+
+    @Override
+    public void renew() {
+        long now = System.nanoTime();
+        List<Long> due = new ArrayList<>();
+        for (Map.Entry<Long, Mapping> mapping : mappings.entrySet()) {
+            if (now - mapping.getValue().renewAt() >= 0) due.add(mapping.getKey());
+        }
+        if (!due.isEmpty() && !mapAll(due, lifetime)) {
+            for (Long key : due) {
+                Mapping mapping = mappings.get(key);
+                if (mapping != null && now - mapping.renewAt() >= 0) {
+                    plugin.getLogger().warning(plugin.getTranslation("portmapping.renew_failed", name(), key >>> 8));
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean owns(StateJournal.Mapping mapping) {
+        return mapping.backend().equals(name()) && mapping.gateway().equals(gateway) && mapping.nonce().length == 12;
+    }
+
+    @Override
+    public void adopt(StateJournal.Mapping mapping) {
+        long left = mapping.expiresAt() - System.currentTimeMillis();
+        mappings.put(mapping.key(), new Mapping(mapping.nonce(),
+                System.nanoTime() + Math.max(0, left - lifetime * 500L) * 1_000_000L));
+    }
+
+    // Удаление принимается шлюзом только с nonce из запроса, создавшего проброс. При неудаче
+    // убираются только записи, добавленные здесь: живые пробросы этого запуска остаются
+    @Override
+    public boolean release(List<StateJournal.Mapping> leftovers) {
+        List<Long> keys = new ArrayList<>();
+        List<Long> inserted = new ArrayList<>();
+        for (StateJournal.Mapping mapping : leftovers) {
+            if (mappings.putIfAbsent(mapping.key(),
+                    new Mapping(mapping.nonce(), System.nanoTime() + 86_400_000_000_000L)) == null) {
+                inserted.add(mapping.key());
+            }
+            keys.add(mapping.key());
+        }
+        if (mapAll(keys, 0)) return true;
+        inserted.forEach(mappings::remove);
+        return false;
+    }
+
+    // Пакет запросов MAP; lifetime 0 удаляет пробросы. true, если шлюз подтвердил все
+    private boolean mapAll(List<Long> keys, int seconds) {
+        byte[][] requests = new byte[keys.size()][];
+        byte[][] nonces = new byte[keys.size()][];
+        Map<Long, Integer> indexes = new HashMap<>();
+
+        byte[][] responses;
+        try {
+            InetAddress client = clientAddress();
+            for (int i = 0; i < requests.length; i++) {
+                long key = keys.get(i);
+                int port = (int) (key >>> 8);
+                Mapping known = mappings.get(key);
+                nonces[i] = known != null ? known.nonce() : new byte[12];
+                if (known == null) RANDOM.nextBytes(nonces[i]);
+
+                ByteBuffer request = ByteBuffer.allocate(MAP_REQUEST);
+                header(request, OP_MAP, seconds, client);
+                request.put(nonces[i])
+                        .put((byte) (protocol(key) == Protocol.UDP ? 17 : 6)).put(new byte[3])
+                        .putShort((short) port).putShort((short) (seconds == 0 ? 0 : port))
+                        .put(new byte[16]);
+                requests[i] = request.array();
+                indexes.put(key, i);
+            }
+
+            responses = PortMapper.exchangeAll(gateway, requests, response -> {
+                if (response.length < MAP_REQUEST || response[0] != VERSION || (response[1] & 0xFF) != (RESPONSE | OP_MAP)) {
+                    return -1;
+                }
+                Protocol protocol = response[36] == 17 ? Protocol.UDP : Protocol.TCP;
+                int port = ByteBuffer.wrap(response).getShort(40) & 0xFFFF;
+                Integer index = indexes.get(key(port, protocol));
+                if (index == null || !Arrays.equals(response, 24, 36, nonces[index], 0, 12)) return -1;
+                return index;
+            }, timeoutMillis, attempts);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.FINE, "PCP request failed", e);
+            return false;
+        }
+
+        boolean success = true;
+        long now = System.nanoTime();
+        for (int i = 0; i < responses.length; i++) {
+            byte[] response = responses[i];
+            if (response == null || response[3] != 0) {
+                success = false;
+                continue;
+            }
+
+            long key = keys.get(i);
+            ByteBuffer body = ByteBuffer.wrap(response);
+            if (seconds == 0) {
+                mappings.remove(key);
+                plugin.getStateJournal().unmapped(name(), gateway, (int) (key >>> 8), protocol(key));
+                continue;
+            }
+            long granted = Math.max(1, body.getInt(4) & 0xFFFFFFFFL);
+            mappings.put(key, new Mapping(nonces[i], now + granted * 500_000_000L));
+            int externalPort = body.getShort(42) & 0xFFFF;
+            external = address(Arrays.copyOfRange(response, 44, 60));
+            plugin.getStateJournal().mapped(new StateJournal.Mapping(name(), gateway, (int) (key >>> 8), protocol(key),
+                    externalPort, System.currentTimeMillis() + granted * 1000, nonces[i]));
+            if (externalPort != (int) (key >>> 8)) {
+                plugin.getLogger().warning(plugin.getTranslation("portmapping.external_port", name(), key >>> 8, externalPort));
+            }
+        }
+        return success;
+    }
+
+    // Общий заголовок запроса: версия, опкод, срок жизни и адрес клиента в виде IPv6
+    private static void header(ByteBuffer request, int opcode, int seconds, InetAddress client) {
+        request.put((byte) VERSION).put((byte) opcode).putShort((short) 0).putInt(seconds);
+
+        byte[] address = client.getAddress();
+        if (address.length == 4) {
+            request.put(new byte[10]).put((byte) 0xFF).put((byte) 0xFF).put(address);
+        } else {
+            request.put(address);
+        }
+    }
+
+    // IPv4 в ответе записан как IPv4-mapped IPv6
+    private static InetAddress address(byte[] address) {
+        boolean mapped = address[10] == (byte) 0xFF && address[11] == (byte) 0xFF;
+        for (int i = 0; i < 10 && mapped; i++) {
+            mapped = address[i] == 0;
+        }
+        try {
+            return InetAddress.getByAddress(mapped ? Arrays.copyOfRange(address, 12, 16) : address);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    // Адрес этого сервера, с которого видно шлюз, или внешний адрес внутреннего шлюза цепочки
+    private InetAddress clientAddress() throws IOException {
+        InetAddress innerExternal = inner != null ? inner.externalAddress() : null;
+        if (innerExternal != null) return innerExternal;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(gateway);
+            return socket.getLocalAddress();
+        }
+    }
+
+    private static Protocol protocol(long key) {
+        return Protocol.values()[(int) (key & 0xFF)];
+    }
+
+    private static long key(int port, Protocol protocol) {
+        return ((long) port << 8) | protocol.ordinal();
+    }
+
+    // renewAt — половина выданного шлюзом срока жизни (System.nanoTime)
+    private record Mapping(byte[] nonce, long renewAt) {
+    }
+}
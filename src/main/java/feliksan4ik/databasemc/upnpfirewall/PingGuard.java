@@ -0,0 +1,177 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.server.ServerListPingEvent;
+
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Защита пинга списка серверов. Адрес, заблокированный правилами файрвола (тот же matcher, что
+// и для входа), или источник сверх лимита частоты полного ответа не получает: на Paper пинг
+// отменяется и соединение закрывается без ответа, на остальных серверах уходит минимальный ответ
+// без списка игроков и иконки — пустой MOTD для заблокированных, MOTD и максимум игроков последнего
+// полного ответа для превысивших лимит (список игроков и иконку API события прочитать не даёт).
+// Адреса с разрешающим правилом и из ping-protection.exempt (прокси, общий NAT) лимитом не
+// ограничиваются. Лимит — маркерная корзина на адрес (для IPv6 — на /64) в таблице
+// постоянного размера: источники с одной ячейкой делят корзину, лимит от этого только строже.
+// Событие приходит из сетевых потоков сервера: таблица под блокировкой, matcher читается снимком
+final class PingGuard implements Listener {
+
+    private static final int SLOTS = 8192;
+
+    private final Main plugin;
+    private final FirewallManager firewallManager;
+    private final double[] tokens = new double[SLOTS];
+    // System.nanoTime последнего пополнения ячейки, 0 — ячейка ещё не использовалась
+    private final long[] refilled = new long[SLOTS];
+    // Соль хеша: подобрать адреса, попадающие в чужую корзину, снаружи нельзя
+    private final long seed = new SecureRandom().nextLong();
+    // Решение раннего обработчика для позднего: оба вызываются в одном потоке подряд
+    private final ThreadLocal<Rejection> rejection = new ThreadLocal<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private volatile boolean enabled;
+    private volatile double rate;
+    private volatile double burst;
+    private volatile long cacheNanos;
+    private volatile PrefixMatcher<Boolean> exempt = new PrefixMatcher<>();
+    private volatile Cached cached;
+
+    PingGuard(Main plugin, FirewallManager firewallManager) {
+        this.plugin = plugin;
+        this.firewallManager = firewallManager;
+        loadSettings();
+    }
+
+    // Перечитывается при /firewall reload
+    void loadSettings() {
+        enabled = plugin.config.getBoolean("ping-protection.enabled", false);
+        rate = Math.max(0.01, plugin.config.getDouble("ping-protection.rate", 1));
+        burst = Math.max(1, plugin.config.getDouble("ping-protection.burst", 5));
+        cacheNanos = Math.max(0, plugin.config.getLong("ping-protection.cache-millis", 5000)) * 1_000_000L;
+
+        PrefixMatcher<Boolean> prefixes = new PrefixMatcher<>();
+        for (String entry : plugin.config.getStringList("ping-protection.exempt")) {
+            IpPrefix prefix = IpPrefix.parse(entry.trim());
+            if (prefix == null) {
+                plugin.getLogger().warning(plugin.getTranslation("ping_protection.invalid_exempt", entry));
+                continue;
+            }
+            prefixes.put(prefix, Boolean.TRUE);
+        }
+        exempt = prefixes;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    // Раньше всех: отменённый на Paper пинг остальные обработчики с ignoreCancelled пропускают
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onPingEarly(ServerListPingEvent event) {
+        if (!enabled) return;
+        InetAddress address = event.getAddress();
+        if (address == null) return;
+
+        long high = IpAddress.highOf(address);
+        long low = IpAddress.lowOf(address);
+        boolean blocked = firewallManager.verdict(high, low) != FirewallManager.Verdict.ALLOWED;
+        if (!blocked && (isExempt(high, low) || acquire(high, low))) return;
+
+        rejected.incrementAndGet();
+        if (event instanceof Cancellable cancellable) {
+            cancellable.setCancelled(true);
+            return;
+        }
+        rejection.set(new Rejection(event, blocked));
+    }
+
+    // Позже всех: минимальный ответ не перепишут другие плагины
+    @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
+    public void onPing(ServerListPingEvent event) {
+        Rejection rejected = rejection.get();
+        if (rejected != null) {
+            rejection.remove();
+            if (rejected.event() == event) {
+                minimal(event, rejected.blocked());
+                return;
+            }
+        }
+
+        // Полный ответ законному клиенту запоминается не чаще раза в cache-millis
+        long now = System.nanoTime();
+        Cached last = cached;
+        if (enabled && (last == null || now - last.at() >= cacheNanos)) {
+            cached = new Cached(event.getMotd(), event.getMaxPlayers(), now);
+        }
+    }
+
+    // Разрешающее правило файрвола или адрес из exempt
+    private boolean isExempt(long high, long low) {
+        FirewallManager.FirewallRule rule = firewallManager.getMatcher().longestMatch(high, low);
+        if (rule != null && rule.action() == RuleAction.ALLOW) return true;
+        return exempt.longestMatch(high, low) != null;
+    }
+
+    private void minimal(ServerListPingEvent event, boolean blocked) {
+        Cached last = cached;
+        event.setMotd(blocked || last == null ? "" : last.motd());
+        if (!blocked && last != null) event.setMaxPlayers(last.maxPlayers());
+        try {
+            Iterator<Player> players = event.iterator();
+            while (players.hasNext()) {
+                players.next();
+                players.remove();
+            }
+        } catch (UnsupportedOperationException e) {
+            // Сервер не даёт скрывать игроков из списка
+        }
+        try {
+            event.setServerIcon(null);
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            // Иконку убрать нельзя, остаётся стандартная
+        }
+    }
+
+    // Маркер из корзины источника; false — лимит исчерпан
+    private boolean acquire(long high, long low) {
+        boolean v4 = high == 0 && (low >>> 32) == 0xFFFFL;
+        int slot = (int) mix(mix(high ^ seed) ^ (v4 ? low : 0)) & (SLOTS - 1);
+        long now = System.nanoTime();
+        synchronized (tokens) {
+            double available = refilled[slot] == 0 ? burst
+                    : Math.min(burst, tokens[slot] + (now - refilled[slot]) * rate / 1_000_000_000.0);
+            refilled[slot] = now == 0 ? 1 : now;
+            if (available < 1) {
+                tokens[slot] = available;
+                return false;
+            }
+            tokens[slot] = available - 1;
+            return true;
+        }
+    }
+
+    // Финализатор SplitMix64
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    private record Rejection(ServerListPingEvent event, boolean blocked) {
+    }
+
+    private record Cached(String motd, int maxPlayers, long at) {
+    }
+}
@@ -15,114 +15,247 @@ import java.util.logging.Level;
 class PortIPManager implements Listener {
 
     private final Main plugin;
-    private final Map<String, Set<PortIPRule>> portIPRules;
-    private final SimpleUPnPManager upnpManager;
+    private final PrefixMatcher<PortRuleSet> portIPRules;
+    private final PortMappingManager portMapper;
+    private final TickWatchdog.Source loginSource;
+    // Адреса с правилами OPEN и BLOCK для дополнения closeportip и unblockportip
+    private final CompletionTrie openCompletions = new CompletionTrie();
+    private final CompletionTrie blockCompletions = new CompletionTrie();
+    // Диапазоны, которые команды сейчас открывают или закрывают на шлюзе; только основной поток
+    private final List<PortRange> inFlight = new ArrayList<>();
 
     public PortIPManager(Main plugin) {
         this.plugin = plugin;
-        this.portIPRules = new HashMap<>();
-        this.upnpManager = new SimpleUPnPManager(plugin);
+        this.portIPRules = new PrefixMatcher<>();
+        this.portMapper = plugin.getPortMapping();
+        this.loginSource = plugin.getWatchdog().source("event:login/port-ip");
     }
 
     public void loadPortIPRules() {
-        portIPRules.clear();
+        loadPortIPRules(readPortIPRules());
+    }
+
+    public void loadPortIPRules(PrefixMatcher<PortRuleSet> rules) {
+        openCompletions.clear();
+        blockCompletions.clear();
+        // Одна пачка: пустой набор между старыми и новыми правилами не публикуется
+        portIPRules.batch(() -> {
+            portIPRules.clear();
+            rules.forEach(this::setRules);
+        });
+
+        plugin.getLogger().info(plugin.getTranslation("portsip.rules_loaded", getPortIPCount()));
+    }
+
+    // Только чтение конфига, можно вызывать вне основного потока
+    PrefixMatcher<PortRuleSet> readPortIPRules() {
+        PrefixMatcher<PortRuleSet> rules = new PrefixMatcher<>();
 
         if (plugin.config.contains("ports-ip.rules")) {
-            for (String ruleName : plugin.config.getConfigurationSection("ports-ip.rules").getKeys(false)) {
-                try {
-                    String ip = plugin.config.getString("ports-ip.rules." + ruleName + ".ip");
-                    int port = plugin.config.getInt("ports-ip.rules." + ruleName + ".port");
-                    String protocol = plugin.config.getString("ports-ip.rules." + ruleName + ".protocol", "TCP");
-                    String action = plugin.config.getString("ports-ip.rules." + ruleName + ".action", "OPEN");
-                    String description = plugin.config.getString("ports-ip.rules." + ruleName + ".description", "No description");
-
-                    if (isValidIP(ip)) {
-                        PortIPRule rule = new PortIPRule(ip, port, protocol, action, description, ruleName);
-                        portIPRules.computeIfAbsent(ip, k -> new HashSet<>()).add(rule);
-                    } else {
-                        plugin.getLogger().warning(plugin.getTranslation("portsip.error.invalid_ip_config", ruleName, ip));
+            rules.batch(() -> {
+                for (String ruleName : plugin.config.getConfigurationSection("ports-ip.rules").getKeys(false)) {
+                    try {
+                        String ip = plugin.config.getString("ports-ip.rules." + ruleName + ".ip");
+                        String portText = plugin.config.getString("ports-ip.rules." + ruleName + ".port");
+                        PortRange ports = PortRange.parse(portText);
+                        Protocol protocol = Protocol.parse(plugin.config.getString("ports-ip.rules." + ruleName + ".protocol", "TCP"));
+                        RuleAction action = RuleAction.parse(plugin.config.getString("ports-ip.rules." + ruleName + ".action", "OPEN"));
+                        String description = plugin.config.getString("ports-ip.rules." + ruleName + ".description", "No description");
+
+                        IpPrefix prefix = IpPrefix.parse(ip);
+                        if (ports == null || protocol == null || (action != RuleAction.OPEN && action != RuleAction.BLOCK)) {
+                            plugin.getLogger().warning(plugin.getTranslation("portsip.error.invalid_rule_config", ruleName));
+                        } else if (prefix != null) {
+                            addRule(rules, new PortIPRule(prefix, ports, protocol, action, description, ruleName));
+                        } else {
+                            plugin.getLogger().warning(plugin.getTranslation("portsip.error.invalid_ip_config", ruleName, ip));
+                        }
+                    } catch (Exception e) {
+                        plugin.getLogger().warning(plugin.getTranslation("portsip.error.invalid_rule_config", ruleName));
                     }
-                } catch (Exception e) {
-                    plugin.getLogger().warning(plugin.getTranslation("portsip.error.invalid_rule_config", ruleName));
                 }
-            }
+            });
         }
 
-        plugin.getLogger().info(plugin.getTranslation("portsip.rules_loaded", getPortIPCount()));
+        return rules;
     }
 
-    private boolean isValidIP(String ip) {
-        if (ip == null) return false;
+    // Пересекающиеся с новым правила того же префикса вытесняются
+    private static void addRule(PrefixMatcher<PortRuleSet> rules, PortIPRule rule) {
+        PortRuleSet ipRules = rules.get(rule.prefix());
+        rules.put(rule.prefix(), (ipRules != null ? ipRules : PortRuleSet.EMPTY).with(rule));
+    }
 
-        try {
-            String[] parts = ip.split("\\.");
-            if (parts.length != 4) return false;
+    // Правила живого набора меняются только через setRules: вместе с ними меняются подсказки команд
+    private void addRule(PortIPRule rule) {
+        PortRuleSet ipRules = portIPRules.get(rule.prefix());
+        setRules(rule.prefix(), (ipRules != null ? ipRules : PortRuleSet.EMPTY).with(rule));
+    }
 
-            for (String part : parts) {
-                int num = Integer.parseInt(part);
-                if (num < 0 || num > 255) return false;
-            }
-            return true;
-        } catch (NumberFormatException e) {
-            return false;
+    private void setRules(IpPrefix prefix, PortRuleSet rules) {
+        PortRuleSet previous = portIPRules.get(prefix);
+        if (rules.isEmpty()) {
+            portIPRules.remove(prefix);
+        } else {
+            portIPRules.put(prefix, rules);
+        }
+        index(prefix, previous, rules, RuleAction.OPEN, openCompletions);
+        index(prefix, previous, rules, RuleAction.BLOCK, blockCompletions);
+    }
+
+    // Адрес в подсказках, пока у него есть хоть одно правило с этим действием
+    private static void index(IpPrefix prefix, PortRuleSet previous, PortRuleSet rules, RuleAction action,
+                              CompletionTrie completions) {
+        boolean had = previous != null && hasAction(previous, action);
+        boolean has = hasAction(rules, action);
+        if (had && !has) {
+            completions.remove(prefix.toString());
+        } else if (has && !had) {
+            completions.add(prefix.toString());
+        }
+    }
+
+    private static boolean hasAction(PortRuleSet rules, RuleAction action) {
+        for (PortIPRule rule : rules.rules()) {
+            if (rule.action() == action) return true;
+        }
+        return false;
+    }
+
+    // До limit адресов с правилами действия action, начинающихся с prefix
+    List<String> completeAddresses(RuleAction action, String prefix, int limit) {
+        return (action == RuleAction.OPEN ? openCompletions : blockCompletions).complete(prefix, limit);
+    }
+
+    // Диапазоны правил адреса ip с действием action, начинающиеся с prefix
+    List<String> completePorts(String ip, RuleAction action, String prefix, int limit) {
+        IpPrefix address = IpPrefix.parse(ip);
+        PortRuleSet rules = address != null ? portIPRules.get(address) : null;
+        if (rules == null) return List.of();
+
+        List<String> result = new ArrayList<>();
+        for (PortIPRule rule : rules.rules()) {
+            String ports = rule.ports().toString();
+            if (rule.action() == action && ports.startsWith(prefix) && result.size() < limit) result.add(ports);
         }
+        return result;
+    }
+
+    // Правило, в диапазон которого входит порт
+    private PortIPRule findRule(IpPrefix prefix, int port) {
+        PortRuleSet rules = portIPRules.get(prefix);
+        return rules != null ? rules.find(port) : null;
+    }
+
+    // Правило с другим диапазоном, пересекающееся с ports; правило с тем же диапазоном заменяется
+    private PortIPRule findConflict(IpPrefix prefix, PortRange ports) {
+        PortRuleSet rules = portIPRules.get(prefix);
+        if (rules == null) return null;
+        for (PortIPRule rule : rules.overlapping(ports)) {
+            if (!rule.ports().equals(ports)) return rule;
+        }
+        return null;
+    }
+
+    // Разбор порта или диапазона из команды; null, если сообщение об ошибке уже отправлено
+    private PortRange parsePorts(CommandSender sender, String portStr) {
+        PortRange ports = PortRange.parse(portStr);
+        if (ports == null) {
+            sender.sendMessage(portStr.matches("\\d+(-\\d+)?") ?
+                    plugin.getTranslation("portsip.error.invalid_range") :
+                    plugin.getTranslation("portsip.error.invalid_number", portStr));
+        }
+        return ports;
+    }
+
+    // Ключ правила в ports-ip.rules; он же его имя (PortIPRule.ruleName)
+    private String newKey(RuleAction action) {
+        return RuleIndex.newKey(action == RuleAction.OPEN ? "ip_port" : "block",
+                key -> plugin.config.contains("ports-ip.rules." + key));
     }
 
     private void savePortIPRule(PortIPRule rule) {
+        writePortIPRule(rule);
+        plugin.saveConfig();
+    }
+
+    private void writePortIPRule(PortIPRule rule) {
         String ruleName = rule.ruleName();
         plugin.config.set("ports-ip.rules." + ruleName + ".ip", rule.ip());
-        plugin.config.set("ports-ip.rules." + ruleName + ".port", rule.port());
-        plugin.config.set("ports-ip.rules." + ruleName + ".protocol", rule.protocol());
-        plugin.config.set("ports-ip.rules." + ruleName + ".action", rule.action());
+        plugin.config.set("ports-ip.rules." + ruleName + ".port", rule.ports().toConfig());
+        plugin.config.set("ports-ip.rules." + ruleName + ".protocol", rule.protocol().name());
+        plugin.config.set("ports-ip.rules." + ruleName + ".action", rule.action().name());
         plugin.config.set("ports-ip.rules." + ruleName + ".description", rule.description());
-        plugin.saveConfig();
     }
 
-    private void removePortIPRule(String ip, int port) {
-        if (portIPRules.containsKey(ip)) {
-            Set<PortIPRule> rules = portIPRules.get(ip);
-            PortIPRule ruleToRemove = null;
-
-            for (PortIPRule rule : rules) {
-                if (rule.port() == port) {
-                    ruleToRemove = rule;
-                    break;
-                }
+    // Результат /firewall optimize --apply. Удаляются только блокировки и повторы открытий
+    // с тем же диапазоном, поэтому пробросы на шлюзе не меняются
+    void applyOptimized(List<String> keys, List<PortIPRule> remove, List<PortIPRule> add) {
+        portIPRules.batch(() -> {
+            for (PortIPRule rule : remove) {
+                PortRuleSet rules = portIPRules.get(rule.prefix());
+                if (rules == null) continue;
+                setRules(rule.prefix(), rules.without(rule));
+                plugin.getClusterManager().publishPortIPRemoval(rule.ip(), rule.ports());
             }
+            for (PortIPRule rule : add) {
+                addRule(rule);
+                writePortIPRule(rule);
+                plugin.getClusterManager().publishPortIPRule(rule.ip(), rule.ports(), rule.protocol(), rule.action(),
+                        rule.description());
+            }
+        });
 
-            if (ruleToRemove != null) {
-                rules.remove(ruleToRemove);
-                plugin.config.set("ports-ip.rules." + ruleToRemove.ruleName(), null);
-                plugin.saveConfig();
+        for (String key : keys) {
+            plugin.config.set("ports-ip.rules." + key, null);
+        }
+        plugin.saveConfig();
+    }
 
-                if (rules.isEmpty()) {
-                    portIPRules.remove(ip);
-                }
-            }
+    private void removePortIPRule(PortIPRule rule) {
+        PortRuleSet rules = portIPRules.get(rule.prefix());
+        if (rules != null && rule.equals(rules.find(rule.ports().from()))) {
+            plugin.config.set("ports-ip.rules." + rule.ruleName(), null);
+            plugin.saveConfig();
+
+            setRules(rule.prefix(), rules.without(rule));
         }
     }
 
     @EventHandler
     public void onPlayerLogin(PlayerLoginEvent event) {
+        long started = plugin.getWatchdog().begin();
+        try {
+            checkLogin(event);
+        } finally {
+            plugin.getWatchdog().end(loginSource, started);
+        }
+    }
+
+    private void checkLogin(PlayerLoginEvent event) {
+        // Быстрый выход без создания объектов для адресов, к которым не относится ни одно правило
+        long high = IpAddress.highOf(event.getAddress());
+        long low = IpAddress.lowOf(event.getAddress());
+        if (portIPRules.longestMatch(high, low) == null) return;
+
         Player player = event.getPlayer();
-        String ip = event.getAddress().getHostAddress();
+        IpAddress address = new IpAddress(high, low);
 
-        if (portIPRules.containsKey(ip)) {
-            Set<PortIPRule> rules = portIPRules.get(ip);
-            for (PortIPRule rule : rules) {
-                if ("BLOCK".equalsIgnoreCase(rule.action())) {
+        for (PortRuleSet rules : portIPRules.matches(address)) {
+            for (PortIPRule rule : rules.rules()) {
+                if (rule.action() == RuleAction.BLOCK) {
                     plugin.getLogger().warning(plugin.getTranslation("portsip.login_blocked",
-                            ip, player.getName(), rule.port(), rule.protocol()));
+                            address, player.getName(), rule.ports(), rule.protocol()));
                 }
             }
         }
     }
 
     public void manageIPPorts() {
-        // Автоматическое управление портами для IP
-        for (Set<PortIPRule> rules : portIPRules.values()) {
-            for (PortIPRule rule : rules) {
-                if ("OPEN".equalsIgnoreCase(rule.action()) && !isPortOpen(rule.port())) {
+        // Автоматическое управление портами для IP: пробрасываются правила OPEN, которых ещё нет на шлюзе
+        for (PortRuleSet rules : portIPRules.values()) {
+            for (PortIPRule rule : rules.rules()) {
+                if (rule.action() == RuleAction.OPEN && !portMapper.isMapped(hold(rule))) {
                     openPortInternally(rule);
                 }
             }
@@ -133,126 +266,225 @@ class PortIPManager implements Listener {
         openPortForIP(sender, ip, portStr, protocol, "Custom port for IP");
     }
 
-    public void openPortForIP(CommandSender sender, String ip, String portStr, String protocol, String description) {
-        try {
-            InetAddress.getByName(ip);
-            int port = Integer.parseInt(portStr);
-
-            if (port < 1 || port > 65535) {
-                sender.sendMessage(plugin.getTranslation("portsip.error.invalid_range"));
-                return;
-            }
+    public void openPortForIP(CommandSender sender, String ip, String portStr, String protocolName, String description) {
+        IpPrefix prefix = IpPrefix.parse(ip);
+        if (prefix == null) {
+            sender.sendMessage(plugin.getTranslation("portsip.error.invalid_ip", ip));
+            return;
+        }
 
-            if (!"TCP".equalsIgnoreCase(protocol) && !"UDP".equalsIgnoreCase(protocol)) {
-                sender.sendMessage(plugin.getTranslation("portsip.error.invalid_protocol"));
-                return;
-            }
+        PortRange ports = parsePorts(sender, portStr);
+        if (ports == null) return;
 
-            String ruleName = "ip_port_" + System.currentTimeMillis();
-            PortIPRule rule = new PortIPRule(ip, port, protocol.toUpperCase(), "OPEN", description, ruleName);
+        Protocol protocol = Protocol.parse(protocolName);
+        if (protocol != Protocol.TCP && protocol != Protocol.UDP) {
+            sender.sendMessage(plugin.getTranslation("portsip.error.invalid_protocol"));
+            return;
+        }
 
-            portIPRules.computeIfAbsent(ip, k -> new HashSet<>()).add(rule);
+        PortIPRule conflict = findConflict(prefix, ports);
+        if (conflict != null) {
+            sender.sendMessage(plugin.getTranslation("portsip.error.overlap", ports, prefix, conflict.ports()));
+            return;
+        }
 
-            if (openPortInternally(rule)) {
-                savePortIPRule(rule);
+        if (isBusy(ports)) {
+            sender.sendMessage(plugin.getTranslation("portsip.error.busy", ports));
+            return;
+        }
 
-                sender.sendMessage(plugin.getTranslation("portsip.opened", ip, port, protocol, description));
-            } else {
-                sender.sendMessage(plugin.getTranslation("portsip.error.failed_to_open", ip, port));
+        // Проброс на шлюзе в фоне; правило сохраняется в основном потоке, если проброс удался
+        PortIPRule request = new PortIPRule(prefix, ports, protocol, RuleAction.OPEN, description, "");
+        inFlight.add(ports);
+        plugin.offThread("command:openportip", () -> openPortInternally(request), false, opened -> {
+            inFlight.remove(ports);
+            if (!opened) {
+                sender.sendMessage(plugin.getTranslation("portsip.error.failed_to_open", request.ip(), ports));
+                return;
+            }
+            // Пересекающееся правило могло за это время прийти из admin API или кластера
+            PortIPRule overlap = findConflict(prefix, ports);
+            if (overlap != null) {
+                plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> unmap(request));
+                sender.sendMessage(plugin.getTranslation("portsip.error.overlap", ports, prefix, overlap.ports()));
+                return;
+            }
+            // Вытесняется только правило с тем же диапазоном; его проброс закрывается, если
+            // только что обновлённый проброс не тот же (другой протокол)
+            List<PortIPRule> released = new ArrayList<>();
+            PortIPRule rule = storePortIPRule(prefix, ports, protocol, RuleAction.OPEN, description, released);
+            for (PortIPRule previous : released) {
+                if (!hold(previous).equals(hold(rule))) {
+                    plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> unmap(previous));
+                }
             }
+            plugin.getClusterManager().publishPortIPRule(rule.ip(), ports, rule.protocol(), rule.action(), description);
 
-        } catch (UnknownHostException e) {
-            sender.sendMessage(plugin.getTranslation("portsip.error.invalid_ip", ip));
-        } catch (NumberFormatException e) {
-            sender.sendMessage(plugin.getTranslation("portsip.error.invalid_number", portStr));
-        }
+            sender.sendMessage(plugin.getTranslation("portsip.opened", rule.ip(), ports, protocol, description));
+        });
     }
 
     public void blockPortForIP(CommandSender sender, String ip, String portStr) {
         blockPortForIP(sender, ip, portStr, "ANY", "Blocked by administrator");
     }
 
-    public void blockPortForIP(CommandSender sender, String ip, String portStr, String protocol, String reason) {
-        try {
-            InetAddress.getByName(ip);
-            int port = Integer.parseInt(portStr);
+    public void blockPortForIP(CommandSender sender, String ip, String portStr, String protocolName, String reason) {
+        IpPrefix prefix = IpPrefix.parse(ip);
+        if (prefix == null) {
+            sender.sendMessage(plugin.getTranslation("portsip.error.invalid_ip", ip));
+            return;
+        }
 
-            if (port < 1 || port > 65535) {
-                sender.sendMessage(plugin.getTranslation("portsip.error.invalid_range"));
-                return;
-            }
+        PortRange ports = parsePorts(sender, portStr);
+        if (ports == null) return;
 
-            if (!"TCP".equalsIgnoreCase(protocol) && !"UDP".equalsIgnoreCase(protocol) && !"ANY".equalsIgnoreCase(protocol)) {
-                sender.sendMessage(plugin.getTranslation("portsip.error.invalid_protocol"));
-                return;
-            }
+        Protocol protocol = Protocol.parse(protocolName);
+        if (protocol == null) {
+            sender.sendMessage(plugin.getTranslation("portsip.error.invalid_protocol"));
+            return;
+        }
 
-            String ruleName = "block_" + System.currentTimeMillis();
-            PortIPRule rule = new PortIPRule(ip, port, protocol, "BLOCK", reason, ruleName);
+        PortIPRule conflict = findConflict(prefix, ports);
+        if (conflict != null) {
+            sender.sendMessage(plugin.getTranslation("portsip.error.overlap", ports, prefix, conflict.ports()));
+            return;
+        }
 
-            portIPRules.computeIfAbsent(ip, k -> new HashSet<>()).add(rule);
+        // Правило с тем же диапазоном заменяется; проброс вытесненного правила OPEN закрывается в фоне
+        PortIPRule replaced = dropPortIPRule(prefix, ports);
+        if (replaced != null && replaced.action() == RuleAction.OPEN) {
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> unmap(replaced));
+        }
 
-            savePortIPRule(rule);
+        String ruleName = newKey(RuleAction.BLOCK);
+        PortIPRule rule = new PortIPRule(prefix, ports, protocol, RuleAction.BLOCK, reason, ruleName);
 
-            sender.sendMessage(plugin.getTranslation("portsip.blocked", ip, port, protocol, reason));
+        addRule(rule);
 
-        } catch (UnknownHostException e) {
-            sender.sendMessage(plugin.getTranslation("portsip.error.invalid_ip", ip));
-        } catch (NumberFormatException e) {
-            sender.sendMessage(plugin.getTranslation("portsip.error.invalid_number", portStr));
-        }
+        savePortIPRule(rule);
+        plugin.getClusterManager().publishPortIPRule(rule.ip(), ports, protocol, RuleAction.BLOCK, reason);
+
+        sender.sendMessage(plugin.getTranslation("portsip.blocked", rule.ip(), ports, protocol, reason));
     }
 
+    // Закрывается весь диапазон правила, в который входит указанный порт
     public void closePortForIP(CommandSender sender, String ip, String portStr) {
-        try {
-            int port = Integer.parseInt(portStr);
+        PortRange ports = PortRange.parse(portStr);
+        if (ports == null) {
+            sender.sendMessage(plugin.getTranslation("portsip.error.invalid_number", portStr));
+            return;
+        }
+        IpPrefix prefix = IpPrefix.parse(ip);
+
+        if (prefix != null && portIPRules.get(prefix) != null) {
+            PortIPRule rule = findRule(prefix, ports.from());
+
+            if (rule != null && rule.action() == RuleAction.OPEN && isBusy(rule.ports())) {
+                sender.sendMessage(plugin.getTranslation("portsip.error.busy", rule.ports()));
+            } else if (rule != null && rule.action() == RuleAction.OPEN) {
+                // Правило снимается сразу, проброс на шлюзе закрывается в фоне
+                removePortIPRule(rule);
+                plugin.getClusterManager().publishPortIPRemoval(rule.ip(), rule.ports());
+
+                inFlight.add(rule.ports());
+                plugin.offThread("command:closeportip", () -> unmap(rule), false, closed -> {
+                    inFlight.remove(rule.ports());
+                    sender.sendMessage(plugin.getTranslation("portsip.closed", ip, rule.ports()));
+                });
+            } else {
+                sender.sendMessage(plugin.getTranslation("portsip.error.open_rule_not_found", ip, ports));
+            }
+        } else {
+            sender.sendMessage(plugin.getTranslation("portsip.error.ip_not_found", ip));
+        }
+    }
 
-            if (portIPRules.containsKey(ip)) {
-                Set<PortIPRule> rules = portIPRules.get(ip);
-                boolean removed = rules.removeIf(rule -> rule.port() == port && "OPEN".equalsIgnoreCase(rule.action()));
+    public void unblockPortForIP(CommandSender sender, String ip, String portStr) {
+        PortRange ports = PortRange.parse(portStr);
+        if (ports == null) {
+            sender.sendMessage(plugin.getTranslation("portsip.error.invalid_number", portStr));
+            return;
+        }
+        IpPrefix prefix = IpPrefix.parse(ip);
 
-                if (removed) {
-                    if (upnpManager.isUPnPAvailable()) {
-                        upnpManager.closePort(port);
-                    }
+        if (prefix != null && portIPRules.get(prefix) != null) {
+            PortIPRule rule = findRule(prefix, ports.from());
 
-                    removePortIPRule(ip, port);
+            if (rule != null && rule.action() == RuleAction.BLOCK) {
+                removePortIPRule(rule);
+                plugin.getClusterManager().publishPortIPRemoval(rule.ip(), rule.ports());
 
-                    sender.sendMessage(plugin.getTranslation("portsip.closed", ip, port));
-                } else {
-                    sender.sendMessage(plugin.getTranslation("portsip.error.open_rule_not_found", ip, port));
-                }
+                sender.sendMessage(plugin.getTranslation("portsip.unblocked", ip, rule.ports()));
             } else {
-                sender.sendMessage(plugin.getTranslation("portsip.error.ip_not_found", ip));
+                sender.sendMessage(plugin.getTranslation("portsip.error.block_rule_not_found", ip, ports));
             }
+        } else {
+            sender.sendMessage(plugin.getTranslation("portsip.error.ip_not_found", ip));
+        }
+    }
 
-        } catch (NumberFormatException e) {
-            sender.sendMessage(plugin.getTranslation("portsip.error.invalid_number", portStr));
+    // Изменения из admin API и с других узлов кластера: правила и конфиг в основном потоке,
+    // пробросы на шлюзе вызывающий делает сам вне его (mapPortIPRule, unmap). Пересекающиеся
+    // правила того же адреса удаляются, released — вытесненные правила OPEN
+    PortIPRule storePortIPRule(IpPrefix prefix, PortRange ports, Protocol protocol, RuleAction action,
+                               String description, List<PortIPRule> released) {
+        PortRuleSet existing = portIPRules.get(prefix);
+        if (existing != null) {
+            for (PortIPRule rule : existing.overlapping(ports)) {
+                if (rule.action() == RuleAction.OPEN) released.add(rule);
+                removePortIPRule(rule);
+            }
         }
+
+        PortIPRule rule = new PortIPRule(prefix, ports, protocol, action, description, newKey(action));
+        addRule(rule);
+        savePortIPRule(rule);
+        return rule;
     }
 
-    public void unblockPortForIP(CommandSender sender, String ip, String portStr) {
-        try {
-            int port = Integer.parseInt(portStr);
+    // Снятие правила с точно таким диапазоном; снятое правило или null
+    PortIPRule dropPortIPRule(IpPrefix prefix, PortRange ports) {
+        PortIPRule rule = findRule(prefix, ports.from());
+        if (rule == null || !rule.ports().equals(ports)) return null;
 
-            if (portIPRules.containsKey(ip)) {
-                Set<PortIPRule> rules = portIPRules.get(ip);
-                boolean removed = rules.removeIf(rule -> rule.port() == port && "BLOCK".equalsIgnoreCase(rule.action()));
+        removePortIPRule(rule);
+        return rule;
+    }
 
-                if (removed) {
-                    removePortIPRule(ip, port);
+    // Блокировка адреса, превысившего лимит соединений (ConnectionMonitor). Адрес, у которого уже
+    // есть своё правило для этого порта, не трогается: разрешение ему дал администратор
+    boolean blockExcess(IpAddress address, PortRange ports, Protocol protocol) {
+        IpPrefix host = IpPrefix.of(address, 128);
+        if (findRule(host, ports.from()) != null) return false;
 
-                    sender.sendMessage(plugin.getTranslation("portsip.unblocked", ip, port));
-                } else {
-                    sender.sendMessage(plugin.getTranslation("portsip.error.block_rule_not_found", ip, port));
-                }
-            } else {
-                sender.sendMessage(plugin.getTranslation("portsip.error.ip_not_found", ip));
-            }
+        String reason = "Too many connections";
+        PortIPRule rule = storePortIPRule(host, ports, protocol, RuleAction.BLOCK, reason, new ArrayList<>());
+        plugin.getClusterManager().publishPortIPRule(rule.ip(), ports, protocol, RuleAction.BLOCK, reason);
+        return true;
+    }
 
-        } catch (NumberFormatException e) {
-            sender.sendMessage(plugin.getTranslation("portsip.error.invalid_number", portStr));
+    boolean mapPortIPRule(PortIPRule rule) {
+        return openPortInternally(rule);
+    }
+
+    boolean unmap(PortIPRule rule) {
+        return portMapper.isAvailable() && portMapper.closePort(hold(rule));
+    }
+
+    // Проброс правила держит его адрес: правила разных адресов с одним диапазоном делят проброс
+    static PortMappingManager.Hold hold(PortIPRule rule) {
+        return new PortMappingManager.Hold(rule.ip(), rule.ports(), rule.protocol());
+    }
+
+    private boolean isBusy(PortRange ports) {
+        for (PortRange busy : inFlight) {
+            if (busy.overlaps(ports)) return true;
         }
+        return false;
+    }
+
+    void batch(Runnable changes) {
+        portIPRules.batch(changes);
     }
 
     public void listPortsIP(CommandSender sender) {
@@ -266,24 +498,24 @@ class PortIPManager implements Listener {
         int openRules = 0;
         int blockRules = 0;
 
-        for (Map.Entry<String, Set<PortIPRule>> entry : portIPRules.entrySet()) {
-            String ip = entry.getKey();
-            Set<PortIPRule> rules = entry.getValue();
+        for (PortRuleSet rules : portIPRules.values()) {
+            if (rules.isEmpty()) continue;
+            String ip = rules.rules().get(0).ip();
             totalRules += rules.size();
 
             sender.sendMessage(ChatColor.GOLD + "IP: " + ip + " - " + rules.size() + " rules");
-            for (PortIPRule rule : rules) {
-                ChatColor color = "OPEN".equalsIgnoreCase(rule.action()) ? ChatColor.GREEN : ChatColor.RED;
-                String actionText = "OPEN".equalsIgnoreCase(rule.action()) ?
+            for (PortIPRule rule : rules.rules()) {
+                ChatColor color = rule.action() == RuleAction.OPEN ? ChatColor.GREEN : ChatColor.RED;
+                String actionText = rule.action() == RuleAction.OPEN ?
                         plugin.getTranslation("portsip.action_open") : plugin.getTranslation("portsip.action_block");
 
-                if ("OPEN".equalsIgnoreCase(rule.action())) {
+                if (rule.action() == RuleAction.OPEN) {
                     openRules++;
                 } else {
                     blockRules++;
                 }
 
-                sender.sendMessage(color + "  Port: " + rule.port() +
+                sender.sendMessage(color + "  Port: " + rule.ports() +
                         " | Protocol: " + rule.protocol() +
                         " | Action: " + actionText +
                         " | " + rule.description());
@@ -296,26 +528,38 @@ class PortIPManager implements Listener {
     public void clearAllPortsIP(CommandSender sender) {
         int totalRules = getPortIPCount();
 
-        for (Set<PortIPRule> rules : portIPRules.values()) {
-            for (PortIPRule rule : rules) {
-                if ("OPEN".equalsIgnoreCase(rule.action()) && upnpManager.isUPnPAvailable()) {
-                    upnpManager.closePort(rule.port());
+        List<PortIPRule> unmaps = new ArrayList<>();
+        for (PortRuleSet rules : portIPRules.values()) {
+            for (PortIPRule rule : rules.rules()) {
+                if (rule.action() == RuleAction.OPEN) {
+                    unmaps.add(rule);
                 }
+                plugin.getClusterManager().publishPortIPRemoval(rule.ip(), rule.ports());
             }
         }
 
         portIPRules.clear();
+        openCompletions.clear();
+        blockCompletions.clear();
         plugin.config.set("ports-ip.rules", null);
         plugin.saveConfig();
 
-        sender.sendMessage(plugin.getTranslation("portsip.all_cleared", totalRules));
+        // Правила сняты сразу, пробросы на шлюзе закрываются в фоне
+        unmaps.forEach(rule -> inFlight.add(rule.ports()));
+        plugin.offThread("command:clearportsip", () -> {
+            unmaps.forEach(this::unmap);
+            return unmaps.size();
+        }, 0, closed -> {
+            unmaps.forEach(rule -> inFlight.remove(rule.ports()));
+            sender.sendMessage(plugin.getTranslation("portsip.all_cleared", totalRules));
+        });
     }
 
     public void closeAllIPPorts() {
-        for (Set<PortIPRule> rules : portIPRules.values()) {
-            for (PortIPRule rule : rules) {
-                if ("OPEN".equalsIgnoreCase(rule.action()) && upnpManager.isUPnPAvailable()) {
-                    upnpManager.closePort(rule.port());
+        for (PortRuleSet rules : portIPRules.values()) {
+            for (PortIPRule rule : rules.rules()) {
+                if (rule.action() == RuleAction.OPEN && portMapper.isAvailable()) {
+                    portMapper.closePort(hold(rule));
                 }
             }
         }
@@ -323,80 +567,95 @@ class PortIPManager implements Listener {
 
     private boolean openPortInternally(PortIPRule rule) {
         try {
-            if (upnpManager.isUPnPAvailable()) {
-                boolean success = upnpManager.openPort(
-                        rule.port(),
-                        rule.protocol(),
-                        rule.description() + " for IP " + rule.ip()
-                );
+            if (portMapper.isAvailable()) {
+                boolean success = portMapper.openPort(hold(rule), rule.description() + " for IP " + rule.ip());
 
                 if (success) {
-                    plugin.getLogger().info(plugin.getTranslation("portsip.port_opened", rule.port(), rule.ip()));
+                    plugin.getLogger().info(plugin.getTranslation("portsip.port_opened", rule.ports(), rule.ip()));
                     return true;
                 }
             }
 
-            if (isPortAvailable(rule.port())) {
-                plugin.getLogger().info(plugin.getTranslation("portsip.port_available", rule.port(), rule.ip()));
+            if (isRangeAvailable(rule.ports())) {
+                plugin.getLogger().info(plugin.getTranslation("portsip.port_available", rule.ports(), rule.ip()));
                 return true;
             }
 
             return false;
 
         } catch (Exception e) {
-            plugin.getLogger().log(Level.WARNING, plugin.getTranslation("portsip.error.open_failed", rule.port(), rule.ip()), e);
+            plugin.getLogger().log(Level.WARNING, plugin.getTranslation("portsip.error.open_failed", rule.ports(), rule.ip()), e);
             return false;
         }
     }
 
-    private boolean isPortOpen(int port) {
-        try (Socket socket = new Socket()) {
-            socket.connect(new InetSocketAddress("localhost", port), 1000);
+    private boolean isPortAvailable(int port) {
+        try (ServerSocket ignored = new ServerSocket(port)) {
             return true;
         } catch (IOException e) {
             return false;
         }
     }
 
-    private boolean isPortAvailable(int port) {
-        try (ServerSocket ignored = new ServerSocket(port)) {
-            return true;
-        } catch (IOException e) {
-            return false;
+    private boolean isRangeAvailable(PortRange ports) {
+        for (int port = ports.from(); port <= ports.to(); port++) {
+            if (!isPortAvailable(port)) return false;
         }
+        return true;
     }
 
     public int getPortIPCount() {
-        return portIPRules.values().stream().mapToInt(Set::size).sum();
+        return portIPRules.values().stream().mapToInt(PortRuleSet::size).sum();
+    }
+
+    PrefixMatcher<PortRuleSet> getRules() {
+        return portIPRules;
+    }
+
+    List<PortIPRule> snapshotRules() {
+        List<PortIPRule> rules = new ArrayList<>();
+        for (PortRuleSet ipRules : portIPRules.values()) {
+            rules.addAll(ipRules.rules());
+        }
+        return rules;
     }
 
     public boolean isPortAllowedForIP(String ip, int port, String protocol) {
-        if (portIPRules.containsKey(ip)) {
-            Set<PortIPRule> rules = portIPRules.get(ip);
-            for (PortIPRule rule : rules) {
-                if (rule.port() == port &&
-                        ("ANY".equalsIgnoreCase(rule.protocol()) || rule.protocol().equalsIgnoreCase(protocol))) {
-                    return "OPEN".equalsIgnoreCase(rule.action());
-                }
+        IpAddress address = IpAddress.parse(ip);
+        Protocol parsed = Protocol.parse(protocol);
+        return address == null || parsed == null || isPortAllowedForIP(address, port, parsed);
+    }
+
+    // Решает самый узкий префикс, в котором есть правило для этого порта;
+    // внутри префикса — двоичный поиск по слитым интервалам
+    boolean isPortAllowedForIP(IpAddress address, int port, Protocol protocol) {
+        for (PortRuleSet rules : portIPRules.matches(address)) {
+            RuleAction action = rules.verdict(port, protocol);
+            if (action != null) {
+                return action == RuleAction.OPEN;
             }
         }
         return true;
     }
 
-    private record PortIPRule(String ip, int port, String protocol, String action, String description,
-                              String ruleName) {
+    record PortIPRule(IpPrefix prefix, PortRange ports, Protocol protocol, RuleAction action, String description,
+                      String ruleName) {
+
+        public String ip() {
+            return prefix.toString();
+        }
 
         @Override
             public boolean equals(Object obj) {
                 if (this == obj) return true;
                 if (obj == null || getClass() != obj.getClass()) return false;
                 PortIPRule that = (PortIPRule) obj;
-                return port == that.port && ip.equals(that.ip);
+                return ports.equals(that.ports) && prefix.equals(that.prefix);
             }
 
             @Override
             public int hashCode() {
-                return Objects.hash(ip, port);
+                return Objects.hash(prefix, ports);
             }
         }
 }
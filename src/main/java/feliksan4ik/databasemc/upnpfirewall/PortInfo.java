@@ -1,4 +1,4 @@
 package feliksan4ik.databasemc.upnpfirewall;
 
-record PortInfo(int port, String protocol, String description, String ruleName) {
+record PortInfo(PortRange ports, Protocol protocol, String description, String ruleName) {
 }
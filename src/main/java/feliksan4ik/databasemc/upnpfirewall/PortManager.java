@@ -7,35 +7,67 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Level;
 
 class PortManager {
+    // Владелец пробросов глобальных портов; диапазоны не пересекаются, одного имени достаточно
+    private static final String OWNER = "ports";
+
     private final Main plugin;
-    private final Map<Integer, PortInfo> openPorts;
-    private final SimpleUPnPManager upnpManager;
+    // Открытые диапазоны по первому порту; диапазоны не пересекаются
+    private final NavigableMap<Integer, PortInfo> openPorts;
+    private final PortMappingManager portMapper;
+    // Подсказки для /firewall closeport и openport: диапазоны и описания открытых портов
+    private final CompletionTrie portCompletions = new CompletionTrie();
+    private final CompletionTrie descriptionCompletions = new CompletionTrie();
+    // Диапазоны, которые команды сейчас открывают или закрывают на шлюзе; только основной поток
+    private final List<PortRange> inFlight = new ArrayList<>();
 
     public PortManager(Main plugin) {
         this.plugin = plugin;
-        this.openPorts = new HashMap<>();
-        this.upnpManager = new SimpleUPnPManager(plugin);
+        this.openPorts = new ConcurrentSkipListMap<>();
+        this.portMapper = plugin.getPortMapping();
     }
 
     public void loadPortSettings() {
+        loadPortSettings(readPortSettings());
+    }
+
+    public void loadPortSettings(Map<Integer, PortInfo> ports) {
         openPorts.clear();
+        portCompletions.clear();
+        descriptionCompletions.clear();
+        for (PortInfo portInfo : ports.values()) {
+            putOpenPort(portInfo);
+        }
+
+        plugin.getLogger().info(plugin.getTranslation("ports.settings_loaded", openPorts.size()));
+    }
+
+    // Только чтение конфига, можно вызывать вне основного потока
+    Map<Integer, PortInfo> readPortSettings() {
+        NavigableMap<Integer, PortInfo> ports = new ConcurrentSkipListMap<>();
 
         if (plugin.config.contains("ports.open")) {
             for (String ruleName : plugin.config.getConfigurationSection("ports.open").getKeys(false)) {
                 try {
-                    int port = plugin.config.getInt("ports.open." + ruleName + ".port");
-                    String protocol = plugin.config.getString("ports.open." + ruleName + ".protocol", "TCP");
+                    String portText = plugin.config.getString("ports.open." + ruleName + ".port");
+                    PortRange range = PortRange.parse(portText);
+                    Protocol protocol = Protocol.parse(plugin.config.getString("ports.open." + ruleName + ".protocol", "TCP"));
                     String description = plugin.config.getString("ports.open." + ruleName + ".description", "Minecraft Server");
 
-                    if (port >= 1 && port <= 65535) {
-                        openPorts.put(port, new PortInfo(port, protocol, description, ruleName));
+                    if (protocol != Protocol.TCP && protocol != Protocol.UDP) {
+                        plugin.getLogger().warning(plugin.getTranslation("ports.error.invalid_port_config", ruleName));
+                    } else if (range != null && findOverlap(ports, range) == null) {
+                        ports.put(range.from(), new PortInfo(range, protocol, description, ruleName));
                     } else {
-                        plugin.getLogger().warning(plugin.getTranslation("ports.error.invalid_range_config", ruleName, port));
+                        plugin.getLogger().warning(plugin.getTranslation("ports.error.invalid_range_config", ruleName, portText));
                     }
                 } catch (Exception e) {
                     plugin.getLogger().warning(plugin.getTranslation("ports.error.invalid_port_config", ruleName));
@@ -43,62 +75,102 @@ class PortManager {
             }
         }
 
-        plugin.getLogger().info(plugin.getTranslation("ports.settings_loaded", openPorts.size()));
+        return ports;
     }
 
+    // Выполняется асинхронно: проброс в фоне, изменение конфига в основном потоке. Что пробрасывать,
+    // решают правила и уже сделанные пробросы, а не то, слушает ли кто-то порт локально
     public void manageServerPorts() {
         if (plugin.config.getBoolean("auto-port-management.open-server-port", true)) {
             int serverPort = plugin.getServer().getPort();
-            if (!isPortOpen(serverPort)) {
-                openPort(null, String.valueOf(serverPort), "TCP", plugin.getTranslation("ports.default_description"));
+            if (findPort(serverPort) == null) {
+                PortInfo portInfo = new PortInfo(PortRange.of(serverPort), Protocol.TCP,
+                        plugin.getTranslation("ports.default_description"), newKey());
+                if (openPortInternally(portInfo)) {
+                    plugin.getServer().getScheduler().runTask(plugin,
+                            plugin.getWatchdog().wrap("task:remember-port", () -> rememberPort(portInfo)));
+                }
             }
         }
 
         for (PortInfo portInfo : openPorts.values()) {
-            if (!isPortOpen(portInfo.port())) {
+            if (!portMapper.isMapped(hold(portInfo))) {
                 openPortInternally(portInfo);
             }
         }
     }
 
-    public void openPort(CommandSender sender, String portStr, String protocol, String description) {
+    public void openPort(CommandSender sender, String portStr, String protocolName, String description) {
         try {
-            int port = Integer.parseInt(portStr);
+            PortRange ports = PortRange.parse(portStr);
 
-            if (port < 1 || port > 65535) {
+            if (ports == null) {
+                // Число или диапазон, но вне 1-65535 или с началом больше конца
+                if (!portStr.matches("\\d+(-\\d+)?")) throw new NumberFormatException(portStr);
                 if (sender != null) {
                     sender.sendMessage(plugin.getTranslation("ports.error.invalid_range"));
                 }
                 return;
             }
 
-            if (!"TCP".equalsIgnoreCase(protocol) && !"UDP".equalsIgnoreCase(protocol)) {
+            Protocol protocol = Protocol.parse(protocolName);
+            if (protocol != Protocol.TCP && protocol != Protocol.UDP) {
                 if (sender != null) {
                     sender.sendMessage(plugin.getTranslation("ports.error.invalid_protocol"));
                 }
                 return;
             }
 
-            PortInfo portInfo = new PortInfo(port, protocol.toUpperCase(), description, "cmd_" + System.currentTimeMillis());
-
-            if (openPortInternally(portInfo)) {
-                openPorts.put(port, portInfo);
-
-                String ruleName = "port_" + System.currentTimeMillis();
-                plugin.config.set("ports.open." + ruleName + ".port", port);
-                plugin.config.set("ports.open." + ruleName + ".protocol", protocol.toUpperCase());
-                plugin.config.set("ports.open." + ruleName + ".description", description);
-                plugin.saveConfig();
-
+            // Тот же диапазон заменяется, пересечение с другим — ошибка
+            PortInfo existing = findOverlap(openPorts, ports);
+            if (existing != null && !existing.ports().equals(ports)) {
                 if (sender != null) {
-                    sender.sendMessage(plugin.getTranslation("ports.opened", port, protocol, description));
+                    sender.sendMessage(plugin.getTranslation("ports.error.overlap", ports, existing.ports()));
                 }
-            } else {
+                return;
+            }
+
+            if (isBusy(ports)) {
                 if (sender != null) {
-                    sender.sendMessage(plugin.getTranslation("ports.error.failed_to_open", port));
+                    sender.sendMessage(plugin.getTranslation("ports.error.busy", ports));
                 }
+                return;
             }
 
+            // Проброс на шлюзе в фоне; порт запоминается в основном потоке, если проброс удался
+            PortInfo request = new PortInfo(ports, protocol, description, "");
+            inFlight.add(ports);
+            plugin.offThread("command:openport", () -> openPortInternally(request), false, opened -> {
+                inFlight.remove(ports);
+                if (!opened) {
+                    if (sender != null) {
+                        sender.sendMessage(plugin.getTranslation("ports.error.failed_to_open", ports));
+                    }
+                    return;
+                }
+                // Пересекающийся диапазон мог за это время прийти из admin API
+                List<PortInfo> released = new ArrayList<>();
+                PortInfo stored = storePort(ports, protocol, description, released);
+                if (stored == null) {
+                    plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> unmap(request));
+                    PortInfo overlap = findOverlap(openPorts, ports);
+                    if (sender != null) {
+                        sender.sendMessage(plugin.getTranslation("ports.error.overlap", ports,
+                                overlap != null ? overlap.ports() : ports));
+                    }
+                    return;
+                }
+                // Тот же диапазон с другим протоколом: прежний проброс больше не нужен
+                for (PortInfo previous : released) {
+                    if (!hold(previous).equals(hold(stored))) {
+                        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> unmap(previous));
+                    }
+                }
+                if (sender != null) {
+                    sender.sendMessage(plugin.getTranslation("ports.opened", ports, protocol, description));
+                }
+            });
+
         } catch (NumberFormatException e) {
             if (sender != null) {
                 sender.sendMessage(plugin.getTranslation("ports.error.invalid_number", portStr));
@@ -106,63 +178,139 @@ class PortManager {
         }
     }
 
+    private void rememberPort(PortInfo portInfo) {
+        putOpenPort(portInfo);
+
+        String ruleName = portInfo.ruleName();
+        plugin.config.set("ports.open." + ruleName + ".port", portInfo.ports().toConfig());
+        plugin.config.set("ports.open." + ruleName + ".protocol", portInfo.protocol().name());
+        plugin.config.set("ports.open." + ruleName + ".description", portInfo.description());
+        plugin.saveConfig();
+    }
+
+    // openPorts меняется только здесь, вместе с подсказками команд
+    private void putOpenPort(PortInfo portInfo) {
+        PortInfo replaced = openPorts.put(portInfo.ports().from(), portInfo);
+        if (replaced != null) unindex(replaced);
+        portCompletions.add(portInfo.ports().toString());
+        // Команда принимает описание одним словом
+        if (isWord(portInfo.description())) descriptionCompletions.add(portInfo.description());
+    }
+
+    private void removeOpenPort(PortInfo portInfo) {
+        if (openPorts.remove(portInfo.ports().from(), portInfo)) unindex(portInfo);
+    }
+
+    private void unindex(PortInfo portInfo) {
+        portCompletions.remove(portInfo.ports().toString());
+        if (isWord(portInfo.description())) descriptionCompletions.remove(portInfo.description());
+    }
+
+    private static boolean isWord(String text) {
+        return !text.isEmpty() && text.chars().noneMatch(Character::isWhitespace);
+    }
+
+    List<String> completePorts(String prefix, int limit) {
+        return portCompletions.complete(prefix, limit);
+    }
+
+    List<String> completeDescriptions(String prefix, int limit) {
+        return descriptionCompletions.complete(prefix, limit);
+    }
+
     private boolean openPortInternally(PortInfo portInfo) {
         try {
-            if (upnpManager.isUPnPAvailable()) {
-                boolean success = upnpManager.openPort(
-                        portInfo.port(),
-                        portInfo.protocol(),
-                        portInfo.description()
-                );
+            if (portMapper.isAvailable()) {
+                boolean success = portMapper.openPort(hold(portInfo), portInfo.description());
 
                 if (success) {
-                    plugin.getLogger().info(plugin.getTranslation("upnp.port_opened", portInfo.port()));
                     return true;
                 }
             }
 
-            if (isPortAvailable(portInfo.port())) {
-                plugin.getLogger().info(plugin.getTranslation("ports.port_available", portInfo.port()));
+            if (isRangeAvailable(portInfo.ports())) {
+                plugin.getLogger().info(plugin.getTranslation("ports.port_available", portInfo.ports()));
                 return true;
             }
 
             return false;
 
         } catch (Exception e) {
-            plugin.getLogger().log(Level.WARNING, plugin.getTranslation("ports.error.open_failed", portInfo.port()), e);
+            plugin.getLogger().log(Level.WARNING, plugin.getTranslation("ports.error.open_failed", portInfo.ports()), e);
             return false;
         }
     }
 
-    public void closePort(CommandSender sender, String portStr) {
-        try {
-            int port = Integer.parseInt(portStr);
+    // Изменения из admin API: состояние и конфиг в основном потоке, проброс на шлюзе вызывающий
+    // делает сам вне его (mapPort, unmap). null — пересечение с другим диапазоном, released —
+    // заменённый диапазон, его проброс вызывающий закрывает, если новый не держит тот же
+    PortInfo storePort(PortRange ports, Protocol protocol, String description, List<PortInfo> released) {
+        PortInfo existing = findOverlap(openPorts, ports);
+        if (existing != null && !existing.ports().equals(ports)) return null;
 
-            if (openPorts.containsKey(port)) {
-//                PortInfo portInfo = openPorts.get(port);
+        if (existing != null) {
+            plugin.config.set("ports.open." + existing.ruleName(), null);
+            released.add(existing);
+        }
+        PortInfo portInfo = new PortInfo(ports, protocol, description, newKey());
+        rememberPort(portInfo);
+        return portInfo;
+    }
 
-                if (upnpManager.isUPnPAvailable()) {
-                    upnpManager.closePort(port);
-                }
+    // Снятие диапазона, в который входит порт; снятый диапазон или null
+    PortInfo dropPort(int port) {
+        PortInfo portInfo = findPort(port);
+        if (portInfo == null) return null;
 
-                if (plugin.config.contains("ports.open")) {
-                    for (String ruleName : plugin.config.getConfigurationSection("ports.open").getKeys(false)) {
-                        if (plugin.config.getInt("ports.open." + ruleName + ".port") == port) {
-                            plugin.config.set("ports.open." + ruleName, null);
-                            break;
-                        }
-                    }
-                }
-                plugin.saveConfig();
+        plugin.config.set("ports.open." + portInfo.ruleName(), null);
+        plugin.saveConfig();
+        removeOpenPort(portInfo);
+        return portInfo;
+    }
 
-                openPorts.remove(port);
+    boolean mapPort(PortInfo portInfo) {
+        return openPortInternally(portInfo);
+    }
 
+    boolean unmap(PortInfo portInfo) {
+        return portMapper.isAvailable() && portMapper.closePort(hold(portInfo));
+    }
+
+    static PortMappingManager.Hold hold(PortInfo portInfo) {
+        return new PortMappingManager.Hold(OWNER, portInfo.ports(), portInfo.protocol());
+    }
+
+    private boolean isBusy(PortRange ports) {
+        for (PortRange busy : inFlight) {
+            if (busy.overlaps(ports)) return true;
+        }
+        return false;
+    }
+
+    // Закрывается весь диапазон, в который входит указанный порт
+    public void closePort(CommandSender sender, String portStr) {
+        try {
+            PortRange ports = PortRange.parse(portStr);
+            if (ports == null) throw new NumberFormatException(portStr);
+            PortInfo portInfo = findPort(ports.from());
+
+            if (portInfo != null && isBusy(portInfo.ports())) {
                 if (sender != null) {
-                    sender.sendMessage(plugin.getTranslation("ports.closed", port));
+                    sender.sendMessage(plugin.getTranslation("ports.error.busy", portInfo.ports()));
                 }
+            } else if (portInfo != null) {
+                // Порт снимается сразу, проброс на шлюзе закрывается в фоне
+                dropPort(portInfo.ports().from());
+                inFlight.add(portInfo.ports());
+                plugin.offThread("command:closeport", () -> unmap(portInfo), false, closed -> {
+                    inFlight.remove(portInfo.ports());
+                    if (sender != null) {
+                        sender.sendMessage(plugin.getTranslation("ports.closed", portInfo.ports()));
+                    }
+                });
             } else {
                 if (sender != null) {
-                    sender.sendMessage(plugin.getTranslation("ports.error.not_opened", port));
+                    sender.sendMessage(plugin.getTranslation("ports.error.not_opened", ports));
                 }
             }
 
@@ -174,12 +322,14 @@ class PortManager {
     }
 
     public void closeAllPorts() {
-        for (Integer port : openPorts.keySet()) {
-            if (upnpManager.isUPnPAvailable()) {
-                upnpManager.closePort(port);
+        for (PortInfo portInfo : openPorts.values()) {
+            if (portMapper.isAvailable()) {
+                portMapper.closePort(hold(portInfo));
             }
         }
         openPorts.clear();
+        portCompletions.clear();
+        descriptionCompletions.clear();
         plugin.getLogger().info(plugin.getTranslation("ports.all_closed"));
     }
 
@@ -191,12 +341,12 @@ class PortManager {
 
         sender.sendMessage(plugin.getTranslation("ports.list_header"));
         for (PortInfo portInfo : openPorts.values()) {
-            String status = isPortOpen(portInfo.port()) ?
+            String status = isPortOpen(portInfo.ports().from()) ?
                     plugin.getTranslation("status.open") : plugin.getTranslation("status.closed");
-            ChatColor statusColor = isPortOpen(portInfo.port()) ? ChatColor.GREEN : ChatColor.RED;
+            ChatColor statusColor = isPortOpen(portInfo.ports().from()) ? ChatColor.GREEN : ChatColor.RED;
 
             sender.sendMessage(plugin.getTranslation("ports.list_format",
-                    portInfo.port(), portInfo.protocol(), statusColor + status, portInfo.description()));
+                    portInfo.ports(), portInfo.protocol(), statusColor + status, portInfo.description()));
         }
     }
 
@@ -217,8 +367,35 @@ class PortManager {
         }
     }
 
+    private boolean isRangeAvailable(PortRange ports) {
+        for (int port = ports.from(); port <= ports.to(); port++) {
+            if (!isPortAvailable(port)) return false;
+        }
+        return true;
+    }
+
+    // Диапазон, в который входит порт: ближайший снизу по началу, если доходит до порта
+    private PortInfo findPort(int port) {
+        Map.Entry<Integer, PortInfo> entry = openPorts.floorEntry(port);
+        return entry != null && entry.getValue().ports().contains(port) ? entry.getValue() : null;
+    }
+
+    // Диапазоны не пересекаются, поэтому достаточно проверить ближайший по началу не правее range.to
+    private static PortInfo findOverlap(NavigableMap<Integer, PortInfo> ports, PortRange range) {
+        Map.Entry<Integer, PortInfo> entry = ports.floorEntry(range.to());
+        return entry != null && entry.getValue().ports().overlaps(range) ? entry.getValue() : null;
+    }
+
+    private String newKey() {
+        return RuleIndex.newKey("port", key -> plugin.config.contains("ports.open." + key));
+    }
+
     public int getOpenPortCount() {
         return openPorts.size();
     }
 
+    Collection<PortInfo> getPorts() {
+        return openPorts.values();
+    }
+
 }
@@ -0,0 +1,101 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+// Способ проброса порта на роутере: NAT-PMP или PCP
+interface PortMapper {
+
+    String name();
+
+    // Время ответа шлюза в наносекундах, либо -1, если протокол не поддерживается
+    long probe();
+
+    boolean openPort(PortRange ports, Protocol protocol, String description);
+
+    // Закрывается только указанный протокол: другой протокол того же диапазона может быть нужен
+    boolean closePort(PortRange ports, Protocol protocol);
+
+    // Внешний адрес шлюза, если протокол его сообщил при опросе или пробросе, иначе null
+    default InetAddress externalAddress() {
+        return null;
+    }
+
+    // Продление пробросов с ограниченным сроком жизни, вызывается периодически в фоне
+    default void renew() {
+    }
+
+    // Проброс из журнала прошлого запуска сделан этим способом через тот же шлюз
+    default boolean owns(StateJournal.Mapping mapping) {
+        return false;
+    }
+
+    // Принять проброс прошлого запуска как свой: без запроса к шлюзу, продление по оставшейся аренде
+    default void adopt(StateJournal.Mapping mapping) {
+    }
+
+    // Удалить пробросы прошлого запуска, которые больше не нужны. true, если шлюз подтвердил все
+    default boolean release(List<StateJournal.Mapping> leftovers) {
+        return false;
+    }
+
+    static byte[] exchange(InetSocketAddress gateway, byte[] request, int opcodeOffset, int expectedOpcode,
+                           int timeoutMillis, int attempts) throws IOException {
+        return exchangeAll(gateway, new byte[][]{request},
+                response -> response.length > opcodeOffset && (response[opcodeOffset] & 0xFF) == expectedOpcode ? 0 : -1,
+                timeoutMillis, attempts)[0];
+    }
+
+    // Пакетный запрос-ответ по UDP: все запросы уходят сразу с одного сокета, ответы
+    // сопоставляются с запросами функцией requestOf (индекс запроса или -1). Повторно
+    // отправляются только запросы без ответа, ожидание удваивается с каждой попыткой
+    // (RFC 6886, 3.1). Для запросов без ответа в результате null
+    static byte[][] exchangeAll(InetSocketAddress gateway, byte[][] requests, ToIntFunction<byte[]> requestOf,
+                                int timeoutMillis, int attempts) throws IOException {
+        byte[][] responses = new byte[requests.length][];
+        int pending = requests.length;
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(gateway);
+            byte[] buffer = new byte[1100];
+            int timeout = timeoutMillis;
+
+            for (int attempt = 0; attempt < attempts && pending > 0; attempt++) {
+                for (int i = 0; i < requests.length; i++) {
+                    if (responses[i] == null) {
+                        socket.send(new DatagramPacket(requests[i], requests[i].length));
+                    }
+                }
+
+                long deadline = System.nanoTime() + timeout * 1_000_000L;
+                while (pending > 0) {
+                    long left = (deadline - System.nanoTime()) / 1_000_000L;
+                    if (left <= 0) break;
+                    socket.setSoTimeout((int) left);
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    try {
+                        socket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+
+                    byte[] response = new byte[packet.getLength()];
+                    System.arraycopy(buffer, 0, response, 0, response.length);
+                    int index = requestOf.applyAsInt(response);
+                    if (index >= 0 && index < responses.length && responses[index] == null) {
+                        responses[index] = response;
+                        pending--;
+                    }
+                }
+                timeout *= 2;
+            }
+        }
+        return responses;
+    }
+}
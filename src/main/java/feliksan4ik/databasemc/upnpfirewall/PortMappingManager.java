@@ -0,0 +1,678 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+// Проброс портов через все выходы в интернет. Выход — цепочка шлюзов от ближнего к дальнему
+// (двойной NAT: роутер и CPE провайдера); у каждого шлюза свои способы проброса (Gateway).
+// Цепочка пробрасывается по шагам: сначала ближний шлюз, затем дальний — на внешний адрес
+// ближнего; разные выходы пробрасываются параллельно. Шлюзы берутся из конфига, иначе из
+// маршрутов по умолчанию; если внешний адрес последнего шлюза частный, за ним ищется следующий.
+// Занятые внешние порты отмечены в битовых картах по протоколу (65536 бит, 8 КБ каждая):
+// пересечение нового диапазона с чужим обнаруживается до отправки запросов шлюзу.
+// Пробросы и результаты опроса переживают перезапуск через StateJournal (restore/reconcile).
+final class PortMappingManager implements PortMapper {
+
+    // Проброс с меньшим остатком аренды не принимается: шлюз удалит его раньше первого продления
+    private static final long MIN_LEASE_MILLIS = 60_000;
+    // Больше слоёв NAT подряд не ищется
+    private static final int MAX_HOPS = 4;
+
+    private final Main plugin;
+    private final List<Chain> chains;
+    private final List<String> backendNames;
+    private final int lifetime;
+    private final int timeout;
+    private final int attempts;
+    private final boolean discoverOuter;
+
+    private final Map<Claim, List<Chain>> owners = new ConcurrentHashMap<>();
+    private final BitSet claimedTcp = new BitSet(65536);
+    private final BitSet claimedUdp = new BitSet(65536);
+    // Кто держит диапазон (правило порта или адреса); меняется вместе с owners под его замком
+    private final Map<Claim, Set<String>> holders = new HashMap<>();
+    // Диапазоны, принятые из журнала на всех выходах: первое открытие после запуска не идёт к шлюзу
+    private final Set<Claim> restored = ConcurrentHashMap.newKeySet();
+
+    private volatile List<StateJournal.Mapping> leftovers = List.of();
+
+    private volatile boolean probed;
+
+    PortMappingManager(Main plugin, List<List<InetAddress>> layouts, List<String> backendNames, int lifetime,
+                       int timeout, int attempts, boolean discoverOuter) {
+        this.plugin = plugin;
+        this.backendNames = List.copyOf(backendNames);
+        this.lifetime = lifetime;
+        this.timeout = timeout;
+        this.attempts = attempts;
+        this.discoverOuter = discoverOuter;
+
+        List<Chain> built = new ArrayList<>();
+        for (List<InetAddress> layout : layouts) {
+            Chain chain = new Chain();
+            for (InetAddress address : layout) {
+                chain.hops.add(gateway(address, chain.last()));
+            }
+            built.add(chain);
+        }
+        this.chains = List.copyOf(built);
+    }
+
+    static PortMappingManager create(Main plugin) {
+        int lifetime = Math.max(120, plugin.config.getInt("port-mapping.lifetime", 7200));
+        int timeout = Math.max(50, plugin.config.getInt("port-mapping.timeout", 250));
+        int attempts = Math.max(1, plugin.config.getInt("port-mapping.retries", 3));
+        boolean discoverOuter = plugin.config.getBoolean("port-mapping.discover-outer", false);
+
+        List<String> names = new ArrayList<>();
+        for (String name : plugin.config.getStringList("port-mapping.backends")) {
+            switch (name.toLowerCase()) {
+                case "pcp" -> names.add("pcp");
+                case "nat-pmp", "natpmp" -> names.add("nat-pmp");
+                // Проброс через UPnP (SOAP AddPortMapping) не реализован: раньше здесь была заглушка,
+                // которая сообщала об успехе, не трогая роутер, и скрывала отказ настоящих способов
+                case "upnp" -> plugin.getLogger().warning(plugin.getTranslation("portmapping.upnp_unsupported"));
+                default -> plugin.getLogger().warning(plugin.getTranslation("portmapping.unknown_backend", name));
+            }
+        }
+
+        List<List<InetAddress>> layouts = layouts(plugin);
+        if (layouts.isEmpty()) {
+            plugin.getLogger().info(plugin.getTranslation("portmapping.no_gateway"));
+        }
+        return new PortMappingManager(plugin, layouts, names, lifetime, timeout, attempts, discoverOuter);
+    }
+
+    // Шлюз с настроенными способами; inner — предыдущий шлюз цепочки, его внешний адрес нужен PCP
+    private Gateway gateway(InetAddress address, Gateway inner) {
+        List<PortMapper> mappers = new ArrayList<>();
+        for (String name : backendNames) {
+            switch (name) {
+                case "pcp" -> mappers.add(new PcpMapper(plugin, new InetSocketAddress(address, NatPmpMapper.PORT),
+                        lifetime, timeout, attempts, inner));
+                case "nat-pmp" -> mappers.add(new NatPmpMapper(plugin, new InetSocketAddress(address, NatPmpMapper.PORT),
+                        lifetime, timeout, attempts));
+                default -> {
+                }
+            }
+        }
+        return new Gateway(plugin, address, mappers);
+    }
+
+    @Override
+    public String name() {
+        for (Chain chain : chains) {
+            if (chain.isUsable()) return chain.hops.get(0).name();
+        }
+        return "-";
+    }
+
+    // Все шлюзы опрашиваются параллельно, затем за шлюзами с частным внешним адресом ищутся дальние
+    @Override
+    public synchronized long probe() {
+        List<Gateway> gateways = gateways();
+        List<CompletableFuture<Long>> results = new ArrayList<>();
+        for (Gateway gateway : gateways) {
+            results.add(CompletableFuture.supplyAsync(gateway::probe));
+        }
+        long best = -1;
+        for (CompletableFuture<Long> result : results) {
+            long latency = result.join();
+            if (latency >= 0 && (best < 0 || latency < best)) best = latency;
+        }
+
+        if (discoverOuter) {
+            List<CompletableFuture<Void>> discoveries = new ArrayList<>();
+            for (Chain chain : chains) {
+                discoveries.add(CompletableFuture.runAsync(() -> discoverOuter(chain)));
+            }
+            discoveries.forEach(CompletableFuture::join);
+        }
+        probed = true;
+
+        if (!isUsable()) {
+            plugin.getLogger().info(plugin.getTranslation("portmapping.probe_none"));
+            return -1;
+        }
+        plugin.getLogger().info(plugin.getTranslation("portmapping.probe_result", describe()));
+        return best;
+    }
+
+    // Частный или CGNAT внешний адрес последнего шлюза значит, что за ним ещё один NAT. Адрес
+    // дальнего шлюза не узнать по протоколу, проверяется первый адрес /24 внешнего адреса
+    // (так адресуют CPE большинство провайдеров); иначе дальний шлюз задаётся в конфиге
+    private void discoverOuter(Chain chain) {
+        while (chain.hops.size() < MAX_HOPS) {
+            Gateway last = chain.last();
+            InetAddress external = last.externalAddress();
+            if (external == null || !isPrivate(external)) return;
+
+            InetAddress candidate = firstHost(external);
+            boolean known = candidate == null || candidate.equals(external);
+            for (Gateway hop : chain.hops) {
+                known |= candidate != null && candidate.equals(hop.address());
+            }
+            Gateway outer = known ? null : gateway(candidate, last);
+            if (outer == null || outer.probe() < 0) {
+                plugin.getLogger().warning(plugin.getTranslation("portmapping.double_nat_unknown",
+                        last.label(), external.getHostAddress()));
+                return;
+            }
+
+            chain.hops.add(outer);
+            // Принятые из журнала диапазоны этого выхода пробрасываются заново, уже с дальним шлюзом
+            restored.removeIf(claim -> owners.getOrDefault(claim, List.of()).contains(chain));
+            plugin.getLogger().info(plugin.getTranslation("portmapping.double_nat", last.label(), outer.label()));
+        }
+    }
+
+    // Если команда пришла раньше фонового опроса, опрос выполняется здесь один раз.
+    // При постоянном превышении бюджета тика основной поток не ждёт шлюз: опрос уходит в фон
+    boolean isAvailable() {
+        if (!probed) {
+            if (plugin.getWatchdog().isDegraded() && plugin.getServer().isPrimaryThread()) {
+                plugin.getServer().getScheduler().runTaskAsynchronously(plugin, this::isAvailable);
+                return false;
+            }
+            synchronized (this) {
+                if (!probed) probe();
+            }
+        }
+        return isUsable();
+    }
+
+    private boolean isUsable() {
+        for (Chain chain : chains) {
+            if (chain.isUsable()) return true;
+        }
+        return false;
+    }
+
+    // Как PortMapper: диапазон держит один безымянный владелец
+    @Override
+    public boolean openPort(PortRange ports, Protocol protocol, String description) {
+        return openPort(new Hold("", ports, protocol), description);
+    }
+
+    @Override
+    public boolean closePort(PortRange ports, Protocol protocol) {
+        return closePort(new Hold("", ports, protocol));
+    }
+
+    // Повторное открытие тем же владельцем (продление, периодическая проверка) не конфликт и
+    // обновляет проброс; другой владелец того же диапазона и протокола присоединяется без запросов
+    // к шлюзу. Успех, если диапазон проброшен хотя бы через один выход
+    boolean openPort(Hold hold, String description) {
+        PortRange ports = hold.ports();
+        Protocol protocol = hold.protocol();
+        Claim claim = new Claim(ports, protocol);
+        synchronized (owners) {
+            if (!owners.containsKey(claim) && isClaimed(ports, protocol)) {
+                plugin.getLogger().warning(plugin.getTranslation("portmapping.conflict", ports, protocol));
+                return false;
+            }
+            Set<String> users = holders.get(claim);
+            if (users != null && owners.containsKey(claim) && !users.contains(hold.owner())) {
+                users.add(hold.owner());
+                return true;
+            }
+            if (restored.remove(claim)) {
+                holders.computeIfAbsent(claim, key -> new HashSet<>()).add(hold.owner());
+                return true;
+            }
+        }
+
+        List<Chain> usable = new ArrayList<>();
+        for (Chain chain : chains) {
+            if (chain.isUsable()) usable.add(chain);
+        }
+        List<Chain> mapped = each(usable, chain -> chain.open(ports, protocol, description));
+        for (Chain chain : usable) {
+            if (!mapped.contains(chain) && chains.size() > 1) {
+                plugin.getLogger().warning(plugin.getTranslation("portmapping.chain_failed", chain.label(), ports));
+            }
+        }
+        if (mapped.isEmpty()) return false;
+
+        synchronized (owners) {
+            // Выход, не продливший диапазон сейчас, остаётся владельцем: при закрытии он тоже получит запрос
+            Set<Chain> owner = new LinkedHashSet<>(mapped);
+            owner.addAll(owners.getOrDefault(claim, List.of()));
+            owners.put(claim, List.copyOf(owner));
+            holders.computeIfAbsent(claim, key -> new HashSet<>()).add(hold.owner());
+            mark(ports, protocol, true);
+            plugin.getStateJournal().rules(version(owners.keySet()));
+        }
+        return true;
+    }
+
+    // Владелец уже держит проброс: периодической проверке открывать его заново не нужно,
+    // продление идёт через renew()
+    boolean isMapped(Hold hold) {
+        synchronized (owners) {
+            Set<String> users = holders.get(new Claim(hold.ports(), hold.protocol()));
+            return users != null && users.contains(hold.owner());
+        }
+    }
+
+    // Владелец отпускает диапазон; шлюзам закрытие уходит, только когда владельцев не осталось.
+    // Проброс из журнала, который ещё никто не открыл, закрывает первый отпустивший его;
+    // диапазон, который не проброшен, закрывать нечего
+    boolean closePort(Hold hold) {
+        Claim claim = new Claim(hold.ports(), hold.protocol());
+        List<Chain> closing;
+        synchronized (owners) {
+            Set<String> users = holders.get(claim);
+            if (users != null) {
+                if (!users.remove(hold.owner()) || !users.isEmpty()) return true;
+                holders.remove(claim);
+            }
+            closing = owners.remove(claim);
+            restored.remove(claim);
+            if (closing == null) return true;
+            mark(hold.ports(), hold.protocol(), false);
+            plugin.getStateJournal().rules(version(owners.keySet()));
+        }
+
+        List<Chain> closed = each(closing, chain -> chain.close(hold.ports(), hold.protocol()));
+        return closed.size() == closing.size();
+    }
+
+    // Выходы независимы: каждый в своём потоке, один выход — без переключения потоков
+    private static List<Chain> each(List<Chain> targets, Predicate<Chain> action) {
+        if (targets.size() == 1) {
+            return action.test(targets.get(0)) ? List.of(targets.get(0)) : List.of();
+        }
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (Chain chain : targets) {
+            results.add(CompletableFuture.supplyAsync(() -> action.test(chain)));
+        }
+        List<Chain> succeeded = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i++) {
+            if (results.get(i).join()) succeeded.add(targets.get(i));
+        }
+        return succeeded;
+    }
+
+    private boolean isClaimed(PortRange ports, Protocol protocol) {
+        if (protocol != Protocol.UDP && intersects(claimedTcp, ports)) return true;
+        return protocol != Protocol.TCP && intersects(claimedUdp, ports);
+    }
+
+    private static boolean intersects(BitSet claimed, PortRange ports) {
+        int next = claimed.nextSetBit(ports.from());
+        return next >= 0 && next <= ports.to();
+    }
+
+    private void mark(PortRange ports, Protocol protocol, boolean value) {
+        if (protocol != Protocol.UDP) claimedTcp.set(ports.from(), ports.to() + 1, value);
+        if (protocol != Protocol.TCP) claimedUdp.set(ports.from(), ports.to() + 1, value);
+    }
+
+    // Шлюзы продлевают пробросы параллельно; нездоровый шлюз перед этим опрашивается заново
+    @Override
+    public void renew() {
+        List<CompletableFuture<Void>> renewals = new ArrayList<>();
+        for (Gateway gateway : gateways()) {
+            renewals.add(CompletableFuture.runAsync(gateway::renew));
+        }
+        renewals.forEach(CompletableFuture::join);
+    }
+
+    private List<Gateway> gateways() {
+        List<Gateway> gateways = new ArrayList<>();
+        for (Chain chain : chains) {
+            gateways.addAll(chain.hops);
+        }
+        return gateways;
+    }
+
+    // Состояние прошлого запуска из журнала, вызывается при включении до фонового опроса.
+    // Свежие результаты опроса сразу дают порядок способов; живые пробросы, целиком покрывающие
+    // нужный правилам диапазон на каждом шлюзе выхода, принимаются без запросов к шлюзу. Остальные
+    // (правило удалено, сервер упал, не закрыв порты) удаляются точечно в reconcile() после опроса
+    void restore(Collection<PortInfo> wanted) {
+        StateJournal journal = plugin.getStateJournal();
+        long now = System.currentTimeMillis();
+        long maxAge = Math.max(0, plugin.config.getLong("state.probe-max-age", 3600)) * 1000;
+
+        List<Gateway> gateways = gateways();
+        boolean fresh = !gateways.isEmpty();
+        for (Gateway gateway : gateways) {
+            fresh = gateway.restore(journal.probes(), maxAge) && fresh;
+        }
+        if (fresh) probed = true;
+
+        // Живые пробросы журнала по способу: ключ порта и протокола. Пробросы шлюзов, которых
+        // пока нет (дальний шлюз находится опросом), ждут reconcile()
+        Map<PortMapper, Map<Long, StateJournal.Mapping>> live = new LinkedHashMap<>();
+        List<StateJournal.Mapping> unknown = new ArrayList<>();
+        int expired = 0;
+        for (StateJournal.Mapping mapping : journal.mappings()) {
+            if (mapping.expiresAt() - now < MIN_LEASE_MILLIS) {
+                journal.unmapped(mapping.backend(), mapping.gateway(), mapping.port(), mapping.protocol());
+                expired++;
+                continue;
+            }
+            PortMapper backend = null;
+            for (Gateway gateway : gateways) {
+                if (backend == null) backend = gateway.ownerOf(mapping);
+            }
+            if (backend == null) {
+                unknown.add(mapping);
+                continue;
+            }
+            live.computeIfAbsent(backend, key -> new HashMap<>()).put(mapping.key(), mapping);
+        }
+
+        Set<Claim> claims = new HashSet<>();
+        for (PortInfo info : wanted) {
+            claims.add(new Claim(info.ports(), info.protocol()));
+        }
+        if (journal.rulesVersion() != 0 && journal.rulesVersion() != version(claims)) {
+            plugin.getLogger().info(plugin.getTranslation("state.rules_changed"));
+        }
+
+        int adopted = 0;
+        synchronized (owners) {
+            for (Claim claim : claims) {
+                if (isClaimed(claim.ports(), claim.protocol())) continue;
+
+                List<Chain> covered = new ArrayList<>();
+                for (Chain chain : chains) {
+                    int count = adopt(chain, claim, live);
+                    if (count < 0) continue;
+                    adopted += count;
+                    covered.add(chain);
+                }
+                if (covered.isEmpty()) continue;
+
+                owners.put(claim, List.copyOf(covered));
+                mark(claim.ports(), claim.protocol(), true);
+                // Выход без живых пробросов получит диапазон при первом открытии
+                if (covered.size() == chains.size()) restored.add(claim);
+            }
+        }
+
+        List<StateJournal.Mapping> unwanted = new ArrayList<>(unknown);
+        for (Map<Long, StateJournal.Mapping> mappings : live.values()) {
+            unwanted.addAll(mappings.values());
+        }
+        leftovers = unwanted;
+
+        if (journal.wasCrashed() && !unwanted.isEmpty()) {
+            plugin.getLogger().warning(plugin.getTranslation("state.crashed"));
+        }
+        if (adopted + unwanted.size() + expired > 0) {
+            plugin.getLogger().info(plugin.getTranslation("state.restored", adopted, unwanted.size(), expired));
+        }
+    }
+
+    // Принять диапазон на выходе, если на каждом его шлюзе какой-то способ держит его целиком.
+    // Возвращает число принятых пробросов, -1 — выход не покрыт
+    private int adopt(Chain chain, Claim claim, Map<PortMapper, Map<Long, StateJournal.Mapping>> live) {
+        List<PortMapper> found = new ArrayList<>();
+        List<List<StateJournal.Mapping>> coverings = new ArrayList<>();
+        for (Gateway hop : chain.hops) {
+            List<StateJournal.Mapping> covering = null;
+            for (PortMapper backend : hop.backends()) {
+                Map<Long, StateJournal.Mapping> mappings = live.get(backend);
+                covering = mappings != null ? covering(mappings, claim) : null;
+                if (covering != null) {
+                    found.add(backend);
+                    break;
+                }
+            }
+            if (covering == null) return -1;
+            coverings.add(covering);
+        }
+
+        int adopted = 0;
+        for (int i = 0; i < chain.hops.size(); i++) {
+            for (StateJournal.Mapping mapping : coverings.get(i)) {
+                chain.hops.get(i).adopted(claim.ports(), found.get(i), mapping);
+                live.get(found.get(i)).remove(mapping.key());
+                adopted++;
+            }
+        }
+        return adopted;
+    }
+
+    // После опроса: удаление лишних пробросов прошлого запуска и продление принятых, которым пора.
+    // Не удалённые шлюзом остаются в журнале, следующий запуск повторит попытку; пробросы шлюзов,
+    // которых нет и после опроса, из журнала убираются — до них не достучаться
+    void reconcile() {
+        List<StateJournal.Mapping> pending = leftovers;
+        leftovers = List.of();
+
+        Map<PortMapper, List<StateJournal.Mapping>> byBackend = new LinkedHashMap<>();
+        List<Gateway> gateways = gateways();
+        for (StateJournal.Mapping mapping : pending) {
+            PortMapper backend = null;
+            for (Gateway gateway : gateways) {
+                if (backend == null) backend = gateway.ownerOf(mapping);
+            }
+            if (backend == null) {
+                plugin.getStateJournal().unmapped(mapping.backend(), mapping.gateway(), mapping.port(), mapping.protocol());
+                continue;
+            }
+            byBackend.computeIfAbsent(backend, key -> new ArrayList<>()).add(mapping);
+        }
+
+        int removed = 0;
+        for (Map.Entry<PortMapper, List<StateJournal.Mapping>> entry : byBackend.entrySet()) {
+            if (entry.getKey().release(entry.getValue())) {
+                removed += entry.getValue().size();
+            } else {
+                plugin.getLogger().warning(plugin.getTranslation("state.release_failed",
+                        entry.getKey().name(), entry.getValue().size()));
+            }
+        }
+        if (removed > 0) plugin.getLogger().info(plugin.getTranslation("state.released", removed));
+
+        renew();
+    }
+
+    // Пробросы журнала, покрывающие весь диапазон по всем протоколам правила, иначе null
+    private static List<StateJournal.Mapping> covering(Map<Long, StateJournal.Mapping> mappings, Claim claim) {
+        List<StateJournal.Mapping> result = new ArrayList<>();
+        for (int port = claim.ports().from(); port <= claim.ports().to(); port++) {
+            for (Protocol protocol : List.of(Protocol.TCP, Protocol.UDP)) {
+                if (!claim.protocol().covers(protocol)) continue;
+                StateJournal.Mapping mapping = mappings.get(((long) port << 8) | protocol.ordinal());
+                if (mapping == null) return null;
+                result.add(mapping);
+            }
+        }
+        return result;
+    }
+
+    // Версия набора пробрасываемых диапазонов: не зависит от порядка, 0 — пустой набор
+    private static long version(Collection<Claim> claims) {
+        long version = 0;
+        for (Claim claim : claims) {
+            long hash = ((long) claim.ports().from() << 24 | (long) claim.ports().to() << 8 | claim.protocol().ordinal())
+                    * 0x9E3779B97F4A7C15L;
+            version += hash ^ (hash >>> 29);
+        }
+        return version;
+    }
+
+    // "192.168.1.1 (NAT-PMP 1.20 ms, PCP -) > 10.0.0.1 (PCP 3.00 ms); 192.168.2.1 (...)"
+    // для статуса и лога: выходы через точку с запятой, слои NAT через ">"
+    String describe() {
+        if (!probed) return plugin.getTranslation("portmapping.not_probed");
+        if (chains.isEmpty()) return "-";
+
+        StringBuilder builder = new StringBuilder();
+        for (Chain chain : chains) {
+            if (builder.length() > 0) builder.append("; ");
+            for (int i = 0; i < chain.hops.size(); i++) {
+                if (i > 0) builder.append(" > ");
+                builder.append(chain.hops.get(i).describe());
+            }
+        }
+        return builder.toString();
+    }
+
+    // Выходы: port-mapping.gateways ("192.168.1.1 > 10.0.0.1" — слои NAT от ближнего к дальнему),
+    // иначе port-mapping.gateway, иначе все маршруты по умолчанию
+    private static List<List<InetAddress>> layouts(Main plugin) {
+        List<List<InetAddress>> layouts = new ArrayList<>();
+        List<String> configured = plugin.config.getStringList("port-mapping.gateways");
+        for (String entry : configured) {
+            List<InetAddress> hops = new ArrayList<>();
+            for (String part : entry.split(">")) {
+                InetAddress address = literal(part.trim());
+                if (address == null) {
+                    plugin.getLogger().warning(plugin.getTranslation("portmapping.invalid_gateway", entry));
+                    hops = null;
+                    break;
+                }
+                hops.add(address);
+            }
+            if (hops != null) layouts.add(hops);
+        }
+        if (!configured.isEmpty()) return layouts;
+
+        String single = plugin.config.getString("port-mapping.gateway", "");
+        if (!single.isEmpty()) {
+            InetAddress address = literal(single);
+            if (address != null) layouts.add(List.of(address));
+            return layouts;
+        }
+
+        for (InetAddress address : defaultRoutes()) {
+            layouts.add(List.of(address));
+        }
+        return layouts;
+    }
+
+    // Только литерал: create() вызывается в основном потоке, DNS-запрос здесь недопустим
+    private static InetAddress literal(String text) {
+        try {
+            return IpAddress.parse(text) != null ? InetAddress.getByName(text) : null;
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    // Шлюзы маршрутов по умолчанию из /proc/net/route (Linux), основной — с меньшей метрикой первым
+    private static List<InetAddress> defaultRoutes() {
+        Path routes = Path.of("/proc/net/route");
+        if (!Files.isReadable(routes)) return List.of();
+
+        Map<InetAddress, Integer> metrics = new LinkedHashMap<>();
+        try {
+            for (String line : Files.readAllLines(routes)) {
+                String[] columns = line.trim().split("\\s+");
+                // Iface Destination Gateway Flags RefCnt Use Metric ...; адреса в hex, порядок байт little-endian
+                if (columns.length > 6 && "00000000".equals(columns[1]) && !"00000000".equals(columns[2])) {
+                    int address = Integer.reverseBytes(Integer.parseUnsignedInt(columns[2], 16));
+                    InetAddress gateway = InetAddress.getByAddress(new byte[]{
+                            (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address});
+                    metrics.merge(gateway, Integer.parseInt(columns[6]), Math::min);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return List.of();
+        }
+
+        List<InetAddress> gateways = new ArrayList<>(metrics.keySet());
+        gateways.sort(Comparator.comparingInt(metrics::get));
+        return gateways;
+    }
+
+    // Частные сети, link-local и CGNAT (100.64.0.0/10): за таким внешним адресом ещё один NAT
+    static boolean isPrivate(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        boolean cgnat = bytes.length == 4 && bytes[0] == 100 && (bytes[1] & 0xC0) == 64;
+        return address.isSiteLocalAddress() || address.isLinkLocalAddress() || cgnat;
+    }
+
+    // x.y.z.1 для IPv4-адреса x.y.z.w, для IPv6 — null
+    private static InetAddress firstHost(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (bytes.length != 4) return null;
+        bytes[3] = 1;
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    // Шлюзы одного выхода от ближнего к дальнему. Дальний пробрасывает порт на внешний адрес
+    // ближнего, поэтому шаги идут по порядку; при ошибке сделанные шаги откатываются
+    private static final class Chain {
+        final List<Gateway> hops = new CopyOnWriteArrayList<>();
+
+        Gateway last() {
+            return hops.isEmpty() ? null : hops.get(hops.size() - 1);
+        }
+
+        boolean isUsable() {
+            if (hops.isEmpty()) return false;
+            for (Gateway hop : hops) {
+                if (!hop.isSupported()) return false;
+            }
+            return true;
+        }
+
+        boolean open(PortRange ports, Protocol protocol, String description) {
+            for (int i = 0; i < hops.size(); i++) {
+                if (!hops.get(i).openPort(ports, protocol, description)) {
+                    for (int j = i - 1; j >= 0; j--) {
+                        hops.get(j).closePort(ports, protocol);
+                    }
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // С дальнего шлюза: ближний не остаётся без проброса, пока на него указывает дальний
+        boolean close(PortRange ports, Protocol protocol) {
+            boolean success = true;
+            for (int i = hops.size() - 1; i >= 0; i--) {
+                success &= hops.get(i).closePort(ports, protocol);
+            }
+            return success;
+        }
+
+        String label() {
+            StringBuilder builder = new StringBuilder();
+            for (Gateway hop : hops) {
+                if (builder.length() > 0) builder.append(" > ");
+                builder.append(hop.label());
+            }
+            return builder.toString();
+        }
+    }
+
+    private record Claim(PortRange ports, Protocol protocol) {
+    }
+
+    // Проброс, нужный одному владельцу: owner различает правила с одним диапазоном и протоколом
+    record Hold(String owner, PortRange ports, Protocol protocol) {
+    }
+}
@@ -0,0 +1,50 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+// Диапазон портов включительно. Одиночный порт — диапазон из одного порта.
+// В конфиге и командах: "25565" или "25565-25600"
+record PortRange(int from, int to) {
+
+    static PortRange of(int port) {
+        return new PortRange(port, port);
+    }
+
+    // null, если строка не порт и не диапазон 1-65535
+    static PortRange parse(String text) {
+        if (text == null) return null;
+        int dash = text.indexOf('-');
+        try {
+            int from = Integer.parseInt(text.substring(0, dash < 0 ? text.length() : dash).trim());
+            int to = dash < 0 ? from : Integer.parseInt(text.substring(dash + 1).trim());
+            if (from < 1 || to > 65535 || from > to) return null;
+            return new PortRange(from, to);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    boolean contains(int port) {
+        return port >= from && port <= to;
+    }
+
+    boolean overlaps(PortRange other) {
+        return from <= other.to && other.from <= to;
+    }
+
+    boolean isSingle() {
+        return from == to;
+    }
+
+    int size() {
+        return to - from + 1;
+    }
+
+    // Одиночный порт пишется в конфиг числом, как раньше
+    Object toConfig() {
+        return isSingle() ? (Object) from : toString();
+    }
+
+    @Override
+    public String toString() {
+        return isSingle() ? Integer.toString(from) : from + "-" + to;
+    }
+}
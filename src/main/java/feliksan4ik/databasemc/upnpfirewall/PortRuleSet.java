@@ -0,0 +1,122 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// Правила портов одного префикса: непересекающиеся диапазоны, отсортированные по началу.
+// Для проверки доступа соседние диапазоны с тем же протоколом и действием слиты в один
+// интервал, поиск — двоичный. Набор неизменяемый: изменение создаёт новый, который
+// заменяет старый в PrefixMatcher, поэтому читать его можно из любого потока.
+final class PortRuleSet {
+
+    static final PortRuleSet EMPTY = new PortRuleSet(new PortIPManager.PortIPRule[0]);
+
+    private final PortIPManager.PortIPRule[] rules;
+
+    private final int[] starts;
+    private final int[] ends;
+    private final Protocol[] protocols;
+    private final RuleAction[] actions;
+
+    private PortRuleSet(PortIPManager.PortIPRule[] rules) {
+        this.rules = rules;
+
+        int count = 0;
+        int[] mergedStarts = new int[rules.length];
+        int[] mergedEnds = new int[rules.length];
+        Protocol[] mergedProtocols = new Protocol[rules.length];
+        RuleAction[] mergedActions = new RuleAction[rules.length];
+        for (PortIPManager.PortIPRule rule : rules) {
+            if (count > 0 && mergedEnds[count - 1] + 1 == rule.ports().from()
+                    && mergedProtocols[count - 1] == rule.protocol() && mergedActions[count - 1] == rule.action()) {
+                mergedEnds[count - 1] = rule.ports().to();
+                continue;
+            }
+            mergedStarts[count] = rule.ports().from();
+            mergedEnds[count] = rule.ports().to();
+            mergedProtocols[count] = rule.protocol();
+            mergedActions[count] = rule.action();
+            count++;
+        }
+        this.starts = Arrays.copyOf(mergedStarts, count);
+        this.ends = Arrays.copyOf(mergedEnds, count);
+        this.protocols = Arrays.copyOf(mergedProtocols, count);
+        this.actions = Arrays.copyOf(mergedActions, count);
+    }
+
+    // Новый набор с правилом rule; пересекающиеся с ним правила вытесняются
+    PortRuleSet with(PortIPManager.PortIPRule rule) {
+        List<PortIPManager.PortIPRule> result = new ArrayList<>(rules.length + 1);
+        for (PortIPManager.PortIPRule existing : rules) {
+            if (!existing.ports().overlaps(rule.ports())) result.add(existing);
+        }
+        result.add(rule);
+        result.sort(Comparator.comparingInt(existing -> existing.ports().from()));
+        return new PortRuleSet(result.toArray(new PortIPManager.PortIPRule[0]));
+    }
+
+    PortRuleSet without(PortIPManager.PortIPRule rule) {
+        List<PortIPManager.PortIPRule> result = new ArrayList<>(rules.length);
+        for (PortIPManager.PortIPRule existing : rules) {
+            if (!existing.equals(rule)) result.add(existing);
+        }
+        return result.size() == rules.length ? this : new PortRuleSet(result.toArray(new PortIPManager.PortIPRule[0]));
+    }
+
+    // Правило, в диапазон которого входит порт, либо null
+    PortIPManager.PortIPRule find(int port) {
+        int low = 0;
+        int high = rules.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            PortRange ports = rules[middle].ports();
+            if (port < ports.from()) {
+                high = middle - 1;
+            } else if (port > ports.to()) {
+                low = middle + 1;
+            } else {
+                return rules[middle];
+            }
+        }
+        return null;
+    }
+
+    List<PortIPManager.PortIPRule> overlapping(PortRange range) {
+        List<PortIPManager.PortIPRule> result = new ArrayList<>(1);
+        for (PortIPManager.PortIPRule rule : rules) {
+            if (rule.ports().overlaps(range)) result.add(rule);
+        }
+        return result;
+    }
+
+    // Действие для порта и протокола, либо null, если правила для него нет
+    RuleAction verdict(int port, Protocol protocol) {
+        int low = 0;
+        int high = starts.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (port < starts[middle]) {
+                high = middle - 1;
+            } else if (port > ends[middle]) {
+                low = middle + 1;
+            } else {
+                return protocols[middle].covers(protocol) ? actions[middle] : null;
+            }
+        }
+        return null;
+    }
+
+    List<PortIPManager.PortIPRule> rules() {
+        return List.of(rules);
+    }
+
+    int size() {
+        return rules.length;
+    }
+
+    boolean isEmpty() {
+        return rules.length == 0;
+    }
+}
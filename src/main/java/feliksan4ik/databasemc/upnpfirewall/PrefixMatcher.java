@@ -0,0 +1,217 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+// Общая структура поиска по префиксам для всех менеджеров: по хэш-таблице на каждую
+// используемую длину префикса. Поиск самого длинного совпадения стоит столько
+// хэш-обращений, сколько разных длин в наборе (обычно 2-4: /32, /24, /64, /48).
+//
+// Изменения идут в обычные HashMap (один поток-писатель), после чего таблица этой длины
+// пересобирается в массивы long и публикуется вместе с остальными одним volatile-снимком.
+// Поиск читает только снимок: без блокировок, из любого потока и без выделения памяти.
+final class PrefixMatcher<T> {
+
+    @SuppressWarnings("unchecked")
+    private final Map<IpAddress, T>[] byLength = new Map[129];
+    private final Table[] compiled = new Table[129];
+    private volatile Snapshot snapshot = new Snapshot(new Table[0]);
+    private int size;
+    private int batchDepth;
+    private boolean dirty;
+
+    void put(IpPrefix prefix, T value) {
+        Map<IpAddress, T> table = byLength[prefix.length()];
+        if (table == null) {
+            table = new HashMap<>();
+            byLength[prefix.length()] = table;
+        }
+        if (table.put(prefix.network(), value) == null) {
+            size++;
+        }
+        changed(prefix.length());
+    }
+
+    T get(IpPrefix prefix) {
+        Map<IpAddress, T> table = byLength[prefix.length()];
+        return table == null ? null : table.get(prefix.network());
+    }
+
+    T remove(IpPrefix prefix) {
+        Map<IpAddress, T> table = byLength[prefix.length()];
+        if (table == null) return null;
+        T removed = table.remove(prefix.network());
+        if (removed != null) {
+            size--;
+            changed(prefix.length());
+        }
+        return removed;
+    }
+
+    // Внутри batch пустой набор не публикуется: до конца пачки читатели видят прежний снимок
+    void clear() {
+        for (int length = 0; length <= 128; length++) {
+            byLength[length] = null;
+            compiled[length] = null;
+        }
+        size = 0;
+        if (batchDepth > 0) {
+            dirty = true;
+            return;
+        }
+        snapshot = new Snapshot(new Table[0]);
+    }
+
+    // Массовые изменения: таблицы пересобираются один раз в конце
+    void batch(Runnable changes) {
+        batchDepth++;
+        try {
+            changes.run();
+        } finally {
+            if (--batchDepth == 0 && dirty) {
+                dirty = false;
+                for (int length = 0; length <= 128; length++) {
+                    compiled[length] = compile(length);
+                }
+                publish();
+            }
+        }
+    }
+
+    T longestMatch(IpAddress address) {
+        return longestMatch(address.high(), address.low());
+    }
+
+    @SuppressWarnings("unchecked")
+    T longestMatch(long high, long low) {
+        for (Table table : snapshot.tables) {
+            Object value = table.get(high & table.highMask, low & table.lowMask);
+            if (value != null) return (T) value;
+        }
+        return null;
+    }
+
+    // Все совпадения, от самого длинного префикса к самому короткому
+    @SuppressWarnings("unchecked")
+    List<T> matches(IpAddress address) {
+        List<T> result = new ArrayList<>(2);
+        for (Table table : snapshot.tables) {
+            Object value = table.get(address.high() & table.highMask, address.low() & table.lowMask);
+            if (value != null) result.add((T) value);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<IpPrefix, T> action) {
+        for (Table table : snapshot.tables) {
+            for (int i = 0; i < table.values.length; i++) {
+                if (table.values[i] != null) {
+                    action.accept(new IpPrefix(new IpAddress(table.highs[i], table.lows[i]), table.length),
+                            (T) table.values[i]);
+                }
+            }
+        }
+    }
+
+    List<T> values() {
+        List<T> result = new ArrayList<>(size);
+        forEach((prefix, value) -> result.add(value));
+        return result;
+    }
+
+    // Меняется при каждой публикации снимка: по нему потребители вне потока-писателя замечают изменения
+    Object version() {
+        return snapshot;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void changed(int length) {
+        if (batchDepth > 0) {
+            dirty = true;
+            return;
+        }
+        compiled[length] = compile(length);
+        publish();
+    }
+
+    private Table compile(int length) {
+        Map<IpAddress, T> source = byLength[length];
+        if (source == null || source.isEmpty()) return null;
+
+        Table table = new Table(length, source.size());
+        for (Map.Entry<IpAddress, T> entry : source.entrySet()) {
+            table.insert(entry.getKey().high(), entry.getKey().low(), entry.getValue());
+        }
+        return table;
+    }
+
+    private void publish() {
+        List<Table> tables = new ArrayList<>();
+        for (int length = 128; length >= 0; length--) {
+            if (compiled[length] != null) tables.add(compiled[length]);
+        }
+        snapshot = new Snapshot(tables.toArray(new Table[0]));
+    }
+
+    private record Snapshot(Table[] tables) {
+    }
+
+    // Открытая адресация по паре long, заполнение не больше половины
+    private static final class Table {
+
+        final int length;
+        final long highMask;
+        final long lowMask;
+        final long[] highs;
+        final long[] lows;
+        final Object[] values;
+        final int mask;
+
+        Table(int length, int entries) {
+            this.length = length;
+            this.highMask = IpAddress.highMask(length);
+            this.lowMask = IpAddress.lowMask(length);
+            int capacity = Integer.highestOneBit(Math.max(2, entries) * 2 - 1) << 1;
+            this.highs = new long[capacity];
+            this.lows = new long[capacity];
+            this.values = new Object[capacity];
+            this.mask = capacity - 1;
+        }
+
+        void insert(long high, long low, Object value) {
+            int slot = slot(high, low);
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            highs[slot] = high;
+            lows[slot] = low;
+            values[slot] = value;
+        }
+
+        Object get(long high, long low) {
+            int slot = slot(high, low);
+            Object value;
+            while ((value = values[slot]) != null) {
+                if (highs[slot] == high && lows[slot] == low) return value;
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        private int slot(long high, long low) {
+            long hash = high * 0x9E3779B97F4A7C15L ^ low * 0xC2B2AE3D27D4EB4FL;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+// Протокол порта. ANY допустим только в правилах блокировки
+enum Protocol {
+    TCP, UDP, ANY;
+
+    // null, если строка не протокол
+    static Protocol parse(String value) {
+        for (Protocol protocol : values()) {
+            if (protocol.name().equalsIgnoreCase(value)) return protocol;
+        }
+        return null;
+    }
+
+    boolean covers(Protocol other) {
+        return this == ANY || this == other;
+    }
+}
@@ -0,0 +1,449 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+// Офлайн-проигрывание лога подключений против текущего и нового набора правил (IPv4 и IPv6).
+// Понимает два вида строк:
+//  - latest.log сервера: "Steve[/1.2.3.4:51234] logged in ..." и "Steve[/[2001:db8::1]:51234] logged in ...";
+//  - адрес в начале строки, дальше любые колонки через пробел, запятую или табуляцию: список адресов
+//    по одному на строку, access-лог прокси или веб-сервера, выгрузка из базы ("1.2.3.4 ...", "2001:db8::1,...").
+// Из игры: /firewall replay candidate.yml [log], отдельно от сервера:
+// java -cp spigot.jar:Upnpfirewall.jar feliksan4ik.databasemc.upnpfirewall.ReplayTool current.yml candidate.yml latest.log
+public final class ReplayTool {
+
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_LINE = 64 * 1024;
+    private static final int TOP_PREFIXES = 10;
+
+    private static final byte[] LOGGED_IN = "] logged in".getBytes();
+
+    private ReplayTool() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: ReplayTool <current.yml> <candidate.yml> <log>");
+            System.exit(1);
+        }
+
+        RuleSet current = RuleSet.from(YamlConfiguration.loadConfiguration(new File(args[0])));
+        RuleSet candidate = RuleSet.from(YamlConfiguration.loadConfiguration(new File(args[1])));
+
+        Report report = replay(Path.of(args[2]), current, candidate);
+
+        System.out.printf("Lines: %d, logins: %d, distinct addresses: %d (%d ms)%n",
+                report.lines(), report.logins(), report.distinctAddresses(), report.elapsedMillis());
+        System.out.printf("Newly blocked: %d addresses, %d logins%n", report.newlyBlocked(), report.newlyBlockedLogins());
+        System.out.printf("Newly allowed: %d addresses, %d logins%n", report.newlyAllowed(), report.newlyAllowedLogins());
+        for (PrefixCount prefix : report.topPrefixes()) {
+            System.out.printf("  %s: %d logins%n", prefix.prefix(), prefix.logins());
+        }
+    }
+
+    static Report replay(Path log, RuleSet current, RuleSet candidate) throws IOException {
+        long started = System.nanoTime();
+
+        AddressCounter counts;
+        long lines;
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+            ParseTask root = new ParseTask(channel, 0, channel.size());
+            counts = ForkJoinPool.commonPool().invoke(root);
+            lines = counts.lines;
+        }
+
+        // Каждый адрес проверяется один раз, независимо от числа входов с него
+        IpAddress[] addresses = counts.keys();
+        byte[] changes = new byte[addresses.length];
+        IntStream.range(0, addresses.length).parallel().forEach(i -> {
+            IpAddress address = addresses[i];
+            boolean blockedBefore = current.isBlocked(address);
+            boolean blockedAfter = candidate.isBlocked(address);
+            if (!blockedBefore && blockedAfter) {
+                changes[i] = 1;
+            } else if (blockedBefore && !blockedAfter) {
+                changes[i] = 2;
+            }
+        });
+
+        long logins = 0;
+        int newlyBlocked = 0;
+        int newlyAllowed = 0;
+        long newlyBlockedLogins = 0;
+        long newlyAllowedLogins = 0;
+        AddressCounter prefixes = new AddressCounter();
+
+        for (int i = 0; i < addresses.length; i++) {
+            IpAddress address = addresses[i];
+            int hits = counts.get(address.high(), address.low());
+            logins += hits;
+            if (changes[i] == 0) continue;
+
+            if (changes[i] == 1) {
+                newlyBlocked++;
+                newlyBlockedLogins += hits;
+            } else {
+                newlyAllowed++;
+                newlyAllowedLogins += hits;
+            }
+            // Затронутые сети: /24 для IPv4, /64 для IPv6
+            int length = address.isIPv4() ? 96 + 24 : 64;
+            prefixes.add(address.high() & IpAddress.highMask(length), address.low() & IpAddress.lowMask(length), hits);
+        }
+
+        List<PrefixCount> top = new ArrayList<>();
+        for (IpAddress prefix : prefixes.keys()) {
+            int length = prefix.isIPv4() ? 96 + 24 : 64;
+            top.add(new PrefixCount(IpPrefix.of(prefix, length).toString(), prefixes.get(prefix.high(), prefix.low())));
+        }
+        top.sort((a, b) -> Long.compare(b.logins(), a.logins()));
+        if (top.size() > TOP_PREFIXES) {
+            top = new ArrayList<>(top.subList(0, TOP_PREFIXES));
+        }
+
+        return new Report(lines, logins, addresses.length, newlyBlocked, newlyBlockedLogins,
+                newlyAllowed, newlyAllowedLogins, top, (System.nanoTime() - started) / 1_000_000);
+    }
+
+    // Разбор участка файла. Строка принадлежит участку, в котором она начинается,
+    // поэтому соседние участки не считают одну строку дважды.
+    private static final class ParseTask extends RecursiveTask<AddressCounter> {
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        ParseTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected AddressCounter compute() {
+            if (end - start > CHUNK_SIZE) {
+                long middle = start + (end - start) / 2;
+                ParseTask left = new ParseTask(channel, start, middle);
+                ParseTask right = new ParseTask(channel, middle, end);
+                left.fork();
+                AddressCounter result = right.compute();
+                result.merge(left.join());
+                return result;
+            }
+
+            AddressCounter counter = new AddressCounter();
+            Cursor cursor = new Cursor();
+            try {
+                long size = channel.size();
+                long mapStart = Math.max(0, start - 1);
+                long mapEnd = Math.min(size, end + MAX_LINE);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+
+                int limit = (int) (end - mapStart);
+                int pos = (int) (start - mapStart);
+
+                // Пропускаем хвост строки, начатой в предыдущем участке
+                if (start > 0 && buffer.get(pos - 1) != '\n') {
+                    while (pos < buffer.limit() && buffer.get(pos) != '\n') pos++;
+                    pos++;
+                }
+
+                while (pos < limit) {
+                    int lineEnd = pos;
+                    while (lineEnd < buffer.limit() && buffer.get(lineEnd) != '\n') lineEnd++;
+
+                    counter.lines++;
+                    parseLine(buffer, pos, lineEnd, counter, cursor);
+                    pos = lineEnd + 1;
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return counter;
+        }
+    }
+
+    private static void parseLine(MappedByteBuffer buffer, int from, int to, AddressCounter counter, Cursor cursor) {
+        // Адрес в начале строки, за ним конец строки или разделитель колонок
+        if (parseAddress(buffer, from, to, cursor) && isDelimiter(buffer, cursor.pos, to)) {
+            counter.add(cursor.high, cursor.low, 1);
+            return;
+        }
+
+        // latest.log: "Steve[/1.2.3.4:51234] logged in with entity id ..."
+        for (int i = from; i < to - 1; i++) {
+            if (buffer.get(i) == '[' && buffer.get(i + 1) == '/') {
+                if (!parseAddress(buffer, i + 2, to, cursor)) continue;
+
+                int pos = cursor.pos;
+                if (pos < to && buffer.get(pos) == ':') {
+                    pos++;
+                    while (pos < to && isDigit(buffer.get(pos))) pos++;
+                    if (startsWith(buffer, pos, to, LOGGED_IN)) {
+                        counter.add(cursor.high, cursor.low, 1);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    // IPv4, IPv6 или IPv6 в скобках ("[2001:db8::1]", так адрес с портом печатает JDK). Результат
+    // и позиция после адреса — в cursor
+    private static boolean parseAddress(MappedByteBuffer buffer, int from, int to, Cursor cursor) {
+        if (from < to && buffer.get(from) == '[') {
+            if (!parseIPv6(buffer, from + 1, to, cursor) || cursor.pos >= to || buffer.get(cursor.pos) != ']') {
+                return false;
+            }
+            cursor.pos++;
+            return true;
+        }
+
+        long parsed = parseIPv4(buffer, from, to);
+        if (parsed != -1) {
+            cursor.high = 0;
+            cursor.low = IpAddress.V4_MAPPED_PREFIX | (parsed >>> 32);
+            cursor.pos = (int) parsed;
+            return true;
+        }
+        return parseIPv6(buffer, from, to, cursor);
+    }
+
+    // Литерал IPv6 с "::" и IPv4 в конце ("::ffff:1.2.3.4"). Без скобок адрес с портом однозначен
+    // только в полной записи из восьми групп: на восьмой группе разбор останавливается
+    private static boolean parseIPv6(MappedByteBuffer buffer, int from, int to, Cursor cursor) {
+        int[] groups = cursor.groups;
+        int count = 0;
+        int gap = -1;
+        int pos = from;
+        if (pos + 1 < to && buffer.get(pos) == ':' && buffer.get(pos + 1) == ':') {
+            gap = 0;
+            pos += 2;
+        }
+
+        while (pos < to && count < 8) {
+            int start = pos;
+            int value = 0;
+            int digits = 0;
+            int digit;
+            while (pos < to && digits < 4 && (digit = hexDigit(buffer.get(pos))) >= 0) {
+                value = (value << 4) | digit;
+                pos++;
+                digits++;
+            }
+            if (digits == 0) break;
+
+            if (pos < to && buffer.get(pos) == '.') {
+                long parsed = parseIPv4(buffer, start, to);
+                if (parsed == -1 || count > 6) return false;
+                groups[count++] = (int) (parsed >>> 48) & 0xFFFF;
+                groups[count++] = (int) (parsed >>> 32) & 0xFFFF;
+                pos = (int) parsed;
+                break;
+            }
+            groups[count++] = value;
+
+            if (pos + 1 < to && buffer.get(pos) == ':' && buffer.get(pos + 1) == ':') {
+                if (gap >= 0) return false;
+                gap = count;
+                pos += 2;
+            } else if (count < 8 && pos + 1 < to && buffer.get(pos) == ':' && hexDigit(buffer.get(pos + 1)) >= 0) {
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (gap < 0 ? count != 8 : count > 7) return false;
+
+        // Группы после "::" сдвигаются к концу адреса, пропуск заполняется нулями
+        long high = 0;
+        long low = 0;
+        int tail = gap < 0 ? 0 : count - gap;
+        for (int i = 0; i < 8; i++) {
+            int group;
+            if (gap < 0 || i < gap) {
+                group = groups[i];
+            } else if (i >= 8 - tail) {
+                group = groups[gap + i - (8 - tail)];
+            } else {
+                group = 0;
+            }
+            if (i < 4) {
+                high = (high << 16) | group;
+            } else {
+                low = (low << 16) | group;
+            }
+        }
+        cursor.high = high;
+        cursor.low = low;
+        cursor.pos = pos;
+        return true;
+    }
+
+    private static boolean isDelimiter(MappedByteBuffer buffer, int pos, int to) {
+        if (pos >= to) return true;
+        byte b = buffer.get(pos);
+        return b == ' ' || b == '\t' || b == ',' || b == ';' || b == '\r';
+    }
+
+    private static int hexDigit(byte b) {
+        if (b >= '0' && b <= '9') return b - '0';
+        if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+        if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+        return -1;
+    }
+
+    // Возвращает (адрес << 32) | позиция после адреса, либо -1 (позиция не бывает 0xFFFFFFFF)
+    private static long parseIPv4(MappedByteBuffer buffer, int from, int to) {
+        int address = 0;
+        int pos = from;
+        for (int octet = 0; octet < 4; octet++) {
+            if (octet > 0) {
+                if (pos >= to || buffer.get(pos) != '.') return -1;
+                pos++;
+            }
+            int value = 0;
+            int digits = 0;
+            while (pos < to && isDigit(buffer.get(pos)) && digits < 3) {
+                value = value * 10 + (buffer.get(pos) - '0');
+                pos++;
+                digits++;
+            }
+            if (digits == 0 || value > 255) return -1;
+            address = (address << 8) | value;
+        }
+        if (pos < to && (isDigit(buffer.get(pos)) || buffer.get(pos) == '.')) return -1;
+        return ((long) address << 32) | pos;
+    }
+
+    private static boolean startsWith(MappedByteBuffer buffer, int pos, int to, byte[] prefix) {
+        if (to - pos < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(pos + i) != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    record RuleSet(boolean enabled, boolean whitelistMode, PrefixMatcher<FirewallManager.FirewallRule> matcher) {
+
+        static RuleSet from(ConfigurationSection config) {
+            return of(config.getBoolean("firewall.enabled", true),
+                    config.getBoolean("firewall.whitelist-mode", false),
+                    FirewallManager.readRules(config));
+        }
+
+        static RuleSet of(boolean enabled, boolean whitelistMode, Collection<FirewallManager.FirewallRule> rules) {
+            return new RuleSet(enabled, whitelistMode, FirewallManager.compile(rules));
+        }
+
+        boolean isBlocked(IpAddress address) {
+            return enabled && FirewallManager.evaluate(matcher, whitelistMode, address) != FirewallManager.Verdict.ALLOWED;
+        }
+    }
+
+    record PrefixCount(String prefix, long logins) {
+    }
+
+    record Report(long lines, long logins, int distinctAddresses, int newlyBlocked, long newlyBlockedLogins,
+                  int newlyAllowed, long newlyAllowedLogins, List<PrefixCount> topPrefixes, long elapsedMillis) {
+    }
+
+    // Результат разбора адреса и буфер групп IPv6: один на участок, без объектов на строку
+    private static final class Cursor {
+        final int[] groups = new int[8];
+        long high;
+        long low;
+        int pos;
+    }
+
+    // Счётчик адрес -> число с открытой адресацией на примитивных массивах, без упаковки
+    static final class AddressCounter {
+
+        private long[] highs = new long[1024];
+        private long[] lows = new long[1024];
+        private int[] values = new int[1024];
+        private boolean[] used = new boolean[1024];
+        private int size;
+        long lines;
+
+        void add(long high, long low, int amount) {
+            if (size * 2 >= highs.length) grow();
+            int slot = find(high, low);
+            if (!used[slot]) {
+                used[slot] = true;
+                highs[slot] = high;
+                lows[slot] = low;
+                size++;
+            }
+            values[slot] += amount;
+        }
+
+        int get(long high, long low) {
+            int slot = find(high, low);
+            return used[slot] ? values[slot] : 0;
+        }
+
+        IpAddress[] keys() {
+            IpAddress[] result = new IpAddress[size];
+            int n = 0;
+            for (int i = 0; i < highs.length; i++) {
+                if (used[i]) result[n++] = new IpAddress(highs[i], lows[i]);
+            }
+            return result;
+        }
+
+        void merge(AddressCounter other) {
+            lines += other.lines;
+            for (int i = 0; i < other.highs.length; i++) {
+                if (other.used[i]) add(other.highs[i], other.lows[i], other.values[i]);
+            }
+        }
+
+        private void grow() {
+            long[] oldHighs = highs;
+            long[] oldLows = lows;
+            int[] oldValues = values;
+            boolean[] oldUsed = used;
+            highs = new long[oldHighs.length * 2];
+            lows = new long[oldHighs.length * 2];
+            values = new int[oldHighs.length * 2];
+            used = new boolean[oldHighs.length * 2];
+            for (int i = 0; i < oldHighs.length; i++) {
+                if (oldUsed[i]) {
+                    int slot = find(oldHighs[i], oldLows[i]);
+                    used[slot] = true;
+                    highs[slot] = oldHighs[i];
+                    lows[slot] = oldLows[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private int find(long high, long low) {
+            int mask = highs.length - 1;
+            long hash = (high * 0x9E3779B97F4A7C15L ^ low) * 0xBF58476D1CE4E5B9L;
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while (used[slot] && (highs[slot] != high || lows[slot] != low)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
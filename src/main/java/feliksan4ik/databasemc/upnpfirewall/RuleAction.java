@@ -0,0 +1,20 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.util.Locale;
+
+// Действие правила: ALLOW/BLOCK для файрвола, OPEN/BLOCK для правил портов по IP
+enum RuleAction {
+    ALLOW, BLOCK, OPEN;
+
+    // null, если строка не действие
+    static RuleAction parse(String value) {
+        for (RuleAction action : values()) {
+            if (action.name().equalsIgnoreCase(value)) return action;
+        }
+        return null;
+    }
+
+    String configName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,55 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+// Связь правила с ключом его записи в конфиге в обе стороны: запись удаляется по ключу,
+// без перебора всей секции. Из повторов одного правила в конфиге индексируется первая запись,
+// как и при загрузке; остальные находит /firewall optimize.
+final class RuleIndex<T> {
+
+    // Общий для всех секций счётчик: ключи монотонны в пределах процесса
+    private static final AtomicLong LAST = new AtomicLong();
+
+    private final Map<T, String> keys = new ConcurrentHashMap<>();
+    private final Map<String, T> rules = new ConcurrentHashMap<>();
+
+    // Новый ключ "prefix_N": N — время в миллисекундах, но строго больше выданного ранее, поэтому
+    // правила, добавленные в одну миллисекунду, не затирают друг друга. taken — ключ уже занят
+    // в конфиге (часы переведены назад, записи с другого сервера)
+    static String newKey(String prefix, Predicate<String> taken) {
+        String key;
+        do {
+            key = prefix + "_" + LAST.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+        } while (taken.test(key));
+        return key;
+    }
+
+    // false, если для правила уже есть запись
+    boolean put(T rule, String key) {
+        if (keys.putIfAbsent(rule, key) != null) return false;
+        rules.put(key, rule);
+        return true;
+    }
+
+    // Ключ снятой записи или null
+    String remove(T rule) {
+        String key = keys.remove(rule);
+        if (key != null) rules.remove(key);
+        return key;
+    }
+
+    // Снятие по ключу записи; правило или null, если запись не индексирована (повтор)
+    T removeKey(String key) {
+        T rule = rules.remove(key);
+        if (rule != null) keys.remove(rule, key);
+        return rule;
+    }
+
+    void clear() {
+        keys.clear();
+        rules.clear();
+    }
+}
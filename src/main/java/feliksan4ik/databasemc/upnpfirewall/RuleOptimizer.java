@@ -0,0 +1,369 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Поиск лишних правил для /firewall optimize. Правила firewall — узлы двоичного дерева
+// адресов, решает самое длинное совпадение: правило не действует, если его сеть целиком
+// покрыта более узкими (затенено), и ничего не меняет, если ближайшее более широкое правило
+// даёт тот же вердикт (избыточно). Соседние сети с одним вердиктом сливаются в общую.
+// Правила портов — интервалы портов по префиксам: правило избыточно, если по каждому его порту
+// ближайший более широкий префикс с правилом для этого порта решает так же. Результат
+// эквивалентен исходному набору при любом режиме whitelist.
+final class RuleOptimizer {
+
+    private static final List<Protocol> PROTOCOLS = List.of(Protocol.TCP, Protocol.UDP);
+
+    private RuleOptimizer() {
+    }
+
+    // Снимок в основном потоке: записи конфига в порядке файла и загруженные наборы.
+    // Версии matcher'ов позволяют при применении убедиться, что правила не менялись
+    static Input snapshot(Main plugin, FirewallManager firewall, PortIPManager portIP) {
+        List<Entry> entries = new ArrayList<>();
+        if (plugin.config.contains("firewall.rules")) {
+            for (String key : plugin.config.getConfigurationSection("firewall.rules").getKeys(false)) {
+                IpPrefix prefix = IpPrefix.parse(plugin.config.getString("firewall.rules." + key + ".ip"));
+                ListType type = ListType.parse(plugin.config.getString("firewall.rules." + key + ".type"));
+                RuleAction action = RuleAction.parse(plugin.config.getString("firewall.rules." + key + ".action"));
+                if (prefix != null && type != null && action != null) {
+                    entries.add(new Entry(key, new FirewallManager.FirewallRule(prefix, type, action)));
+                }
+            }
+        }
+
+        List<String> portIPKeys = new ArrayList<>();
+        if (plugin.config.contains("ports-ip.rules")) {
+            portIPKeys.addAll(plugin.config.getConfigurationSection("ports-ip.rules").getKeys(false));
+        }
+
+        return new Input(entries, firewall.snapshotHostRules(), portIP.snapshotRules(), portIPKeys,
+                firewall.getMatcher().version(), portIP.getRules().version());
+    }
+
+    static Report analyze(Input input) {
+        List<Finding> findings = new ArrayList<>();
+        Report report = new Report(findings, new ArrayList<>(), new ArrayList<>(), new ArrayList<>(),
+                new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), input.firewallVersion(), input.portIPVersion());
+        analyzeFirewall(input, report);
+        analyzePortIP(input, report);
+        return report;
+    }
+
+    private static void analyzeFirewall(Input input, Report report) {
+        // Из повторов одного префикса действует первая запись (FirewallManager.readRules)
+        Map<IpPrefix, Entry> loaded = new LinkedHashMap<>();
+        for (Entry entry : input.firewall()) {
+            Entry first = loaded.putIfAbsent(entry.rule().prefix(), entry);
+            if (first == null) continue;
+
+            report.firewallKeys().add(entry.key());
+            if (sameRule(first.rule(), entry.rule())) {
+                report.add(Kind.DUPLICATE, "optimize.duplicate", entry.key(), describe(first.rule()));
+            } else {
+                report.add(Kind.CONFLICT, "optimize.conflict_duplicate", entry.key(), describe(entry.rule()),
+                        describe(first.rule()));
+            }
+        }
+
+        // Явное правило на адресе хоста, даже недействующее, не даёт поставить запись хоста:
+        // такие правила не трогаем, иначе вместо них заработает правило по хосту
+        Set<IpPrefix> pinned = new HashSet<>();
+        for (FirewallManager.HostRule host : input.hosts()) {
+            for (IpAddress address : host.addresses()) {
+                IpPrefix prefix = new IpPrefix(address, 128);
+                pinned.add(prefix);
+                Entry explicit = loaded.get(prefix);
+                FirewallManager.FirewallRule entry = new FirewallManager.FirewallRule(prefix, host.type(), host.action());
+                if (explicit != null && entry.isEffective() && explicit.rule().verdict() != entry.verdict()) {
+                    report.add(Kind.CONFLICT, "optimize.host_conflict", host.host(), prefix, describe(explicit.rule()));
+                }
+            }
+        }
+
+        // Недействующие правила не участвуют в поиске; на адресах хостов они остаются на месте
+        Map<IpPrefix, FirewallManager.FirewallRule> rules = new HashMap<>();
+        for (Entry entry : loaded.values()) {
+            FirewallManager.FirewallRule rule = entry.rule();
+            if (rule.isEffective()) {
+                rules.put(rule.prefix(), rule);
+            } else if (!pinned.contains(rule.prefix())) {
+                report.add(Kind.INERT, "optimize.inert", describe(rule));
+            }
+        }
+
+        // Затенённые: обе половины сети покрыты более узкими правилами, самым длинным совпадением
+        // правило не бывает никогда. Удаление одного не меняет покрытия остальных
+        Set<IpPrefix> nodes = new HashSet<>();
+        for (IpPrefix prefix : rules.keySet()) {
+            // Если предок уже есть, то и все более короткие добавлены вместе с ним
+            int length = prefix.length() - 1;
+            while (length >= 0 && nodes.add(IpPrefix.of(prefix.network(), length))) length--;
+        }
+        Map<IpPrefix, Boolean> covered = new HashMap<>();
+        List<IpPrefix> shadowed = new ArrayList<>();
+        for (FirewallManager.FirewallRule rule : rules.values()) {
+            IpPrefix prefix = rule.prefix();
+            if (prefix.length() < 128 && isCovered(child(prefix, 0), rules, nodes, covered)
+                    && isCovered(child(prefix, 1), rules, nodes, covered)) {
+                shadowed.add(prefix);
+                report.add(Kind.SHADOWED, "optimize.shadowed", describe(rule));
+            }
+        }
+        shadowed.forEach(rules::remove);
+
+        // Соседние сети одной длины с одинаковым вердиктом — одна сеть на бит короче
+        List<IpPrefix> byLength = new ArrayList<>(rules.keySet());
+        byLength.sort(Comparator.comparingInt(IpPrefix::length).reversed());
+        for (int i = 0; i < byLength.size(); i++) {
+            IpPrefix prefix = byLength.get(i);
+            FirewallManager.FirewallRule rule = rules.get(prefix);
+            if (rule == null || prefix.length() == 0 || pinned.contains(prefix)) continue;
+
+            IpPrefix parent = parent(prefix);
+            IpPrefix sibling = child(parent, prefix.equals(child(parent, 0)) ? 1 : 0);
+            FirewallManager.FirewallRule other = rules.get(sibling);
+            if (other == null || pinned.contains(sibling) || other.verdict() != rule.verdict()
+                    || rules.containsKey(parent)) continue;
+
+            rules.remove(prefix);
+            rules.remove(sibling);
+            FirewallManager.FirewallRule merged = new FirewallManager.FirewallRule(parent, rule.type(), rule.action());
+            rules.put(parent, merged);
+            report.add(Kind.MERGED, "optimize.merged", prefix, sibling, parent);
+
+            // Новая сеть сама может слиться с соседней: вставка в порядок по убыванию длины
+            int position = i + 1;
+            while (position < byLength.size() && byLength.get(position).length() > parent.length()) position++;
+            byLength.add(position, parent);
+        }
+
+        // Избыточные: ближайшее более широкое правило даёт тот же вердикт. После удаления
+        // ближайшим становится правило ещё шире с тем же вердиктом, поэтому удаляются все сразу
+        List<IpPrefix> redundant = new ArrayList<>();
+        for (FirewallManager.FirewallRule rule : rules.values()) {
+            if (pinned.contains(rule.prefix())) continue;
+            FirewallManager.FirewallRule ancestor = nearestAncestor(rule.prefix(), rules);
+            if (ancestor != null && ancestor.verdict() == rule.verdict()) {
+                redundant.add(rule.prefix());
+                report.add(Kind.REDUNDANT, "optimize.redundant", describe(rule), describe(ancestor));
+            }
+        }
+        redundant.forEach(rules::remove);
+
+        for (Entry entry : loaded.values()) {
+            FirewallManager.FirewallRule kept = rules.get(entry.rule().prefix());
+            if (!entry.rule().isEffective() && pinned.contains(entry.rule().prefix())) continue;
+            if (kept == null || !sameRule(kept, entry.rule())) {
+                report.firewallKeys().add(entry.key());
+                report.firewallRemove().add(entry.rule());
+            }
+        }
+        for (FirewallManager.FirewallRule rule : rules.values()) {
+            Entry entry = loaded.get(rule.prefix());
+            if (entry == null || !sameRule(rule, entry.rule())) report.firewallAdd().add(rule);
+        }
+        report.firewallAdd().sort(Comparator.comparing(FirewallManager.FirewallRule::ip));
+    }
+
+    private static void analyzePortIP(Input input, Report report) {
+        // Записи конфига, вытесненные при загрузке более поздним пересекающимся правилом или неразобранные
+        Set<String> loadedNames = new HashSet<>();
+        PrefixMatcher<List<PortIPManager.PortIPRule>> byPrefix = new PrefixMatcher<>();
+        Map<IpPrefix, List<PortIPManager.PortIPRule>> groups = new LinkedHashMap<>();
+        for (PortIPManager.PortIPRule rule : input.portIP()) {
+            loadedNames.add(rule.ruleName());
+            groups.computeIfAbsent(rule.prefix(), prefix -> new ArrayList<>()).add(rule);
+        }
+        byPrefix.batch(() -> groups.forEach(byPrefix::put));
+        for (String key : input.portIPKeys()) {
+            if (!loadedNames.contains(key)) {
+                report.portIPKeys().add(key);
+                report.add(Kind.DUPLICATE, "optimize.portip_overridden", key);
+            }
+        }
+
+        // Без правила порт решает ближайший более широкий префикс, где для него есть правило
+        // (как в PortIPManager.isPortAllowedForIP). Правило избыточно, если такое правило есть
+        // по каждому его порту и протоколу и действие то же: открытие без открытия выше не
+        // убирается — по нему порт пробрасывается. Открытие под блокировкой выше — конфликт,
+        // оно остаётся. Каждое правило сверяется с уже сокращённым набором
+        Set<PortIPManager.PortIPRule> removed = new HashSet<>();
+        for (PortIPManager.PortIPRule rule : input.portIP()) {
+            List<List<PortIPManager.PortIPRule>> above = new ArrayList<>();
+            for (List<PortIPManager.PortIPRule> rules : byPrefix.matches(rule.prefix().network())) {
+                if (rules.get(0).prefix().length() < rule.prefix().length()) above.add(rules);
+            }
+            if (above.isEmpty()) continue;
+
+            boolean same = true;
+            PortIPManager.PortIPRule conflict = null;
+            Set<String> deciding = new LinkedHashSet<>();
+            for (Protocol protocol : PROTOCOLS) {
+                if (!rule.protocol().covers(protocol)) continue;
+                for (int port = rule.ports().from(); port <= rule.ports().to() && conflict == null; port++) {
+                    PortIPManager.PortIPRule decided = nearest(above, removed, port, protocol);
+                    if (decided == null || decided.action() != rule.action()) {
+                        same = false;
+                        if (decided != null && rule.action() == RuleAction.OPEN) conflict = decided;
+                    } else {
+                        deciding.add(decided.ip());
+                    }
+                }
+            }
+
+            if (conflict != null) {
+                report.add(Kind.CONFLICT, "optimize.portip_conflict", describe(rule), describe(conflict));
+            } else if (same) {
+                removed.add(rule);
+                report.add(Kind.REDUNDANT, "optimize.portip_redundant", describe(rule), String.join(", ", deciding));
+            }
+        }
+        for (PortIPManager.PortIPRule rule : removed) {
+            report.portIPKeys().add(rule.ruleName());
+            report.portIPRemove().add(rule);
+        }
+
+        // Смежные блокировки одного префикса и протокола — одно правило. Открытия не сливаются:
+        // их диапазоны уже проброшены на шлюзе по отдельности
+        Set<String> taken = new HashSet<>(input.portIPKeys());
+        for (List<PortIPManager.PortIPRule> rules : groups.values()) {
+            List<PortIPManager.PortIPRule> run = new ArrayList<>();
+            for (PortIPManager.PortIPRule rule : rules) {
+                if (removed.contains(rule)) continue;
+                PortIPManager.PortIPRule last = run.isEmpty() ? null : run.get(run.size() - 1);
+                if (last != null && rule.action() == RuleAction.BLOCK && last.protocol() == rule.protocol()
+                        && last.ports().to() + 1 == rule.ports().from()) {
+                    run.add(rule);
+                    continue;
+                }
+                mergeRun(run, report, taken);
+                run.clear();
+                if (rule.action() == RuleAction.BLOCK) run.add(rule);
+            }
+            mergeRun(run, report, taken);
+        }
+    }
+
+    private static void mergeRun(List<PortIPManager.PortIPRule> run, Report report, Set<String> taken) {
+        if (run.size() < 2) return;
+        PortIPManager.PortIPRule first = run.get(0);
+        PortRange ports = new PortRange(first.ports().from(), run.get(run.size() - 1).ports().to());
+        PortIPManager.PortIPRule merged = new PortIPManager.PortIPRule(first.prefix(), ports, first.protocol(),
+                RuleAction.BLOCK, first.description(), RuleIndex.newKey("block", taken::contains));
+        for (PortIPManager.PortIPRule rule : run) {
+            report.portIPKeys().add(rule.ruleName());
+            report.portIPRemove().add(rule);
+        }
+        report.portIPAdd().add(merged);
+        report.add(Kind.MERGED, "optimize.portip_merged", run.size(), first.ip(), ports);
+    }
+
+    // Правило ближайшего префикса из above (от узкого к широкому) для порта и протокола, иначе null
+    private static PortIPManager.PortIPRule nearest(List<List<PortIPManager.PortIPRule>> above,
+                                                    Set<PortIPManager.PortIPRule> removed, int port, Protocol protocol) {
+        for (List<PortIPManager.PortIPRule> rules : above) {
+            for (PortIPManager.PortIPRule rule : rules) {
+                if (rule.ports().contains(port) && rule.protocol().covers(protocol) && !removed.contains(rule)) {
+                    return rule;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Сеть целиком покрыта правилами: своим или обеими половинами. Узлы без правил ниже не покрыты
+    private static boolean isCovered(IpPrefix prefix, Map<IpPrefix, FirewallManager.FirewallRule> rules,
+                                     Set<IpPrefix> nodes, Map<IpPrefix, Boolean> memo) {
+        if (rules.containsKey(prefix)) return true;
+        if (prefix.length() == 128 || !nodes.contains(prefix)) return false;
+
+        Boolean known = memo.get(prefix);
+        if (known != null) return known;
+        boolean result = isCovered(child(prefix, 0), rules, nodes, memo) && isCovered(child(prefix, 1), rules, nodes, memo);
+        memo.put(prefix, result);
+        return result;
+    }
+
+    private static FirewallManager.FirewallRule nearestAncestor(IpPrefix prefix,
+                                                              Map<IpPrefix, FirewallManager.FirewallRule> rules) {
+        for (int length = prefix.length() - 1; length >= 0; length--) {
+            FirewallManager.FirewallRule rule = rules.get(IpPrefix.of(prefix.network(), length));
+            if (rule != null) return rule;
+        }
+        return null;
+    }
+
+    // Половина сети: бит с номером length (от старшего) равен bit
+    private static IpPrefix child(IpPrefix prefix, int bit) {
+        int length = prefix.length();
+        IpAddress network = prefix.network();
+        if (bit == 0) return new IpPrefix(network, length + 1);
+        return new IpPrefix(length < 64
+                ? new IpAddress(network.high() | 1L << (63 - length), network.low())
+                : new IpAddress(network.high(), network.low() | 1L << (127 - length)), length + 1);
+    }
+
+    private static IpPrefix parent(IpPrefix prefix) {
+        return IpPrefix.of(prefix.network(), prefix.length() - 1);
+    }
+
+    // FirewallRule.equals сравнивает только префикс
+    private static boolean sameRule(FirewallManager.FirewallRule a, FirewallManager.FirewallRule b) {
+        return a.prefix().equals(b.prefix()) && a.type() == b.type() && a.action() == b.action();
+    }
+
+    private static String describe(FirewallManager.FirewallRule rule) {
+        return rule.ip() + " (" + rule.type().configName() + "/" + rule.action().configName() + ")";
+    }
+
+    private static String describe(PortIPManager.PortIPRule rule) {
+        return rule.ip() + " " + rule.ports() + " " + rule.protocol() + " " + rule.action();
+    }
+
+    enum Kind {
+        SHADOWED, REDUNDANT, DUPLICATE, INERT, MERGED, CONFLICT
+    }
+
+    record Entry(String key, FirewallManager.FirewallRule rule) {
+    }
+
+    record Input(List<Entry> firewall, List<FirewallManager.HostRule> hosts, List<PortIPManager.PortIPRule> portIP,
+                 List<String> portIPKeys, Object firewallVersion, Object portIPVersion) {
+    }
+
+    // Сообщение: ключ перевода и аргументы
+    record Finding(Kind kind, String message, Object[] args) {
+    }
+
+    // firewallKeys/portIPKeys — записи конфига к удалению, Remove — загруженные правила к удалению,
+    // Add — новые правила после слияния
+    record Report(List<Finding> findings, List<String> firewallKeys, List<FirewallManager.FirewallRule> firewallRemove,
+                  List<FirewallManager.FirewallRule> firewallAdd, List<String> portIPKeys,
+                  List<PortIPManager.PortIPRule> portIPRemove, List<PortIPManager.PortIPRule> portIPAdd,
+                  Object firewallVersion, Object portIPVersion) {
+
+        private void add(Kind kind, String message, Object... args) {
+            findings.add(new Finding(kind, message, args));
+        }
+
+        int count(Kind kind) {
+            int count = 0;
+            for (Finding finding : findings) {
+                if (finding.kind() == kind) count++;
+            }
+            return count;
+        }
+
+        boolean hasChanges() {
+            return !firewallKeys.isEmpty() || !portIPKeys.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Время этапов запуска плагина, для раздела в /firewall status
+final class StartupTimings {
+
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private long mark = System.nanoTime();
+
+    // Записывает время с предыдущей отметки как этап name
+    synchronized void phase(String name) {
+        long now = System.nanoTime();
+        phases.put(name, now - mark);
+        mark = now;
+    }
+
+    // Для этапов, которые идут параллельно или в фоне и меряются отдельно
+    synchronized void record(String name, long nanos) {
+        phases.put(name, nanos);
+    }
+
+    synchronized Map<String, Long> snapshot() {
+        return new LinkedHashMap<>(phases);
+    }
+}
@@ -0,0 +1,319 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Журнал состояния между запусками (runtime.state): действующие пробросы NAT-PMP/PCP со шлюзом,
+// внешним портом и сроком аренды, последние результаты опроса и версия набора правил.
+// Файл только дописывается: запись — тип, длина, данные и CRC32. При чтении всё после первой
+// повреждённой или недописанной записи отбрасывается (падение посреди записи), затем файл
+// переписывается свёрнутым состоянием во временный и атомарно подменяется.
+final class StateJournal {
+
+    private static final String FILE = "runtime.state";
+    private static final int MAGIC = 0x55465753;
+    private static final int COMPACT_BYTES = 64 * 1024;
+
+    private static final int START = 1;
+    private static final int SHUTDOWN = 2;
+    private static final int MAP = 3;
+    private static final int PROBE = 5;
+    private static final int RULES = 6;
+    // Снятие проброса на одном шлюзе: с несколькими шлюзами один порт может быть проброшен на каждом.
+    // Тип 4 (снятие без шлюза) больше не пишется и не читается
+    private static final int UNMAP_AT = 7;
+
+    private final Main plugin;
+    private final Path file;
+    private final boolean enabled;
+
+    // Свёрнутое состояние; все методы synchronized, пишут и основной поток, и фоновые
+    private final Map<String, Mapping> mappings = new LinkedHashMap<>();
+    private final Map<String, Probe> probes = new LinkedHashMap<>();
+    private long rulesVersion;
+    private boolean crashed;
+    private FileChannel channel;
+    private long bytes;
+
+    StateJournal(Main plugin) {
+        this.plugin = plugin;
+        this.file = plugin.getDataFolder().toPath().resolve(FILE);
+        this.enabled = plugin.config.getBoolean("state.enabled", true);
+    }
+
+    synchronized void load() {
+        if (!enabled) return;
+
+        if (Files.isRegularFile(file)) {
+            try {
+                byte[] data = Files.readAllBytes(file);
+                int valid = replay(data);
+                if (valid < data.length) {
+                    plugin.getLogger().warning(plugin.getTranslation("state.truncated", data.length - valid));
+                }
+            } catch (IOException e) {
+                plugin.getLogger().warning(plugin.getTranslation("state.io_failed", file, e.getMessage()));
+            }
+        }
+
+        compact();
+    }
+
+    // Запись об успешном выключении: без неё следующий запуск считает, что сервер упал
+    synchronized void close() {
+        if (channel == null) return;
+        append(SHUTDOWN, out -> out.writeLong(System.currentTimeMillis()));
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Записи уже в файле
+        }
+        channel = null;
+    }
+
+    boolean wasCrashed() {
+        return crashed;
+    }
+
+    synchronized List<Mapping> mappings() {
+        return new ArrayList<>(mappings.values());
+    }
+
+    synchronized List<Probe> probes() {
+        return new ArrayList<>(probes.values());
+    }
+
+    synchronized long rulesVersion() {
+        return rulesVersion;
+    }
+
+    synchronized int size() {
+        return mappings.size();
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    synchronized void mapped(Mapping mapping) {
+        mappings.put(mapping.id(), mapping);
+        append(MAP, mapping::write);
+    }
+
+    synchronized void unmapped(String backend, InetSocketAddress gateway, int port, Protocol protocol) {
+        if (mappings.remove(Mapping.id(backend, gateway, port, protocol)) == null) return;
+        append(UNMAP_AT, out -> {
+            out.writeUTF(backend);
+            writeAddress(out, gateway);
+            out.writeByte(protocol.ordinal());
+            out.writeShort(port);
+        });
+    }
+
+    synchronized void probed(String backend, long latency) {
+        Probe probe = new Probe(backend, latency, System.currentTimeMillis());
+        probes.put(backend, probe);
+        append(PROBE, probe::write);
+    }
+
+    synchronized void rules(long version) {
+        if (version == rulesVersion) return;
+        rulesVersion = version;
+        append(RULES, out -> out.writeLong(version));
+    }
+
+    // Разбор записей по порядку; возвращает длину корректной части файла
+    private int replay(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (data.length < 4 || buffer.getInt() != MAGIC) return 0;
+
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= 7) {
+            int start = buffer.position();
+            int type = buffer.get() & 0xFF;
+            int length = buffer.getShort() & 0xFFFF;
+            if (buffer.remaining() < length + 4) return start;
+
+            crc.reset();
+            crc.update(data, start, 3 + length);
+            if ((int) crc.getValue() != buffer.getInt(start + 3 + length)) return start;
+
+            try {
+                apply(type, new DataInputStream(new ByteArrayInputStream(data, start + 3, length)));
+            } catch (IOException | RuntimeException e) {
+                return start;
+            }
+            buffer.position(start + 3 + length + 4);
+        }
+        return buffer.position();
+    }
+
+    private void apply(int type, DataInputStream in) throws IOException {
+        switch (type) {
+            case START -> crashed = true;
+            case SHUTDOWN -> crashed = false;
+            case MAP -> {
+                Mapping mapping = Mapping.read(in);
+                mappings.put(mapping.id(), mapping);
+            }
+            case UNMAP_AT -> {
+                String backend = in.readUTF();
+                InetSocketAddress gateway = readAddress(in);
+                Protocol protocol = Protocol.values()[in.readUnsignedByte()];
+                mappings.remove(Mapping.id(backend, gateway, in.readUnsignedShort(), protocol));
+            }
+            case PROBE -> {
+                Probe probe = Probe.read(in);
+                probes.put(probe.backend(), probe);
+            }
+            case RULES -> rulesVersion = in.readLong();
+            default -> throw new EOFException("Unknown record type " + type);
+        }
+    }
+
+    // Свёрнутое состояние во временный файл и атомарная подмена: одна запись на проброс.
+    // Начинается с отметки запуска, которую закрывает SHUTDOWN из close()
+    private void compact() {
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            data.write(ByteBuffer.allocate(4).putInt(MAGIC).array());
+            data.write(record(START, out -> out.writeLong(System.currentTimeMillis())));
+            for (Mapping mapping : mappings.values()) {
+                data.write(record(MAP, mapping::write));
+            }
+            for (Probe probe : probes.values()) {
+                data.write(record(PROBE, probe::write));
+            }
+            if (rulesVersion != 0) data.write(record(RULES, out -> out.writeLong(rulesVersion)));
+
+            if (channel != null) channel.close();
+            Files.createDirectories(file.getParent());
+            Path temp = file.resolveSibling(FILE + ".tmp");
+            Files.write(temp, data.toByteArray());
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            bytes = data.size();
+        } catch (IOException e) {
+            channel = null;
+            plugin.getLogger().warning(plugin.getTranslation("state.io_failed", file, e.getMessage()));
+        }
+    }
+
+    // Без fsync: кэш ОС переживает падение JVM, а недописанный хвост отсекает CRC
+    private void append(int type, Payload payload) {
+        if (channel == null) return;
+        try {
+            ByteBuffer record = ByteBuffer.wrap(record(type, payload));
+            while (record.hasRemaining()) {
+                bytes += channel.write(record);
+            }
+            if (bytes > COMPACT_BYTES) compact();
+        } catch (IOException e) {
+            channel = null;
+            plugin.getLogger().warning(plugin.getTranslation("state.io_failed", file, e.getMessage()));
+        }
+    }
+
+    private static byte[] record(int type, Payload payload) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        payload.write(new DataOutputStream(body));
+        if (body.size() > 0xFFFF) throw new IOException("Record too large");
+
+        ByteBuffer record = ByteBuffer.allocate(3 + body.size() + 4);
+        record.put((byte) type).putShort((short) body.size()).put(body.toByteArray());
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, 3 + body.size());
+        record.putInt((int) crc.getValue());
+        return record.array();
+    }
+
+    private static void writeAddress(DataOutputStream out, InetSocketAddress address) throws IOException {
+        byte[] bytes = address.getAddress().getAddress();
+        out.writeByte(bytes.length);
+        out.write(bytes);
+        out.writeShort(address.getPort());
+    }
+
+    private static InetSocketAddress readAddress(DataInputStream in) throws IOException {
+        byte[] address = in.readNBytes(in.readUnsignedByte());
+        return new InetSocketAddress(InetAddress.getByAddress(address), in.readUnsignedShort());
+    }
+
+    @FunctionalInterface
+    private interface Payload {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // Проброс одного порта одного протокола; expiresAt — конец аренды (мс от эпохи),
+    // nonce нужен PCP для продления и удаления, у NAT-PMP пустой
+    record Mapping(String backend, InetSocketAddress gateway, int port, Protocol protocol, int externalPort,
+                   long expiresAt, byte[] nonce) {
+
+        // Ключ порта и протокола, как в NatPmpMapper и PcpMapper
+        long key() {
+            return ((long) port << 8) | protocol.ordinal();
+        }
+
+        private String id() {
+            return id(backend, gateway, port, protocol);
+        }
+
+        private static String id(String backend, InetSocketAddress gateway, int port, Protocol protocol) {
+            return backend + '|' + gateway.getAddress().getHostAddress() + '|' + port + '|' + protocol;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeUTF(backend);
+            writeAddress(out, gateway);
+            out.writeByte(protocol.ordinal());
+            out.writeShort(port);
+            out.writeShort(externalPort);
+            out.writeLong(expiresAt);
+            out.writeByte(nonce.length);
+            out.write(nonce);
+        }
+
+        private static Mapping read(DataInputStream in) throws IOException {
+            String backend = in.readUTF();
+            InetSocketAddress gateway = readAddress(in);
+            Protocol protocol = Protocol.values()[in.readUnsignedByte()];
+            int port = in.readUnsignedShort();
+            int externalPort = in.readUnsignedShort();
+            long expiresAt = in.readLong();
+            byte[] nonce = in.readNBytes(in.readUnsignedByte());
+            return new Mapping(backend, gateway, port, protocol, externalPort, expiresAt, nonce);
+        }
+    }
+
+    // latency в наносекундах, -1 — не поддерживается; at — время опроса (мс от эпохи)
+    record Probe(String backend, long latency, long at) {
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeUTF(backend);
+            out.writeLong(latency);
+            out.writeLong(at);
+        }
+
+        private static Probe read(DataInputStream in) throws IOException {
+            return new Probe(in.readUTF(), in.readLong(), in.readLong());
+        }
+    }
+}
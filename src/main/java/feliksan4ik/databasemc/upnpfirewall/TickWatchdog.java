@@ -0,0 +1,181 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Учёт времени работы плагина в основном потоке: события, команды, задачи и saveConfig.
+// У каждого источника кольцо последних замеров (перцентили для /firewall status), сумма
+// за тик сравнивается с бюджетом. Если бюджет превышается постоянно, включается разгрузка:
+// необязательная работа (списки, опрос шлюза) уходит из основного потока в фон.
+final class TickWatchdog {
+
+    private static final int SAMPLES = 512;
+    private static final int WINDOW = 100;
+    private static final int TOP_IN_WARNING = 3;
+
+    private final Main plugin;
+    private final long budgetNanos;
+    private final long warnIntervalNanos;
+    private final int degradeTicks;
+    private final Map<String, Source> sources = new ConcurrentHashMap<>();
+
+    // Дальше только основной поток
+    private final List<Source> touched = new ArrayList<>();
+    private final boolean[] window = new boolean[WINDOW];
+    private int windowPos;
+    private long tickNanos;
+    private long lastWarning;
+    private volatile int overBudgetTicks;
+    private volatile boolean degraded;
+
+    TickWatchdog(Main plugin) {
+        this.plugin = plugin;
+        this.budgetNanos = (long) (Math.max(0.1, plugin.config.getDouble("watchdog.budget-ms", 2.0)) * 1_000_000);
+        this.warnIntervalNanos = Math.max(1, plugin.config.getLong("watchdog.warn-interval", 60)) * 1_000_000_000L;
+        this.degradeTicks = Math.max(1, Math.min(WINDOW, plugin.config.getInt("watchdog.degrade-ticks", 20)));
+    }
+
+    // Граница тика: задача с периодом в один тик подводит итог предыдущего
+    void start() {
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                endTick();
+            }
+        }.runTaskTimer(plugin, 1, 1);
+    }
+
+    Source source(String name) {
+        return sources.computeIfAbsent(name, Source::new);
+    }
+
+    long begin() {
+        return System.nanoTime();
+    }
+
+    // Замеры из фоновых потоков не учитываются: бюджет относится только к тику сервера
+    void end(Source source, long started) {
+        if (!plugin.getServer().isPrimaryThread()) return;
+
+        long nanos = System.nanoTime() - started;
+        source.record(nanos);
+        if (source.tickNanos == 0) touched.add(source);
+        source.tickNanos += nanos;
+        tickNanos += nanos;
+    }
+
+    Runnable wrap(String name, Runnable task) {
+        Source source = source(name);
+        return () -> {
+            long started = begin();
+            try {
+                task.run();
+            } finally {
+                end(source, started);
+            }
+        };
+    }
+
+    boolean isDegraded() {
+        return degraded;
+    }
+
+    double getBudgetMillis() {
+        return budgetNanos / 1_000_000.0;
+    }
+
+    int getOverBudgetTicks() {
+        return overBudgetTicks;
+    }
+
+    int getWindow() {
+        return WINDOW;
+    }
+
+    // Источники с самым большим p99
+    List<Stats> worst(int limit) {
+        List<Stats> stats = new ArrayList<>();
+        for (Source source : sources.values()) {
+            Stats snapshot = source.stats();
+            if (snapshot != null) stats.add(snapshot);
+        }
+        stats.sort(Comparator.comparingLong(Stats::p99).reversed());
+        return stats.size() > limit ? new ArrayList<>(stats.subList(0, limit)) : stats;
+    }
+
+    private void endTick() {
+        boolean over = tickNanos > budgetNanos;
+        if (window[windowPos] != over) {
+            overBudgetTicks += over ? 1 : -1;
+            window[windowPos] = over;
+        }
+        windowPos = (windowPos + 1) % WINDOW;
+
+        if (over) {
+            long now = System.nanoTime();
+            if (lastWarning == 0 || now - lastWarning >= warnIntervalNanos) {
+                lastWarning = now;
+                touched.sort(Comparator.comparingLong((Source source) -> source.tickNanos).reversed());
+                StringBuilder top = new StringBuilder();
+                for (int i = 0; i < Math.min(TOP_IN_WARNING, touched.size()); i++) {
+                    if (i > 0) top.append(", ");
+                    top.append(touched.get(i).name).append(' ')
+                            .append(String.format("%.2f ms", touched.get(i).tickNanos / 1_000_000.0));
+                }
+                plugin.getLogger().warning(plugin.getTranslation("watchdog.over_budget",
+                        tickNanos / 1_000_000.0, getBudgetMillis(), top));
+            }
+        }
+
+        boolean nowDegraded = overBudgetTicks >= degradeTicks;
+        if (nowDegraded != degraded) {
+            degraded = nowDegraded;
+            plugin.getLogger().warning(plugin.getTranslation(nowDegraded ? "watchdog.degraded" : "watchdog.recovered",
+                    overBudgetTicks, WINDOW));
+        }
+
+        for (Source source : touched) {
+            source.tickNanos = 0;
+        }
+        touched.clear();
+        tickNanos = 0;
+    }
+
+    static final class Source {
+
+        private final String name;
+        private final long[] samples = new long[SAMPLES];
+        private int next;
+        private long calls;
+        private long max;
+        private long tickNanos;
+
+        Source(String name) {
+            this.name = name;
+        }
+
+        private synchronized void record(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % SAMPLES;
+            calls++;
+            if (nanos > max) max = nanos;
+        }
+
+        private synchronized Stats stats() {
+            if (calls == 0) return null;
+            long[] sorted = Arrays.copyOf(samples, (int) Math.min(calls, SAMPLES));
+            Arrays.sort(sorted);
+            return new Stats(name, calls, sorted[(sorted.length - 1) / 2],
+                    sorted[(int) Math.ceil(sorted.length * 0.99) - 1], max);
+        }
+    }
+
+    record Stats(String source, long calls, long p50, long p99, long max) {
+    }
+}
@@ -0,0 +1,352 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import net.md_5.bungee.api.chat.ClickEvent;
+import net.md_5.bungee.api.chat.TextComponent;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Самые частые источники входов для /firewall top. Время делится на отрезки по SLICE_SECONDS секунд,
+// в каждом отрезке для адресов, /24 и /64 свой Space-Saving на counters счётчиков: память
+// постоянна при любом числе разных источников. Окно — сумма последних отрезков; у источника,
+// вытесненного из отрезка, счёт в нём оценивается сверху минимумом этого отрезка.
+// Только основной поток: входы учитываются в PlayerLoginEvent, команда выполняется в нём же.
+final class TopTalkers {
+
+    static final int SLICE_SECONDS = 10;
+    // Отрезков хватает на самое длинное окно, 10 минут
+    private static final int SLICES = 60;
+    private static final int SHOWN = 10;
+    private static final long DEFAULT_WINDOW = 60;
+
+    enum Level {
+        IP("ip", 128, 128), V4_NETWORK("/24", 96 + 24, -1), V6_NETWORK("/64", -1, 64);
+
+        final String label;
+        final int v4Length;
+        final int v6Length;
+
+        Level(String label, int v4Length, int v6Length) {
+            this.label = label;
+            this.v4Length = v4Length;
+            this.v6Length = v6Length;
+        }
+
+        // null, если строка не уровень
+        static Level parse(String value) {
+            for (Level level : values()) {
+                if (level.label.equalsIgnoreCase(value)) return level;
+            }
+            return null;
+        }
+    }
+
+    private final Main plugin;
+    private final boolean enabled;
+    private final SpaceSaving[][] slices;
+    private final long[] sliceEpochs;
+
+    TopTalkers(Main plugin) {
+        this.plugin = plugin;
+        this.enabled = plugin.config.getBoolean("top-talkers.enabled", true);
+        int counters = Math.clamp(plugin.config.getInt("top-talkers.counters", 128), SHOWN, 4096);
+        this.slices = new SpaceSaving[SLICES][Level.values().length];
+        this.sliceEpochs = new long[SLICES];
+        if (!enabled) return;
+        for (SpaceSaving[] slice : slices) {
+            for (int i = 0; i < slice.length; i++) {
+                slice[i] = new SpaceSaving(counters);
+            }
+        }
+        Arrays.fill(sliceEpochs, -1);
+    }
+
+    // Каждый вход до решения файрвола, в том числе отклонённый
+    void record(InetAddress address) {
+        if (!enabled) return;
+        long high = IpAddress.highOf(address);
+        long low = IpAddress.lowOf(address);
+        boolean v4 = high == 0 && (low >>> 32) == 0xFFFFL;
+
+        SpaceSaving[] slice = slice(now() / SLICE_SECONDS);
+        for (Level level : Level.values()) {
+            int length = v4 ? level.v4Length : level.v6Length;
+            if (length < 0) continue;
+            slice[level.ordinal()].offer(high & IpAddress.highMask(length), low & IpAddress.lowMask(length));
+        }
+    }
+
+    // /firewall top [ip|/24|/64] [окно: 90, 90s, 5m]
+    void show(CommandSender sender, String levelName, String windowText) {
+        if (!enabled) {
+            sender.sendMessage(plugin.getTranslation("top.disabled"));
+            return;
+        }
+        Level level = Level.parse(levelName);
+        if (level == null) {
+            sender.sendMessage(plugin.getTranslation("commands.usage.top"));
+            return;
+        }
+        long window = windowText == null ? DEFAULT_WINDOW : parseWindow(windowText);
+        if (window <= 0) {
+            sender.sendMessage(plugin.getTranslation("commands.usage.top"));
+            return;
+        }
+        window = Math.min(window, (long) SLICES * SLICE_SECONDS);
+
+        List<Talker> talkers = top(level, window);
+        sender.sendMessage(plugin.getTranslation("top.header", level.label, window));
+        if (talkers.isEmpty()) {
+            sender.sendMessage(plugin.getTranslation("top.empty"));
+            return;
+        }
+
+        for (int i = 0; i < talkers.size(); i++) {
+            Talker talker = talkers.get(i);
+            String line = plugin.getTranslation("top.line", i + 1, talker.prefix(), talker.count(),
+                    talker.count() - talker.error());
+            // Игроку — кнопка бана строки; консоли — готовая команда в подсказке ниже
+            if (sender instanceof Player) {
+                TextComponent message = new TextComponent(TextComponent.fromLegacyText(line + " "));
+                TextComponent button = new TextComponent(TextComponent.fromLegacyText(
+                        plugin.getTranslation("top.ban_button")));
+                button.setClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, banCommand(talker.prefix())));
+                message.addExtra(button);
+                sender.spigot().sendMessage(message);
+            } else {
+                sender.sendMessage(line);
+            }
+        }
+        if (!(sender instanceof Player)) {
+            sender.sendMessage(plugin.getTranslation("top.ban_hint", banCommand(talkers.get(0).prefix())));
+        }
+    }
+
+    static String banCommand(IpPrefix prefix) {
+        return "/firewall addrule " + prefix + " blacklist block";
+    }
+
+    // Слияние отрезков окна; порядок — по оценке сверху
+    List<Talker> top(Level level, long windowSeconds) {
+        long last = now() / SLICE_SECONDS;
+        long first = last - (windowSeconds + SLICE_SECONDS - 1) / SLICE_SECONDS + 1;
+        Map<IpAddress, long[]> merged = new HashMap<>();
+        List<SpaceSaving> summaries = new ArrayList<>();
+        for (long epoch = Math.max(first, last - SLICES + 1); epoch <= last; epoch++) {
+            int index = (int) (epoch % SLICES);
+            if (sliceEpochs[index] != epoch) continue;
+            SpaceSaving summary = slices[index][level.ordinal()];
+            summaries.add(summary);
+            for (int slot = 0; slot < summary.size; slot++) {
+                long[] total = merged.computeIfAbsent(new IpAddress(summary.high[slot], summary.low[slot]),
+                        key -> new long[2]);
+                total[0] += summary.count[slot];
+                total[1] += summary.error[slot];
+            }
+        }
+
+        List<Talker> talkers = new ArrayList<>(merged.size());
+        for (Map.Entry<IpAddress, long[]> entry : merged.entrySet()) {
+            IpAddress address = entry.getKey();
+            long count = entry.getValue()[0];
+            long error = entry.getValue()[1];
+            for (SpaceSaving summary : summaries) {
+                if (summary.isFull() && summary.indexOf(address.high(), address.low()) < 0) {
+                    count += summary.minimum();
+                    error += summary.minimum();
+                }
+            }
+            int length = address.isIPv4() ? level.v4Length : level.v6Length;
+            talkers.add(new Talker(IpPrefix.of(address, length), count, error));
+        }
+        talkers.sort((a, b) -> Long.compare(b.count(), a.count()));
+        return talkers.size() > SHOWN ? new ArrayList<>(talkers.subList(0, SHOWN)) : talkers;
+    }
+
+    // Отрезок текущего времени; устаревший отрезок кольца очищается при первом входе в нём
+    private SpaceSaving[] slice(long epoch) {
+        int index = (int) (epoch % SLICES);
+        if (sliceEpochs[index] != epoch) {
+            sliceEpochs[index] = epoch;
+            for (SpaceSaving summary : slices[index]) {
+                summary.clear();
+            }
+        }
+        return slices[index];
+    }
+
+    // Секунды: "90", "90s", "5m"; -1, если строка не разбирается
+    static long parseWindow(String text) {
+        String value = text.toLowerCase(Locale.ROOT);
+        long unit = 1;
+        if (value.endsWith("m")) {
+            unit = 60;
+            value = value.substring(0, value.length() - 1);
+        } else if (value.endsWith("s")) {
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            long amount = Long.parseLong(value);
+            return amount > 0 && amount <= 1440 ? amount * unit : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000_000L;
+    }
+
+    // count — оценка сверху, count - error — гарантированный минимум входов
+    record Talker(IpPrefix prefix, long count, long error) {
+    }
+
+    // Space-Saving (Metwally и др.): при переполнении новый ключ занимает счётчик минимума и наследует
+    // его значение как погрешность. Минимум — корень кучи по счёту, поиск ключа — открытая адресация
+    static final class SpaceSaving {
+        final long[] high;
+        final long[] low;
+        final long[] count;
+        final long[] error;
+        int size;
+
+        // Куча номеров счётчиков и положение каждого счётчика в ней
+        private final int[] heap;
+        private final int[] position;
+        // Номер счётчика + 1, 0 — пусто; заполнение не больше половины
+        private final int[] table;
+
+        SpaceSaving(int capacity) {
+            high = new long[capacity];
+            low = new long[capacity];
+            count = new long[capacity];
+            error = new long[capacity];
+            heap = new int[capacity];
+            position = new int[capacity];
+            table = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        }
+
+        void offer(long keyHigh, long keyLow) {
+            int slot = indexOf(keyHigh, keyLow);
+            if (slot >= 0) {
+                count[slot]++;
+                siftDown(position[slot]);
+                return;
+            }
+
+            if (size < high.length) {
+                slot = size++;
+                high[slot] = keyHigh;
+                low[slot] = keyLow;
+                count[slot] = 1;
+                error[slot] = 0;
+                insert(slot);
+                heap[slot] = slot;
+                position[slot] = slot;
+                siftUp(slot);
+                return;
+            }
+
+            slot = heap[0];
+            delete(slot);
+            high[slot] = keyHigh;
+            low[slot] = keyLow;
+            error[slot] = count[slot];
+            count[slot]++;
+            insert(slot);
+            siftDown(0);
+        }
+
+        boolean isFull() {
+            return size == high.length;
+        }
+
+        long minimum() {
+            return size == 0 ? 0 : count[heap[0]];
+        }
+
+        void clear() {
+            size = 0;
+            Arrays.fill(table, 0);
+        }
+
+        int indexOf(long keyHigh, long keyLow) {
+            int mask = table.length - 1;
+            for (int i = hash(keyHigh, keyLow) & mask; table[i] != 0; i = (i + 1) & mask) {
+                int slot = table[i] - 1;
+                if (high[slot] == keyHigh && low[slot] == keyLow) return slot;
+            }
+            return -1;
+        }
+
+        private void insert(int slot) {
+            int mask = table.length - 1;
+            int i = hash(high[slot], low[slot]) & mask;
+            while (table[i] != 0) i = (i + 1) & mask;
+            table[i] = slot + 1;
+        }
+
+        // Удаление со сдвигом следующих элементов цепочки назад, без меток удаления
+        private void delete(int slot) {
+            int mask = table.length - 1;
+            int i = hash(high[slot], low[slot]) & mask;
+            while (table[i] != slot + 1) i = (i + 1) & mask;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (table[j] == 0) break;
+                int other = table[j] - 1;
+                int home = hash(high[other], low[other]) & mask;
+                // Элемент j можно перенести в i, если его место i не дальше по циклу, чем j
+                if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                    table[i] = table[j];
+                    i = j;
+                }
+            }
+            table[i] = 0;
+        }
+
+        private void siftUp(int index) {
+            int slot = heap[index];
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (count[heap[parent]] <= count[slot]) break;
+                place(heap[parent], index);
+                index = parent;
+            }
+            place(slot, index);
+        }
+
+        private void siftDown(int index) {
+            int slot = heap[index];
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size) break;
+                if (child + 1 < size && count[heap[child + 1]] < count[heap[child]]) child++;
+                if (count[heap[child]] >= count[slot]) break;
+                place(heap[child], index);
+                index = child;
+            }
+            place(slot, index);
+        }
+
+        private void place(int slot, int index) {
+            heap[index] = slot;
+            position[slot] = index;
+        }
+
+        private static int hash(long keyHigh, long keyLow) {
+            long value = keyHigh * 0x9E3779B97F4A7C15L ^ keyLow;
+            value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+            value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+            return (int) (value ^ (value >>> 31));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetAddress;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AttackGuardTest {
+
+    @TempDir
+    Path dataFolder;
+
+    // Последние адреса вытесняются по давности: проверка не освежает ключ, повторное добавление — да.
+    // Ключи с одной цепочкой в таблице проверяют удаление со сдвигом
+    @Test
+    void recentKeysEvictLeastRecentlyAdded() {
+        AttackGuard.RecentKeys recent = new AttackGuard.RecentKeys(3);
+        long collide = 1L << 32;
+        recent.add(1);
+        recent.add(collide);
+        recent.add(2);
+        assertTrue(recent.contains(1));
+
+        recent.add(3);
+        assertFalse(recent.contains(1));
+        assertTrue(recent.contains(collide));
+
+        recent.add(collide);
+        recent.add(4);
+        assertFalse(recent.contains(2));
+        assertTrue(recent.contains(collide));
+        assertArrayEquals(new long[]{3, collide, 4}, recent.toArray());
+        assertEquals(3, recent.size());
+
+        recent.clear();
+        assertFalse(recent.contains(3));
+        assertArrayEquals(new long[0], recent.toArray());
+    }
+
+    // По умолчанию флуд только замечается: незнакомый адрес входит, пока не включён enforce
+    @Test
+    void observesUntilEnforced() throws Exception {
+        TestPlugin test = new TestPlugin(dataFolder);
+        test.config.set("attack-mode.threshold", 1);
+        test.config.set("attack-mode.window", 1);
+        AttackGuard guard = new AttackGuard(test.plugin);
+        guard.load();
+        guard.remember(InetAddress.getByName("203.0.113.7"));
+
+        for (int i = 0; i < 5; i++) guard.onLogin();
+        assertTrue(guard.isActive());
+        assertFalse(guard.isEnforcing());
+
+        IpAddress stranger = IpAddress.parse("198.51.100.9");
+        IpAddress known = IpAddress.parse("203.0.113.8");
+        assertTrue(guard.admits(stranger.high(), stranger.low()));
+
+        test.config.set("attack-mode.enforce", true);
+        guard.loadSettings();
+        assertFalse(guard.admits(stranger.high(), stranger.low()));
+        assertTrue(guard.admits(known.high(), known.low()));
+    }
+}
@@ -0,0 +1,138 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Несколько узлов в одном процессе на localhost: сходимость состояния, ретрансляция по цепочке,
+// снимок для подключившегося позже узла и отказ узлу с чужим секретом
+class ClusterNodeTest {
+
+    private static final String SECRET = "0123456789abcdef0123456789abcdef";
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private final List<ClusterNode> nodes = new ArrayList<>();
+    private final Map<String, Map<String, ClusterNode.ClusterEntry>> applied = new ConcurrentHashMap<>();
+
+    @AfterEach
+    void stopNodes() {
+        nodes.forEach(ClusterNode::stop);
+    }
+
+    @Test
+    void changesConvergeAcrossChain() throws Exception {
+        ClusterNode a = start("a", SECRET);
+        ClusterNode b = start("b", SECRET, a);
+        ClusterNode c = start("c", SECRET, b);
+        awaitConnections(a, 1);
+        awaitConnections(c, 1);
+
+        a.publishPut("fw|10.0.0.1", List.of("blacklist", "block"));
+        c.publishPut("pip|10.0.0.0/24|25565", List.of("TCP", "OPEN", "lobby"));
+        b.publishPut("fw|10.0.0.2", List.of("whitelist", "allow"));
+        await(() -> a.getEntryCount() == 3 && b.getEntryCount() == 3 && c.getEntryCount() == 3);
+        awaitSameDigest(a, b, c);
+
+        // c получил запись a через b, применил её ровно в том виде, в каком она опубликована
+        assertEquals(List.of("blacklist", "block"), applied.get("c").get("fw|10.0.0.1").fields());
+
+        c.publishRemove("fw|10.0.0.1");
+        await(() -> a.liveFields("fw|10.0.0.1") == null);
+        awaitSameDigest(a, b, c);
+        assertTrue(applied.get("a").get("fw|10.0.0.1").removed());
+    }
+
+    @Test
+    void concurrentWritesPickSameWinner() throws Exception {
+        ClusterNode a = start("a", SECRET);
+        ClusterNode b = start("b", SECRET, a);
+        awaitConnections(a, 1);
+
+        for (int i = 0; i < 200; i++) {
+            a.publishPut("fw|10.1.0." + (i % 20), List.of("blacklist", "block"));
+            b.publishPut("fw|10.1.0." + (i % 20), List.of("whitelist", "allow"));
+        }
+        awaitSameDigest(a, b);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(a.liveFields("fw|10.1.0." + i), b.liveFields("fw|10.1.0." + i));
+        }
+    }
+
+    @Test
+    void lateNodeReceivesSnapshot() throws Exception {
+        ClusterNode a = start("a", SECRET);
+        for (int i = 0; i < 5000; i++) {
+            a.publishPut("fw|10.2." + (i >> 8) + "." + (i & 0xFF), List.of("blacklist", "block"));
+        }
+
+        ClusterNode b = start("b", SECRET, a);
+        await(() -> b.getEntryCount() == 5000);
+        awaitSameDigest(a, b);
+        assertEquals(5000, applied.get("b").size());
+    }
+
+    @Test
+    void wrongSecretIsRejected() throws Exception {
+        ClusterNode a = start("a", SECRET);
+        ClusterNode b = start("b", SECRET, a);
+        ClusterNode intruder = start("x", "fedcba9876543210fedcba9876543210", a);
+        awaitConnections(a, 1);
+
+        intruder.publishPut("fw|0.0.0.0/0", List.of("blacklist", "block"));
+        a.publishPut("fw|10.3.0.1", List.of("blacklist", "block"));
+        await(() -> b.getEntryCount() == 1);
+        // Рукопожатие чужого узла завершено отказом, его запись не дошла
+        Thread.sleep(500);
+        assertEquals(1, a.getConnectionCount());
+        assertNull(a.liveFields("fw|0.0.0.0/0"));
+        assertNull(b.liveFields("fw|0.0.0.0/0"));
+        assertEquals(1, intruder.getEntryCount());
+    }
+
+    private ClusterNode start(String id, String secret, ClusterNode... peers) throws IOException {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (ClusterNode peer : peers) {
+            addresses.add(new InetSocketAddress("127.0.0.1", peer.getLocalPort()));
+        }
+        Map<String, ClusterNode.ClusterEntry> entries = new ConcurrentHashMap<>();
+        applied.put(id, entries);
+        ClusterNode node = new ClusterNode(id, secret, new InetSocketAddress("127.0.0.1", 0), addresses,
+                entry -> entries.put(entry.key(), entry), Logger.getLogger("ClusterNodeTest." + id));
+        nodes.add(node);
+        node.start(1);
+        return node;
+    }
+
+    private static void awaitConnections(ClusterNode node, int count) throws InterruptedException {
+        await(() -> node.getConnectionCount() >= count);
+    }
+
+    private static void awaitSameDigest(ClusterNode first, ClusterNode... others) throws InterruptedException {
+        await(() -> {
+            for (ClusterNode other : others) {
+                if (other.getDigest() != first.getDigest()) return false;
+            }
+            return true;
+        });
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "cluster did not converge");
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Префиксное дерево дополнения: поиск, удаление со счётчиками и регистр
+class CompletionTrieTest {
+
+    @TempDir
+    Path dataFolder;
+
+    // Строки с префиксом — по возрастанию и не больше limit, в том числе когда префикс обрывается посреди ребра
+    @Test
+    void prefixLookup() {
+        CompletionTrie trie = new CompletionTrie();
+        for (String text : List.of("8080", "25570", "25565", "25", "25566")) trie.add(text);
+
+        assertEquals(List.of("25", "25565", "25566", "25570", "8080"), trie.complete("", 10));
+        assertEquals(List.of("25565", "25566", "25570"), trie.complete("255", 10));
+        assertEquals(List.of("25565", "25566"), trie.complete("255", 2));
+        assertEquals(List.of("25570"), trie.complete("2557", 10));
+        assertEquals(List.of("25565"), trie.complete("25565", 10));
+        assertEquals(List.of(), trie.complete("255655", 10));
+        assertEquals(List.of(), trie.complete("9", 10));
+        assertEquals(List.of(), trie.complete("", 0));
+    }
+
+    // Новая строка, расходящаяся посреди ребра, делит его; обе ветви остаются доступны
+    @Test
+    void splitEdge() {
+        CompletionTrie trie = new CompletionTrie();
+        trie.add("lobby");
+        trie.add("lounge");
+        trie.add("lo");
+
+        assertEquals(3, trie.size());
+        assertEquals(List.of("lo", "lobby", "lounge"), trie.complete("l", 10));
+        assertEquals(List.of("lobby"), trie.complete("lob", 10));
+        assertEquals(List.of(), trie.complete("low", 10));
+    }
+
+    // Строка от двух правил исчезает только после второго удаления; префиксы и чужие строки не трогаются
+    @Test
+    void removeCounted() {
+        CompletionTrie trie = new CompletionTrie();
+        trie.add("lobby");
+        trie.add("lobby");
+        trie.add("lounge");
+
+        trie.remove("lob");
+        trie.remove("lobbyist");
+        trie.remove("arena");
+        assertEquals(2, trie.size());
+
+        trie.remove("lobby");
+        assertEquals(List.of("lobby", "lounge"), trie.complete("lo", 10));
+
+        trie.remove("lobby");
+        assertEquals(1, trie.size());
+        assertEquals(List.of("lounge"), trie.complete("lo", 10));
+        assertEquals(List.of(), trie.complete("lob", 10));
+    }
+
+    // После удаления узел без своей строки с одним потомком сливается с ним, и поиск посреди слитого ребра работает
+    @Test
+    void removeMergesNodes() {
+        CompletionTrie trie = new CompletionTrie();
+        trie.add("lobby");
+        trie.add("lounge");
+        trie.add("lo");
+
+        trie.remove("lounge");
+        trie.remove("lo");
+        assertEquals(1, trie.size());
+        assertEquals(List.of("lobby"), trie.complete("l", 10));
+        assertEquals(List.of("lobby"), trie.complete("lobb", 10));
+        assertEquals(List.of(), trie.complete("lou", 10));
+
+        trie.add("lounge");
+        assertEquals(List.of("lobby", "lounge"), trie.complete("lo", 10));
+
+        trie.clear();
+        assertEquals(0, trie.size());
+        assertEquals(List.of(), trie.complete("", 10));
+    }
+
+    // Дерево различает регистр: приводит токен к нижнему регистру вызывающий, и только через Locale.ROOT —
+    // в турецкой локали «I» становится «ı» и не найдёт строку, записанную латиницей
+    @Test
+    void caseSensitive() {
+        CompletionTrie trie = new CompletionTrie();
+        trie.add("Lobby");
+        trie.add("lobby");
+        trie.add("istanbul");
+
+        assertEquals(3, trie.size());
+        assertEquals(List.of("Lobby", "istanbul", "lobby"), trie.complete("", 10));
+        assertEquals(List.of("Lobby"), trie.complete("L", 10));
+        assertEquals(List.of("lobby"), trie.complete("l", 10));
+
+        assertEquals(List.of("istanbul"), trie.complete("IST".toLowerCase(Locale.ROOT), 10));
+        assertEquals(List.of(), trie.complete("IST".toLowerCase(Locale.forLanguageTag("tr")), 10));
+    }
+
+    // Адрес IPv6, набранный заглавными, дополняется: команда приводит токен к нижнему регистру, как хранит дерево
+    @Test
+    void completerFoldsCase() throws Exception {
+        TestPlugin test = new TestPlugin(dataFolder);
+        PortIPManager portIPManager = new PortIPManager(test.plugin);
+        List<String> messages = new ArrayList<>();
+        portIPManager.blockPortForIP(TestPlugin.sender(messages), "2001:DB8::1", "25570");
+
+        CommandCompleter completer = new CommandCompleter(null, null, portIPManager);
+        assertEquals(List.of("2001:db8::1"),
+                completer.onTabComplete(null, null, "firewall", new String[]{"unblockportip", "2001:DB8"}));
+        assertEquals(List.of("25570"),
+                completer.onTabComplete(null, null, "firewall", new String[]{"unblockportip", "2001:DB8::1", ""}));
+    }
+}
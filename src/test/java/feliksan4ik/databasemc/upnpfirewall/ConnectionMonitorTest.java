@@ -0,0 +1,130 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+// Таблицы /proc/net из src/test/resources/proc-net (адреса напечатаны для little-endian):
+// порт 8100/TCP — 3 соединения с 203.0.113.7 (и одно TIME_WAIT), 2 с 198.51.100.9, 3 с 2001:db8::5;
+// порт 24454/UDP — 3 подключённых сокета 203.0.113.7; порт 25565 без правил ports-ip не считается
+class ConnectionMonitorTest {
+
+    @TempDir
+    Path dataFolder;
+
+    private TestPlugin test;
+    private PortIPManager portIP;
+    private NftablesBackend nftables;
+    private final List<String> warnings = new ArrayList<>();
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+            warnings.add(record.getMessage());
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @BeforeEach
+    void setUp() throws Exception {
+        assumeTrue(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+        test = new TestPlugin(dataFolder);
+        test.config.set("connection-monitor.enabled", true);
+        test.config.set("connection-monitor.max-per-address", 2);
+        test.config.set("connection-monitor.proc-path",
+                Path.of(getClass().getResource("/proc-net").toURI()).toString());
+
+        PrefixMatcher<PortRuleSet> rules = new PrefixMatcher<>();
+        IpPrefix any = IpPrefix.parse("::/0");
+        rules.put(any, PortRuleSet.EMPTY
+                .with(new PortIPManager.PortIPRule(any, PortRange.of(8100), Protocol.TCP, RuleAction.OPEN, "web", "web"))
+                .with(new PortIPManager.PortIPRule(any, PortRange.of(24454), Protocol.UDP, RuleAction.OPEN, "voice", "voice")));
+        portIP = mock(PortIPManager.class);
+        doReturn(rules).when(portIP).getRules();
+        doReturn(true).when(portIP).blockExcess(any(), any(), any());
+        nftables = mock(NftablesBackend.class);
+
+        test.plugin.getLogger().addHandler(handler);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (test != null) test.plugin.getLogger().removeHandler(handler);
+    }
+
+    @Test
+    void countsConnectionsFromFixtures() {
+        ConnectionMonitor monitor = new ConnectionMonitor(test.plugin, portIP, nftables);
+        monitor.sample();
+
+        assertTrue(monitor.describe().startsWith("connections.state 11 2 3 "), monitor.describe());
+        assertTrue(warnings.contains("connections.over_limit 203.0.113.7 3 8100 TCP 2"), warnings.toString());
+        assertTrue(warnings.contains("connections.over_limit 2001:db8::5 3 8100 TCP 2"), warnings.toString());
+        assertTrue(warnings.contains("connections.over_limit 203.0.113.7 3 24454 UDP 2"), warnings.toString());
+        assertEquals(0, test.pendingSync());
+
+        // Те же нарушители в следующем замере повторно не пишутся
+        warnings.clear();
+        monitor.sample();
+        assertEquals(List.of(), warnings);
+    }
+
+    @Test
+    void perPortLimitOverridesDefault() {
+        test.config.set("connection-monitor.limits.24454", 5);
+        ConnectionMonitor monitor = new ConnectionMonitor(test.plugin, portIP, nftables);
+        monitor.sample();
+
+        assertTrue(monitor.describe().startsWith("connections.state 11 2 2 "), monitor.describe());
+    }
+
+    @Test
+    void blockAddsRulesWhenNftablesEnforces() {
+        test.config.set("connection-monitor.action", "block");
+        doReturn(true).when(nftables).isEnforcing();
+        ConnectionMonitor monitor = new ConnectionMonitor(test.plugin, portIP, nftables);
+        monitor.sample();
+
+        verify(portIP, never()).blockExcess(any(), any(), any());
+        test.runSync();
+        verify(portIP).blockExcess(IpAddress.parse("203.0.113.7"), PortRange.of(8100), Protocol.TCP);
+        verify(portIP).blockExcess(IpAddress.parse("2001:db8::5"), PortRange.of(8100), Protocol.TCP);
+        verify(portIP).blockExcess(IpAddress.parse("203.0.113.7"), PortRange.of(24454), Protocol.UDP);
+    }
+
+    // Без nftables правило блокировки ничего бы не закрыло: block понижается до flag с предупреждением
+    @Test
+    void blockFallsBackToFlagWithoutNftables() {
+        test.config.set("connection-monitor.action", "block");
+        ConnectionMonitor monitor = new ConnectionMonitor(test.plugin, portIP, nftables);
+        assertEquals(List.of("connections.block_without_nftables"), warnings);
+
+        monitor.sample();
+        assertEquals(0, test.pendingSync());
+        verify(portIP, never()).blockExcess(any(), any(), any());
+        assertTrue(warnings.contains("connections.over_limit 203.0.113.7 3 8100 TCP 2"), warnings.toString());
+    }
+}
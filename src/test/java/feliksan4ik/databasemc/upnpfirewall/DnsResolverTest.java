@@ -0,0 +1,40 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DnsResolverTest {
+
+    // Ответ с верным идентификатором, но на чужой вопрос не принимается
+    @Test
+    void responseMustRepeatQuestion() {
+        byte[] request = DnsResolver.request(0x1234, "play.example.com", 1);
+
+        byte[] response = answer(request);
+        assertTrue(DnsResolver.sameQuestion(request, response));
+
+        byte[] mixedCase = answer(DnsResolver.request(0x1234, "PLAY.Example.com", 1));
+        assertTrue(DnsResolver.sameQuestion(request, mixedCase));
+
+        assertFalse(DnsResolver.sameQuestion(request, answer(DnsResolver.request(0x1234, "evil.example.com", 1))));
+        assertFalse(DnsResolver.sameQuestion(request, answer(DnsResolver.request(0x1234, "play.example.com", 28))));
+        assertFalse(DnsResolver.sameQuestion(request, Arrays.copyOf(response, 20)));
+
+        byte[] twoQuestions = answer(request);
+        twoQuestions[5] = 2;
+        assertFalse(DnsResolver.sameQuestion(request, twoQuestions));
+    }
+
+    // Заголовок ответа и запись A после вопроса
+    private static byte[] answer(byte[] request) {
+        byte[] response = Arrays.copyOf(request, request.length + 16);
+        response[2] = (byte) 0x81;
+        response[3] = (byte) 0x80;
+        response[7] = 1;
+        return response;
+    }
+}
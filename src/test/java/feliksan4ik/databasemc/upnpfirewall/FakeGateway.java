@@ -0,0 +1,103 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Шлюз-заглушка на loopback: отвечает на NAT-PMP или PCP (RFC 6886, RFC 6887) на порту 5351
+// и записывает запросы проброса строками "map tcp 25565" и "unmap udp 25565". Разные шлюзы
+// занимают разные адреса 127.0.0.x. silent — шлюз принимает запросы, но не отвечает
+final class FakeGateway implements AutoCloseable {
+
+    final List<String> requests = new CopyOnWriteArrayList<>();
+    // Адрес клиента из запросов PCP: у дальнего шлюза цепочки это внешний адрес ближнего
+    final List<InetAddress> pcpClients = new CopyOnWriteArrayList<>();
+    volatile boolean silent;
+
+    private final DatagramSocket socket;
+    private final boolean pcp;
+    private final byte[] external;
+    private final Thread thread;
+
+    FakeGateway(String address, boolean pcp, String external) throws IOException {
+        this.socket = new DatagramSocket(new InetSocketAddress(address, NatPmpMapper.PORT));
+        this.pcp = pcp;
+        this.external = InetAddress.getByName(external).getAddress();
+        this.thread = new Thread(this::serve, "FakeGateway-" + address);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serve() {
+        byte[] buffer = new byte[1100];
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                byte[] response = respond(Arrays.copyOf(buffer, packet.getLength()));
+                if (response != null && !silent) {
+                    socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+                }
+            } catch (SocketException e) {
+                return;
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private byte[] respond(byte[] request) throws IOException {
+        if (!pcp && request[0] == 0) {
+            if (request[1] == 0) {
+                return ByteBuffer.allocate(12).put((byte) 0).put((byte) 128).putShort((short) 0).putInt(1)
+                        .put(external).array();
+            }
+            ByteBuffer in = ByteBuffer.wrap(request);
+            int port = in.getShort(4) & 0xFFFF;
+            int lifetime = in.getInt(8);
+            record(lifetime, request[1] == 2 ? "tcp" : "udp", port);
+            return ByteBuffer.allocate(16).put((byte) 0).put((byte) (128 + request[1])).putShort((short) 0).putInt(1)
+                    .putShort((short) port).putShort((short) port).putInt(lifetime).array();
+        }
+        if (pcp && request[0] == 2) {
+            if (request[1] == 0) {
+                byte[] response = new byte[24];
+                response[0] = 2;
+                response[1] = (byte) 0x80;
+                return response;
+            }
+            pcpClients.add(InetAddress.getByAddress(Arrays.copyOfRange(request, 8, 24)));
+            ByteBuffer in = ByteBuffer.wrap(request);
+            int port = in.getShort(40) & 0xFFFF;
+            record(in.getInt(4), request[36] == 6 ? "tcp" : "udp", port);
+
+            byte[] response = Arrays.copyOf(request, 60);
+            response[1] = (byte) 0x81;
+            response[3] = 0;
+            Arrays.fill(response, 8, 24, (byte) 0);
+            ByteBuffer.wrap(response, 8, 4).putInt(1);
+            Arrays.fill(response, 44, 56, (byte) 0);
+            response[54] = (byte) 0xFF;
+            response[55] = (byte) 0xFF;
+            System.arraycopy(external, 0, response, 56, 4);
+            return response;
+        }
+        return null;
+    }
+
+    private void record(int lifetime, String protocol, int port) {
+        if (!silent) requests.add((lifetime == 0 ? "unmap " : "map ") + protocol + " " + port);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        socket.close();
+        thread.join();
+    }
+}
@@ -0,0 +1,84 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GatewayTest {
+
+    @TempDir
+    Path dataFolder;
+
+    // TCP открыт первым способом, UDP того же диапазона — вторым: каждый протокол закрывает свой
+    // способ, закрытие одного протокола не трогает другой
+    @Test
+    void closeReachesOwnerOfEachProtocol() throws Exception {
+        Recording pcp = new Recording("PCP", 1, Protocol.UDP);
+        Recording natPmp = new Recording("NAT-PMP", 2, null);
+        Gateway gateway = new Gateway(new TestPlugin(dataFolder).plugin, InetAddress.getByName("127.0.0.1"),
+                List.of(pcp, natPmp));
+        gateway.probe();
+
+        PortRange ports = PortRange.of(25565);
+        assertTrue(gateway.openPort(ports, Protocol.TCP, "game"));
+        assertTrue(gateway.openPort(ports, Protocol.UDP, "game"));
+        assertEquals(List.of("open 25565 TCP", "open 25565 UDP"), pcp.calls);
+        assertEquals(List.of("open 25565 UDP"), natPmp.calls);
+
+        assertTrue(gateway.closePort(ports, Protocol.TCP));
+        assertEquals("close 25565 TCP", pcp.calls.get(pcp.calls.size() - 1));
+        assertEquals(List.of("open 25565 UDP"), natPmp.calls);
+
+        assertTrue(gateway.closePort(ports, Protocol.UDP));
+        assertEquals("close 25565 UDP", natPmp.calls.get(natPmp.calls.size() - 1));
+        assertEquals(3, pcp.calls.size());
+
+        // Больше ничего не проброшено: запросов к способам нет
+        assertTrue(gateway.closePort(ports, Protocol.TCP));
+        assertEquals(3, pcp.calls.size());
+        assertEquals(2, natPmp.calls.size());
+    }
+
+    // Способ с заданным временем ответа; refuses — протокол, проброс которого он не делает
+    private static final class Recording implements PortMapper {
+        final List<String> calls = new ArrayList<>();
+        private final String name;
+        private final long latency;
+        private final Protocol refuses;
+
+        Recording(String name, long latency, Protocol refuses) {
+            this.name = name;
+            this.latency = latency;
+            this.refuses = refuses;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public long probe() {
+            return latency;
+        }
+
+        @Override
+        public boolean openPort(PortRange ports, Protocol protocol, String description) {
+            calls.add("open " + ports + " " + protocol);
+            return protocol != refuses;
+        }
+
+        @Override
+        public boolean closePort(PortRange ports, Protocol protocol) {
+            calls.add("close " + ports + " " + protocol);
+            return true;
+        }
+    }
+}
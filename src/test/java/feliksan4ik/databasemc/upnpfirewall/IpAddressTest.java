@@ -0,0 +1,110 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IpAddressTest {
+
+    @TempDir
+    Path dataFolder;
+
+    // Копия getAddress() для IPv6: заголовок массива и 16 байт данных
+    private static final long V6_COPY_BYTES = 32;
+    private static final int CALLS = 200_000;
+
+    @Test
+    void halvesMatchFullAddress() throws Exception {
+        for (String text : new String[]{"203.0.113.7", "0.0.0.0", "255.255.255.255", "2001:db8::7",
+                "::1", "fe80::1:2:3:4", "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"}) {
+            InetAddress address = InetAddress.getByName(text);
+            IpAddress expected = IpAddress.of(address);
+            assertEquals(expected.high(), IpAddress.highOf(address), text);
+            assertEquals(expected.low(), IpAddress.lowOf(address), text);
+            assertEquals(text.equals("::1") ? "::1" : IpAddress.parse(text).toString(), expected.toString());
+        }
+        assertEquals(new IpAddress(0, 0x0000FFFFCB007107L), IpAddress.parse("203.0.113.7"));
+        assertTrue(IpAddress.parse("::ffff:203.0.113.7").isIPv4());
+    }
+
+    @Test
+    void rejectsNonLiterals() {
+        assertNull(IpAddress.parse("example.com"));
+        assertNull(IpAddress.parse("1.2.3"));
+        assertNull(IpAddress.parse("1.2.3.256"));
+        assertNull(IpAddress.parse(""));
+    }
+
+    // Путь решения при входе: половины IPv4-адреса, правило файрвола и режим атаки — без единого
+    // байта в куче, в том числе когда адрес не знаком и режим атаки его отклоняет
+    @Test
+    void loginDecisionAllocatesNothing() throws Exception {
+        TestPlugin test = new TestPlugin(dataFolder);
+        test.config.set("attack-mode.threshold", 1);
+        test.config.set("attack-mode.window", 1);
+        test.config.set("attack-mode.enforce", true);
+        AttackGuard guard = new AttackGuard(test.plugin);
+        guard.load();
+        guard.remember(InetAddress.getByName("203.0.113.7"));
+        for (int i = 0; i < 5; i++) guard.onLogin();
+        assertTrue(guard.isActive());
+
+        PrefixMatcher<FirewallManager.FirewallRule> matcher = FirewallManager.compile(List.of(
+                new FirewallManager.FirewallRule(IpPrefix.parse("198.51.100.0/24"), ListType.BLACKLIST, RuleAction.BLOCK),
+                new FirewallManager.FirewallRule(IpPrefix.parse("2001:db8::/32"), ListType.BLACKLIST, RuleAction.BLOCK)));
+
+        InetAddress[] addresses = {InetAddress.getByName("203.0.113.7"), InetAddress.getByName("192.0.2.1"),
+                InetAddress.getByName("198.51.100.9")};
+        decide(addresses, matcher, guard);
+        assertEquals(0, decide(addresses, matcher, guard));
+
+        // IPv6: само решение по двум long тоже без объектов
+        IpAddress v6 = IpAddress.parse("2001:db8::7");
+        LongSupplier v6Decision = () -> FirewallManager.evaluate(matcher, false, v6.high(), v6.low()).ordinal()
+                + (guard.admits(v6.high(), v6.low()) ? 1 : 0);
+        measure(v6Decision);
+        assertEquals(0, measure(v6Decision));
+    }
+
+    // IPv6-адрес без копии не прочитать: getAddress() — одна копия в 16 байт на половину
+    @Test
+    void v6HalvesCopyAddressOncePerHalf() throws Exception {
+        InetAddress v6 = InetAddress.getByName("2001:db8::7");
+        measure(() -> IpAddress.highOf(v6) ^ IpAddress.lowOf(v6));
+        assertTrue(measure(() -> IpAddress.highOf(v6) ^ IpAddress.lowOf(v6)) <= 2 * V6_COPY_BYTES);
+    }
+
+    private static long decide(InetAddress[] addresses, PrefixMatcher<FirewallManager.FirewallRule> matcher,
+                               AttackGuard guard) {
+        int[] next = {0};
+        return measure(() -> {
+            InetAddress address = addresses[next[0]++ % addresses.length];
+            long high = IpAddress.highOf(address);
+            long low = IpAddress.lowOf(address);
+            FirewallManager.Verdict verdict = FirewallManager.evaluate(matcher, false, high, low);
+            return verdict.ordinal() + (guard.admits(high, low) ? 1 : 0) + (matcher.longestMatch(high, low) == null ? 2 : 0);
+        });
+    }
+
+    // Байт на вызов
+    private static long measure(LongSupplier call) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long sink = 0;
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < CALLS; i++) {
+            sink += call.getAsLong();
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        assertTrue(sink != -1);
+        return allocated / CALLS;
+    }
+}
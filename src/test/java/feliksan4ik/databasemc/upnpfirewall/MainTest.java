@@ -0,0 +1,58 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.reflect.Field;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doCallRealMethod;
+
+class MainTest {
+
+    @TempDir
+    Path dataFolder;
+
+    // onEnable упал после открытия журнала: остальные поля null, а остановка всё равно штатная
+    @Test
+    void disableAfterPartialEnableClosesJournal() throws Exception {
+        TestPlugin test = new TestPlugin(dataFolder);
+        StateJournal journal = test.plugin.getStateJournal();
+        Field field = Main.class.getDeclaredField("stateJournal");
+        field.setAccessible(true);
+        field.set(test.plugin, journal);
+
+        doCallRealMethod().when(test.plugin).onDisable();
+        test.plugin.onDisable();
+
+        StateJournal next = new StateJournal(test.plugin);
+        next.load();
+        assertFalse(next.wasCrashed());
+    }
+
+    // Фоновая часть бросила исключение: done всё равно вызывается, уже со значением неудачи
+    @Test
+    void offThreadReportsFailedWorkOnMainThread() {
+        TestPlugin test = new TestPlugin(dataFolder);
+        List<Boolean> results = new ArrayList<>();
+        test.plugin.offThread("test", () -> {
+            throw new IllegalStateException("gateway gone");
+        }, false, results::add);
+        test.runAll();
+
+        assertEquals(List.of(false), results);
+    }
+
+    @Test
+    void journalWithoutShutdownRecordIsCrash() {
+        TestPlugin test = new TestPlugin(dataFolder);
+        StateJournal next = new StateJournal(test.plugin);
+        next.load();
+        assertTrue(next.wasCrashed());
+    }
+}
@@ -0,0 +1,62 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.MockMakers;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+// Вместо nft — скрипт, который падает, пока в папке лежит файл fail, и пишет вызовы в calls
+class NftablesBackendTest {
+
+    @TempDir
+    Path dataFolder;
+
+    @Test
+    void failedInitialLoadRetriesOnNextTick() throws Exception {
+        assumeTrue(System.getProperty("os.name", "").toLowerCase().contains("linux"));
+        Path fail = Files.createFile(dataFolder.resolve("fail"));
+        Path calls = dataFolder.resolve("calls");
+        Path nft = dataFolder.resolve("nft");
+        Files.writeString(nft, "#!/bin/sh\ncat > /dev/null\necho call >> '" + calls + "'\n"
+                + "[ -e '" + fail + "' ] && exit 1\nexit 0\n");
+        assumeTrue(nft.toFile().setExecutable(true));
+
+        TestPlugin test = new TestPlugin(dataFolder);
+        test.config.set("nftables.enabled", true);
+        test.config.set("nftables.dry-run", false);
+        test.config.set("nftables.command", nft.toString());
+
+        PrefixMatcher<FirewallManager.FirewallRule> matcher = new PrefixMatcher<>();
+        // Заглушка-наследник: inline-заглушка переписала бы байткод FirewallManager для всех тестов,
+        // и замер аллокаций на пути входа (IpAddressTest) видел бы её обвязку
+        FirewallManager firewall = mock(FirewallManager.class, withSettings().mockMaker(MockMakers.SUBCLASS));
+        doReturn(matcher).when(firewall).getMatcher();
+        doReturn(true).when(firewall).isEnabled();
+        PortIPManager portIP = mock(PortIPManager.class);
+        doReturn(new PrefixMatcher<PortRuleSet>()).when(portIP).getRules();
+        NftablesBackend backend = new NftablesBackend(test.plugin, firewall, portIP);
+
+        backend.sync();
+        assertEquals("nftables.state_failed", backend.describe());
+        backend.sync();
+        assertEquals(2, Files.readAllLines(calls).size());
+
+        // Правила не менялись: загрузка повторяется сама, как только nft снова работает
+        Files.delete(fail);
+        backend.sync();
+        assertEquals("nftables.state_applied 0 upnpfirewall", backend.describe());
+        assertEquals(3, Files.readAllLines(calls).size());
+
+        backend.sync();
+        assertEquals(List.of("call", "call", "call"), Files.readAllLines(calls));
+    }
+}
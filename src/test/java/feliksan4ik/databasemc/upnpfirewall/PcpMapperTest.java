@@ -0,0 +1,56 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// PCP на 127.0.0.6
+class PcpMapperTest {
+
+    @TempDir
+    Path dataFolder;
+
+    private FakeGateway gateway;
+    private PcpMapper mapper;
+    private InetSocketAddress address;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        gateway = new FakeGateway("127.0.0.6", true, "198.51.100.6");
+        address = new InetSocketAddress("127.0.0.6", NatPmpMapper.PORT);
+        mapper = new PcpMapper(new TestPlugin(dataFolder).plugin, address, 3600, 200, 1);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        gateway.close();
+    }
+
+    // Неудачная уборка остатков прошлого запуска не забывает проброс, открытый в этом
+    @Test
+    void failedReleaseKeepsLiveMapping() {
+        assertTrue(mapper.openPort(PortRange.of(25565), Protocol.TCP, "game"));
+
+        gateway.silent = true;
+        assertFalse(mapper.release(List.of(leftover(25565), leftover(25566))));
+
+        gateway.silent = false;
+        gateway.requests.clear();
+        assertTrue(mapper.closePort(new PortRange(25565, 25566), Protocol.TCP));
+        assertEquals(List.of("unmap tcp 25565"), gateway.requests);
+    }
+
+    private StateJournal.Mapping leftover(int port) {
+        return new StateJournal.Mapping("PCP", address, port, Protocol.TCP, port,
+                System.currentTimeMillis() + 60_000, new byte[12]);
+    }
+}
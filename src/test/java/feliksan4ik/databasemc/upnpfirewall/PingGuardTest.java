@@ -0,0 +1,97 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.bukkit.event.server.ServerListPingEvent;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.MockMakers;
+
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.withSettings;
+
+// Лимит один пинг без пополнения: второй пинг с того же адреса получает минимальный ответ
+class PingGuardTest {
+
+    @TempDir
+    Path dataFolder;
+
+    private TestPlugin test;
+    private PingGuard guard;
+
+    @BeforeEach
+    void setUp() {
+        test = new TestPlugin(dataFolder);
+        test.config.set("ping-protection.rate", 0.01);
+        test.config.set("ping-protection.burst", 1);
+        test.config.set("ping-protection.exempt", List.of("192.0.2.10", "bad/99"));
+
+        PrefixMatcher<FirewallManager.FirewallRule> matcher = new PrefixMatcher<>();
+        IpPrefix allowed = IpPrefix.parse("198.51.100.0/24");
+        matcher.put(allowed, new FirewallManager.FirewallRule(allowed, ListType.WHITELIST, RuleAction.ALLOW));
+        // Заглушка-наследник: inline-заглушка переписала бы байткод FirewallManager для всех тестов,
+        // и замер аллокаций на пути входа (IpAddressTest) видел бы её обвязку
+        FirewallManager firewall = mock(FirewallManager.class, withSettings().mockMaker(MockMakers.SUBCLASS));
+        doReturn(matcher).when(firewall).getMatcher();
+        doReturn(FirewallManager.Verdict.ALLOWED).when(firewall).verdict(anyLong(), anyLong());
+        guard = new PingGuard(test.plugin, firewall);
+    }
+
+    @Test
+    void offByDefault() throws Exception {
+        assertFalse(guard.isEnabled());
+        ping("203.0.113.1", "Lobby", 100);
+        ServerListPingEvent second = ping("203.0.113.1", "Lobby", 100);
+        verify(second, never()).setMotd(anyString());
+        assertEquals(0, guard.getRejected());
+    }
+
+    @Test
+    void rateLimitedSourceGetsCachedMotdAndMaxPlayers() throws Exception {
+        enable();
+        ping("203.0.113.1", "Lobby", 100);
+        ServerListPingEvent second = ping("203.0.113.1", "Changed", 50);
+
+        verify(second).setMotd("Lobby");
+        verify(second).setMaxPlayers(100);
+        assertEquals(1, guard.getRejected());
+    }
+
+    // Прокси из exempt и адреса с разрешающим правилом лимитом не ограничиваются
+    @Test
+    void exemptAndAllowListedSourcesAreNotLimited() throws Exception {
+        enable();
+        for (int i = 0; i < 5; i++) {
+            verify(ping("192.0.2.10", "Lobby", 100), never()).setMotd(anyString());
+            verify(ping("198.51.100.7", "Lobby", 100), never()).setMotd(anyString());
+        }
+        assertEquals(0, guard.getRejected());
+    }
+
+    private void enable() {
+        test.config.set("ping-protection.enabled", true);
+        guard.loadSettings();
+    }
+
+    private ServerListPingEvent ping(String address, String motd, int maxPlayers) throws Exception {
+        ServerListPingEvent event = mock(ServerListPingEvent.class);
+        doReturn(InetAddress.getByName(address)).when(event).getAddress();
+        doReturn(motd).when(event).getMotd();
+        doReturn(maxPlayers).when(event).getMaxPlayers();
+        doReturn(Collections.emptyIterator()).when(event).iterator();
+        guard.onPingEarly(event);
+        guard.onPing(event);
+        return event;
+    }
+}
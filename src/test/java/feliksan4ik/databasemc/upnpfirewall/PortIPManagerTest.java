@@ -0,0 +1,101 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.bukkit.command.CommandSender;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Команды портов по IP: проброс на шлюзе (NAT-PMP на 127.0.0.3) только из фоновой задачи
+class PortIPManagerTest {
+
+    @TempDir
+    Path dataFolder;
+
+    private FakeGateway gateway;
+    private TestPlugin test;
+    private PortIPManager portIPManager;
+    private final List<String> messages = new ArrayList<>();
+    private CommandSender sender;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        gateway = new FakeGateway("127.0.0.3", false, "198.51.100.3");
+        test = new TestPlugin(dataFolder);
+        test.config.set("port-mapping.backends", List.of("nat-pmp"));
+        test.config.set("port-mapping.gateways", List.of("127.0.0.3"));
+        test.config.set("port-mapping.timeout", 200);
+        test.config.set("port-mapping.retries", 1);
+        test.portMapping();
+        portIPManager = new PortIPManager(test.plugin);
+        sender = TestPlugin.sender(messages);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        gateway.close();
+    }
+
+    @Test
+    void openAndClosePortForIP() {
+        portIPManager.openPortForIP(sender, "10.0.0.5", "25565", "TCP");
+        assertEquals(List.of(), gateway.requests);
+        assertEquals(0, portIPManager.getPortIPCount());
+
+        test.runAll();
+        assertEquals(List.of("map tcp 25565"), gateway.requests);
+        assertEquals(1, portIPManager.getPortIPCount());
+        assertTrue(messages.get(0).startsWith("portsip.opened 10.0.0.5 25565"));
+
+        gateway.requests.clear();
+        portIPManager.closePortForIP(sender, "10.0.0.5", "25565");
+        // Правило снято сразу, шлюз — в фоне
+        assertEquals(0, portIPManager.getPortIPCount());
+        assertEquals(List.of(), gateway.requests);
+        assertEquals(1, messages.size());
+
+        test.runAll();
+        assertEquals(List.of("unmap tcp 25565"), gateway.requests);
+        assertEquals("portsip.closed 10.0.0.5 25565", messages.get(1));
+    }
+
+    @Test
+    void blockReplacingOpenRuleUnmapsInBackground() {
+        portIPManager.openPortForIP(sender, "10.0.0.6", "25570", "UDP");
+        test.runAll();
+        gateway.requests.clear();
+
+        portIPManager.blockPortForIP(sender, "10.0.0.6", "25570");
+        assertFalse(portIPManager.isPortAllowedForIP("10.0.0.6", 25570, "UDP"));
+        assertEquals(List.of(), gateway.requests);
+
+        test.runAll();
+        assertEquals(List.of("unmap udp 25570"), gateway.requests);
+    }
+
+    @Test
+    void clearUnmapsOpenRulesInBackground() {
+        portIPManager.openPortForIP(sender, "10.0.0.7", "25571", "TCP");
+        portIPManager.openPortForIP(sender, "10.0.0.8", "25572", "TCP");
+        test.runAll();
+        portIPManager.blockPortForIP(sender, "10.0.0.9", "25573");
+        gateway.requests.clear();
+        messages.clear();
+
+        portIPManager.clearAllPortsIP(sender);
+        assertEquals(0, portIPManager.getPortIPCount());
+        assertEquals(List.of(), messages);
+
+        test.runAll();
+        assertEquals(List.of("unmap tcp 25571", "unmap tcp 25572"), gateway.requests);
+        assertEquals(List.of("portsip.all_cleared 3"), messages);
+    }
+}
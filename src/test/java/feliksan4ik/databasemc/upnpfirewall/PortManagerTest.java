@@ -0,0 +1,138 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.bukkit.command.CommandSender;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Команды openport и closeport: шлюз (NAT-PMP на 127.0.0.2) вызывается только из фоновой
+// задачи, ответ игроку и изменение конфига — в следующей задаче основного потока
+class PortManagerTest {
+
+    @TempDir
+    Path dataFolder;
+
+    private FakeGateway gateway;
+    private TestPlugin test;
+    private PortManager portManager;
+    private final List<String> messages = new ArrayList<>();
+    private CommandSender sender;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        gateway = new FakeGateway("127.0.0.2", false, "198.51.100.2");
+        test = new TestPlugin(dataFolder);
+        test.config.set("port-mapping.backends", List.of("nat-pmp", "upnp"));
+        test.config.set("port-mapping.gateways", List.of("127.0.0.2"));
+        test.config.set("port-mapping.timeout", 200);
+        test.config.set("port-mapping.retries", 1);
+        test.portMapping();
+        portManager = new PortManager(test.plugin);
+        sender = TestPlugin.sender(messages);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        gateway.close();
+    }
+
+    @Test
+    void openPortMapsOffServerThread() {
+        portManager.openPort(sender, "25565", "TCP", "lobby");
+
+        assertEquals(List.of(), gateway.requests);
+        assertEquals(List.of(), messages);
+        assertEquals(1, test.pendingAsync());
+
+        test.runAsync();
+        assertEquals(List.of("map tcp 25565"), gateway.requests);
+        assertEquals(0, portManager.getOpenPortCount());
+
+        test.runSync();
+        assertEquals(List.of("ports.opened 25565 TCP lobby"), messages);
+        assertEquals(1, portManager.getOpenPortCount());
+        assertEquals("lobby", test.config.getString("ports.open." + ruleName() + ".description"));
+    }
+
+    @Test
+    void closePortUnmapsOffServerThread() {
+        portManager.openPort(sender, "25565-25566", "UDP", "voice");
+        test.runAll();
+        String ruleName = ruleName();
+        gateway.requests.clear();
+        messages.clear();
+
+        portManager.closePort(sender, "25566");
+        assertEquals(0, portManager.getOpenPortCount());
+        assertFalse(test.config.contains("ports.open." + ruleName));
+        assertEquals(List.of(), gateway.requests);
+
+        test.runAll();
+        assertEquals(List.of("unmap udp 25565", "unmap udp 25566"), gateway.requests);
+        assertEquals(List.of("ports.closed 25565-25566"), messages);
+    }
+
+    @Test
+    void overlappingCommandWaitsForGateway() {
+        portManager.openPort(sender, "25565-25570", "TCP", "lobby");
+        portManager.openPort(sender, "25570", "TCP", "other");
+
+        assertEquals(List.of("ports.error.busy 25570"), messages);
+        test.runAll();
+        assertEquals(1, portManager.getOpenPortCount());
+    }
+
+    // Без ответа шлюза и с занятым портом открытие не удаётся: UPnP-заглушка, которая всегда
+    // сообщала об успехе, больше не стоит в цепочке способов проброса
+    @Test
+    void unansweredGatewayFailsWhenPortIsBusy() throws Exception {
+        gateway.silent = true;
+        test.portMapping();
+        portManager = new PortManager(test.plugin);
+
+        try (ServerSocket busy = new ServerSocket(0, 1, InetAddress.getByName("0.0.0.0"))) {
+            String port = String.valueOf(busy.getLocalPort());
+            portManager.openPort(sender, port, "TCP", "game");
+            test.runAll();
+
+            assertEquals(List.of("ports.error.failed_to_open " + port), messages);
+            assertEquals(0, portManager.getOpenPortCount());
+            assertTrue(gateway.requests.isEmpty());
+        }
+    }
+
+    // Настроенный порт пробрасывается, даже когда его уже слушает локальный процесс;
+    // проброс, который уже держит правило, при следующей проверке не запрашивается снова
+    @Test
+    void managePortsFollowsRulesNotLocalListener() throws Exception {
+        test.config.set("auto-port-management.open-server-port", false);
+        try (ServerSocket listening = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+            int port = listening.getLocalPort();
+            test.config.set("ports.open.game.port", port);
+            test.config.set("ports.open.game.protocol", "TCP");
+            test.config.set("ports.open.game.description", "game");
+            portManager.loadPortSettings();
+
+            portManager.manageServerPorts();
+            assertEquals(List.of("map tcp " + port), gateway.requests);
+
+            portManager.manageServerPorts();
+            assertEquals(List.of("map tcp " + port), gateway.requests);
+        }
+    }
+
+    private String ruleName() {
+        return test.config.getConfigurationSection("ports.open").getKeys(false).iterator().next();
+    }
+}
@@ -0,0 +1,155 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Несколько шлюзов-заглушек: двойной NAT (NAT-PMP 127.0.0.4 > PCP 127.0.0.5) и два выхода
+// (127.0.0.7 и 127.0.0.8)
+class PortMappingManagerTest {
+
+    @TempDir
+    Path dataFolder;
+
+    private final List<FakeGateway> gateways = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (FakeGateway gateway : gateways) gateway.close();
+    }
+
+    @Test
+    void doubleNatMapsOuterToInnerExternalAddress() throws Exception {
+        FakeGateway inner = start("127.0.0.4", false, "10.0.0.4");
+        FakeGateway outer = start("127.0.0.5", true, "198.51.100.5");
+        PortMappingManager portMapping = portMapping("127.0.0.4 > 127.0.0.5");
+
+        assertTrue(portMapping.isAvailable());
+        assertTrue(portMapping.openPort(PortRange.of(25565), Protocol.TCP, "game"));
+        assertEquals(List.of("map tcp 25565"), inner.requests);
+        assertEquals(List.of("map tcp 25565"), outer.requests);
+        assertEquals(List.of(InetAddress.getByName("10.0.0.4")), outer.pcpClients);
+
+        assertTrue(portMapping.closePort(PortRange.of(25565), Protocol.TCP));
+        assertEquals(List.of("map tcp 25565", "unmap tcp 25565"), inner.requests);
+        assertEquals(List.of("map tcp 25565", "unmap tcp 25565"), outer.requests);
+    }
+
+    // Дальний шлюз не ответил: проброс на ближнем откатывается
+    @Test
+    void failedOuterHopRollsBackInner() throws Exception {
+        FakeGateway inner = start("127.0.0.4", false, "10.0.0.4");
+        FakeGateway outer = start("127.0.0.5", true, "198.51.100.5");
+        PortMappingManager portMapping = portMapping("127.0.0.4 > 127.0.0.5");
+        assertTrue(portMapping.isAvailable());
+
+        outer.silent = true;
+        assertFalse(portMapping.openPort(PortRange.of(25566), Protocol.UDP, "voice"));
+        assertEquals(List.of("map udp 25566", "unmap udp 25566"), inner.requests);
+    }
+
+    // Выходы пробрасываются независимо: отказ одного не мешает другому
+    @Test
+    void uplinksMapIndependently() throws Exception {
+        FakeGateway first = start("127.0.0.7", false, "198.51.100.7");
+        FakeGateway second = start("127.0.0.8", true, "198.51.100.8");
+        PortMappingManager portMapping = portMapping("127.0.0.7", "127.0.0.8");
+        assertTrue(portMapping.isAvailable());
+
+        assertTrue(portMapping.openPort(PortRange.of(25565), Protocol.TCP, "game"));
+        assertEquals(List.of("map tcp 25565"), first.requests);
+        assertEquals(List.of("map tcp 25565"), second.requests);
+
+        second.silent = true;
+        assertTrue(portMapping.openPort(new PortRange(25570, 25571), Protocol.UDP, "voice"));
+        assertEquals(List.of("map tcp 25565", "map udp 25570", "map udp 25571"), first.requests);
+
+        // Пересечение с занятым диапазоном отклоняется до запросов к шлюзам
+        assertFalse(portMapping.openPort(new PortRange(25571, 25572), Protocol.UDP, "other"));
+        assertEquals(3, first.requests.size());
+    }
+
+    // TCP и UDP одного диапазона закрываются по отдельности
+    @Test
+    void closeOneProtocolKeepsOther() throws Exception {
+        FakeGateway gateway = start("127.0.0.7", false, "198.51.100.7");
+        PortMappingManager portMapping = portMapping("127.0.0.7");
+        assertTrue(portMapping.isAvailable());
+
+        assertTrue(portMapping.openPort(PortRange.of(25565), Protocol.TCP, "game"));
+        assertTrue(portMapping.openPort(PortRange.of(25565), Protocol.UDP, "voice"));
+        assertTrue(portMapping.closePort(PortRange.of(25565), Protocol.UDP));
+        assertEquals(List.of("map tcp 25565", "map udp 25565", "unmap udp 25565"), gateway.requests);
+    }
+
+    // Проброс держат правила двух адресов: шлюз закрывает его, только когда отпустят оба
+    @Test
+    void mappingClosesWhenLastOwnerReleases() throws Exception {
+        FakeGateway gateway = start("127.0.0.7", false, "198.51.100.7");
+        PortMappingManager portMapping = portMapping("127.0.0.7");
+        assertTrue(portMapping.isAvailable());
+
+        PortRange ports = PortRange.of(25565);
+        PortMappingManager.Hold first = new PortMappingManager.Hold("10.0.0.1", ports, Protocol.TCP);
+        PortMappingManager.Hold second = new PortMappingManager.Hold("10.0.0.2", ports, Protocol.TCP);
+        assertTrue(portMapping.openPort(first, "game"));
+        assertTrue(portMapping.openPort(second, "game"));
+        assertEquals(List.of("map tcp 25565"), gateway.requests);
+
+        assertTrue(portMapping.closePort(first));
+        assertEquals(List.of("map tcp 25565"), gateway.requests);
+        // Повторное закрытие тем же владельцем не отпускает чужой проброс
+        assertTrue(portMapping.closePort(first));
+        assertEquals(List.of("map tcp 25565"), gateway.requests);
+
+        assertTrue(portMapping.closePort(second));
+        assertEquals(List.of("map tcp 25565", "unmap tcp 25565"), gateway.requests);
+    }
+
+    // Диапазон, который никто не держит, закрывать нечего: запросов к шлюзу нет
+    @Test
+    void closeWithoutOwnerSendsNothing() throws Exception {
+        FakeGateway gateway = start("127.0.0.7", false, "198.51.100.7");
+        PortMappingManager portMapping = portMapping("127.0.0.7");
+        assertTrue(portMapping.isAvailable());
+
+        assertTrue(portMapping.closePort(new PortMappingManager.Hold("ports", PortRange.of(25565), Protocol.TCP)));
+        assertEquals(List.of(), gateway.requests);
+    }
+
+    // Без discover-outer за шлюзом с частным внешним адресом дальний не ищется
+    @Test
+    void outerDiscoveryIsOffByDefault() throws Exception {
+        FakeGateway inner = start("127.0.0.4", false, "10.0.0.4");
+        PortMappingManager portMapping = portMapping("127.0.0.4");
+
+        assertTrue(portMapping.isAvailable());
+        assertFalse(portMapping.describe().contains(">"));
+        assertTrue(portMapping.openPort(PortRange.of(25565), Protocol.TCP, "game"));
+        assertEquals(List.of("map tcp 25565"), inner.requests);
+    }
+
+    private FakeGateway start(String address, boolean pcp, String external) throws Exception {
+        FakeGateway gateway = new FakeGateway(address, pcp, external);
+        gateways.add(gateway);
+        return gateway;
+    }
+
+    private PortMappingManager portMapping(String... layouts) {
+        TestPlugin test = new TestPlugin(dataFolder);
+        test.config.set("port-mapping.backends", List.of("pcp", "nat-pmp"));
+        test.config.set("port-mapping.gateways", List.of(layouts));
+        test.config.set("port-mapping.timeout", 100);
+        test.config.set("port-mapping.retries", 1);
+        return PortMappingManager.create(test.plugin);
+    }
+}
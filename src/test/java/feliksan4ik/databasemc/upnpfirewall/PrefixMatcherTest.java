@@ -0,0 +1,39 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class PrefixMatcherTest {
+
+    // Перезагрузка правил: между clear() и новыми правилами читатели видят прежний снимок
+    @Test
+    void clearInsideBatchKeepsPreviousSnapshot() {
+        PrefixMatcher<String> matcher = new PrefixMatcher<>();
+        matcher.put(IpPrefix.parse("10.0.0.0/8"), "old");
+        IpAddress address = IpAddress.parse("10.1.2.3");
+        Object before = matcher.version();
+
+        matcher.batch(() -> {
+            matcher.clear();
+            assertSame(before, matcher.version());
+            assertEquals("old", matcher.longestMatch(address));
+            matcher.put(IpPrefix.parse("10.1.0.0/16"), "new");
+            assertEquals("old", matcher.longestMatch(address));
+        });
+
+        assertEquals("new", matcher.longestMatch(address));
+        assertNull(matcher.longestMatch(IpAddress.parse("10.2.0.1")));
+    }
+
+    @Test
+    void clearOutsideBatchPublishesEmptySet() {
+        PrefixMatcher<String> matcher = new PrefixMatcher<>();
+        matcher.put(IpPrefix.parse("10.0.0.0/8"), "old");
+        matcher.clear();
+        assertNull(matcher.longestMatch(IpAddress.parse("10.1.2.3")));
+        assertEquals(0, matcher.size());
+    }
+}
@@ -0,0 +1,168 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Удаление правил портов не должно менять ни одного решения: после каждого случая решения
+// исходного и сокращённого наборов сравниваются на адресах всех уровней и соседних портах
+class RuleOptimizerTest {
+
+    private static final List<String> ADDRESSES = List.of("10.1.2.3", "10.1.2.4", "10.1.9.9", "10.9.9.9", "192.0.2.1");
+    private static final int[] PORTS = {8079, 8080, 8081, 8100};
+
+    @Test
+    void blockOverNearerOpenIsKept() {
+        List<PortIPManager.PortIPRule> rules = List.of(
+                rule("10.1.2.3/32", 8080, Protocol.TCP, RuleAction.BLOCK),
+                rule("10.1.2.0/24", 8080, Protocol.TCP, RuleAction.OPEN),
+                rule("10.1.0.0/16", 8080, Protocol.TCP, RuleAction.BLOCK));
+        RuleOptimizer.Report report = analyze(rules);
+
+        assertEquals(List.of(), report.portIPRemove());
+        assertEquals(1, report.count(RuleOptimizer.Kind.CONFLICT));
+        assertEquivalent(rules, report);
+    }
+
+    @Test
+    void openBelowNearerBlockIsConflictAndKept() {
+        List<PortIPManager.PortIPRule> rules = List.of(
+                rule("10.1.2.3/32", 8080, Protocol.TCP, RuleAction.OPEN),
+                rule("10.1.2.0/24", 8080, Protocol.TCP, RuleAction.BLOCK),
+                rule("10.1.0.0/16", 8080, Protocol.TCP, RuleAction.OPEN));
+        RuleOptimizer.Report report = analyze(rules);
+
+        assertEquals(List.of(), report.portIPRemove());
+        assertEquals(1, report.count(RuleOptimizer.Kind.CONFLICT));
+        assertEquals(0, report.count(RuleOptimizer.Kind.REDUNDANT));
+        assertEquivalent(rules, report);
+    }
+
+    @Test
+    void blockCoveredByNearestBroaderBlockIsRemoved() {
+        List<PortIPManager.PortIPRule> rules = List.of(
+                rule("10.1.2.3/32", 8080, Protocol.TCP, RuleAction.BLOCK),
+                rule("10.1.0.0/16", new PortRange(8000, 8100), Protocol.ANY, RuleAction.BLOCK));
+        RuleOptimizer.Report report = analyze(rules);
+
+        assertEquals(List.of(rules.get(0)), report.portIPRemove());
+        assertEquivalent(rules, report);
+    }
+
+    // Выше заблокирован только TCP: блокировка обоих протоколов остаётся
+    @Test
+    void blockOfOtherProtocolIsKept() {
+        List<PortIPManager.PortIPRule> rules = List.of(
+                rule("10.1.2.3/32", 8080, Protocol.ANY, RuleAction.BLOCK),
+                rule("10.1.0.0/16", 8080, Protocol.TCP, RuleAction.BLOCK));
+        RuleOptimizer.Report report = analyze(rules);
+
+        assertEquals(List.of(), report.portIPRemove());
+        assertEquivalent(rules, report);
+    }
+
+    @Test
+    void openRepeatedByNearestOpenIsRemoved() {
+        List<PortIPManager.PortIPRule> rules = List.of(
+                rule("10.1.2.3/32", 8080, Protocol.TCP, RuleAction.OPEN),
+                rule("10.1.2.0/24", 8081, Protocol.TCP, RuleAction.BLOCK),
+                rule("10.1.0.0/16", new PortRange(8080, 8081), Protocol.TCP, RuleAction.OPEN));
+        RuleOptimizer.Report report = analyze(rules);
+
+        assertEquals(List.of(rules.get(0)), report.portIPRemove());
+        assertEquivalent(rules, report);
+    }
+
+    // Цепочка одинаковых блокировок: остаётся самая широкая
+    @Test
+    void chainOfBlocksKeepsBroadest() {
+        List<PortIPManager.PortIPRule> rules = List.of(
+                rule("10.1.2.3/32", 8080, Protocol.TCP, RuleAction.BLOCK),
+                rule("10.1.2.0/24", 8080, Protocol.TCP, RuleAction.BLOCK),
+                rule("10.1.0.0/16", 8080, Protocol.TCP, RuleAction.BLOCK));
+        RuleOptimizer.Report report = analyze(rules);
+
+        assertEquals(Set.of(rules.get(0), rules.get(1)), new HashSet<>(report.portIPRemove()));
+        assertEquivalent(rules, report);
+    }
+
+    // Блокировка без правила выше не избыточна: по умолчанию порт открыт
+    @Test
+    void blockWithoutBroaderRuleIsKept() {
+        List<PortIPManager.PortIPRule> rules = List.of(
+                rule("10.1.2.3/32", 8080, Protocol.TCP, RuleAction.BLOCK),
+                rule("10.1.0.0/16", 8081, Protocol.TCP, RuleAction.BLOCK));
+        RuleOptimizer.Report report = analyze(rules);
+
+        assertEquals(List.of(), report.portIPRemove());
+        assertEquivalent(rules, report);
+    }
+
+    @Test
+    void firewallRuleUnderSameVerdictIsRedundant() {
+        List<RuleOptimizer.Entry> entries = List.of(
+                new RuleOptimizer.Entry("a", firewallRule("10.1.2.0/24")),
+                new RuleOptimizer.Entry("b", firewallRule("10.1.0.0/16")));
+        RuleOptimizer.Report report = RuleOptimizer.analyze(
+                new RuleOptimizer.Input(entries, List.of(), List.of(), List.of(), null, null));
+
+        assertEquals(List.of("a"), report.firewallKeys());
+        assertEquals(1, report.count(RuleOptimizer.Kind.REDUNDANT));
+    }
+
+    private static RuleOptimizer.Report analyze(List<PortIPManager.PortIPRule> rules) {
+        List<String> keys = new ArrayList<>();
+        for (PortIPManager.PortIPRule rule : rules) keys.add(rule.ruleName());
+        return RuleOptimizer.analyze(new RuleOptimizer.Input(List.of(), List.of(), rules, keys, null, null));
+    }
+
+    private static void assertEquivalent(List<PortIPManager.PortIPRule> rules, RuleOptimizer.Report report) {
+        List<PortIPManager.PortIPRule> optimized = new ArrayList<>(rules);
+        optimized.removeAll(report.portIPRemove());
+        optimized.addAll(report.portIPAdd());
+        for (String text : ADDRESSES) {
+            IpAddress address = IpAddress.parse(text);
+            for (int port : PORTS) {
+                for (Protocol protocol : List.of(Protocol.TCP, Protocol.UDP)) {
+                    assertEquals(allowed(rules, address, port, protocol), allowed(optimized, address, port, protocol),
+                            text + " " + port + " " + protocol);
+                }
+            }
+        }
+    }
+
+    // Решение как в PortIPManager.isPortAllowedForIP
+    private static boolean allowed(List<PortIPManager.PortIPRule> rules, IpAddress address, int port, Protocol protocol) {
+        Map<IpPrefix, PortRuleSet> sets = new LinkedHashMap<>();
+        for (PortIPManager.PortIPRule rule : rules) {
+            sets.merge(rule.prefix(), PortRuleSet.EMPTY.with(rule), (existing, added) -> existing.with(rule));
+        }
+        PrefixMatcher<PortRuleSet> matcher = new PrefixMatcher<>();
+        sets.forEach(matcher::put);
+        for (PortRuleSet set : matcher.matches(address)) {
+            RuleAction action = set.verdict(port, protocol);
+            if (action != null) return action == RuleAction.OPEN;
+        }
+        return true;
+    }
+
+    private static PortIPManager.PortIPRule rule(String prefix, int port, Protocol protocol, RuleAction action) {
+        return rule(prefix, PortRange.of(port), protocol, action);
+    }
+
+    private static PortIPManager.PortIPRule rule(String prefix, PortRange ports, Protocol protocol, RuleAction action) {
+        return new PortIPManager.PortIPRule(IpPrefix.parse(prefix), ports, protocol, action, "",
+                prefix + " " + ports + " " + action);
+    }
+
+    private static FirewallManager.FirewallRule firewallRule(String prefix) {
+        return new FirewallManager.FirewallRule(IpPrefix.parse(prefix), ListType.BLACKLIST, RuleAction.BLOCK);
+    }
+}
@@ -0,0 +1,118 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.bukkit.Server;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+// Main без сервера: JavaPlugin создаётся только загрузчиком плагинов, поэтому это mock с
+// настоящими конфигом, журналом и сторожем тика. Задачи планировщика копятся в очередях и
+// выполняются тестом явно: основной поток и фон разделены так же, как на сервере.
+// Переводы возвращают ключ и аргументы через пробел
+final class TestPlugin {
+
+    final Main plugin;
+    final YamlConfiguration config = new YamlConfiguration();
+    private final Deque<Runnable> syncTasks = new ArrayDeque<>();
+    private final Deque<Runnable> asyncTasks = new ArrayDeque<>();
+
+    TestPlugin(Path dataFolder) {
+        plugin = mock(Main.class, Mockito.withSettings().defaultAnswer(TestPlugin::answer));
+        plugin.config = config;
+
+        BukkitScheduler scheduler = mock(BukkitScheduler.class);
+        doAnswer(invocation -> queue(syncTasks, invocation)).when(scheduler).runTask(any(), any(Runnable.class));
+        doAnswer(invocation -> queue(asyncTasks, invocation))
+                .when(scheduler).runTaskAsynchronously(any(), any(Runnable.class));
+        Server server = mock(Server.class);
+        doReturn(scheduler).when(server).getScheduler();
+        doReturn(true).when(server).isPrimaryThread();
+
+        doReturn(server).when(plugin).getServer();
+        doReturn(Logger.getLogger("UpnpFirewallTest")).when(plugin).getLogger();
+        doReturn(dataFolder.toFile()).when(plugin).getDataFolder();
+        doReturn(true).when(plugin).isEnabled();
+        doReturn(mock(ClusterManager.class)).when(plugin).getClusterManager();
+        doReturn(new TickWatchdog(plugin)).when(plugin).getWatchdog();
+        StateJournal journal = new StateJournal(plugin);
+        journal.load();
+        doReturn(journal).when(plugin).getStateJournal();
+    }
+
+    // Проброс портов по настройкам config, с опросом шлюзов
+    PortMappingManager portMapping() {
+        PortMappingManager portMapping = PortMappingManager.create(plugin);
+        portMapping.probe();
+        doReturn(portMapping).when(plugin).getPortMapping();
+        return portMapping;
+    }
+
+    int pendingAsync() {
+        return asyncTasks.size();
+    }
+
+    int pendingSync() {
+        return syncTasks.size();
+    }
+
+    void runAsync() {
+        while (!asyncTasks.isEmpty()) asyncTasks.poll().run();
+    }
+
+    void runSync() {
+        while (!syncTasks.isEmpty()) syncTasks.poll().run();
+    }
+
+    // Фон, затем основной поток, пока очереди не опустеют
+    void runAll() {
+        while (!asyncTasks.isEmpty() || !syncTasks.isEmpty()) {
+            runAsync();
+            runSync();
+        }
+    }
+
+    static CommandSender sender(List<String> messages) {
+        CommandSender sender = mock(CommandSender.class);
+        doAnswer(invocation -> messages.add(invocation.getArgument(0))).when(sender).sendMessage(any(String.class));
+        return sender;
+    }
+
+    private static Object queue(Deque<Runnable> tasks, InvocationOnMock invocation) {
+        tasks.add(invocation.getArgument(1));
+        return null;
+    }
+
+    private static Object answer(InvocationOnMock invocation) throws Throwable {
+        switch (invocation.getMethod().getName()) {
+            case "getTranslation" -> {
+                Object[] raw = invocation.getRawArguments();
+                List<String> parts = new ArrayList<>(List.of((String) raw[0]));
+                if (raw.length > 1) {
+                    Arrays.stream((Object[]) raw[1]).map(String::valueOf).forEach(parts::add);
+                }
+                return String.join(" ", parts);
+            }
+            case "offThread" -> {
+                return invocation.callRealMethod();
+            }
+            default -> {
+                return Mockito.RETURNS_DEFAULTS.answer(invocation);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package feliksan4ik.databasemc.upnpfirewall;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Счётчики Space-Saving: вытеснение минимума и таблица ключей с удалением сдвигом
+class TopTalkersTest {
+
+    // Новый ключ в заполненной таблице занимает счётчик минимума: ошибка — старый счёт, счёт на единицу больше
+    @Test
+    void evictsMinimum() {
+        TopTalkers.SpaceSaving counters = new TopTalkers.SpaceSaving(3);
+        offer(counters, 1, 3);
+        offer(counters, 2, 2);
+        offer(counters, 3, 1);
+        assertTrue(counters.isFull());
+        assertEquals(1, counters.minimum());
+
+        int replaced = counters.indexOf(0, 3);
+        counters.offer(0, 4);
+        assertEquals(-1, counters.indexOf(0, 3));
+        assertEquals(replaced, counters.indexOf(0, 4));
+        assertEquals(2, counters.count[replaced]);
+        assertEquals(1, counters.error[replaced]);
+        assertEquals(2, counters.minimum());
+
+        // Известный ключ только увеличивает свой счёт
+        counters.offer(0, 1);
+        assertEquals(4, counters.count[counters.indexOf(0, 1)]);
+        assertEquals(3, counters.size);
+
+        // При равных минимумах вытесняется один из них, второй остаётся
+        counters.offer(0, 5);
+        int slot = counters.indexOf(0, 5);
+        assertEquals(3, counters.count[slot]);
+        assertEquals(2, counters.error[slot]);
+        assertTrue(counters.indexOf(0, 2) >= 0 ^ counters.indexOf(0, 4) >= 0);
+        assertTrue(counters.indexOf(0, 1) >= 0);
+
+        counters.clear();
+        assertEquals(0, counters.size);
+        assertEquals(0, counters.minimum());
+        assertEquals(-1, counters.indexOf(0, 1));
+    }
+
+    // Гарантия алгоритма: count - error <= истинный счёт <= count, а ключ чаще N / capacity не теряется
+    @Test
+    void boundsHold() {
+        TopTalkers.SpaceSaving counters = new TopTalkers.SpaceSaving(8);
+        Map<Long, Long> truth = new HashMap<>();
+        Random random = new Random(42);
+        int total = 20_000;
+        for (int i = 0; i < total; i++) {
+            // Половина потока — три тяжёлых ключа, остальное — длинный хвост
+            long key = random.nextBoolean() ? random.nextInt(3) : 100 + random.nextInt(5_000);
+            counters.offer(7, key);
+            truth.merge(key, 1L, Long::sum);
+        }
+
+        for (int slot = 0; slot < counters.size; slot++) {
+            long actual = truth.get(counters.low[slot]);
+            assertTrue(counters.count[slot] - counters.error[slot] <= actual);
+            assertTrue(actual <= counters.count[slot]);
+        }
+        for (Map.Entry<Long, Long> entry : truth.entrySet()) {
+            if (entry.getValue() > total / 8) assertTrue(counters.indexOf(7, entry.getKey()) >= 0);
+        }
+    }
+
+    // После каждого вытеснения (удаление из цепочки со сдвигом назад) все оставшиеся ключи находятся
+    // на своих счётчиках, а вытесненный — нет. Маленькая таблица и узкий набор ключей дают длинные
+    // цепочки с переходом через конец массива, а ключи возвращаются в таблицу после удаления
+    @Test
+    void deleteThenLookup() {
+        TopTalkers.SpaceSaving counters = new TopTalkers.SpaceSaving(4);
+        Random random = new Random(7);
+        for (int i = 0; i < 50_000; i++) {
+            long keyHigh = random.nextInt(3);
+            long keyLow = random.nextInt(6);
+            counters.offer(keyHigh, keyLow);
+
+            int tracked = 0;
+            for (long high = 0; high < 3; high++) {
+                for (long low = 0; low < 6; low++) {
+                    int slot = counters.indexOf(high, low);
+                    boolean stored = false;
+                    for (int s = 0; s < counters.size; s++) {
+                        if (counters.high[s] == high && counters.low[s] == low) {
+                            assertEquals(s, slot);
+                            stored = true;
+                        }
+                    }
+                    if (!stored) assertEquals(-1, slot);
+                    else tracked++;
+                }
+            }
+            assertEquals(counters.size, tracked);
+            assertTrue(counters.indexOf(keyHigh, keyLow) >= 0);
+        }
+        assertFalse(counters.indexOf(3, 0) >= 0);
+    }
+
+    private static void offer(TopTalkers.SpaceSaving counters, long key, int times) {
+        for (int i = 0; i < times; i++) counters.offer(0, key);
+    }
+}